@@ -0,0 +1,182 @@
+package es.ubu.lsi.bench;
+
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Utilidades comunes de los benchmarks: arranque del servidor en el propio
+ * proceso y clientes mínimos que hablan el protocolo de tramas directamente.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class BenchSupport {
+
+    /**
+     * Constructor privado (clase de utilidades).
+     */
+    private BenchSupport() {
+    }
+
+    /**
+     * Busca un puerto libre en la máquina local.
+     *
+     * @return Puerto libre.
+     * @throws IOException Si no se puede abrir un socket de prueba.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Arranca un servidor en segundo plano.
+     * Solo se registran los avisos y errores del servidor, para no medir la
+     * escritura de los mensajes del chat en el terminal.
+     *
+     * @param engine Motor de E/S ({@code threads}, {@code virtual} o {@code nio}).
+     * @param port Puerto de escucha.
+     * @return Servidor arrancado.
+     */
+    static ChatServer startServer(String engine, int port) {
+        ServerConfig config = new ServerConfig().set("port", String.valueOf(port)).set("engine", engine)
+                .set("logLevel", "warn");
+        ChatServer server = "nio".equalsIgnoreCase(engine) ? new ChatServerNioImpl(config) : new ChatServerImpl(config);
+        Thread acceptor = new Thread(server::startup, "chat-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Abre una conexión bloqueante, negocia el codificador binario y envía el nickname.
+     * Reintenta la conexión mientras el servidor recién arrancado no escuche.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Nickname del cliente.
+     * @return Canal conectado, aún en modo bloqueante.
+     * @throws IOException Si falla la conexión o la negociación.
+     */
+    static SocketChannel connect(int port, String nickname) throws IOException {
+        SocketChannel channel = null;
+        for (int attempt = 0; channel == null; attempt++) {
+            try {
+                channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            }
+        }
+        channel.socket().setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+        DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        MessageFrames.writeFrame(out, Handshake.hello(Handshake.CODEC_BINARY));
+        if (Handshake.acceptedCodec(MessageFrames.readFrame(in)) != Handshake.CODEC_BINARY) {
+            throw new IOException("El servidor no acepta el codificador binario");
+        }
+        MessageFrames.writeFrame(out, BinaryCodec.INSTANCE.encode(
+                new ChatMessage(0, ChatMessage.MessageType.MESSAGE, nickname)));
+        return channel;
+    }
+
+    /**
+     * Hilo que lee y descarta todo lo que llega a un conjunto de clientes,
+     * para que el servidor nunca se encuentre con un socket lleno.
+     */
+    static final class Sink extends Thread {
+        /** Selector de los clientes. */
+        private final Selector selector;
+        /** Canales pendientes de registrar. */
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        /** Buffer de lectura compartido. */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        /** Indica si el hilo debe seguir leyendo. */
+        private volatile boolean running = true;
+
+        /**
+         * Constructor.
+         *
+         * @throws IOException Si no se puede abrir el selector.
+         */
+        Sink() throws IOException {
+            super("bench-sink");
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Añade un cliente al sumidero.
+         *
+         * @param channel Canal del cliente.
+         * @throws IOException Si no se puede pasar a modo no bloqueante.
+         */
+        void add(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Detiene el hilo y cierra todos los clientes.
+         *
+         * @throws InterruptedException Si se interrumpe la espera.
+         */
+        void close() throws InterruptedException {
+            running = false;
+            selector.wakeup();
+            join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error en el sumidero: " + e.getMessage());
+            }
+        }
+    }
+}
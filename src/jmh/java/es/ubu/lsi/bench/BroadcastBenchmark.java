@@ -0,0 +1,98 @@
+package es.ubu.lsi.bench;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de {@link ChatServer#broadcast(ChatMessage)} según el número de
+ * clientes conectados. Los clientes son conexiones reales por loopback en el
+ * mismo proceso, cuyo tráfico se lee y descarta en un único hilo.
+ * Con 10000 clientes el proceso necesita unos 40000 descriptores de fichero
+ * ({@code ulimit -n}).
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /** Motor de E/S del servidor. */
+    @Param({"threads", "nio"})
+    private String engine;
+
+    /** Número de clientes conectados. */
+    @Param({"10", "100", "1000", "10000"})
+    private int clients;
+
+    /** Servidor medido. */
+    private ChatServer server;
+
+    /** Lector de los clientes. */
+    private BenchSupport.Sink sink;
+
+    /** Mensaje difundido. */
+    private final ChatMessage message = new ChatMessage(0, ChatMessage.MessageType.MESSAGE, "mensaje de prueba");
+
+    /**
+     * Arranca el servidor y conecta a los clientes.
+     *
+     * @throws IOException Si falla alguna conexión.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        int port = BenchSupport.freePort();
+        server = BenchSupport.startServer(engine, port);
+        sink = new BenchSupport.Sink();
+        sink.start();
+        for (int i = 0; i < clients; i++) {
+            sink.add(BenchSupport.connect(port, "bench-" + i));
+        }
+        // Espera a que el servidor haya registrado a todos los clientes
+        while (server.getQueueDepths().size() < clients) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Cierra los clientes y apaga el servidor.
+     *
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        sink.close();
+        server.shutdown();
+    }
+
+    /**
+     * Difunde un mensaje a todos los clientes.
+     */
+    @Benchmark
+    public void broadcast() {
+        server.broadcast(message);
+    }
+}
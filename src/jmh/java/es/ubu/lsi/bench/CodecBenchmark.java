@@ -0,0 +1,90 @@
+package es.ubu.lsi.bench;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de codificar y decodificar un {@link ChatMessage} con cada codificador.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** Codificador medido. */
+    @Param({"binary", "serialization", "binary+deflate"})
+    private String codec;
+
+    /** Longitud del texto del mensaje, en caracteres. */
+    @Param({"16", "256"})
+    private int textLength;
+
+    /** Codificador correspondiente al parámetro. */
+    private MessageCodec messageCodec;
+
+    /** Mensaje a codificar. */
+    private ChatMessage message;
+
+    /** Mensaje ya codificado, para medir la decodificación. */
+    private byte[] encoded;
+
+    /**
+     * Prepara el mensaje y su codificación.
+     *
+     * @throws IOException Si el mensaje no puede codificarse.
+     */
+    @Setup
+    public void setup() throws IOException {
+        messageCodec = Handshake.codec(Handshake.codecId(codec));
+        char[] text = new char[textLength];
+        Arrays.fill(text, 'a');
+        message = new ChatMessage(42, ChatMessage.MessageType.MESSAGE, new String(text));
+        encoded = messageCodec.encode(message);
+    }
+
+    /**
+     * Codifica el mensaje.
+     *
+     * @return Bytes codificados.
+     * @throws IOException Si falla la codificación.
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return messageCodec.encode(message);
+    }
+
+    /**
+     * Decodifica el mensaje.
+     *
+     * @return Mensaje decodificado.
+     * @throws IOException Si falla la decodificación.
+     */
+    @Benchmark
+    public ChatMessage decode() throws IOException {
+        return messageCodec.decode(encoded, 0, encoded.length);
+    }
+}
@@ -0,0 +1,101 @@
+package es.ubu.lsi.bench;
+
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencia de ida y vuelta de un único remitente por loopback: el cliente
+ * envía un mensaje y espera a recibir su propia difusión.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    /** Motor de E/S del servidor. */
+    @Param({"threads", "nio"})
+    private String engine;
+
+    /** Servidor medido. */
+    private ChatServer server;
+
+    /** Conexión del remitente. */
+    private SocketChannel channel;
+
+    /** Flujo de salida del remitente. */
+    private DataOutputStream out;
+
+    /** Flujo de entrada del remitente. */
+    private DataInputStream in;
+
+    /** Mensaje ya codificado que envía el remitente. */
+    private byte[] payload;
+
+    /**
+     * Arranca el servidor y conecta al remitente.
+     *
+     * @throws IOException Si falla la conexión.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port = BenchSupport.freePort();
+        server = BenchSupport.startServer(engine, port);
+        channel = BenchSupport.connect(port, "bench");
+        out = new DataOutputStream(channel.socket().getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+        payload = BinaryCodec.INSTANCE.encode(new ChatMessage(0, ChatMessage.MessageType.MESSAGE, "ping"));
+    }
+
+    /**
+     * Cierra el remitente y apaga el servidor.
+     *
+     * @throws IOException Si falla el cierre.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        server.shutdown();
+    }
+
+    /**
+     * Envía un mensaje y espera su eco.
+     *
+     * @return Trama recibida.
+     * @throws IOException Si falla la comunicación.
+     */
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        MessageFrames.writeFrame(out, payload);
+        return MessageFrames.readFrame(in);
+    }
+}
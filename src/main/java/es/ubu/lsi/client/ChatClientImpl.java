@@ -1,12 +1,31 @@
 package es.ubu.lsi.client;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.BatchingWriter;
 import es.ubu.lsi.common.ChatMessage;
 import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageCodec;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
 
 /**
  * Implementación del cliente de chat.
@@ -21,6 +40,12 @@ import es.ubu.lsi.common.ChatMessage.MessageType;
  */
 public class ChatClientImpl implements ChatClient {
 
+    /** Marca de fin de la cola de salida (tras el LOGOUT). */
+    private static final EncodedMessage END = new EncodedMessage(null);
+
+    /** Espera máxima para enviar los mensajes pendientes al desconectar. */
+    private static final long DISCONNECT_TIMEOUT_MILLIS = 2000;
+
     /** Dirección del servidor (IP o hostname). */
     private final String server;
 
@@ -31,19 +56,49 @@ public class ChatClientImpl implements ChatClient {
     private int port = 1500;
 
     /** Estado del cliente (activo o desconectado). */
-    private boolean alive = true;
+    private volatile boolean alive = true;
 
-    /** Identificador único del cliente. */
-    private int id;
+    /** Identificador único del cliente, asignado por el servidor al aceptar su nickname. */
+    private volatile int id;
 
     /** Socket utilizado para la conexión al servidor. */
     private Socket socket;
 
     /** Flujo de salida hacia el servidor. */
-    private ObjectOutputStream outputStream;
+    private DataOutputStream outputStream;
 
     /** Flujo de entrada desde el servidor. */
-    private ObjectInputStream inputStream;
+    private DataInputStream inputStream;
+
+    /** Codificadores ofrecidos al servidor, por orden de preferencia. */
+    private final byte[] offeredCodecs;
+
+    /** Codificador negociado con el servidor. */
+    private MessageCodec codec = SerializationCodec.INSTANCE;
+
+    /** Identificador del codificador negociado con el servidor. */
+    private byte codecId = Handshake.CODEC_SERIALIZATION;
+
+    /** Mensajes pendientes de enviar al servidor. */
+    private final BlockingQueue<EncodedMessage> outbound = new LinkedBlockingQueue<>();
+
+    /** Hilo que envía por lotes los mensajes pendientes. */
+    private Thread writerThread;
+
+    /** Tratamiento de los mensajes recibidos (por defecto, mostrarlos por consola). */
+    private Consumer<ChatMessage> messageHandler = this::printMessage;
+
+    /** Fábrica de los hilos escritor y de escucha (null para hilos de plataforma con nombre). */
+    private ThreadFactory threadFactory;
+
+    /** Indica si se muestran por consola las conexiones y los mensajes enviados. */
+    private boolean verbose = true;
+
+    /** Tamaño máximo de un lote de escritura, en bytes. */
+    private int batchBytes = 64 * 1024;
+
+    /** Ventana para agrupar mensajes en un lote, en microsegundos (0 para no esperar). */
+    private long batchDelayMicros;
 
     /**
      * Constructor que inicializa el cliente con los datos del servidor y del usuario.
@@ -53,42 +108,165 @@ public class ChatClientImpl implements ChatClient {
      * @param username Nombre del usuario que se conectará.
      */
     public ChatClientImpl(String server, int port, String username) {
+        this(server, port, username, "binary");
+    }
+
+    /**
+     * Constructor que además indica el codificador preferido para los mensajes.
+     * La serialización de Java se ofrece siempre como alternativa. Si el
+     * preferido es una variante comprimida ({@code binary+deflate}), también
+     * se ofrece la misma sin comprimir, por si el servidor no la admite.
+     * 
+     * @param server Dirección del servidor (puede ser "localhost" si no se especifica).
+     * @param port Puerto en el que el servidor está escuchando.
+     * @param username Nombre del usuario que se conectará.
+     * @param codec Codificador preferido ({@code binary} o {@code serialization},
+     *              con el sufijo {@code +deflate} para comprimir los mensajes).
+     */
+    public ChatClientImpl(String server, int port, String username, String codec) {
         this.server = (server == null || server.isEmpty()) ? "localhost" : server;
         this.port = port;
         this.username = username;
+        // Tras el preferido se ofrece su variante sin comprimir y, por último, la serialización
+        byte preferred = Handshake.codecId(codec);
+        Set<Byte> offered = new LinkedHashSet<>(Arrays.asList(preferred,
+                (byte) (preferred & ~Handshake.COMPRESSED), Handshake.CODEC_SERIALIZATION));
+        this.offeredCodecs = new byte[offered.size()];
+        int i = 0;
+        for (byte offeredCodec : offered) {
+            this.offeredCodecs[i++] = offeredCodec;
+        }
+    }
+
+    /**
+     * Sustituye el tratamiento de los mensajes recibidos, que por defecto se
+     * muestran por consola. Debe llamarse antes de {@link #start()}.
+     * 
+     * @param handler Receptor de los mensajes, invocado desde el hilo de escucha.
+     */
+    public void setMessageHandler(Consumer<ChatMessage> handler) {
+        this.messageHandler = handler;
+    }
+
+    /**
+     * Establece la fábrica de los hilos escritor y de escucha, por ejemplo para
+     * usar hilos virtuales con miles de clientes en un mismo proceso.
+     * Debe llamarse antes de {@link #start()}.
+     * 
+     * @param threadFactory Fábrica de hilos.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Activa o desactiva los mensajes por consola de conexión, envío y desconexión.
+     * 
+     * @param verbose false para no escribir nada en la consola.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Establece el tamaño máximo de un lote de escritura (64 KiB por defecto).
+     * Debe llamarse antes de {@link #start()}.
+     * 
+     * @param batchBytes Bytes como máximo por lote.
+     */
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Establece la ventana de espera para agrupar mensajes en un mismo lote
+     * (0 por defecto: se envía en cuanto no quedan mensajes pendientes).
+     * Debe llamarse antes de {@link #start()}.
+     * 
+     * @param batchDelayMicros Espera máxima en microsegundos.
+     */
+    public void setBatchDelayMicros(long batchDelayMicros) {
+        this.batchDelayMicros = batchDelayMicros;
+    }
+
+    /**
+     * Obtiene el ID que el servidor ha asignado al cliente.
+     * 
+     * @return ID asignado, o 0 si aún no se ha conectado o el servidor no lo comunica.
+     */
+    public int getId() {
+        return id;
     }
 
     /**
      * Establece la conexión del cliente con el servidor.
-     * Configura los flujos de entrada y salida para la comunicación.
+     * Configura los flujos de entrada y salida para la comunicación y, si el
+     * servidor lo admite, espera a que confirme el nickname con el ID asignado.
      * 
-     * @return true si la conexión se establece correctamente, false si ocurre algún error.
+     * @return true si la conexión se establece correctamente, false si ocurre
+     *         algún error o el servidor rechaza el nickname.
      */
     @Override
     public boolean start() {
         try {
             // Intento de conexión al servidor
             socket = new Socket(server, port);
-            System.out.println("Conectado al servidor " + server + " en el puerto " + port);
+            socket.setTcpNoDelay(true); // Los lotes ya agrupan los mensajes; Nagle sólo añadiría espera
+            if (verbose) AsyncLog.info("Conectado al servidor " + server + " en el puerto " + port);
 
             // Configuración de flujos de datos
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Negocia el codificador de los mensajes
+            MessageFrames.writeFrame(outputStream, Handshake.hello(offeredCodecs));
+            byte[] accepted = MessageFrames.readFrame(inputStream);
+            codecId = Handshake.acceptedCodec(accepted);
+            codec = Handshake.codec(codecId);
 
             // Envia el nickname al servidor como primer mensaje
-            outputStream.writeObject(new ChatMessage(id, MessageType.MESSAGE, username));
+            MessageFrames.writeFrame(outputStream, codec.encode(new ChatMessage(id, MessageType.MESSAGE, username)));
+            if (Handshake.supportsAck(accepted)) {
+                try {
+                    id = Handshake.ackedId(MessageFrames.readFrame(inputStream));
+                } catch (EOFException e) {
+                    throw new IOException("El servidor ha rechazado el nickname " + username);
+                }
+            }
+
+            // Inicia el hilo que envía los mensajes por lotes
+            writerThread = newThread(this::drainOutbound, "chat-client-writer");
+            writerThread.start();
 
             // Inicia el hilo que escucha los mensajes entrantes
-            Thread listenerThread = new Thread(new ChatClientListener());
+            Thread listenerThread = newThread(new ChatClientListener(), "chat-client-listener");
             listenerThread.start();
 
             return true;
         } catch (Exception e) {
-            System.err.println("Error al conectar al servidor: " + e.getMessage());
+            AsyncLog.error("Error al conectar al servidor: " + e.getMessage());
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Ya estaba cerrado
+                }
+            }
             return false;
         }
     }
 
+    /**
+     * Crea un hilo con la fábrica configurada o, si no hay, un hilo de plataforma.
+     * 
+     * @param task Tarea del hilo.
+     * @param name Nombre del hilo de plataforma.
+     * @return Hilo sin arrancar.
+     */
+    private Thread newThread(Runnable task, String name) {
+        return threadFactory == null ? new Thread(task, name) : threadFactory.newThread(task);
+    }
+
     /**
      * Envía un mensaje al servidor para que sea procesado y retransmitido.
      * 
@@ -99,13 +277,57 @@ public class ChatClientImpl implements ChatClient {
     public void sendMessage(ChatMessage msg) {
         try {
             // Log del mensaje enviado
-            System.out.println("Alejandro y Nico" + " patrocinan el mensaje: " + msg.getMessage());
-            outputStream.writeObject(msg); // Enviamos el mensaje al servidor
+            if (verbose && AsyncLog.isEnabled(AsyncLog.Level.DEBUG)) {
+                AsyncLog.debug("Alejandro y Nico" + " patrocinan el mensaje: " + msg.getMessage());
+            }
+            outbound.add(new EncodedMessage(msg)); // Lo enviará el hilo escritor
         } catch (Exception e) {
-            System.err.println("Error al enviar el mensaje: " + e.getMessage());
+            AsyncLog.error("Error al enviar el mensaje: " + e.getMessage());
         }
     }
 
+    /**
+     * Bucle del hilo escritor: envía los mensajes pendientes agrupando en una
+     * sola escritura los que se acumulan a la vez, hasta encontrar la marca de fin.
+     */
+    private void drainOutbound() {
+        BatchingWriter batcher = new BatchingWriter(outputStream, batchBytes, batchDelayMicros);
+        try {
+            batcher.drain(new BatchingWriter.Source() {
+                @Override
+                public EncodedMessage take() throws InterruptedException {
+                    EncodedMessage message = outbound.take();
+                    return message == END ? null : message;
+                }
+
+                @Override
+                public EncodedMessage poll(long timeoutNanos) throws InterruptedException {
+                    EncodedMessage message = outbound.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                    if (message == END) {
+                        outbound.add(END); // Se devuelve para cerrar tras este lote
+                        return null;
+                    }
+                    return message;
+                }
+            }, codecId);
+        } catch (IOException | InterruptedException e) {
+            if (alive) {
+                AsyncLog.error("Error al enviar el mensaje: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lee la siguiente trama enviada por el servidor y la decodifica.
+     * 
+     * @return Mensaje recibido.
+     * @throws IOException Si falla la lectura o la trama no es válida.
+     */
+    private ChatMessage readMessage() throws IOException {
+        byte[] payload = MessageFrames.readFrame(inputStream);
+        return codec.decode(payload, 0, payload.length);
+    }
+
     /**
      * Desconecta el cliente del servidor, enviando un mensaje de tipo LOGOUT
      * y cerrando los recursos asociados.
@@ -116,10 +338,12 @@ public class ChatClientImpl implements ChatClient {
         try {
             // Envia mensaje de logout antes de cerrar la conexión
             sendMessage(new ChatMessage(id, MessageType.LOGOUT, "logout"));
+            outbound.add(END);
+            if (writerThread != null) writerThread.join(DISCONNECT_TIMEOUT_MILLIS);
             if (socket != null) socket.close();
-            System.out.println("Desconectado del servidor.");
+            if (verbose) AsyncLog.info("Desconectado del servidor.");
         } catch (Exception e) {
-            System.err.println("Error al desconectar: " + e.getMessage());
+            AsyncLog.error("Error al desconectar: " + e.getMessage());
         }
     }
 
@@ -127,18 +351,19 @@ public class ChatClientImpl implements ChatClient {
      * Método principal que lanza el cliente de chat.
      * Requiere los argumentos del servidor, puerto y nombre de usuario.
      * 
-     * @param args Argumentos: servidor, puerto y nickname.
+     * @param args Argumentos: servidor, puerto, nickname y, opcionalmente, codificador.
      */
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Uso: java es.ubu.lsi.client.ChatClientImpl <servidor> <puerto> <nickname>");
+            System.out.println("Uso: java es.ubu.lsi.client.ChatClientImpl <servidor> <puerto> <nickname> [binary|serialization][+deflate]");
             return;
         }
         String server = args[0];
         int port = Integer.parseInt(args[1]);
         String username = args[2];
+        String codec = args.length > 3 ? args[3] : "binary";
 
-        ChatClientImpl client = new ChatClientImpl(server, port, username);
+        ChatClientImpl client = new ChatClientImpl(server, port, username, codec);
         if (client.start()) {
             client.listenForUserInput(); // Iniciar manejo de entrada del usuario
         }
@@ -147,7 +372,9 @@ public class ChatClientImpl implements ChatClient {
     /**
      * Maneja la entrada del usuario desde la consola.
      * Permite que el cliente introduzca mensajes para enviarlos al servidor,
-     * y procesa el comando 'logout' para desconexión.
+     * y procesa el comando 'logout' para desconexión y los comandos de salas
+     * 'join &lt;sala&gt;', 'leave &lt;sala&gt;' y 'room &lt;sala&gt; &lt;texto&gt;',
+     * además de 'msg &lt;nickname&gt; &lt;texto&gt;' para mensajes privados.
      */
     private void listenForUserInput() {
         Scanner scanner = new Scanner(System.in);
@@ -158,6 +385,20 @@ public class ChatClientImpl implements ChatClient {
             if ("logout".equalsIgnoreCase(input)) {
                 disconnect();
                 break;
+            } else if (input.startsWith("join ")) {
+                sendMessage(new ChatMessage(id, MessageType.JOIN, input.substring(5).trim(), null));
+                continue;
+            } else if (input.startsWith("leave ")) {
+                sendMessage(new ChatMessage(id, MessageType.LEAVE, input.substring(6).trim(), null));
+                continue;
+            } else if (input.startsWith("msg ")) {
+                String[] parts = input.substring(4).trim().split(" ", 2);
+                sendMessage(new ChatMessage(id, MessageType.PRIVATE, parts[0], parts.length > 1 ? parts[1] : ""));
+                continue;
+            } else if (input.startsWith("room ")) {
+                String[] parts = input.substring(5).trim().split(" ", 2);
+                sendMessage(new ChatMessage(id, MessageType.ROOM, parts[0], parts.length > 1 ? parts[1] : ""));
+                continue;
             }
 
             // Envia el mensaje escrito por el usuario
@@ -166,6 +407,30 @@ public class ChatClientImpl implements ChatClient {
         scanner.close();
     }
 
+    /**
+     * Tratamiento por defecto de los mensajes recibidos: los muestra por
+     * consola según su tipo.
+     * 
+     * @param message Mensaje recibido.
+     */
+    private void printMessage(ChatMessage message) {
+        // Log del mensaje recibido
+        if (AsyncLog.isEnabled(AsyncLog.Level.DEBUG)) {
+            AsyncLog.debug("Alejandro y Nico" + " patrocinan el mensaje: " + message.getMessage());
+        }
+
+        // Procesa el mensaje según su tipo
+        if (message.getType() == MessageType.MESSAGE) {
+            System.out.println("[" + message.getId() + "] " + message.getMessage());
+        } else if (message.getType() == MessageType.PRIVATE) {
+            System.out.println("[privado] [" + message.getId() + "] " + message.getMessage());
+        } else if (message.getType() == MessageType.ROOM) {
+            System.out.println("[" + message.getTarget() + "] [" + message.getId() + "] " + message.getMessage());
+        } else if (message.getType() == MessageType.SHUTDOWN) {
+            System.out.println("El servidor está apagándose. Desconectando...");
+        }
+    }
+
     /**
      * Clase interna que escucha mensajes enviados por el servidor.
      * Procesa los mensajes recibidos y actúa según su tipo (por ejemplo, mensajes
@@ -187,23 +452,26 @@ public class ChatClientImpl implements ChatClient {
         public void run() {
             try {
                 while (alive) {
-                    ChatMessage message = (ChatMessage) inputStream.readObject();
-
-                    // Log del mensaje recibido
-                    System.out.println("Alejandro y Nico" + " patrocinan el mensaje: " + message.getMessage());
-
-                    // Procesa el mensaje según su tipo
-                    if (message.getType() == MessageType.MESSAGE) {
-                        System.out.println("[" + message.getId() + "] " + message.getMessage());
-                    } else if (message.getType() == MessageType.SHUTDOWN) {
-                        System.out.println("El servidor está apagándose. Desconectando...");
+                    ChatMessage message = readMessage();
+                    if (message.getType() == MessageType.PING) {
+                        // El servidor comprueba que seguimos conectados
+                        outbound.add(new EncodedMessage(new ChatMessage(id, MessageType.PONG, "")));
+                        continue;
+                    }
+                    if (message.getType() == MessageType.MAILBOX) {
+                        // Confirma el lote de mensajes guardados mientras estábamos desconectados
+                        outbound.add(new EncodedMessage(new ChatMessage(id, MessageType.ACK, message.getMessage())));
+                        continue;
+                    }
+                    messageHandler.accept(message);
+                    if (message.getType() == MessageType.SHUTDOWN) {
                         alive = false;
                         break;
                     }
                 }
             } catch (Exception e) {
                 if (alive) {
-                    System.err.println("Error en ChatClientListener: " + e.getMessage());
+                    AsyncLog.error("Error en ChatClientListener: " + e.getMessage());
                 }
             }
         }
@@ -0,0 +1,356 @@
+package es.ubu.lsi.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.VirtualThreads;
+
+/**
+ * Generador de carga sin interfaz: abre miles de sesiones {@link ChatClient}
+ * contra un servidor y envía mensajes a un ritmo y con un tamaño fijos.
+ * Cada mensaje lleva el instante en que debía enviarse, de modo que la
+ * latencia de extremo a extremo incluye también el retraso acumulado si el
+ * generador no logra mantener el ritmo. Al terminar muestra los mensajes
+ * entregados por segundo, el histograma de latencias y el ritmo de
+ * conexiones y desconexiones.
+ * <p>
+ * Opciones ({@code --clave=valor}): {@code host} (localhost), {@code port}
+ * (1500), {@code sessions} (1000), {@code rate} (mensajes por segundo en
+ * total, 200), {@code size} (bytes de texto por mensaje, 64), {@code duration}
+ * (segundos, 30), {@code rooms} (0 para difundir a todos; si no, cada sesión
+ * se une a una de las salas y envía sólo a ella), {@code codec} (binary),
+ * {@code threads} ({@code virtual} o {@code platform}), {@code connectConcurrency}
+ * (conexiones simultáneas, 8), {@code batchBytes} (bytes por lote de
+ * escritura de cada sesión, 65536), {@code batchDelayMicros} (ventana para
+ * agrupar mensajes en un lote, 0) y {@code name} (prefijo de los nicknames, load).
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class LoadGenerator {
+
+    /** Separador entre la marca de tiempo y el relleno del texto. */
+    private static final char STAMP_SEPARATOR = '|';
+
+    /** Nanosegundos por segundo. */
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** Espera máxima a que lleguen los mensajes en vuelo al terminar. */
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /** Opciones de la prueba. */
+    private final Map<String, String> options;
+
+    /** Sesiones conectadas. */
+    private final List<ChatClientImpl> clients = new ArrayList<>();
+
+    /** Sala de cada sesión conectada (null si se difunde a todos). */
+    private final List<String> clientRooms = new ArrayList<>();
+
+    /** Mensajes enviados. */
+    private final LongAdder sent = new LongAdder();
+
+    /** Mensajes de la prueba entregados a alguna sesión. */
+    private final LongAdder delivered = new LongAdder();
+
+    /** Latencias de extremo a extremo, en nanosegundos. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Duración de cada conexión (incluida la negociación), en nanosegundos. */
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    /** Conexiones fallidas. */
+    private final AtomicInteger failedConnects = new AtomicInteger();
+
+    /** Instante de inicio del envío; lo anterior viene de otras pruebas (historial del servidor). */
+    private volatile long sendStart = Long.MAX_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param options Opciones de la prueba.
+     */
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Punto de entrada.
+     *
+     * @param args Opciones con la forma {@code --clave=valor}.
+     * @throws InterruptedException Si se interrumpe la prueba.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        new LoadGenerator(options).run();
+    }
+
+    /**
+     * Ejecuta la prueba completa: conexión, envío, espera de los mensajes en
+     * vuelo, desconexión e informe final.
+     *
+     * @throws InterruptedException Si se interrumpe la prueba.
+     */
+    public void run() throws InterruptedException {
+        int sessions = option("sessions", 1000);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, option("connectConcurrency", 8)));
+
+        long connectStart = System.nanoTime();
+        connect(pool, sessions);
+        long connectNanos = System.nanoTime() - connectStart;
+        System.out.printf("Conectadas %d sesiones (%d fallidas) en %.2f s: %.0f conexiones/s%n",
+                clients.size(), failedConnects.get(), connectNanos / 1e9, perSecond(clients.size(), connectNanos));
+        if (clients.isEmpty()) {
+            pool.shutdown();
+            return;
+        }
+
+        long sendNanos = send();
+        long expected = awaitDelivery();
+
+        long disconnectStart = System.nanoTime();
+        for (ChatClientImpl client : clients) {
+            pool.execute(client::disconnect);
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        long disconnectNanos = System.nanoTime() - disconnectStart;
+
+        System.out.println();
+        System.out.printf("Enviados:     %d mensajes (%.0f msgs/s)%n", sent.sum(), perSecond(sent.sum(), sendNanos));
+        System.out.printf("Entregados:   %d de %d esperados (%.0f msgs/s)%n", delivered.sum(), expected, perSecond(delivered.sum(), sendNanos));
+        printHistogram("Latencia", latency);
+        printHistogram("Conexión", connectLatency);
+        System.out.printf("Desconexión:  %d sesiones en %.2f s: %.0f desconexiones/s%n",
+                clients.size(), disconnectNanos / 1e9, perSecond(clients.size(), disconnectNanos));
+    }
+
+    /**
+     * Conecta las sesiones en paralelo y, si hay salas, une cada una a la suya.
+     *
+     * @param pool Hilos que realizan las conexiones.
+     * @param sessions Número de sesiones.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    private void connect(ExecutorService pool, int sessions) throws InterruptedException {
+        String host = option("host", "localhost");
+        int port = option("port", 1500);
+        String codec = option("codec", "binary");
+        String name = option("name", "load");
+        int rooms = option("rooms", 0);
+        int batchBytes = option("batchBytes", 64 * 1024);
+        int batchDelayMicros = option("batchDelayMicros", 0);
+        ThreadFactory threads = "platform".equalsIgnoreCase(option("threads", "virtual"))
+                ? null : VirtualThreads.factory("load-client-");
+
+        List<Future<?>> pending = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            String nickname = name + "-" + i;
+            String room = rooms > 0 ? name + "-room-" + (i % rooms) : null;
+            pending.add(pool.submit(() -> {
+                ChatClientImpl client = new ChatClientImpl(host, port, nickname, codec);
+                client.setVerbose(false);
+                client.setMessageHandler(this::onMessage);
+                client.setBatchBytes(batchBytes);
+                client.setBatchDelayMicros(batchDelayMicros);
+                if (threads != null) {
+                    client.setThreadFactory(threads);
+                }
+                long start = System.nanoTime();
+                if (!client.start()) {
+                    failedConnects.incrementAndGet();
+                    return;
+                }
+                connectLatency.record(System.nanoTime() - start);
+                if (room != null) {
+                    client.sendMessage(new ChatMessage(0, MessageType.JOIN, room, null));
+                }
+                synchronized (clients) {
+                    clients.add(client);
+                    clientRooms.add(room);
+                }
+            }));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failedConnects.incrementAndGet();
+            }
+        }
+        if (rooms > 0) {
+            Thread.sleep(500); // Da tiempo a procesar las uniones a las salas
+        }
+    }
+
+    /**
+     * Envía mensajes al ritmo configurado, repartidos entre las sesiones por
+     * turnos, mostrando un resumen cada segundo.
+     *
+     * @return Duración del envío en nanosegundos.
+     */
+    private long send() {
+        int rate = Math.max(1, option("rate", 200));
+        int size = Math.max(0, option("size", 64));
+        long duration = TimeUnit.SECONDS.toNanos(Math.max(1, option("duration", 30)));
+        long interval = NANOS_PER_SECOND / rate;
+        char[] padding = new char[size];
+        Arrays.fill(padding, 'x');
+        String filler = new String(padding);
+
+        long start = System.nanoTime();
+        sendStart = start;
+        long end = start + duration;
+        long next = start;
+        long nextReport = start + NANOS_PER_SECOND;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        int turn = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                return now - start;
+            }
+            while (next <= now) {
+                int index = turn++ % clients.size();
+                String room = clientRooms.get(index);
+                // La marca es el instante previsto, no el real, para no ocultar retrasos
+                String text = next + String.valueOf(STAMP_SEPARATOR) + filler;
+                ChatMessage message = room == null
+                        ? new ChatMessage(0, MessageType.MESSAGE, text)
+                        : new ChatMessage(0, MessageType.ROOM, room, text);
+                clients.get(index).sendMessage(message);
+                sent.increment();
+                next += interval;
+            }
+            if (now >= nextReport) {
+                long totalSent = sent.sum();
+                long totalDelivered = delivered.sum();
+                System.out.printf("[%3ds] enviados %d msgs/s, entregados %d msgs/s, p99 %.0f us%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start), totalSent - lastSent,
+                        totalDelivered - lastDelivered, latency.getValueAtPercentile(99) / 1e3);
+                lastSent = totalSent;
+                lastDelivered = totalDelivered;
+                nextReport += NANOS_PER_SECOND;
+            }
+            LockSupport.parkNanos(Math.min(next, nextReport) - now);
+        }
+    }
+
+    /**
+     * Espera a que lleguen los mensajes en vuelo o a que deje de llegar nada.
+     *
+     * @return Número de entregas esperadas.
+     */
+    private long awaitDelivery() {
+        int rooms = option("rooms", 0);
+        // En una sala sólo reciben sus miembros; si no, todas las sesiones
+        long recipients = rooms > 0 ? Math.max(1, clients.size() / rooms) : clients.size();
+        long expected = sent.sum() * recipients;
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (delivered.sum() < expected && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        return expected;
+    }
+
+    /**
+     * Registra la latencia de un mensaje de la prueba recibido por una sesión.
+     *
+     * @param message Mensaje recibido.
+     */
+    private void onMessage(ChatMessage message) {
+        String text = message.getMessage();
+        int separator = text == null ? -1 : text.indexOf(STAMP_SEPARATOR);
+        if (separator <= 0) {
+            return;
+        }
+        try {
+            long sentAt = Long.parseLong(text.substring(0, separator));
+            long now = System.nanoTime();
+            if (sentAt >= sendStart && sentAt <= now) {
+                latency.record(now - sentAt);
+                delivered.increment();
+            }
+        } catch (NumberFormatException e) {
+            // No es un mensaje de la prueba
+        }
+    }
+
+    /**
+     * Muestra los percentiles de un histograma en microsegundos.
+     *
+     * @param title Título de la línea.
+     * @param histogram Histograma en nanosegundos.
+     */
+    private static void printHistogram(String title, LatencyHistogram histogram) {
+        System.out.printf("%-13s n=%d media=%.0f p50=%.0f p90=%.0f p99=%.0f p99.9=%.0f max=%.0f (us)%n",
+                title + ":", histogram.getCount(), histogram.getMean() / 1e3,
+                histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMax() / 1e3);
+    }
+
+    /**
+     * Calcula un ritmo por segundo.
+     *
+     * @param count Número de sucesos.
+     * @param nanos Duración en nanosegundos.
+     * @return Sucesos por segundo.
+     */
+    private static double perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    /**
+     * Obtiene una opción de texto.
+     *
+     * @param key Clave de la opción.
+     * @param defaultValue Valor por defecto.
+     * @return Valor de la opción.
+     */
+    private String option(String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * Obtiene una opción entera.
+     *
+     * @param key Clave de la opción.
+     * @param defaultValue Valor por defecto.
+     * @return Valor de la opción.
+     */
+    private int option(String key, int defaultValue) {
+        String value = options.get(key);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para la opción " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
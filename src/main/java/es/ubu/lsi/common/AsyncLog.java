@@ -0,0 +1,313 @@
+package es.ubu.lsi.common;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro asíncrono de los mensajes de consola del chat.
+ * Los hilos que registran un mensaje solo lo dejan en un búfer circular de
+ * tamaño fijo (sin cerrojos ni reservas de memoria) y un único hilo escritor
+ * les da formato y los escribe por lotes en la salida estándar
+ * ({@code DEBUG} e {@code INFO}) o en la de error ({@code WARN} y
+ * {@code ERROR}). Así ningún hilo de cliente espera por la consola y la hora
+ * solo se formatea en el escritor, una vez por segundo.
+ * Si el búfer se llena, los mensajes nuevos se descartan y se avisa del número
+ * de descartes en cuanto el escritor se pone al día.
+ * El nivel inicial se lee de la propiedad {@code chat.logLevel} ({@code info}
+ * por defecto) y el tamaño del búfer de {@code chat.logBuffer}.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public final class AsyncLog {
+
+    /**
+     * Niveles de registro, de menor a mayor detalle.
+     */
+    public enum Level {
+        /** No se registra nada. */
+        OFF,
+        /** Errores. */
+        ERROR,
+        /** Avisos. */
+        WARN,
+        /** Conexiones, desconexiones y mensajes del chat. */
+        INFO,
+        /** Detalle de cada mensaje enviado o recibido. */
+        DEBUG;
+
+        /**
+         * Obtiene el nivel a partir de su nombre.
+         *
+         * @param name Nombre del nivel (sin distinguir mayúsculas).
+         * @param defaultLevel Nivel si el nombre es nulo o desconocido.
+         * @return Nivel correspondiente.
+         */
+        public static Level fromName(String name, Level defaultLevel) {
+            if (name != null) {
+                for (Level level : values()) {
+                    if (level.name().equalsIgnoreCase(name.trim())) {
+                        return level;
+                    }
+                }
+            }
+            return defaultLevel;
+        }
+    }
+
+    /** Tamaño del búfer circular (potencia de dos). */
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.logBuffer", 8192)));
+
+    /** Máscara para obtener la posición de una secuencia en el búfer. */
+    private static final int MASK = CAPACITY - 1;
+
+    /** Tamaño a partir del cual el escritor vuelca el lote a la consola. */
+    private static final int BATCH_CHARS = 16 * 1024;
+
+    /** Espera máxima del escritor cuando no hay mensajes. */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Espera máxima de {@link #flush()}. */
+    private static final long FLUSH_TIMEOUT_MILLIS = 2000;
+
+    /** Posiciones del búfer, reutilizadas en cada vuelta. */
+    private static final Entry[] RING = new Entry[CAPACITY];
+
+    /** Siguiente secuencia libre para los productores. */
+    private static final AtomicLong claimed = new AtomicLong();
+
+    /** Mensajes descartados por tener el búfer lleno. */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    /** Secuencia del siguiente mensaje que leerá el escritor. */
+    private static volatile long consumed;
+
+    /** Secuencia hasta la que los mensajes ya se han escrito en la consola. */
+    private static volatile long written;
+
+    /** Indica si el escritor está esperando nuevos mensajes. */
+    private static volatile boolean idle;
+
+    /** Nivel de registro actual. */
+    private static volatile Level level = Level.fromName(System.getProperty("chat.logLevel"), Level.INFO);
+
+    /** Hilo escritor. */
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Entry();
+        }
+        WRITER = new Thread(AsyncLog::drain, "chat-log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "chat-log-flush"));
+    }
+
+    /**
+     * Posición del búfer circular.
+     */
+    private static final class Entry {
+        /** Secuencia del mensaje guardado (se escribe la última al publicarlo). */
+        volatile long sequence = -1;
+        /** Nivel del mensaje. */
+        Level level;
+        /** Instante del mensaje, en milisegundos. */
+        long millis;
+        /** Texto del mensaje. */
+        String text;
+    }
+
+    /**
+     * Constructor privado: la clase solo tiene métodos estáticos.
+     */
+    private AsyncLog() {
+    }
+
+    /**
+     * Cambia el nivel de registro.
+     *
+     * @param newLevel Nuevo nivel.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Obtiene el nivel de registro actual.
+     *
+     * @return Nivel actual.
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Indica si se registran los mensajes de un nivel. Permite no construir el
+     * texto de los mensajes que se van a descartar.
+     *
+     * @param messageLevel Nivel del mensaje.
+     * @return true si el mensaje se registraría.
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.compareTo(level) <= 0;
+    }
+
+    /**
+     * Registra un error.
+     *
+     * @param text Texto del mensaje.
+     */
+    public static void error(String text) {
+        log(Level.ERROR, text);
+    }
+
+    /**
+     * Registra un aviso.
+     *
+     * @param text Texto del mensaje.
+     */
+    public static void warn(String text) {
+        log(Level.WARN, text);
+    }
+
+    /**
+     * Registra un mensaje informativo.
+     *
+     * @param text Texto del mensaje.
+     */
+    public static void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    /**
+     * Registra un mensaje de detalle.
+     *
+     * @param text Texto del mensaje.
+     */
+    public static void debug(String text) {
+        log(Level.DEBUG, text);
+    }
+
+    /**
+     * Deja un mensaje en el búfer para el escritor. Nunca bloquea: si el búfer
+     * está lleno el mensaje se descarta.
+     *
+     * @param messageLevel Nivel del mensaje.
+     * @param text Texto del mensaje.
+     */
+    public static void log(Level messageLevel, String text) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = RING[(int) sequence & MASK];
+        entry.level = messageLevel;
+        entry.millis = System.currentTimeMillis();
+        entry.text = text;
+        entry.sequence = sequence;
+        if (idle) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * Espera a que se escriban en la consola los mensajes registrados hasta
+     * ahora (como mucho dos segundos).
+     */
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        while (written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Bucle del hilo escritor: agrupa los mensajes publicados y los vuelca a
+     * la consola cuando el lote crece o no quedan más.
+     */
+    private static void drain() {
+        StringBuilder batch = new StringBuilder(BATCH_CHARS + 256);
+        char[] clock = new char[9];
+        long clockSecond = Long.MIN_VALUE;
+        boolean errorStream = false;
+        long next = 0;
+        while (true) {
+            Entry entry = RING[(int) next & MASK];
+            if (entry.sequence != next) {
+                write(batch, errorStream, next);
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    System.err.println(lost + " mensajes de registro descartados por tener el búfer lleno.");
+                }
+                idle = true;
+                if (entry.sequence != next) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            boolean toError = entry.level.compareTo(Level.WARN) <= 0;
+            if (toError != errorStream) {
+                write(batch, errorStream, next);
+                errorStream = toError;
+            }
+            long second = Math.floorDiv(entry.millis, 1000L);
+            if (second != clockSecond) {
+                clockSecond = second;
+                formatClock(clock, entry.millis);
+            }
+            batch.append(clock).append(entry.text).append(System.lineSeparator());
+            entry.text = null;
+            consumed = ++next;
+            if (batch.length() >= BATCH_CHARS) {
+                write(batch, errorStream, next);
+            }
+        }
+    }
+
+    /**
+     * Vuelca un lote a la consola.
+     *
+     * @param batch Texto del lote (se vacía).
+     * @param errorStream true para la salida de error.
+     * @param sequence Secuencia del primer mensaje no incluido en el lote.
+     */
+    private static void write(StringBuilder batch, boolean errorStream, long sequence) {
+        if (batch.length() > 0) {
+            PrintStream out = errorStream ? System.err : System.out;
+            out.append(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+        written = sequence;
+    }
+
+    /**
+     * Escribe la hora local de un instante con el formato {@code HH:mm:ss }.
+     *
+     * @param clock Destino de 9 caracteres.
+     * @param millis Instante en milisegundos.
+     */
+    private static void formatClock(char[] clock, long millis) {
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        int seconds = (int) Math.floorMod(Math.floorDiv(local, 1000L), 86400L);
+        String text = String.format(Locale.ROOT, "%02d:%02d:%02d ", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        text.getChars(0, clock.length, clock, 0);
+    }
+}
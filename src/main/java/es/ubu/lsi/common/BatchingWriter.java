@@ -0,0 +1,103 @@
+package es.ubu.lsi.common;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Escritor que agrupa varias tramas en una sola escritura sobre el socket.
+ * Tras recibir un mensaje, sigue recogiendo los que llegan durante una
+ * ventana de espera (o los que ya estaban encolados, si la ventana es cero)
+ * hasta alcanzar el tamaño máximo de lote, y entonces vacía el buffer una
+ * única vez. Así una ráfaga de mensajes cuesta una llamada al sistema en
+ * lugar de una por mensaje.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class BatchingWriter {
+
+    /**
+     * Origen de los mensajes a escribir (normalmente una cola).
+     */
+    public interface Source {
+
+        /**
+         * Extrae el siguiente mensaje, esperando si no hay ninguno.
+         *
+         * @return Mensaje, o null si no habrá más mensajes.
+         * @throws InterruptedException Si se interrumpe la espera.
+         */
+        EncodedMessage take() throws InterruptedException;
+
+        /**
+         * Extrae el siguiente mensaje esperando como mucho el tiempo indicado.
+         *
+         * @param timeoutNanos Espera máxima en nanosegundos (0 para no esperar).
+         * @return Mensaje, o null si no hay ninguno disponible.
+         * @throws InterruptedException Si se interrumpe la espera.
+         */
+        EncodedMessage poll(long timeoutNanos) throws InterruptedException;
+
+        /**
+         * Notifica que se ha escrito un lote. Por defecto no hace nada.
+         *
+         * @param messages Mensajes del lote.
+         * @param bytes Bytes del lote.
+         */
+        default void written(int messages, int bytes) {
+        }
+    }
+
+    /** Buffer donde se acumula el lote antes de escribirlo. */
+    private final BufferedOutputStream out;
+
+    /** Tamaño máximo de un lote en bytes. */
+    private final int maxBatchBytes;
+
+    /** Ventana máxima de espera para completar un lote, en nanosegundos. */
+    private final long maxDelayNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param out Flujo de salida del socket.
+     * @param maxBatchBytes Tamaño máximo de un lote en bytes.
+     * @param maxDelayMicros Ventana máxima de espera para completar un lote, en microsegundos.
+     */
+    public BatchingWriter(OutputStream out, int maxBatchBytes, long maxDelayMicros) {
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        this.maxDelayNanos = Math.max(0, maxDelayMicros) * 1000;
+        this.out = new BufferedOutputStream(out, this.maxBatchBytes);
+    }
+
+    /**
+     * Escribe por lotes los mensajes del origen hasta que éste se agota.
+     *
+     * @param source Origen de los mensajes.
+     * @param codec Identificador del codificador del destinatario.
+     * @throws IOException Si falla la escritura.
+     * @throws InterruptedException Si se interrumpe la espera de mensajes.
+     */
+    public void drain(Source source, byte codec) throws IOException, InterruptedException {
+        EncodedMessage message;
+        while ((message = source.take()) != null) {
+            long deadline = System.nanoTime() + maxDelayNanos;
+            int bytes = 0;
+            int messages = 0;
+            do {
+                bytes += message.writeTo(codec, out);
+                messages++;
+                if (bytes >= maxBatchBytes) {
+                    break;
+                }
+                message = source.poll(Math.max(0, deadline - System.nanoTime()));
+            } while (message != null);
+            out.flush();
+            source.written(messages, bytes);
+        }
+        out.flush();
+    }
+}
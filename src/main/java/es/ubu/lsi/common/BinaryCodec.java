@@ -0,0 +1,146 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codificador binario compacto de mensajes.
+ * La carga útil tiene el formato:
+ * <pre>
+ * [tipo: 1 byte][id: varint]([long. destino: varint][destino: UTF-8])[texto: UTF-8 hasta el final de la trama]
+ * </pre>
+ * El bit alto del byte de tipo indica que el texto es nulo y el siguiente,
+ * que el mensaje lleva destino (sala o destinatario). La longitud del texto se deduce de
+ * la longitud de la trama, por lo que no se repite.
+ * Frente a la serialización de Java evita descriptores de clase y reflexión.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /** Instancia compartida (el codificador no tiene estado). */
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    /** Marca de texto nulo en el byte de tipo. */
+    private static final int NULL_TEXT = 0x80;
+
+    /** Marca de mensaje con destino en el byte de tipo. */
+    private static final int HAS_TARGET = 0x40;
+
+    /** Tipos de mensaje indexados por ordinal. */
+    private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+    @Override
+    public byte[] encode(ChatMessage message) throws IOException {
+        String text = message.getMessage();
+        byte[] utf8 = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        String target = message.getTarget();
+        byte[] targetUtf8 = target == null ? null : target.getBytes(StandardCharsets.UTF_8);
+        int id = message.getId();
+        int length = 1 + varintLength(id) + utf8.length;
+        if (targetUtf8 != null) {
+            length += varintLength(targetUtf8.length) + targetUtf8.length;
+        }
+        byte[] data = new byte[length];
+        int header = message.getType().ordinal();
+        if (text == null) {
+            header |= NULL_TEXT;
+        }
+        if (targetUtf8 != null) {
+            header |= HAS_TARGET;
+        }
+        data[0] = (byte) header;
+        int pos = writeVarint(data, 1, id);
+        if (targetUtf8 != null) {
+            pos = writeVarint(data, pos, targetUtf8.length);
+            System.arraycopy(targetUtf8, 0, data, pos, targetUtf8.length);
+            pos += targetUtf8.length;
+        }
+        System.arraycopy(utf8, 0, data, pos, utf8.length);
+        return data;
+    }
+
+    @Override
+    public ChatMessage decode(byte[] data, int offset, int length) throws IOException {
+        if (length < 2) {
+            throw new IOException("Trama binaria demasiado corta: " + length);
+        }
+        int end = offset + length;
+        int header = data[offset] & 0xFF;
+        int type = header & ~(NULL_TEXT | HAS_TARGET);
+        if (type >= TYPES.length) {
+            throw new IOException("Tipo de mensaje desconocido: " + type);
+        }
+        int[] pos = {offset + 1};
+        int id = readVarint(data, pos, end);
+        String target = null;
+        if ((header & HAS_TARGET) != 0) {
+            int targetLength = readVarint(data, pos, end);
+            if (targetLength < 0 || targetLength > end - pos[0]) {
+                throw new IOException("Destino mal formado en la trama binaria");
+            }
+            target = new String(data, pos[0], targetLength, StandardCharsets.UTF_8);
+            pos[0] += targetLength;
+        }
+        String text = (header & NULL_TEXT) != 0 ? null : new String(data, pos[0], end - pos[0], StandardCharsets.UTF_8);
+        return new ChatMessage(id, TYPES[type], target, text);
+    }
+
+    /**
+     * Lee un entero en formato varint (7 bits por byte, el bit alto indica continuación).
+     *
+     * @param data Buffer de origen.
+     * @param pos Posición de lectura; se actualiza tras la lectura.
+     * @param end Límite de lectura.
+     * @return Valor leído.
+     * @throws IOException Si el varint está truncado o es demasiado largo.
+     */
+    static int readVarint(byte[] data, int[] pos, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos[0] >= end || shift > 28) {
+                throw new IOException("Entero mal formado en la trama binaria");
+            }
+            byte b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Calcula los bytes que ocupa un entero en formato varint.
+     *
+     * @param value Valor (los negativos ocupan 5 bytes).
+     * @return Número de bytes.
+     */
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Escribe un entero en formato varint.
+     *
+     * @param data Buffer de destino.
+     * @param pos Posición inicial.
+     * @param value Valor a escribir.
+     * @return Posición siguiente al último byte escrito.
+     */
+    static int writeVarint(byte[] data, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -26,7 +26,23 @@ public class ChatMessage implements Serializable {
 		/** Shutdown server. */
 		SHUTDOWN,		
 		/** Logout client. */
-		LOGOUT;		
+		LOGOUT,
+		/** Join the room named in target. */
+		JOIN,
+		/** Leave the room named in target. */
+		LEAVE,
+		/** Message to the members of the room named in target. */
+		ROOM,
+		/** Private message to the client whose nickname is in target. */
+		PRIVATE,
+		/** Heartbeat request; the peer answers with PONG. */
+		PING,
+		/** Heartbeat reply. */
+		PONG,
+		/** End of a batch of messages kept while the client was offline; the text is the sequence number of its last message. */
+		MAILBOX,
+		/** Acknowledges the offline messages up to the sequence number in the text. */
+		ACK;
 	}
 	
 	/** Type. */
@@ -38,6 +54,9 @@ public class ChatMessage implements Serializable {
 	/** Client id. */
 	private int id;
 	
+	/** Target room or recipient nickname, or null for messages to every client. */
+	private String target;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -51,6 +70,19 @@ public class ChatMessage implements Serializable {
 		this.setMessage(message);
 	}
 	
+	/**
+	 * Constructor for messages with a target.
+	 * 
+	 * @param id client id
+	 * @param type type
+	 * @param target target room or recipient nickname
+	 * @param message message
+	 */
+	public ChatMessage(int id, MessageType type, String target, String message) {
+		this(id, type, message);
+		this.setTarget(target);
+	}
+	
 	/**
 	 * Gets type.
 	 * 
@@ -108,8 +140,28 @@ public class ChatMessage implements Serializable {
 	 * @see #getId()
 	 * 
 	 */
-	private void setId(int id) {
+	public void setId(int id) {
 		this.id = id;
 	}
+	
+	/**
+	 * Gets target.
+	 * 
+	 * @return target room or recipient nickname, or null if the message has no target
+	 * @see #setTarget(String)
+	 */
+	public String getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Sets target.
+	 * 
+	 * @param target target room or recipient nickname
+	 * @see #getTarget()
+	 */
+	private void setTarget(String target) {
+		this.target = target;
+	}
 
 }
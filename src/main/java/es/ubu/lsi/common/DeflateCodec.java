@@ -0,0 +1,148 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codificador que comprime con Deflate las cargas útiles de otro codificador.
+ * Cada trama empieza por un byte que indica si va comprimida:
+ * <pre>
+ * [0][carga útil original]
+ * [1][longitud original: varint][carga útil comprimida]
+ * </pre>
+ * Las cargas menores que el umbral (256 bytes por defecto; el servidor lo toma
+ * de su configuración) y las que no se reducen al comprimirlas se envían sin
+ * comprimir. El umbral sólo afecta a la codificación: cualquier instancia
+ * decodifica las tramas de otra.
+ * Los compresores son caros de crear y reservan memoria nativa, así que se
+ * reutilizan desde un pequeño depósito acotado: cada operación toma uno y lo
+ * devuelve al terminar, y los que no caben en el depósito se liberan con
+ * {@code end()}. El número de compresores vivos depende de las operaciones
+ * simultáneas, no del número de hilos o conexiones.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class DeflateCodec implements MessageCodec {
+
+    /** Umbral de compresión por defecto, en bytes. */
+    static final int DEFAULT_THRESHOLD = 256;
+
+    /** Marca de carga útil sin comprimir. */
+    private static final byte STORED = 0;
+
+    /** Marca de carga útil comprimida. */
+    private static final byte DEFLATED = 1;
+
+    /** Número máximo de compresores (y de descompresores) guardados para reutilizar. */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** Compresores libres. */
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /** Descompresores libres. */
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /** Codificador de los mensajes antes de comprimirlos. */
+    private final MessageCodec inner;
+
+    /** Tamaño mínimo de carga útil a partir del cual se comprime. */
+    private final int threshold;
+
+    /**
+     * Constructor.
+     *
+     * @param inner Codificador de los mensajes antes de comprimirlos.
+     * @param threshold Tamaño mínimo de carga útil a partir del cual se comprime.
+     */
+    DeflateCodec(MessageCodec inner, int threshold) {
+        this.inner = inner;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(ChatMessage message) throws IOException {
+        byte[] payload = inner.encode(message);
+        if (payload.length >= threshold) {
+            int header = 1 + BinaryCodec.varintLength(payload.length);
+            byte[] packed = new byte[header + payload.length];
+            Deflater deflater = DEFLATERS.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            int length = header;
+            boolean finished;
+            try {
+                deflater.setInput(payload);
+                deflater.finish();
+                while (!deflater.finished() && length < packed.length) {
+                    length += deflater.deflate(packed, length, packed.length - length);
+                }
+                finished = deflater.finished();
+            } finally {
+                deflater.reset();
+                if (!DEFLATERS.offer(deflater)) {
+                    deflater.end();
+                }
+            }
+            if (finished && length < packed.length - 1) {
+                packed[0] = DEFLATED;
+                BinaryCodec.writeVarint(packed, 1, payload.length);
+                return Arrays.copyOf(packed, length);
+            }
+        }
+        byte[] stored = new byte[1 + payload.length];
+        stored[0] = STORED;
+        System.arraycopy(payload, 0, stored, 1, payload.length);
+        return stored;
+    }
+
+    @Override
+    public ChatMessage decode(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Trama comprimida vacía");
+        }
+        int end = offset + length;
+        if (data[offset] == STORED) {
+            return inner.decode(data, offset + 1, length - 1);
+        }
+        if (data[offset] != DEFLATED) {
+            throw new IOException("Marca de compresión desconocida: " + data[offset]);
+        }
+        int[] pos = {offset + 1};
+        int originalLength = MessageFrames.checkLength(BinaryCodec.readVarint(data, pos, end));
+        byte[] payload = new byte[originalLength];
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        int inflated = 0;
+        try {
+            inflater.setInput(data, pos[0], end - pos[0]);
+            while (inflated < originalLength) {
+                int read = inflater.inflate(payload, inflated, originalLength - inflated);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trama comprimida inválida: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        if (inflated != originalLength) {
+            throw new IOException("Trama comprimida incompleta");
+        }
+        return inner.decode(payload, 0, originalLength);
+    }
+}
@@ -0,0 +1,126 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Mensaje preparado para enviarse a varios destinatarios.
+ * La trama (cabecera y carga útil) se codifica una sola vez por codificador,
+ * la primera vez que algún destinatario la pide, y después se comparte
+ * sin copias entre todos los que usan ese mismo codificador. Las variantes
+ * comprimidas cuentan como codificadores propios, así que un mensaje también
+ * se comprime una sola vez, con el umbral de compresión de quien lo crea.
+ * Los bytes nunca se exponen, por lo que la trama es inmutable.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public final class EncodedMessage {
+
+    /** Número de codificadores conocidos, con sus variantes comprimidas (ver {@link Handshake}). */
+    private static final int CODECS = 4;
+
+    /** Histograma donde se registra el tiempo de cada codificación (null si no se mide). */
+    private static volatile LatencyHistogram encodeTimes;
+
+    /** Mensaje original. */
+    private final ChatMessage message;
+
+    /** Tamaño mínimo de carga útil a partir del cual se comprimen las variantes comprimidas. */
+    private final int compressionThreshold;
+
+    /** Tramas ya codificadas, indexadas por identificador de codificador. */
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(CODECS);
+
+    /**
+     * Constructor con el umbral de compresión por defecto.
+     *
+     * @param message Mensaje a enviar.
+     */
+    public EncodedMessage(ChatMessage message) {
+        this(message, Handshake.DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param message Mensaje a enviar.
+     * @param compressionThreshold Tamaño mínimo de carga útil a partir del cual se comprime.
+     */
+    public EncodedMessage(ChatMessage message, int compressionThreshold) {
+        this.message = message;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Activa la medida del tiempo de codificación de las tramas.
+     *
+     * @param histogram Histograma de tiempos en nanosegundos, o null para no medir.
+     */
+    public static void recordEncodeTimes(LatencyHistogram histogram) {
+        encodeTimes = histogram;
+    }
+
+    /**
+     * Obtiene el mensaje original.
+     *
+     * @return mensaje
+     */
+    public ChatMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Obtiene la trama para un codificador, codificándola si aún no existe.
+     * Si dos hilos la piden a la vez ambos obtienen bytes equivalentes.
+     *
+     * @param codec Identificador del codificador.
+     * @return Trama completa.
+     * @throws IOException Si el mensaje no puede codificarse.
+     */
+    private byte[] frame(byte codec) throws IOException {
+        byte[] frame = frames.get(codec);
+        if (frame == null) {
+            LatencyHistogram times = encodeTimes;
+            long start = times == null ? 0 : System.nanoTime();
+            byte[] payload = Handshake.codec(codec, compressionThreshold).encode(message);
+            if (times != null) {
+                times.record(System.nanoTime() - start);
+            }
+            frame = new byte[MessageFrames.HEADER_LENGTH + payload.length];
+            ByteBuffer.wrap(frame).putInt(payload.length).put(payload);
+            frames.compareAndSet(codec, null, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Escribe la trama en un flujo de salida.
+     *
+     * @param codec Identificador del codificador del destinatario.
+     * @param out Flujo de salida del destinatario.
+     * @return Número de bytes escritos.
+     * @throws IOException Si falla la codificación o la escritura.
+     */
+    public int writeTo(byte codec, OutputStream out) throws IOException {
+        byte[] frame = frame(codec);
+        out.write(frame);
+        return frame.length;
+    }
+
+    /**
+     * Obtiene una vista de sólo lectura de la trama, con su propia posición,
+     * para escribirla en un canal sin copiar los bytes.
+     *
+     * @param codec Identificador del codificador del destinatario.
+     * @return Buffer de sólo lectura posicionado al inicio de la trama.
+     * @throws IOException Si el mensaje no puede codificarse.
+     */
+    public ByteBuffer buffer(byte codec) throws IOException {
+        return ByteBuffer.wrap(frame(codec)).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,266 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Negociación inicial del protocolo entre cliente y servidor.
+ * Nada más conectar, el cliente envía una trama de saludo con los
+ * codificadores que admite, por orden de preferencia:
+ * <pre>
+ * ['C']['H'][versión][n][codec 1]...[codec n]
+ * </pre>
+ * El servidor responde con {@code ['C']['H'][versión][codec elegido]} y, a
+ * partir de ahí, ambos extremos codifican los mensajes con ese codificador.
+ * Un cliente que no envía saludo (su primera trama es directamente el
+ * nickname serializado) se atiende con {@link SerializationCodec}.
+ * La compresión se negocia como un codificador más: el identificador de un
+ * codificador con el bit {@link #COMPRESSED} activado indica sus mismas
+ * tramas comprimidas con Deflate. Un cliente que la desea ofrece primero la
+ * variante comprimida y después la normal, de modo que un servidor que no la
+ * conoce elige la normal.
+ * Desde la versión 2, cuando el servidor acepta el nickname responde con
+ * {@code ['C']['H'][versión][ID: 4 bytes]}, el ID que ha asignado al cliente.
+ * Cada extremo sólo envía o espera esta confirmación si el otro ha indicado
+ * la versión 2 o posterior, por lo que las versiones anteriores siguen
+ * funcionando; un cliente al que se rechaza el nickname ve cerrarse la
+ * conexión en lugar de recibirla.
+ * Desde la versión 3, el cliente confirma con un mensaje {@code ACK} cada lote
+ * de mensajes que el servidor le guardó mientras estaba desconectado, que
+ * termina con un mensaje {@code MAILBOX}; el servidor sólo entrega ese buzón
+ * a los clientes que indican la versión 3 o posterior.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public final class Handshake {
+
+    /** Primer byte de las tramas de negociación. */
+    private static final byte MAGIC_0 = 'C';
+
+    /** Segundo byte de las tramas de negociación. */
+    private static final byte MAGIC_1 = 'H';
+
+    /** Versión del protocolo de negociación. */
+    private static final byte VERSION = 3;
+
+    /** Primera versión que confirma el nickname con el ID asignado. */
+    private static final byte ACK_VERSION = 2;
+
+    /** Primera versión que confirma los mensajes guardados mientras estaba desconectado. */
+    private static final byte MAILBOX_VERSION = 3;
+
+    /** Identificador del codificador de serialización Java. */
+    public static final byte CODEC_SERIALIZATION = 0;
+
+    /** Identificador del codificador binario compacto. */
+    public static final byte CODEC_BINARY = 1;
+
+    /** Bit que marca la variante comprimida de un codificador. */
+    public static final byte COMPRESSED = 2;
+
+    /** Sufijo del nombre de las variantes comprimidas. */
+    private static final String COMPRESSED_SUFFIX = "+deflate";
+
+    /** Umbral de compresión por defecto de las variantes comprimidas, en bytes. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = DeflateCodec.DEFAULT_THRESHOLD;
+
+    /**
+     * Variantes comprimidas de cada umbral de compresión, indexadas por
+     * identificador de codificador sin el bit {@link #COMPRESSED}.
+     */
+    private static final ConcurrentHashMap<Integer, MessageCodec[]> DEFLATE_CODECS = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor privado (clase de utilidades).
+     */
+    private Handshake() {
+    }
+
+    /**
+     * Construye la trama de saludo del cliente.
+     *
+     * @param codecs Codificadores admitidos por orden de preferencia.
+     * @return Carga útil del saludo.
+     */
+    public static byte[] hello(byte... codecs) {
+        byte[] hello = new byte[4 + codecs.length];
+        hello[0] = MAGIC_0;
+        hello[1] = MAGIC_1;
+        hello[2] = VERSION;
+        hello[3] = (byte) codecs.length;
+        System.arraycopy(codecs, 0, hello, 4, codecs.length);
+        return hello;
+    }
+
+    /**
+     * Indica si una trama es un saludo de negociación.
+     * Una trama serializada empieza por 0xACED, por lo que no se confunde.
+     *
+     * @param payload Carga útil de la primera trama.
+     * @return true si es un saludo.
+     */
+    public static boolean isHello(byte[] payload) {
+        return payload.length >= 4 && payload[0] == MAGIC_0 && payload[1] == MAGIC_1
+                && payload.length == 4 + (payload[3] & 0xFF);
+    }
+
+    /**
+     * Elige el primer codificador ofrecido por el cliente que el servidor admita.
+     *
+     * @param hello Carga útil del saludo.
+     * @param supported Codificadores admitidos por el servidor.
+     * @return Codificador elegido ({@link #CODEC_SERIALIZATION} si no hay coincidencia).
+     */
+    public static byte choose(byte[] hello, byte[] supported) {
+        for (int i = 4; i < hello.length; i++) {
+            for (byte codec : supported) {
+                if (hello[i] == codec) {
+                    return codec;
+                }
+            }
+        }
+        return CODEC_SERIALIZATION;
+    }
+
+    /**
+     * Construye la respuesta del servidor al saludo.
+     *
+     * @param codec Codificador elegido.
+     * @return Carga útil de la respuesta.
+     */
+    public static byte[] accept(byte codec) {
+        return new byte[] {MAGIC_0, MAGIC_1, VERSION, codec};
+    }
+
+    /**
+     * Indica si el otro extremo usa una versión que confirma el nickname con
+     * el ID asignado. Vale tanto para el saludo como para su respuesta.
+     *
+     * @param handshake Carga útil del saludo o de la respuesta.
+     * @return true si la versión es la 2 o posterior.
+     */
+    public static boolean supportsAck(byte[] handshake) {
+        return handshake.length > 2 && handshake[2] >= ACK_VERSION;
+    }
+
+    /**
+     * Indica si el cliente confirma los lotes de mensajes que se le guardaron
+     * mientras estaba desconectado.
+     *
+     * @param hello Carga útil del saludo.
+     * @return true si la versión es la 3 o posterior.
+     */
+    public static boolean supportsMailbox(byte[] hello) {
+        return hello.length > 2 && hello[2] >= MAILBOX_VERSION;
+    }
+
+    /**
+     * Construye la confirmación del nickname con el ID asignado al cliente.
+     *
+     * @param id ID asignado.
+     * @return Carga útil de la confirmación.
+     */
+    public static byte[] ack(int id) {
+        return new byte[] {MAGIC_0, MAGIC_1, VERSION, (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id};
+    }
+
+    /**
+     * Obtiene el ID asignado por el servidor a partir de su confirmación.
+     *
+     * @param ack Carga útil de la confirmación.
+     * @return ID asignado.
+     * @throws IOException Si la confirmación no es válida.
+     */
+    public static int ackedId(byte[] ack) throws IOException {
+        if (ack.length != 7 || ack[0] != MAGIC_0 || ack[1] != MAGIC_1) {
+            throw new IOException("Confirmación de nickname inválida");
+        }
+        return (ack[3] & 0xFF) << 24 | (ack[4] & 0xFF) << 16 | (ack[5] & 0xFF) << 8 | (ack[6] & 0xFF);
+    }
+
+    /**
+     * Obtiene el codificador aceptado por el servidor a partir de su respuesta.
+     *
+     * @param reply Carga útil de la respuesta.
+     * @return Identificador del codificador.
+     * @throws IOException Si la respuesta no es válida.
+     */
+    public static byte acceptedCodec(byte[] reply) throws IOException {
+        if (reply.length != 4 || reply[0] != MAGIC_0 || reply[1] != MAGIC_1) {
+            throw new IOException("Respuesta de negociación inválida");
+        }
+        return reply[3];
+    }
+
+    /**
+     * Obtiene la implementación de un codificador por su identificador, con
+     * el umbral de compresión por defecto.
+     *
+     * @param codec Identificador del codificador.
+     * @return Codificador correspondiente.
+     * @throws IOException Si el identificador es desconocido.
+     */
+    public static MessageCodec codec(byte codec) throws IOException {
+        return codec(codec, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Obtiene la implementación de un codificador por su identificador.
+     * Las variantes comprimidas sólo comprimen las cargas útiles a partir del
+     * umbral indicado; el resto de codificadores lo ignoran.
+     *
+     * @param codec Identificador del codificador.
+     * @param compressionThreshold Tamaño mínimo de carga útil a partir del cual se comprime.
+     * @return Codificador correspondiente.
+     * @throws IOException Si el identificador es desconocido.
+     */
+    public static MessageCodec codec(byte codec, int compressionThreshold) throws IOException {
+        switch (codec) {
+            case CODEC_SERIALIZATION:
+                return SerializationCodec.INSTANCE;
+            case CODEC_BINARY:
+                return BinaryCodec.INSTANCE;
+            case CODEC_SERIALIZATION | COMPRESSED:
+            case CODEC_BINARY | COMPRESSED:
+                return DEFLATE_CODECS.computeIfAbsent(compressionThreshold, threshold -> new MessageCodec[] {
+                        new DeflateCodec(SerializationCodec.INSTANCE, threshold),
+                        new DeflateCodec(BinaryCodec.INSTANCE, threshold)})[codec & ~COMPRESSED];
+            default:
+                throw new IOException("Codificador desconocido: " + codec);
+        }
+    }
+
+    /**
+     * Indica si un codificador comprime sus tramas.
+     *
+     * @param codec Identificador del codificador.
+     * @return true si es una variante comprimida.
+     */
+    public static boolean isCompressed(byte codec) {
+        return (codec & COMPRESSED) != 0;
+    }
+
+    /**
+     * Obtiene el identificador de un codificador por su nombre.
+     *
+     * @param name Nombre ({@code binary} o {@code serialization}, con el
+     *             sufijo {@code +deflate} para su variante comprimida).
+     * @return Identificador del codificador.
+     * @throws IllegalArgumentException Si el nombre es desconocido.
+     */
+    public static byte codecId(String name) {
+        int base = name == null ? 0 : name.length() - COMPRESSED_SUFFIX.length();
+        if (base > 0 && name.regionMatches(true, base, COMPRESSED_SUFFIX, 0, COMPRESSED_SUFFIX.length())) {
+            return (byte) (codecId(name.substring(0, base)) | COMPRESSED);
+        }
+        if ("binary".equalsIgnoreCase(name)) {
+            return CODEC_BINARY;
+        } else if ("serialization".equalsIgnoreCase(name)) {
+            return CODEC_SERIALIZATION;
+        }
+        throw new IllegalArgumentException("Codificador desconocido: " + name);
+    }
+}
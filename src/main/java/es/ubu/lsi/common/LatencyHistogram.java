@@ -0,0 +1,177 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con precisión relativa constante, al estilo de
+ * HdrHistogram.
+ * Los valores menores que 128 se cuentan de forma exacta; a partir de ahí
+ * cada potencia de dos se divide en 64 intervalos, por lo que el error de
+ * cualquier percentil es inferior al 1,6 %, con un tamaño fijo de unos
+ * 3700 contadores para todo el rango de {@code long}.
+ * Registrar un valor no reserva memoria ni usa cerrojos, así que varios
+ * hilos pueden registrar a la vez.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+    /** Bits de precisión de cada potencia de dos. */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /** Valores que se cuentan de forma exacta. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Intervalos en que se divide cada potencia de dos. */
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    /** Número total de intervalos. */
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    /** Número de valores de cada intervalo. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Número total de valores registrados. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** Suma de los valores registrados. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Mayor valor registrado. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra un valor. Los negativos se cuentan como 0.
+     *
+     * @param value Valor (normalmente, nanosegundos).
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Reintenta si otro hilo ha actualizado el máximo a la vez
+        }
+    }
+
+    /**
+     * Obtiene el número de valores registrados.
+     *
+     * @return Número de valores.
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Obtiene el mayor valor registrado.
+     *
+     * @return Máximo (0 si no hay valores).
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Obtiene la media de los valores registrados.
+     *
+     * @return Media (0 si no hay valores).
+     */
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Obtiene el valor por debajo del cual queda un porcentaje de los registros.
+     *
+     * @param percentile Percentil entre 0 y 100.
+     * @return Valor del percentil (límite superior de su intervalo, sin pasar del máximo).
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Añade a este histograma los valores de otro.
+     *
+     * @param other Histograma a sumar.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // Reintenta si otro hilo ha actualizado el máximo a la vez
+        }
+    }
+
+    /**
+     * Pone a cero el histograma. Los valores registrados durante la puesta a
+     * cero pueden perderse.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Calcula el intervalo al que pertenece un valor.
+     *
+     * @param value Valor no negativo.
+     * @return Índice del intervalo.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Calcula el mayor valor que pertenece a un intervalo.
+     *
+     * @param index Índice del intervalo.
+     * @return Límite superior (incluido) del intervalo.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long top = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,37 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+
+/**
+ * Codificador de mensajes del chat.
+ * Traduce un {@link ChatMessage} a la carga útil de una trama y viceversa.
+ * Cada mensaje se codifica de forma independiente, de modo que la trama
+ * resultante puede decodificarse sin conocer el resto del flujo.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public interface MessageCodec {
+
+    /**
+     * Codifica un mensaje.
+     *
+     * @param message Mensaje a codificar.
+     * @return Bytes de la carga útil (sin la cabecera de longitud).
+     * @throws IOException Si el mensaje no puede codificarse.
+     */
+    byte[] encode(ChatMessage message) throws IOException;
+
+    /**
+     * Decodifica un mensaje.
+     *
+     * @param data Buffer con la carga útil.
+     * @param offset Posición inicial de la carga útil en el buffer.
+     * @param length Longitud de la carga útil.
+     * @return Mensaje decodificado.
+     * @throws IOException Si los bytes no representan un mensaje válido.
+     */
+    ChatMessage decode(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,86 @@
+package es.ubu.lsi.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Utilidades para el protocolo de tramas del chat.
+ * Cada mensaje viaja como una trama formada por una cabecera de 4 bytes
+ * (longitud en big-endian) seguida de la carga útil codificada.
+ * Al conocer la longitud de antemano, el receptor puede separar los mensajes
+ * sin bloquearse, tanto con sockets clásicos como con canales NIO.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public final class MessageFrames {
+
+    /** Tamaño de la cabecera de longitud. */
+    public static final int HEADER_LENGTH = 4;
+
+    /** Tamaño máximo admitido para la carga útil de una trama. */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Constructor privado (clase de utilidades).
+     */
+    private MessageFrames() {
+    }
+
+    /**
+     * Construye una trama completa (cabecera y carga útil) lista para escribirse.
+     *
+     * @param payload Carga útil codificada.
+     * @return Buffer de sólo lectura posicionado al inicio de la trama.
+     */
+    public static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        buffer.putInt(payload.length).put(payload).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Escribe una trama en un flujo de salida.
+     *
+     * @param out Flujo de salida.
+     * @param payload Carga útil codificada.
+     * @throws IOException Si falla la escritura.
+     */
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Lee una trama completa de un flujo de entrada.
+     *
+     * @param in Flujo de entrada.
+     * @return Carga útil de la trama.
+     * @throws IOException Si falla la lectura o la longitud no es válida.
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Comprueba que la longitud anunciada en una cabecera es válida.
+     *
+     * @param length Longitud leída.
+     * @return La misma longitud.
+     * @throws IOException Si la longitud es negativa o excede el máximo.
+     */
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Longitud de trama inválida: " + length);
+        }
+        return length;
+    }
+}
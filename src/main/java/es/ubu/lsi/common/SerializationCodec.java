@@ -0,0 +1,41 @@
+package es.ubu.lsi.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codificador basado en la serialización estándar de Java.
+ * Cada mensaje se serializa con su propio flujo, por lo que no se
+ * acumulan tablas de referencias entre mensajes.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class SerializationCodec implements MessageCodec {
+
+    /** Instancia compartida (el codificador no tiene estado). */
+    public static final SerializationCodec INSTANCE = new SerializationCodec();
+
+    @Override
+    public byte[] encode(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public ChatMessage decode(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (ChatMessage) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Trama con contenido no reconocido: " + e.getMessage(), e);
+        }
+    }
+}
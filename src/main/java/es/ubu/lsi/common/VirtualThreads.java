@@ -0,0 +1,40 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Acceso a los hilos virtuales de Java 21 sin depender de esa versión para compilar.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public final class VirtualThreads {
+
+    /**
+     * Constructor privado (clase de utilidades).
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Obtiene una fábrica de hilos virtuales.
+     * Se resuelve por reflexión para seguir compilando con versiones anteriores
+     * a Java 21; si la JVM no los soporta se usan hilos de plataforma.
+     *
+     * @param namePrefix Prefijo del nombre de los hilos, seguido de un contador.
+     * @return Fábrica de hilos virtuales, o de hilos de plataforma si no hay soporte.
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Hilos virtuales no disponibles (requiere Java 21+). Usando hilos de plataforma.");
+            return Thread::new;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Índice inverso de bloqueos: para cada remitente bloqueado guarda los IDs
+ * de los clientes que lo han bloqueado.
+ * Así la difusión consulta el índice una vez por mensaje, no una vez por
+ * destinatario, y descarta a los que bloquean al remitente antes de encolar
+ * nada. Si nadie ha bloqueado al remitente la consulta devuelve null y la
+ * difusión no hace ninguna comprobación adicional.
+ * Cada conjunto de bloqueadores es un array ordenado de enteros primitivos
+ * que nunca se modifica: los cambios publican un array nuevo, por lo que
+ * las lecturas no necesitan cerrojos.
+ * Los conjuntos se indexan por el ID primitivo del remitente en una tabla
+ * hash de direccionamiento abierto, así que la consulta de cada difusión no
+ * crea ningún objeto. Los IDs son siempre positivos y 0 marca una posición
+ * libre. Una vez ocupada, una posición conserva su ID aunque se quiten sus
+ * bloqueos; sólo al crecer la tabla se descartan las que han quedado vacías.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class BlockIndex {
+    /** Posición libre de la tabla. */
+    private static final int EMPTY = 0;
+
+    /**
+     * Tabla de bloqueos. Las posiciones ocupadas no cambian de remitente, de
+     * modo que los lectores pueden recorrerla mientras se añaden entradas.
+     */
+    private static final class Table {
+        /** ID del remitente de cada posición ({@link #EMPTY} si está libre). */
+        final AtomicIntegerArray senders;
+        /** IDs (ordenados) de los bloqueadores de cada posición, o null. */
+        final AtomicReferenceArray<int[]> blockers;
+        /** Número de posiciones ocupadas. */
+        int used;
+
+        /**
+         * Constructor de una tabla vacía.
+         *
+         * @param capacity Número de posiciones (potencia de dos).
+         */
+        Table(int capacity) {
+            this.senders = new AtomicIntegerArray(capacity);
+            this.blockers = new AtomicReferenceArray<>(capacity);
+        }
+
+        /**
+         * Busca la posición de un remitente o la libre en la que terminaría.
+         *
+         * @param sender ID del remitente.
+         * @return Posición en la tabla.
+         */
+        int slot(int sender) {
+            int mask = senders.length() - 1;
+            int slot = hash(sender) & mask;
+            int key;
+            while ((key = senders.get(slot)) != EMPTY && key != sender) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /** Tabla vigente. */
+    private volatile Table table = new Table(16);
+    /** Número de remitentes con algún bloqueo. */
+    private volatile int blocked;
+
+    /**
+     * Registra que un cliente bloquea los mensajes de un remitente.
+     *
+     * @param blocker ID del cliente que bloquea.
+     * @param sender ID del remitente bloqueado.
+     */
+    synchronized void block(int blocker, int sender) {
+        int[] blockers = get(sender);
+        if (blockers == null) {
+            set(sender, new int[] {blocker});
+            return;
+        }
+        int index = Arrays.binarySearch(blockers, blocker);
+        if (index >= 0) {
+            return;
+        }
+        int insert = -index - 1;
+        int[] updated = new int[blockers.length + 1];
+        System.arraycopy(blockers, 0, updated, 0, insert);
+        updated[insert] = blocker;
+        System.arraycopy(blockers, insert, updated, insert + 1, blockers.length - insert);
+        set(sender, updated);
+    }
+
+    /**
+     * Elimina el bloqueo de un cliente sobre un remitente.
+     *
+     * @param blocker ID del cliente que bloqueaba.
+     * @param sender ID del remitente desbloqueado.
+     */
+    synchronized void unblock(int blocker, int sender) {
+        int[] blockers = get(sender);
+        int index = blockers == null ? -1 : Arrays.binarySearch(blockers, blocker);
+        if (index < 0) {
+            return;
+        }
+        if (blockers.length == 1) {
+            set(sender, null);
+            return;
+        }
+        int[] updated = new int[blockers.length - 1];
+        System.arraycopy(blockers, 0, updated, 0, index);
+        System.arraycopy(blockers, index + 1, updated, index, updated.length - index);
+        set(sender, updated);
+    }
+
+    /**
+     * Olvida los bloqueos que recaen sobre un remitente que se ha desconectado.
+     *
+     * @param sender ID del remitente.
+     */
+    synchronized void removeSender(int sender) {
+        if (get(sender) != null) {
+            set(sender, null);
+        }
+    }
+
+    /**
+     * Obtiene los clientes que bloquean a un remitente.
+     *
+     * @param sender ID del remitente.
+     * @return Array ordenado de IDs (no debe modificarse), o null si nadie lo bloquea.
+     */
+    int[] blockersOf(int sender) {
+        return blocked == 0 || sender == EMPTY ? null : get(sender);
+    }
+
+    /**
+     * Lee los bloqueadores de un remitente en la tabla vigente.
+     *
+     * @param sender ID del remitente.
+     * @return Bloqueadores, o null si no tiene.
+     */
+    private int[] get(int sender) {
+        Table current = table;
+        return current.blockers.get(current.slot(sender));
+    }
+
+    /**
+     * Sustituye los bloqueadores de un remitente. Se llama con el cerrojo del
+     * índice. Si el remitente no tenía posición y la tabla está a más de la
+     * mitad, publica una tabla nueva sólo con los remitentes bloqueados.
+     *
+     * @param sender ID del remitente (positivo).
+     * @param blockers Bloqueadores nuevos, o null para quitarlos todos.
+     */
+    private void set(int sender, int[] blockers) {
+        Table current = table;
+        int slot = current.slot(sender);
+        boolean before = current.blockers.get(slot) != null;
+        if (current.senders.get(slot) == EMPTY) {
+            if (blockers == null) {
+                return;
+            }
+            if (2 * (current.used + 1) > current.senders.length()) {
+                current = rehash(current);
+                slot = current.slot(sender);
+            }
+            // Primero los bloqueadores: quien vea el ID ya los ve a ellos
+            current.blockers.set(slot, blockers);
+            current.senders.set(slot, sender);
+            current.used++;
+        } else {
+            current.blockers.set(slot, blockers);
+        }
+        if (before != (blockers != null)) {
+            blocked += blockers != null ? 1 : -1;
+        }
+    }
+
+    /**
+     * Copia los remitentes bloqueados en una tabla con sitio de sobra para
+     * uno más y la publica.
+     *
+     * @param current Tabla vigente.
+     * @return Tabla nueva.
+     */
+    private Table rehash(Table current) {
+        int capacity = 16;
+        while (capacity < 4 * (blocked + 1)) {
+            capacity *= 2;
+        }
+        Table next = new Table(capacity);
+        for (int i = 0; i < current.senders.length(); i++) {
+            int[] blockers = current.blockers.get(i);
+            if (blockers != null) {
+                int slot = next.slot(current.senders.get(i));
+                next.blockers.set(slot, blockers);
+                next.senders.set(slot, current.senders.get(i));
+                next.used++;
+            }
+        }
+        table = next;
+        return next;
+    }
+
+    /**
+     * Dispersa un ID para que los consecutivos no ocupen posiciones seguidas.
+     *
+     * @param sender ID del remitente.
+     * @return Hash del ID.
+     */
+    private static int hash(int sender) {
+        int h = sender * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Indica si un destinatario figura entre los bloqueadores de un remitente.
+     *
+     * @param blockers Resultado de {@link #blockersOf(int)}.
+     * @param recipient ID del destinatario.
+     * @return true si el destinatario bloquea al remitente.
+     */
+    static boolean isBlocked(int[] blockers, int recipient) {
+        return blockers != null && Arrays.binarySearch(blockers, recipient) >= 0;
+    }
+}
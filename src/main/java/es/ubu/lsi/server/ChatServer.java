@@ -2,6 +2,8 @@ package es.ubu.lsi.server;
 
 import es.ubu.lsi.common.ChatMessage;
 
+import java.util.Map;
+
 /**
  * Interfaz que define las operaciones básicas del servidor de chat.
  * Incluye métodos para arranque, multidifusión de mensajes,
@@ -38,4 +40,22 @@ public interface ChatServer {
      */
     void remove(int id);
 
+    /**
+     * Obtiene el número de mensajes pendientes de enviar a cada cliente.
+     * Permite detectar qué clientes no consumen sus mensajes a tiempo.
+     * 
+     * @return Profundidad de la cola de salida por nickname.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Cambia en caliente el límite de mensajes por segundo de todos los clientes.
+     * 
+     * @param rate Mensajes por segundo (0 para no limitar).
+     * @param burst Mensajes que puede enviar seguidos un cliente.
+     * @param policy Política cuando un cliente supera el límite.
+     * @return Descripción del límite vigente.
+     */
+    String setRateLimit(double rate, int burst, RateLimitPolicy policy);
+
 }
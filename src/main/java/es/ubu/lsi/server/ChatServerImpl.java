@@ -1,18 +1,39 @@
 package es.ubu.lsi.server;
 
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.BatchingWriter;
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageCodec;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.common.VirtualThreads;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementación del servidor de chat.
@@ -24,19 +45,69 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * @version 1.0
  */
-public class ChatServerImpl implements ChatServer {
-	/** Puerto por defecto para el servidor. */
-    private static int DEFAULT_PORT = 1500;
-    /** Mapa concurrente de clientes conectados identificados por su ID. */
-    private final ConcurrentHashMap<Integer, ServerThreadForClient> clients = new ConcurrentHashMap<>();
-    /** Formato de fecha para los logs del servidor. */
-    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+public class ChatServerImpl implements ChatServer, MessagePipeline.Router {
+	/** Aviso a un cliente cuyos mensajes se descartan por superar su límite. */
+    static final String THROTTLED_NOTICE = "Error: Has superado el límite de mensajes. Se descartarán hasta que envíes más despacio.";
+    /** Marca de fin de la cola de salida: el escritor termina al extraerla. */
+    private static final EncodedMessage END = new EncodedMessage(null);
+	/** Puerto de escucha del servidor (1500 por defecto). */
+    private int port = 1500;
+    /** Clientes conectados, por ID y por nickname. */
+    private final ConnectionRegistry<ServerThreadForClient> clients = new ConnectionRegistry<>(ServerThreadForClient[]::new);
     /** Indica si el servidor está en ejecución. */
-    private boolean alive = true;
-    /** Contador para asignar IDs únicos a los clientes. */
-    private int clientId = 0;
-    /** Mapa de clientes identificados por sus nombres de usuario (nickname). */
-    private final Map<String, ServerThreadForClient> clientsByName = new ConcurrentHashMap<>();
+    private volatile boolean alive = true;
+    /** Socket de escucha (null hasta arrancar). */
+    private volatile ServerSocket serverSocket;
+    /** Índice de los miembros de cada sala. */
+    private final RoomIndex<ServerThreadForClient> rooms;
+    /** Índice inverso de bloqueos (remitente → clientes que lo bloquean). */
+    private final BlockIndex blocks = new BlockIndex();
+    /** Registro persistente de mensajes (null si no está activado). */
+    private final MessageLog messageLog;
+    /** Historial reciente global y de cada sala. */
+    private final MessageHistory history;
+    /** Buzones de los clientes desconectados (null si no están activados). */
+    private final OfflineMailboxes mailboxes;
+    /** Métricas del servidor. */
+    private final ServerMetrics metrics;
+    /** Etapas por las que pasan los mensajes de los clientes. */
+    private final MessagePipeline<ServerThreadForClient> pipeline;
+    /** Reparto en paralelo de las difusiones grandes (null si se reparten en el hilo que las envía). */
+    private final ShardedFanOut<ServerThreadForClient> fanOut;
+    /** Nodo del cluster (null si el servidor funciona solo). */
+    private final ClusterNode cluster;
+    /** Límite de mensajes por segundo de los clientes. */
+    private final RateLimiter rateLimiter;
+    /** Rueda que expulsa a los clientes inactivos (null si no se vigilan). */
+    private final TimerWheel<ServerThreadForClient> idleTimer;
+    /** Codificadores que el servidor acepta negociar, por orden de preferencia. */
+    private final byte[] supportedCodecs;
+    /** Fábrica de los hilos que ejecutan el bucle de lectura de cada cliente. */
+    private final ThreadFactory clientThreads;
+    /** Hilos que negocian las conexiones nuevas, fuera del bucle de aceptación. */
+    private final ExecutorService handshakes;
+    /** Sockets que están negociando (se cierran al apagar). */
+    private final Set<Socket> handshaking = ConcurrentHashMap.newKeySet();
+    /** Espera máxima de la negociación de una conexión nueva, en milisegundos. */
+    private final int handshakeTimeoutMillis;
+    /** Longitud de la cola de conexiones pendientes de aceptar. */
+    private final int acceptBacklog;
+    /** Número de hilos que aceptan conexiones. */
+    private final int acceptors;
+    /** Capacidad de la cola de salida de cada cliente. */
+    private final int queueCapacity;
+    /** Umbral de compresión de los mensajes para los clientes que la han negociado. */
+    private final int compressionThreshold;
+    /** Política cuando la cola de salida de un cliente se llena. */
+    private final OverflowPolicy overflowPolicy;
+    /** Espera máxima de la política BLOCK, en milisegundos. */
+    private final int blockTimeoutMillis;
+    /** Tamaño máximo de un lote de escritura, en bytes. */
+    private final int batchBytes;
+    /** Ventana para agrupar mensajes en un lote, en microsegundos. */
+    private final int batchDelayMicros;
+    /** Espera máxima del apagado para vaciar las colas de salida, en milisegundos. */
+    private final int shutdownTimeoutMillis;
     
     
     /**
@@ -46,13 +117,62 @@ public class ChatServerImpl implements ChatServer {
      * @param port El puerto en el que el servidor escuchará conexiones.
      */
     public ChatServerImpl(int port) {
+        this(port, false);
+    }
+
+    /**
+     * Constructor que permite definir el puerto y el tipo de hilo por cliente.
+     * Con hilos virtuales (Java 21+) cada conexión bloqueada en lectura apenas
+     * consume memoria, lo que permite mantener abiertas muchas más conexiones.
+     * 
+     * @param port El puerto en el que el servidor escuchará conexiones.
+     * @param virtualThreads true para atender a cada cliente en un hilo virtual.
+     */
+    public ChatServerImpl(int port, boolean virtualThreads) {
+        this(new ServerConfig().set("port", String.valueOf(port)).set("engine", virtualThreads ? "virtual" : "threads"));
+    }
+
+    /**
+     * Constructor que configura el servidor a partir de las opciones de arranque.
+     * 
+     * @param config Configuración de arranque.
+     */
+    public ChatServerImpl(ServerConfig config) {
+        AsyncLog.setLevel(config.getLogLevel());
+        boolean virtual = "virtual".equalsIgnoreCase(config.getEngine());
+        this.clientThreads = virtual ? VirtualThreads.factory("chat-client-") : Thread::new;
+        this.acceptBacklog = config.getAcceptBacklog();
+        this.acceptors = config.getAcceptors();
+        this.handshakeTimeoutMillis = config.getHandshakeTimeoutMillis();
+        this.handshakes = virtual ? Executors.newCachedThreadPool(VirtualThreads.factory("chat-handshake-"))
+                : handshakePool(config.getHandshakeThreads(), acceptBacklog);
+        this.supportedCodecs = config.getCodecs();
+        this.queueCapacity = config.getQueueCapacity();
+        this.compressionThreshold = config.getCompressionThreshold();
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.blockTimeoutMillis = config.getBlockTimeoutMillis();
+        this.batchBytes = config.getBatchBytes();
+        this.batchDelayMicros = config.getBatchDelayMicros();
+        this.shutdownTimeoutMillis = config.getShutdownTimeoutMillis();
+        this.messageLog = MessageLog.open(config);
+        this.history = new MessageHistory(config.getHistorySize(), config.getHistoryBytes());
+        this.history.restore(messageLog, compressionThreshold);
+        this.rooms = new RoomIndex<>(history::dropRoom);
+        this.mailboxes = OfflineMailboxes.open(config);
+        this.metrics = new ServerMetrics(this, config.getMetricsPort());
+        this.pipeline = MessagePipeline.standard(this, metrics);
+        this.fanOut = ShardedFanOut.open(config, metrics);
+        this.cluster = ClusterNode.open(config, new ClusterMembers());
+        this.rateLimiter = new RateLimiter(config.getRateLimit(), config.getRateBurst(), config.getRateLimitPolicy());
+        this.idleTimer = TimerWheel.open(config.getIdleTimeoutMillis(), new IdleClients());
+        int port = config.getPort();
         // Valida el puerto proporcionado
         if (port <= 0 || port > 65535) {
-            System.out.println("Puerto inválido. Usando el puerto predeterminado: 1500.");
+            AsyncLog.info("Puerto inválido. Usando el puerto predeterminado: 1500.");
             port = 1500; // Configuración del puerto predeterminado
         }
-        DEFAULT_PORT = port; // Asignación del puerto al atributo
-        System.out.println("Servidor configurado para escuchar en el puerto " + DEFAULT_PORT);
+        this.port = port; // Asignación del puerto al atributo
+        AsyncLog.info("Servidor configurado para escuchar en el puerto " + port);
     }
 
     /**
@@ -66,73 +186,378 @@ public class ChatServerImpl implements ChatServer {
     /**
      * Método principal que arranca el servidor de chat.
      * Configura el servidor y permite interacciones desde la consola.
+     * El motor de E/S se elige con la opción {@code --engine=threads|virtual|nio}
+     * y el puerto con {@code --port=N} (ver {@link ServerConfig}).
      * 
-     * @param args No requiere argumentos.
+     * @param args Opciones de arranque con la forma {@code --clave=valor}.
      */
     public static void main(String[] args) {
-        ChatServerImpl server = new ChatServerImpl();
-        server.startup();
-        server.listenForUserInput();
+        ServerConfig config = ServerConfig.fromArgs(args);
+        ChatServer server = createServer(config);
+
+        // El bucle de aceptación bloquea, por lo que se ejecuta en su propio hilo
+        Thread acceptor = new Thread(server::startup, "chat-acceptor");
+        acceptor.start();
+        listenForUserInput(server);
+    }
+
+    /**
+     * Crea el servidor correspondiente al motor de E/S configurado.
+     * 
+     * @param config Configuración de arranque.
+     * @return Servidor listo para arrancar.
+     */
+    static ChatServer createServer(ServerConfig config) {
+        if ("nio".equalsIgnoreCase(config.getEngine())) {
+            return new ChatServerNioImpl(config);
+        }
+        return new ChatServerImpl(config);
+    }
+
+    /**
+     * Crea el grupo de hilos de plataforma que negocian las conexiones nuevas.
+     * Si todos están ocupados y la cola se llena, las conexiones nuevas se
+     * rechazan en lugar de acumularse.
+     * 
+     * @param threads Número de hilos.
+     * @param queueCapacity Conexiones que pueden esperar a un hilo libre.
+     * @return Grupo de hilos.
+     */
+    private static ExecutorService handshakePool(int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), task -> {
+                    Thread thread = new Thread(task, "chat-handshake-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
      * Método que inicia el servidor.
-     * Crea un socket del servidor y acepta conexiones de clientes.
+     * Crea un socket del servidor y acepta conexiones de clientes desde uno o
+     * varios hilos. La negociación de cada conexión se hace en otro grupo de
+     * hilos, de modo que un cliente lento no retrasa la aceptación de los demás.
      */
     @Override
     public void startup() {
-        try (ServerSocket serverSocket = new ServerSocket(DEFAULT_PORT)) {
-            System.out.println("Servidor iniciado en puerto " + DEFAULT_PORT);
+        try (ServerSocket serverSocket = new ServerSocket(port, acceptBacklog)) {
+            this.serverSocket = serverSocket;
+            AsyncLog.info("Servidor iniciado en puerto " + port);
+            metrics.start();
+            if (cluster != null) {
+                cluster.start();
+            }
+
+            // Los demás aceptadores comparten el socket de escucha; este hilo es uno más
+            for (int i = 1; i < acceptors; i++) {
+                Thread acceptor = new Thread(() -> accept(serverSocket), "chat-acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            accept(serverSocket);
+        } catch (IOException e) {
+            AsyncLog.error("Error en el servidor: " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
 
+    /**
+     * Bucle de aceptación: asigna un ID a cada conexión y pasa su negociación
+     * al grupo de hilos correspondiente.
+     * 
+     * @param serverSocket Socket de escucha.
+     */
+    private void accept(ServerSocket serverSocket) {
+        try {
             while (alive) {
                 Socket socket = serverSocket.accept();
-                int id = ++clientId;
-                System.out.println(sdf.format(new Date()) + " Cliente conectado con ID " + id);
+                metrics.accepted();
+                int id = clients.nextId();
+                AsyncLog.info("Cliente conectado con ID " + id);
+                try {
+                    handshakes.execute(() -> handshake(socket, id));
+                } catch (RejectedExecutionException e) {
+                    AsyncLog.warn("Conexión rechazada (ID " + id + "): Demasiadas conexiones pendientes de negociar");
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            // Al apagar, el cierre del socket de escucha interrumpe accept()
+            if (alive) {
+                AsyncLog.error("Error en el servidor: " + e.getMessage());
+            }
+        }
+    }
 
-                ServerThreadForClient thread = new ServerThreadForClient(socket, id);
-                clients.put(id, thread);
-                thread.start();
+    /**
+     * Negocia el codificador de una conexión nueva y lee su nickname con una
+     * espera máxima; si lo consigue, arranca el hilo del cliente.
+     * 
+     * @param socket Socket del cliente.
+     * @param id ID del cliente.
+     */
+    private void handshake(Socket socket, int id) {
+        handshaking.add(socket);
+        try {
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            ServerThreadForClient client = new ServerThreadForClient(socket, id);
+            socket.setSoTimeout(0);
+            if (!alive) {
+                client.closeConnection();
+                return;
             }
+            clientThreads.newThread(client).start();
         } catch (IOException e) {
-            System.err.println("Error en el servidor: " + e.getMessage());
+            // Un cliente que falla en la negociación no detiene el servidor
+            String reason = e instanceof SocketTimeoutException ? "No ha enviado su nickname a tiempo" : e.getMessage();
+            AsyncLog.warn("Conexión rechazada (ID " + id + "): " + reason);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Ya estaba cerrado
+            }
         } finally {
-            shutdown();
+            handshaking.remove(socket);
         }
     }
 
     /**
      * Método para retransmitir mensajes a todos los clientes conectados.
+     * El mensaje se codifica una sola vez por codificador y la misma trama
+     * se escribe en el socket de cada destinatario.
      * 
      * @param message Mensaje a retransmitir.
      */
     @Override
     public void broadcast(ChatMessage message) {
-        clients.values().forEach(client -> client.sendMessage(message));
+        fanOut(null, message);
+    }
+
+    /**
+     * Retransmite un mensaje sólo a los miembros de una sala.
+     * 
+     * @param room Nombre de la sala.
+     * @param message Mensaje a retransmitir.
+     */
+    @Override
+    public void broadcastToRoom(String room, ChatMessage message) {
+        fanOut(room, message);
+    }
+
+    /**
+     * Entrega un mensaje a todos los clientes o a los miembros de una sala.
+     * Los bloqueadores del remitente se obtienen una sola vez y se descartan
+     * antes de encolar nada; si nadie bloquea al remitente no se comprueba
+     * ningún destinatario.
+     * 
+     * @param room Sala del mensaje, o null si se difunde a todos.
+     * @param message Mensaje a entregar.
+     */
+    private void fanOut(String room, ChatMessage message) {
+        EncodedMessage encoded = new EncodedMessage(message, compressionThreshold);
+        persist(encoded);
+        if (cluster != null) {
+            cluster.publish(room, encoded);
+        }
+        deliver(room, encoded);
+    }
+
+    /**
+     * Entrega a los clientes locales un mensaje ya codificado, sea de este
+     * servidor o de otro nodo del cluster. Con el reparto en paralelo
+     * activado, los mensajes con muchos destinatarios los encolan los hilos
+     * de reparto. Los destinatarios de una difusión global se toman al
+     * guardarla en el historial, para que un cliente que se da de alta a la
+     * vez la reciba por una sola de las dos vías.
+     * 
+     * @param room Sala del mensaje, o null si se difunde a todos.
+     * @param encoded Mensaje a entregar.
+     */
+    private void deliver(String room, EncodedMessage encoded) {
+        long start = System.nanoTime();
+        Collection<ServerThreadForClient> recipients;
+        if (room == null) {
+            recipients = history.record(encoded, clients::snapshot);
+        } else {
+            // Si la sala ya no existe no se le crea un historial que nadie borraría
+            rooms.ifPresent(room, () -> history.record(room, encoded));
+            recipients = rooms.members(room);
+        }
+        if (room == null && mailboxes != null) {
+            mailboxes.offer(encoded);
+        }
+        int[] blockers = blocks.blockersOf(encoded.getMessage().getId());
+        if (fanOut != null && fanOut.broadcast(recipients, encoded, blockers, start)) {
+            return;
+        }
+        if (blockers == null) {
+            recipients.forEach(client -> client.sendMessage(encoded));
+        } else {
+            for (ServerThreadForClient client : recipients) {
+                if (!BlockIndex.isBlocked(blockers, client.id)) {
+                    client.sendMessage(encoded);
+                }
+            }
+        }
+        metrics.fannedOut(System.nanoTime() - start);
     }
 
     /**
-     * Método que elimina un cliente del servidor.
+     * Entrega un mensaje privado sólo a su destinatario, localizándolo por su
+     * nickname sin recorrer al resto de clientes. Si está conectado en otro
+     * nodo del cluster, se le reenvía a ese nodo; si ha perdido la conexión,
+     * se guarda en su buzón.
+     * 
+     * @param recipient Nickname del destinatario.
+     * @param message Mensaje a entregar.
+     * @return true si el destinatario está conectado o tiene buzón.
+     */
+    @Override
+    public boolean sendPrivate(String recipient, ChatMessage message) {
+        ServerThreadForClient client = clients.byName(recipient);
+        if (client == null && (recipient == null || cluster == null && mailboxes == null)) {
+            return false;
+        }
+        // Un destinatario que bloquea al remitente no lo recibe, sin avisar al remitente
+        EncodedMessage encoded = new EncodedMessage(message, compressionThreshold);
+        if (client == null) {
+            if ((cluster == null || !cluster.sendPrivate(recipient, encoded))
+                    && (mailboxes == null || !mailboxes.offer(recipient, encoded))) {
+                return false;
+            }
+            persist(encoded);
+            return true;
+        }
+        persist(encoded);
+        if (!BlockIndex.isBlocked(blocks.blockersOf(message.getId()), client.id)
+                && (fanOut == null || !fanOut.sendPrivate(client, encoded))) {
+            client.sendMessage(encoded);
+        }
+        return true;
+    }
+
+    /**
+     * Escribe un mensaje en el registro persistente, si está activado.
+     * 
+     * @param encoded Mensaje a guardar.
+     */
+    private void persist(EncodedMessage encoded) {
+        if (messageLog != null) {
+            long start = System.nanoTime();
+            messageLog.append(encoded);
+            metrics.persisted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Método que elimina un cliente del servidor. Si no ha cerrado la sesión,
+     * se le guardan los mensajes hasta que vuelva a conectarse.
      * 
      * @param id Identificador único del cliente a eliminar.
      */
     @Override
     public void remove(int id) {
-        ServerThreadForClient client = clients.remove(id);
+        ServerThreadForClient client = clients.unregister(id);
         if (client != null) {
-            clientsByName.remove(client.username);
+            if (cluster != null) {
+                cluster.release(client.username);
+            }
+            if (mailboxes != null && alive) {
+                mailboxes.disconnected(client, client.loggedOut);
+            }
+            if (client.idle != null) {
+                client.idle.cancel();
+            }
+            client.joinedRooms.forEach(room -> rooms.leave(room, client));
+            client.blockedUsers.forEach(sender -> blocks.unblock(id, sender));
+            blocks.removeSender(id);
             client.closeConnection();
         }
     }
 
+    /**
+     * Obtiene el número de mensajes pendientes en la cola de salida de cada cliente.
+     * 
+     * @return Profundidad de cola por nickname.
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        clients.snapshot().forEach(client -> depths.put(client.username, client.outbound.depth()));
+        return depths;
+    }
+
+    /**
+     * Cambia en caliente el límite de mensajes por segundo de todos los clientes.
+     * 
+     * @param rate Mensajes por segundo (0 para no limitar).
+     * @param burst Mensajes que puede enviar seguidos un cliente.
+     * @param policy Política cuando un cliente supera el límite.
+     * @return Descripción del límite vigente.
+     */
+    @Override
+    public String setRateLimit(double rate, int burst, RateLimitPolicy policy) {
+        rateLimiter.set(rate, burst, policy);
+        return rateLimiter.toString();
+    }
+
     /**
      * Método que apaga el servidor.
-     * Cierra todas las conexiones activas de los clientes.
+     * Deja de aceptar conexiones, envía a todos los clientes el aviso de
+     * apagado (codificado una sola vez por codificador) y espera a que sus
+     * hilos escritores, que trabajan en paralelo, vacíen las colas de salida.
+     * Al agotarse la espera máxima cierra todas las conexiones a la vez.
      */
     @Override
-    public void shutdown() {
+    public synchronized void shutdown() {
+        if (!alive) {
+            return;
+        }
         alive = false;
-        clients.values().forEach(ServerThreadForClient::closeConnection);
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            AsyncLog.error("Error cerrando el socket de escucha: " + e.getMessage());
+        }
+        handshakes.shutdownNow();
+        for (Socket socket : handshaking) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ya estaba cerrado
+            }
+        }
+        if (fanOut != null) {
+            // Las difusiones ya aceptadas llegan antes que el aviso de apagado
+            fanOut.close(shutdownTimeoutMillis);
+        }
+        EncodedMessage goodbye = new EncodedMessage(
+                new ChatMessage(0, ChatMessage.MessageType.SHUTDOWN, "El servidor se está apagando."), compressionThreshold);
+        List<ServerThreadForClient> closing = clients.snapshot();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+        closing.forEach(client -> client.finish(goodbye, deadline));
+        for (ServerThreadForClient client : closing) {
+            client.awaitDrained(deadline);
+        }
         clients.clear();
+        closing.forEach(ServerThreadForClient::closeConnection);
+        if (mailboxes != null) {
+            mailboxes.close(shutdownTimeoutMillis);
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        metrics.close();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (idleTimer != null) {
+            idleTimer.close();
+        }
     }
     
     /**
@@ -141,31 +566,121 @@ public class ChatServerImpl implements ChatServer {
      * - "logout": Apaga el servidor.
      * - "ban ": Bloquea a un cliente.
      * - "unban ": Desbloquea a un cliente.
+     * - "queues": Muestra los mensajes pendientes de enviar a cada cliente.
+     * - "limit mensajes/s [ráfaga] [delay|drop|disconnect]" o "limit off":
+     *   Cambia el límite de mensajes por segundo de los clientes.
+     * 
+     * @param server Servidor sobre el que actúan los comandos.
      */
-    private void listenForUserInput() {
+    private static void listenForUserInput(ChatServer server) {
         Scanner scanner = new Scanner(System.in);
-        while (alive) {
+        while (scanner.hasNextLine()) {
             System.out.print("> ");
             String input = scanner.nextLine();
 
             if ("logout".equalsIgnoreCase(input)) {
-                shutdown();
+                server.shutdown();
                 break;
+            } else if ("queues".equalsIgnoreCase(input)) {
+                server.getQueueDepths().forEach((name, depth) -> System.out.println(name + ": " + depth));
+            } else if ("limit".equalsIgnoreCase(input) || input.startsWith("limit ")) {
+                changeRateLimit(server, input.trim().split("\\s+"));
             } else if (input.startsWith("ban ") || input.startsWith("unban ")) {
-                broadcast(new ChatMessage(0, ChatMessage.MessageType.MESSAGE, input));
+                server.broadcast(new ChatMessage(0, ChatMessage.MessageType.MESSAGE, input));
             } else {
-                broadcast(new ChatMessage(0, ChatMessage.MessageType.MESSAGE, input));
+                server.broadcast(new ChatMessage(0, ChatMessage.MessageType.MESSAGE, input));
             }
         }
         scanner.close();
     }
 
+    /**
+     * Aplica el comando de consola que cambia el límite de mensajes.
+     * 
+     * @param server Servidor sobre el que actúa el comando.
+     * @param args Palabras del comando ("limit" y sus argumentos).
+     */
+    private static void changeRateLimit(ChatServer server, String[] args) {
+        try {
+            if (args.length == 2 && "off".equalsIgnoreCase(args[1])) {
+                System.out.println("Límite: " + server.setRateLimit(0, 1, RateLimitPolicy.DELAY));
+                return;
+            }
+            if (args.length < 2 || args.length > 4) {
+                System.out.println("Uso: limit <mensajes/s> [ráfaga] [delay|drop|disconnect] | limit off");
+                return;
+            }
+            double rate = Double.parseDouble(args[1]);
+            int burst = args.length > 2 ? Integer.parseInt(args[2]) : (int) Math.ceil(rate);
+            RateLimitPolicy policy = args.length > 3 ? RateLimitPolicy.fromName(args[3]) : RateLimitPolicy.DELAY;
+            System.out.println("Límite: " + server.setRateLimit(rate, burst, policy));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Uso: limit <mensajes/s> [ráfaga] [delay|drop|disconnect] | limit off");
+        }
+    }
+
+
+    /**
+     * Clientes locales vistos desde el cluster: comprueba los apodos en uso y
+     * entrega los mensajes que llegan de otros nodos.
+     */
+    private class ClusterMembers implements ClusterNode.Members {
+
+        @Override
+        public boolean isLocal(String nickname) {
+            return clients.byName(nickname) != null;
+        }
+
+        @Override
+        public Collection<String> localNames() {
+            return clients.names();
+        }
+
+        @Override
+        public void deliver(String room, ChatMessage message) {
+            EncodedMessage encoded = new EncodedMessage(message, compressionThreshold);
+            ChatServerImpl.this.deliver(room, encoded);
+        }
+
+        @Override
+        public void deliverPrivate(String nickname, ChatMessage message) {
+            ServerThreadForClient client = clients.byName(nickname);
+            if (client != null && !BlockIndex.isBlocked(blocks.blockersOf(message.getId()), client.id)) {
+                client.sendMessage(new EncodedMessage(message, compressionThreshold));
+            }
+        }
+    }
+
+    /**
+     * Acciones de la rueda de inactividad: comprueba con un {@code PING} si un
+     * cliente callado sigue conectado y expulsa a los que no responden.
+     * Ninguna espera en el hilo de la rueda: el {@code PING} se deja en la
+     * cola del escritor del cliente y la baja la hace su propio hilo lector al
+     * cerrarse el socket.
+     */
+    private class IdleClients implements TimerWheel.Listener<ServerThreadForClient> {
+
+        @Override
+        public void ping(ServerThreadForClient client) {
+            client.ping();
+        }
+
+        @Override
+        public void expire(ServerThreadForClient client) {
+            AsyncLog.warn("Cliente " + client.username + " (ID " + client.id + ") desconectado por inactividad.");
+            client.closeConnection();
+        }
+    }
 
     /**
      * Clase interna que representa un hilo de cliente conectado al servidor.
-     * Gestiona la comunicación con un cliente específico.
+     * Gestiona la comunicación con un cliente específico. Su bucle de lectura
+     * se ejecuta en un hilo de plataforma o en un hilo virtual según el modo
+     * elegido al arrancar. Los mensajes hacia el cliente pasan por una cola
+     * acotada que vacía un hilo escritor propio, de modo que un cliente lento
+     * no retrasa las difusiones de los demás.
      */
-    private class ServerThreadForClient extends Thread {
+    private class ServerThreadForClient implements Runnable, ChatSession {
     	/** Socket del cliente. */
     	private final Socket socket;
     	/** ID único del cliente. */
@@ -173,14 +688,41 @@ public class ChatServerImpl implements ChatServer {
     	/** Nombre de usuario (nickname) del cliente. */
     	private String username;
     	/** Flujo de salida hacia el cliente. */
-    	private ObjectOutputStream outputStream;
+    	private DataOutputStream outputStream;
+    	/** Flujo de salida del socket, sin buffer, para escribir tramas ya codificadas. */
+    	private final OutputStream socketOutput;
+    	/** Identificador del codificador negociado con el cliente. */
+    	private byte codecId = Handshake.CODEC_SERIALIZATION;
+    	/** Codificador negociado con el cliente. */
+    	private MessageCodec codec = SerializationCodec.INSTANCE;
+    	/** Cola de mensajes pendientes de enviar al cliente. */
+    	private final OutboundQueue<EncodedMessage> outbound =
+    	        new OutboundQueue<>(queueCapacity, overflowPolicy, blockTimeoutMillis);
+    	/** Hilo escritor, único que escribe en el socket tras la negociación. */
+    	private volatile Thread writer;
+    	/** Indica si el cliente espera la confirmación de su nickname con su ID. */
+    	private boolean ack;
+    	/** Indica si el cliente confirma los lotes de su buzón. */
+    	private boolean mailboxAware;
+    	/** Salas a las que pertenece el cliente. */
+    	private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
     	/** Flujo de entrada desde el cliente. */
     	private Set<Integer> blockedUsers = ConcurrentHashMap.newKeySet();
     	/** Lista de IDs de clientes bloqueados por este cliente. */
-    	private ObjectInputStream inputStream;
+    	private DataInputStream inputStream;
+    	/** Cubeta de fichas del límite de mensajes del cliente. */
+    	private final RateLimiter.Bucket bucket = rateLimiter.newBucket();
+    	/** Indica si ya se ha avisado al cliente de que sus mensajes se descartan. */
+    	private boolean throttled;
+    	/** Entrada del cliente en la rueda de inactividad (null si no se vigila). */
+    	private volatile TimerWheel.Timeout<ServerThreadForClient> idle;
+    	/** Indica si el cliente ha cerrado la sesión, en cuyo caso no se le guardan mensajes. */
+    	private volatile boolean loggedOut;
 
         /**
-         * Constructor que configura la conexión con el cliente.
+         * Constructor que configura la conexión con el cliente: negocia el
+         * codificador y lee el nickname. El escritor no arranca hasta que el
+         * cliente está dado de alta y confirmado.
          * 
          * @param socket Socket del cliente.
          * @param id ID único del cliente.
@@ -189,84 +731,148 @@ public class ChatServerImpl implements ChatServer {
     	public ServerThreadForClient(Socket socket, int id) throws IOException {
     	    this.socket = socket;
     	    this.id = id;
+    	    socket.setTcpNoDelay(true); // Los lotes ya agrupan los mensajes; Nagle sólo añadiría espera
 
     	    // Inicializa flujos en orden
-    	    this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-    	    this.inputStream = new ObjectInputStream(socket.getInputStream());
+    	    this.socketOutput = socket.getOutputStream();
+    	    this.outputStream = new DataOutputStream(new BufferedOutputStream(socketOutput));
+    	    this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+    	    // Negocia el codificador; sin saludo, la primera trama ya es el nickname
+    	    byte[] first = MessageFrames.readFrame(inputStream);
+    	    if (Handshake.isHello(first)) {
+    	        ack = Handshake.supportsAck(first);
+    	        mailboxAware = Handshake.supportsMailbox(first);
+    	        byte chosen = Handshake.choose(first, supportedCodecs);
+    	        this.codecId = chosen;
+    	        this.codec = Handshake.codec(chosen);
+    	        MessageFrames.writeFrame(outputStream, Handshake.accept(chosen));
+    	        first = MessageFrames.readFrame(inputStream);
+    	    }
 
     	    // Lee el mensaje inicial (nickname)
-    	    try {
-    	        ChatMessage initialMessage = (ChatMessage) inputStream.readObject();
-    	        this.username = initialMessage.getMessage();
+    	    ChatMessage initialMessage = codec.decode(first, 0, first.length);
+    	    this.username = initialMessage.getMessage();
+    	}
+
+        /**
+         * Da de alta al cliente, le encola los últimos mensajes difundidos y
+         * arranca su escritor, que le confirma el nickname con su ID antes que
+         * cualquier mensaje encolado.
+         * 
+         * @throws IOException Si el nickname está en uso o el servidor se apaga.
+         */
+    	private void register() throws IOException {
+    	    // Un cliente que vuelve recibe su buzón en lugar del historial
+    	    boolean replay = mailboxes == null || !mailboxAware || !mailboxes.holds(username);
 
-    	        // Valida si el nickname ya está en uso
-    	        if (clientsByName.containsKey(username)) {
-    	            throw new IOException("El apodo ya está en uso: " + username);
+    	    // Da de alta al cliente si el nickname no está en uso. El historial se encola junto
+    	    // con el alta: lo que se difunda después llega detrás, sin perderse ni repetirse
+    	    if (!history.register(recent -> {
+    	        if (!clients.register(id, username, this)) {
+    	            return false;
+    	        }
+    	        if (replay) {
+    	            replay(recent);
+    	        }
+    	        return true;
+    	    })) {
+    	        throw new IOException("El apodo ya está en uso: " + username);
+    	    }
+    	    if (cluster != null && !cluster.claim(username)) {
+    	        clients.unregister(id);
+    	        throw new IOException("El apodo ya está en uso en otro nodo: " + username);
+    	    }
+    	    // El apagado toma el mismo cerrojo: o ve al escritor ya arrancado y espera a que
+    	    // vacíe la cola, o el cliente ve que el servidor se apaga
+    	    synchronized (ChatServerImpl.this) {
+    	        if (!alive) {
+    	            // El apagado ya ha recorrido los clientes: éste no recibiría el aviso
+    	            clients.unregister(id);
+    	            throw new IOException("El servidor se está apagando");
     	        }
+    	        writer = clientThreads.newThread(this::drainOutbound);
+    	        writer.start();
+    	    }
 
-    	        clientsByName.put(username, this); // Registrar al cliente por nombre
-    	    } catch (ClassNotFoundException e) {
-    	        System.err.println("Clase no encontrada al leer mensaje del cliente: " + e.getMessage());
+    	    if (mailboxes != null) {
+    	        mailboxes.reconnect(this, mailboxAware);
     	    }
     	}
 
+        /**
+         * Lee la siguiente trama del cliente y la decodifica.
+         * 
+         * @return Mensaje recibido.
+         * @throws IOException Si falla la lectura o la trama no es válida.
+         */
+        private ChatMessage readMessage() throws IOException {
+            byte[] payload = MessageFrames.readFrame(inputStream);
+            if (idle != null) {
+                idle.touch();
+            }
+            long start = System.nanoTime();
+            ChatMessage message = codec.decode(payload, 0, payload.length);
+            metrics.received(MessageFrames.HEADER_LENGTH + payload.length, System.nanoTime() - start);
+            message.setId(id); // El remitente es siempre el cliente de esta conexión
+            return message;
+        }
+
         /**
          * Método que ejecuta el hilo del cliente.
-         * Procesa mensajes entrantes y comandos como "ban" y "unban".
+         * Procesa los mensajes entrantes, incluidos comandos como "ban" y
+         * "unban", pasándolos por las etapas del servidor.
          */
         @Override
         public void run() {
+            try {
+                register();
+            } catch (IOException e) {
+                AsyncLog.warn("Conexión rechazada (ID " + id + "): " + e.getMessage());
+                closeConnection();
+                return;
+            }
+            if (idleTimer != null) {
+                idle = idleTimer.add(this);
+            }
             try {
                 // Bucle para procesar mensajes de los clientes
                 while (true) {
-                    ChatMessage message = (ChatMessage) inputStream.readObject();
+                    ChatMessage message = readMessage();
 
                     if (message.getType() == ChatMessage.MessageType.LOGOUT) {
                         // Cliente solicita desconexión
-                        System.out.println(sdf.format(new Date()) + " Cliente " + username + " (ID " + id + ") se ha desconectado.");
+                        AsyncLog.info("Cliente " + username + " (ID " + id + ") se ha desconectado.");
+                        loggedOut = true;
                         break;
-                    } else if (message.getType() == ChatMessage.MessageType.MESSAGE) {
-                        String text = message.getMessage();
-
-                        // Procesa comando "ban"
-                        if (text.startsWith("ban ")) {
-                            try {
-                                int blockedId = Integer.parseInt(text.split(" ")[1]);
-                                banUser(blockedId);
-
-                                // Notifica a todos los clientes del bloqueo
-                                String blockNotification = username + " ha bloqueado al usuario con ID " + blockedId;
-                                broadcast(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, blockNotification));
-
-                            } catch (NumberFormatException e) {
-                                // Error en el formato del ID
-                                sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, "Error: Formato de comando inválido. Usa 'ban <id>'."));
-                            }
-                        }
-                        // Procesa comando "unban"
-                        else if (text.startsWith("unban ")) {
-                            try {
-                                int unblockedId = Integer.parseInt(text.split(" ")[1]);
-                                unbanUser(unblockedId);
-
-                                // Notifica a todos los clientes del desbloqueo
-                                String unblockNotification = username + " ha desbloqueado al usuario con ID " + unblockedId;
-                                broadcast(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, unblockNotification));
-
-                            } catch (NumberFormatException e) {
-                                // Error en el formato del ID
-                                sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, "Error: Formato de comando inválido. Usa 'unban <id>'."));
-                            }
-                        }
-                        // Procesa mensaje normal
-                        else {
-                            System.out.println(sdf.format(new Date()) + " [" + username + "]: " + text);
-                            broadcast(message);
+                    }
+
+                    // Un cliente que supera su límite espera, pierde el mensaje o se desconecta;
+                    // las confirmaciones del buzón no cuentan, pues perder una detendría su entrega
+                    long admitStart = System.nanoTime();
+                    RateLimitPolicy limited = message.getType() == ChatMessage.MessageType.ACK ? null : rateLimiter.admit(bucket);
+                    metrics.rateLimited(System.nanoTime() - admitStart);
+                    if (limited == RateLimitPolicy.DISCONNECT) {
+                        AsyncLog.warn("Cliente " + username + " (ID " + id + ") desconectado por superar el límite de mensajes.");
+                        break;
+                    } else if (limited == RateLimitPolicy.DROP) {
+                        if (!throttled) {
+                            throttled = true;
+                            sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, THROTTLED_NOTICE));
                         }
+                        continue;
                     }
+                    throttled = false;
+
+                    // Comandos, filtros y reparto
+                    pipeline.process(this, message);
+                }
+            } catch (IOException e) {
+                if (clients.get(id) == this) {
+                    AsyncLog.error("Error en la comunicación con el cliente " + username + " (ID " + id + "): " + e.getMessage());
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error en la comunicación con el cliente " + username + " (ID " + id + "): " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } finally {
                 // Desconexión del cliente
                 closeConnection();
@@ -274,43 +880,219 @@ public class ChatServerImpl implements ChatServer {
             }
         }
 
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
         /**
-         * Envía un mensaje al cliente, verificando que no esté bloqueado.
+         * Envía un mensaje al cliente.
          * 
          * @param message Mensaje a enviar.
          */
+        @Override
         public void sendMessage(ChatMessage message) {
-            if (!blockedUsers.contains(message.getId())) { // Solo enviar si no está bloqueado
-                try {
-                    outputStream.writeObject(message);
-                } catch (IOException e) {
-                    System.err.println("Error al enviar mensaje al cliente " + id + ": " + e.getMessage());
+            sendMessage(new EncodedMessage(message, compressionThreshold));
+        }
+
+        /**
+         * Encola un mensaje ya preparado para el cliente. Los bloqueos ya se
+         * han comprobado al elegir los destinatarios. Si la cola está llena se
+         * aplica la política de desbordamiento y, si ésta lo indica, se
+         * desconecta al cliente por lento.
+         * 
+         * @param message Mensaje a enviar.
+         */
+        @Override
+        public void sendMessage(EncodedMessage message) {
+            if (!outbound.offer(message)) {
+                AsyncLog.warn("Cliente " + username + " (ID " + id + ") desconectado por no consumir sus mensajes.");
+                remove(id);
+            }
+        }
+
+        /**
+         * Encola un {@code PING} sin aplicar la política de desbordamiento ni
+         * esperar. Si la cola está llena el cliente ya tiene mensajes
+         * pendientes y el {@code PING} sobra.
+         */
+        private void ping() {
+            outbound.offerIfRoom(new EncodedMessage(new ChatMessage(0, ChatMessage.MessageType.PING, ""), compressionThreshold));
+        }
+
+        /**
+         * Bucle del hilo escritor: confirma el nickname y vacía la cola de
+         * salida hacia el socket, agrupando en una sola escritura los mensajes
+         * encolados a la vez.
+         */
+        private void drainOutbound() {
+            BatchingWriter batcher = new BatchingWriter(socketOutput, batchBytes, batchDelayMicros);
+            try {
+                // Confirma el nickname con el ID asignado, antes que cualquier mensaje
+                if (ack) {
+                    MessageFrames.writeFrame(outputStream, Handshake.ack(id));
                 }
+                batcher.drain(new BatchingWriter.Source() {
+                    /** Indica si ya se ha extraído la marca de fin. */
+                    private boolean ended;
+
+                    @Override
+                    public EncodedMessage take() throws InterruptedException {
+                        if (ended) {
+                            return null;
+                        }
+                        EncodedMessage message = outbound.take();
+                        return message == END ? null : message;
+                    }
+
+                    @Override
+                    public EncodedMessage poll(long timeoutNanos) throws InterruptedException {
+                        EncodedMessage message = outbound.poll(timeoutNanos);
+                        if (message == END) {
+                            ended = true; // Se cierra tras escribir este lote
+                            return null;
+                        }
+                        return message;
+                    }
+
+                    @Override
+                    public void written(int messages, int bytes) {
+                        metrics.sent(messages, bytes);
+                    }
+                }, codecId);
+            } catch (InterruptedException e) {
+                // Conexión cerrada
+            } catch (IOException e) {
+                AsyncLog.error("Error al enviar mensaje al cliente " + id + ": " + e.getMessage());
+                remove(id);
             }
         }
 
 
+        /**
+         * Prepara el cierre ordenado del cliente: encola el aviso de apagado
+         * detrás de sus mensajes pendientes, seguido de la marca de fin para
+         * que el escritor termine tras enviarlo. Si la cola está llena espera
+         * a que el escritor le haga sitio; si no lo consigue antes del límite,
+         * el cliente se cierra sin aviso al agotarse la espera del apagado.
+         * 
+         * @param goodbye Aviso de apagado.
+         * @param deadline Instante límite de la espera, en nanosegundos.
+         */
+        private void finish(EncodedMessage goodbye, long deadline) {
+            try {
+                if (!outbound.offerUntil(goodbye, deadline)) {
+                    AsyncLog.warn("Cliente " + username + " (ID " + id + ") no recibirá el aviso de apagado: su cola está llena.");
+                    return;
+                }
+                outbound.offerUntil(END, deadline);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Espera a que el escritor termine de vaciar la cola de salida.
+         * 
+         * @param deadline Instante límite de la espera, en nanosegundos.
+         */
+        private void awaitDrained(long deadline) {
+            Thread current = writer;
+            long remaining = deadline - System.nanoTime();
+            if (current == null || remaining <= 0) {
+                return;
+            }
+            try {
+                current.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         /**
          * Cierra la conexión con el cliente, liberando recursos.
          */
         private void closeConnection() {
+        	Thread current = writer;
+        	if (current != null) current.interrupt();
+        	outbound.clear();
         	try {
         	    if (inputStream != null) inputStream.close();
         	    if (outputStream != null) outputStream.close();
         	    if (socket != null) socket.close();
         	} catch (IOException e) {
-        	    System.err.println("Error cerrando recursos del cliente " + id + ": " + e.getMessage());
+        	    AsyncLog.error("Error cerrando recursos del cliente " + id + ": " + e.getMessage());
         	}
         }
         
+        /**
+         * Une al cliente a una sala y lo notifica a sus miembros.
+         * 
+         * @param room Nombre de la sala.
+         */
+        @Override
+        public void joinRoom(String room) {
+            if (room == null || room.isEmpty()) {
+                sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, "Error: Formato de comando inválido. Usa 'join <sala>'."));
+            } else {
+                List<EncodedMessage> recent = history.recent(room);
+                if (rooms.join(room, this)) {
+                    joinedRooms.add(room);
+                    replay(recent);
+                    broadcastToRoom(room, new ChatMessage(id, ChatMessage.MessageType.ROOM, room, username + " se ha unido a la sala"));
+                }
+            }
+        }
+
+        /**
+         * Envía al cliente los mensajes de un historial, saltándose los de
+         * remitentes que tiene bloqueados. Las tramas se reutilizan tal cual.
+         * Nunca se envían más mensajes de los que caben en su cola de salida.
+         * 
+         * @param recent Mensajes recientes, del más antiguo al más reciente.
+         */
+        private void replay(List<EncodedMessage> recent) {
+            for (int i = Math.max(0, recent.size() - queueCapacity); i < recent.size(); i++) {
+                EncodedMessage message = recent.get(i);
+                if (!blockedUsers.contains(message.getMessage().getId())) {
+                    sendMessage(message);
+                }
+            }
+        }
+
+        /**
+         * Saca al cliente de una sala y lo notifica a los miembros restantes.
+         * 
+         * @param room Nombre de la sala.
+         */
+        @Override
+        public void leaveRoom(String room) {
+            if (room != null && rooms.leave(room, this)) {
+                joinedRooms.remove(room);
+                broadcastToRoom(room, new ChatMessage(id, ChatMessage.MessageType.ROOM, room, username + " ha salido de la sala"));
+            }
+        }
+
+        @Override
+        public boolean isInRoom(String room) {
+            return rooms.isMember(room, this);
+        }
+
         /**
          * Bloquea los mensajes de un cliente específico.
          * 
          * @param userId ID del cliente a bloquear.
          */
+        @Override
         public void banUser(int userId) {
             blockedUsers.add(userId);
-            System.out.println(username + " ha bloqueado al usuario con ID " + userId);
+            blocks.block(id, userId);
+            AsyncLog.info(username + " ha bloqueado al usuario con ID " + userId);
         }
 
         /**
@@ -318,9 +1100,24 @@ public class ChatServerImpl implements ChatServer {
          * 
          * @param userId ID del cliente a desbloquear.
          */
+        @Override
         public void unbanUser(int userId) {
             blockedUsers.remove(userId);
-            System.out.println(username + " ha desbloqueado al usuario con ID " + userId);
+            blocks.unblock(id, userId);
+            AsyncLog.info(username + " ha desbloqueado al usuario con ID " + userId);
+        }
+
+        /**
+         * Confirma los mensajes del buzón recibidos por el cliente y le envía
+         * el siguiente lote, si lo hay.
+         * 
+         * @param sequence Número del último mensaje recibido.
+         */
+        @Override
+        public void acknowledge(long sequence) {
+            if (mailboxes != null) {
+                mailboxes.acknowledge(this, sequence);
+            }
         }
 
     }
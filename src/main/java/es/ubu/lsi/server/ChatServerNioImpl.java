@@ -0,0 +1,1080 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageCodec;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Implementación del servidor de chat basada en E/S no bloqueante (NIO).
+ * En lugar de un hilo por cliente, las conexiones se reparten entre un
+ * grupo fijo de bucles de eventos, cada uno con su propio {@link Selector}.
+ * Ofrece las mismas operaciones que {@link ChatServerImpl} y habla el mismo
+ * protocolo de tramas, por lo que ambos motores son intercambiables.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class ChatServerNioImpl implements ChatServer, MessagePipeline.Router {
+    /** Tamaño inicial del buffer de lectura de cada conexión. */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** Máximo de tramas reunidas en una misma escritura. */
+    private static final int MAX_GATHER = 64;
+    /** Puerto de escucha del servidor. */
+    private final int port;
+    /** Bucles de eventos entre los que se reparten las conexiones. */
+    private final EventLoop[] loops;
+    /** Clientes conectados, por ID y por nickname. */
+    private final ConnectionRegistry<NioConnection> clients = new ConnectionRegistry<>(NioConnection[]::new);
+    /** Índice de los miembros de cada sala. */
+    private final RoomIndex<NioConnection> rooms;
+    /** Índice inverso de bloqueos (remitente → clientes que lo bloquean). */
+    private final BlockIndex blocks = new BlockIndex();
+    /** Registro persistente de mensajes (null si no está activado). */
+    private final MessageLog messageLog;
+    /** Historial reciente global y de cada sala. */
+    private final MessageHistory history;
+    /** Buzones de los clientes desconectados (null si no están activados). */
+    private final OfflineMailboxes mailboxes;
+    /** Métricas del servidor. */
+    private final ServerMetrics metrics;
+    /** Etapas por las que pasan los mensajes de los clientes. */
+    private final MessagePipeline<NioConnection> pipeline;
+    /** Reparto en paralelo de las difusiones grandes (null si se reparten en el hilo que las envía). */
+    private final ShardedFanOut<NioConnection> fanOut;
+    /** Codificadores que el servidor acepta negociar, por orden de preferencia. */
+    private final byte[] supportedCodecs;
+    /** Capacidad de la cola de salida de cada cliente. */
+    private final int queueCapacity;
+    /** Umbral de compresión de los mensajes para los clientes que la han negociado. */
+    private final int compressionThreshold;
+    /** Política cuando la cola de salida de un cliente se llena. */
+    private final OverflowPolicy overflowPolicy;
+    /** Tamaño máximo de un lote de escritura, en bytes. */
+    private final int batchBytes;
+    /** Límite de mensajes por segundo de los clientes. */
+    private final RateLimiter rateLimiter;
+    /** Rueda que expulsa a los clientes inactivos (null si no se vigilan). */
+    private final TimerWheel<NioConnection> idleTimer;
+    /** Temporizador que reanuda la lectura de los clientes que superan su límite. */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-nio-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Indica si el servidor está en ejecución. */
+    private volatile boolean alive = true;
+    /** Indica si los bucles de eventos siguen en marcha (hasta terminar el apagado). */
+    private volatile boolean running = true;
+    /** Espera máxima del apagado para vaciar las colas de salida, en milisegundos. */
+    private final int shutdownTimeoutMillis;
+    /** Espera máxima para que una conexión nueva envíe su nickname, en milisegundos. */
+    private final int handshakeTimeoutMillis;
+    /** Longitud de la cola de conexiones pendientes de aceptar. */
+    private final int acceptBacklog;
+    /** Número de hilos que aceptan conexiones. */
+    private final int acceptors;
+    /** Canal de escucha (disponible tras el arranque). */
+    private volatile ServerSocketChannel serverChannel;
+
+    /**
+     * Constructor que define el puerto y el número de bucles de eventos.
+     *
+     * @param port Puerto en el que el servidor escuchará conexiones.
+     * @param eventLoops Número de hilos de bucle de eventos.
+     */
+    public ChatServerNioImpl(int port, int eventLoops) {
+        this(new ServerConfig().set("port", String.valueOf(port)).set("eventLoops", String.valueOf(eventLoops)));
+    }
+
+    /**
+     * Constructor que configura el servidor a partir de las opciones de arranque.
+     *
+     * @param config Configuración de arranque.
+     */
+    public ChatServerNioImpl(ServerConfig config) {
+        AsyncLog.setLevel(config.getLogLevel());
+        if (config.getClusterPort() > 0) {
+            // El registro de apodos del cluster espera respuestas de la red, algo que no cabe en el bucle de eventos
+            AsyncLog.warn("El motor NIO no admite el modo cluster; se ignora la opción clusterPort.");
+        }
+        int port = config.getPort();
+        int eventLoops = config.getEventLoops();
+        this.supportedCodecs = config.getCodecs();
+        this.queueCapacity = config.getQueueCapacity();
+        this.compressionThreshold = config.getCompressionThreshold();
+        this.batchBytes = config.getBatchBytes();
+        this.shutdownTimeoutMillis = config.getShutdownTimeoutMillis();
+        this.handshakeTimeoutMillis = config.getHandshakeTimeoutMillis();
+        this.acceptBacklog = config.getAcceptBacklog();
+        this.acceptors = config.getAcceptors();
+        this.messageLog = MessageLog.open(config);
+        this.history = new MessageHistory(config.getHistorySize(), config.getHistoryBytes());
+        this.history.restore(messageLog, compressionThreshold);
+        this.rooms = new RoomIndex<>(history::dropRoom);
+        this.mailboxes = OfflineMailboxes.open(config);
+        this.metrics = new ServerMetrics(this, config.getMetricsPort());
+        this.pipeline = MessagePipeline.standard(this, metrics);
+        this.fanOut = ShardedFanOut.open(config, metrics);
+        this.rateLimiter = new RateLimiter(config.getRateLimit(), config.getRateBurst(), config.getRateLimitPolicy());
+        this.idleTimer = TimerWheel.open(config.getIdleTimeoutMillis(), new IdleConnections());
+        // Un bucle de eventos nunca debe quedarse esperando: BLOCK equivale a DISCONNECT
+        this.overflowPolicy = config.getOverflowPolicy() == OverflowPolicy.BLOCK
+                ? OverflowPolicy.DISCONNECT : config.getOverflowPolicy();
+        if (port <= 0 || port > 65535) {
+            AsyncLog.info("Puerto inválido. Usando el puerto predeterminado: 1500.");
+            port = 1500;
+        }
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        AsyncLog.info("Servidor NIO configurado para escuchar en el puerto " + port
+                + " con " + loops.length + " bucles de eventos");
+    }
+
+    /**
+     * Método que inicia el servidor.
+     * Arranca los bucles de eventos y acepta conexiones hasta el apagado,
+     * desde uno o varios hilos, asignando cada una a un bucle de forma
+     * rotatoria. La negociación se hace en el bucle sin bloquear, por lo que
+     * aceptar nunca espera a ningún cliente.
+     */
+    @Override
+    public void startup() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            channel.bind(new InetSocketAddress(port), acceptBacklog);
+            serverChannel = channel;
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            AsyncLog.info("Servidor NIO iniciado en puerto " + port);
+            metrics.start();
+
+            // Los demás aceptadores comparten el canal de escucha; este hilo es uno más
+            for (int i = 1; i < acceptors; i++) {
+                Thread acceptor = new Thread(() -> accept(channel), "chat-acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            accept(channel);
+        } catch (IOException e) {
+            AsyncLog.error("Error en el servidor: " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Bucle de aceptación: asigna un ID y un bucle de eventos a cada conexión
+     * y programa el cierre de las que no envían su nickname a tiempo.
+     *
+     * @param channel Canal de escucha.
+     */
+    private void accept(ServerSocketChannel channel) {
+        try {
+            while (alive) {
+                SocketChannel socket = channel.accept();
+                metrics.accepted();
+                socket.configureBlocking(false);
+                socket.socket().setTcpNoDelay(true);
+                int id = clients.nextId();
+                AsyncLog.info("Cliente conectado con ID " + id);
+
+                EventLoop loop = loops[Math.floorMod(id, loops.length)];
+                NioConnection connection = new NioConnection(socket, id, loop);
+                loop.register(connection);
+                timer.schedule(() -> loop.execute(connection::checkHandshake), handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (ClosedChannelException | RejectedExecutionException e) {
+            // Canal cerrado por shutdown()
+        } catch (IOException e) {
+            AsyncLog.error("Error en el servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Método para retransmitir mensajes a todos los clientes conectados.
+     * El mensaje se codifica una sola vez por codificador y cada conexión
+     * recibe una vista de sólo lectura de la misma trama.
+     *
+     * @param message Mensaje a retransmitir.
+     */
+    @Override
+    public void broadcast(ChatMessage message) {
+        fanOut(null, message);
+    }
+
+    /**
+     * Retransmite un mensaje sólo a los miembros de una sala.
+     *
+     * @param room Nombre de la sala.
+     * @param message Mensaje a retransmitir.
+     */
+    @Override
+    public void broadcastToRoom(String room, ChatMessage message) {
+        fanOut(room, message);
+    }
+
+    /**
+     * Entrega un mensaje a todos los clientes o a los miembros de una sala.
+     * Los bloqueadores del remitente se obtienen una sola vez y se descartan
+     * antes de encolar nada; si nadie bloquea al remitente no se comprueba
+     * ningún destinatario. Con el reparto en paralelo activado, los mensajes
+     * con muchos destinatarios los encolan los hilos de reparto. Los
+     * destinatarios de una difusión global se toman al guardarla en el
+     * historial, para que un cliente que se da de alta a la vez la reciba por
+     * una sola de las dos vías.
+     *
+     * @param room Sala del mensaje, o null si se difunde a todos.
+     * @param message Mensaje a entregar.
+     */
+    private void fanOut(String room, ChatMessage message) {
+        long start = System.nanoTime();
+        EncodedMessage encoded = new EncodedMessage(message, compressionThreshold);
+        persist(encoded);
+        Collection<NioConnection> recipients;
+        if (room == null) {
+            recipients = history.record(encoded, clients::snapshot);
+        } else {
+            // Si la sala ya no existe no se le crea un historial que nadie borraría
+            rooms.ifPresent(room, () -> history.record(room, encoded));
+            recipients = rooms.members(room);
+        }
+        if (room == null && mailboxes != null) {
+            mailboxes.offer(encoded);
+        }
+        int[] blockers = blocks.blockersOf(message.getId());
+        if (fanOut != null && fanOut.broadcast(recipients, encoded, blockers, start)) {
+            return;
+        }
+        if (blockers == null) {
+            recipients.forEach(client -> client.sendMessage(encoded));
+        } else {
+            for (NioConnection client : recipients) {
+                if (!BlockIndex.isBlocked(blockers, client.id)) {
+                    client.sendMessage(encoded);
+                }
+            }
+        }
+        metrics.fannedOut(System.nanoTime() - start);
+    }
+
+    /**
+     * Entrega un mensaje privado sólo a su destinatario, localizándolo por su
+     * nickname sin recorrer al resto de clientes. Si ha perdido la conexión,
+     * se guarda en su buzón.
+     *
+     * @param recipient Nickname del destinatario.
+     * @param message Mensaje a entregar.
+     * @return true si el destinatario está conectado o tiene buzón.
+     */
+    @Override
+    public boolean sendPrivate(String recipient, ChatMessage message) {
+        NioConnection client = clients.byName(recipient);
+        if (client == null && mailboxes == null) {
+            return false;
+        }
+        // Un destinatario que bloquea al remitente no lo recibe, sin avisar al remitente
+        EncodedMessage encoded = new EncodedMessage(message, compressionThreshold);
+        if (client == null) {
+            if (!mailboxes.offer(recipient, encoded)) {
+                return false;
+            }
+            persist(encoded);
+            return true;
+        }
+        persist(encoded);
+        if (!BlockIndex.isBlocked(blocks.blockersOf(message.getId()), client.id)
+                && (fanOut == null || !fanOut.sendPrivate(client, encoded))) {
+            client.sendMessage(encoded);
+        }
+        return true;
+    }
+
+    /**
+     * Escribe un mensaje en el registro persistente, si está activado.
+     *
+     * @param encoded Mensaje a guardar.
+     */
+    private void persist(EncodedMessage encoded) {
+        if (messageLog != null) {
+            long start = System.nanoTime();
+            messageLog.append(encoded);
+            metrics.persisted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Método que elimina un cliente del servidor. Si no ha cerrado la sesión,
+     * se le guardan los mensajes hasta que vuelva a conectarse.
+     *
+     * @param id Identificador único del cliente a eliminar.
+     */
+    @Override
+    public void remove(int id) {
+        NioConnection client = clients.unregister(id);
+        if (client != null) {
+            if (mailboxes != null && alive) {
+                mailboxes.disconnected(client, client.loggedOut);
+            }
+            client.joinedRooms.forEach(room -> rooms.leave(room, client));
+            client.blockedUsers.forEach(sender -> blocks.unblock(id, sender));
+            blocks.removeSender(id);
+            client.closeConnection();
+        }
+    }
+
+    /**
+     * Obtiene el número de tramas pendientes en la cola de salida de cada cliente.
+     *
+     * @return Profundidad de cola por nickname.
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        clients.snapshot().forEach(client -> depths.put(client.username, client.outbound.depth()));
+        return depths;
+    }
+
+    /**
+     * Cambia en caliente el límite de mensajes por segundo de todos los clientes.
+     *
+     * @param rate Mensajes por segundo (0 para no limitar).
+     * @param burst Mensajes que puede enviar seguidos un cliente.
+     * @param policy Política cuando un cliente supera el límite.
+     * @return Descripción del límite vigente.
+     */
+    @Override
+    public String setRateLimit(double rate, int burst, RateLimitPolicy policy) {
+        rateLimiter.set(rate, burst, policy);
+        return rateLimiter.toString();
+    }
+
+    /**
+     * Método que apaga el servidor.
+     * Cierra el canal de escucha y pide a cada bucle de eventos que deje de
+     * leer de sus conexiones y les envíe el aviso de apagado (codificado una
+     * sola vez por codificador) detrás de sus tramas pendientes. Cada conexión
+     * se cierra en cuanto su cola queda vacía; las que no lo consiguen antes de
+     * la espera máxima se cierran todas a la vez, junto con los bucles.
+     */
+    @Override
+    public synchronized void shutdown() {
+        if (!alive) {
+            return;
+        }
+        alive = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            AsyncLog.error("Error cerrando el canal de escucha: " + e.getMessage());
+        }
+        if (fanOut != null) {
+            // Las difusiones ya aceptadas llegan antes que el aviso de apagado
+            fanOut.close(shutdownTimeoutMillis);
+        }
+        EncodedMessage goodbye = new EncodedMessage(
+                new ChatMessage(0, ChatMessage.MessageType.SHUTDOWN, "El servidor se está apagando."), compressionThreshold);
+        List<NioConnection> closing = clients.snapshot();
+        CountDownLatch drained = new CountDownLatch(closing.size());
+        closing.forEach(connection -> connection.loop.execute(() -> connection.finish(goodbye, drained)));
+        try {
+            drained.await(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        clients.clear();
+        closing.forEach(NioConnection::closeConnection);
+        if (mailboxes != null) {
+            mailboxes.close(shutdownTimeoutMillis);
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        metrics.close();
+        timer.shutdownNow();
+        if (idleTimer != null) {
+            idleTimer.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Hilo que atiende un subconjunto de las conexiones mediante un selector.
+     * Las operaciones pedidas desde otros hilos se encolan como tareas y se
+     * ejecutan en el propio bucle, que es el único que toca el selector.
+     */
+    private class EventLoop extends Thread {
+        /** Selector del bucle. */
+        private final Selector selector;
+        /** Tareas pendientes enviadas desde otros hilos. */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructor.
+         *
+         * @param index Índice del bucle (para el nombre del hilo).
+         * @throws IOException Si no se puede abrir el selector.
+         */
+        private EventLoop(int index) throws IOException {
+            super("chat-nio-loop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Encola una tarea para ejecutarla en el hilo del bucle.
+         *
+         * @param task Tarea a ejecutar.
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Registra una nueva conexión en el selector del bucle.
+         *
+         * @param connection Conexión aceptada.
+         */
+        private void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    connection.closeConnection();
+                }
+            });
+        }
+
+        /**
+         * Bucle principal: espera eventos, ejecuta tareas y atiende las
+         * conexiones listas para leer o escribir.
+         */
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // Las tareas encoladas desde el propio bucle no despiertan al selector
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                AsyncLog.error("Error en el bucle de eventos " + getName() + ": " + e.getMessage());
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    AsyncLog.error("Error cerrando el selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Acciones de la rueda de inactividad: comprueba con un {@code PING} si un
+     * cliente callado sigue conectado y cierra las conexiones que no responden,
+     * también las que nunca llegan a enviar su nickname. El cierre se hace en
+     * el bucle de eventos de la conexión, y el {@code PING} se encola sin
+     * esperar, para que ninguna acción detenga el hilo de la rueda.
+     */
+    private class IdleConnections implements TimerWheel.Listener<NioConnection> {
+
+        @Override
+        public void ping(NioConnection connection) {
+            if (connection.username != null) {
+                connection.ping();
+            }
+        }
+
+        @Override
+        public void expire(NioConnection connection) {
+            AsyncLog.warn("Cliente " + connection.username + " (ID " + connection.id + ") desconectado por inactividad.");
+            connection.loop.execute(connection::disconnect);
+        }
+    }
+
+    /**
+     * Estado de una conexión de cliente atendida por un bucle de eventos.
+     * Acumula los bytes recibidos hasta completar tramas y mantiene la cola
+     * de tramas pendientes de escribir.
+     */
+    private class NioConnection implements ChatSession {
+        /** Canal del cliente. */
+        private final SocketChannel channel;
+        /** ID único del cliente. */
+        private final int id;
+        /** Bucle de eventos propietario de la conexión. */
+        private final EventLoop loop;
+        /** Clave de registro en el selector (asignada en el bucle). */
+        private SelectionKey key;
+        /** Nombre de usuario (nickname); nulo hasta recibir el primer mensaje. */
+        private volatile String username;
+        /** Identificador del codificador negociado con el cliente. */
+        private volatile byte codecId = Handshake.CODEC_SERIALIZATION;
+        /** Codificador negociado con el cliente. */
+        private volatile MessageCodec codec = SerializationCodec.INSTANCE;
+        /** Indica si ya se ha procesado la primera trama (posible saludo). */
+        private boolean negotiated;
+        /** Indica si el cliente espera la confirmación de su nickname con su ID. */
+        private boolean ack;
+        /** Indica si el cliente confirma los lotes de su buzón. */
+        private boolean mailboxAware;
+        /** Indica si el cliente ha cerrado la sesión, en cuyo caso no se le guardan mensajes. */
+        private volatile boolean loggedOut;
+        /** Buffer de lectura en modo escritura. */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** Tramas pendientes de escribir. */
+        private final OutboundQueue<ByteBuffer> outbound = new OutboundQueue<>(queueCapacity, overflowPolicy, 0);
+        /**
+         * Lote de tramas que se está escribiendo, en las posiciones
+         * [batchStart, batchEnd). Está fuera de la cola para que ninguna
+         * trama se descarte a medio escribir.
+         */
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        /** Primera trama del lote aún no escrita por completo. */
+        private int batchStart;
+        /** Fin del lote. */
+        private int batchEnd;
+        /** Indica si hay un vaciado de la cola programado o en curso. */
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        /** Lista de IDs de clientes bloqueados por este cliente. */
+        private final Set<Integer> blockedUsers = ConcurrentHashMap.newKeySet();
+        /** Salas a las que pertenece el cliente. */
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+        /** Cubeta de fichas del límite de mensajes del cliente. */
+        private final RateLimiter.Bucket bucket = rateLimiter.newBucket();
+        /** Indica si ya se ha avisado al cliente de que sus mensajes se descartan. */
+        private boolean throttled;
+        /** Indica si se ha dejado de leer del cliente por superar su límite. */
+        private boolean paused;
+        /** Entrada de la conexión en la rueda de inactividad (null si no se vigila). */
+        private final TimerWheel.Timeout<NioConnection> idle;
+        /** Cuenta atrás del apagado, si la conexión se está cerrando. */
+        private volatile CountDownLatch closing;
+
+        /**
+         * Constructor.
+         *
+         * @param channel Canal del cliente en modo no bloqueante.
+         * @param id ID único del cliente.
+         * @param loop Bucle de eventos propietario.
+         */
+        private NioConnection(SocketChannel channel, int id, EventLoop loop) {
+            this.channel = channel;
+            this.id = id;
+            this.loop = loop;
+            this.idle = idleTimer == null ? null : idleTimer.add(this);
+        }
+
+        /**
+         * Lee los bytes disponibles y procesa todas las tramas completas.
+         */
+        private void onReadable() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    throw new IOException("Conexión cerrada por el cliente");
+                }
+                if (idle != null) {
+                    idle.touch();
+                }
+                processFrames();
+            } catch (IOException e) {
+                if (username != null && alive) {
+                    AsyncLog.error("Error en la comunicación con el cliente " + username + " (ID " + id + "): " + e.getMessage());
+                }
+                disconnect();
+            }
+        }
+
+        /**
+         * Procesa las tramas completas del buffer de lectura. Si el cliente
+         * supera su límite con la política {@code DELAY}, la trama se deja en
+         * el buffer y se deja de leer del socket hasta que pueda enviar otra.
+         *
+         * @throws IOException Si una trama no es válida.
+         */
+        private void processFrames() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.remaining() >= MessageFrames.HEADER_LENGTH) {
+                int length = MessageFrames.checkLength(readBuffer.getInt(readBuffer.position()));
+                int frameLength = MessageFrames.HEADER_LENGTH + length;
+                if (readBuffer.remaining() < frameLength) {
+                    if (readBuffer.capacity() < frameLength) {
+                        // La trama no cabe: se amplía el buffer conservando lo leído
+                        ByteBuffer larger = ByteBuffer.allocate(frameLength);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                int start = readBuffer.position() + MessageFrames.HEADER_LENGTH;
+                readBuffer.position(start + length);
+                if (!negotiated) {
+                    // Sin saludo, la primera trama ya es el nickname serializado
+                    negotiated = true;
+                    byte[] first = Arrays.copyOfRange(readBuffer.array(), start, start + length);
+                    if (Handshake.isHello(first)) {
+                        byte chosen = Handshake.choose(first, supportedCodecs);
+                        codec = Handshake.codec(chosen);
+                        codecId = chosen;
+                        ack = Handshake.supportsAck(first);
+                        mailboxAware = Handshake.supportsMailbox(first);
+                        enqueue(MessageFrames.frame(Handshake.accept(chosen)));
+                        continue;
+                    }
+                }
+                long decodeStart = System.nanoTime();
+                ChatMessage message = codec.decode(readBuffer.array(), start, length);
+                message.setId(id); // El remitente es siempre el cliente de esta conexión
+                // Las confirmaciones del buzón no cuentan para el límite, pues perder una detendría su entrega
+                if (username != null && message.getType() != ChatMessage.MessageType.LOGOUT
+                        && message.getType() != ChatMessage.MessageType.ACK && !admit()) {
+                    if (paused) {
+                        // Se vuelve a procesar la trama al reanudar la lectura
+                        readBuffer.position(start - MessageFrames.HEADER_LENGTH);
+                        break;
+                    }
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    continue;
+                }
+                metrics.received(frameLength, System.nanoTime() - decodeStart);
+                if (!handle(message)) {
+                    return;
+                }
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Aplica el límite de mensajes del cliente a la siguiente trama.
+         * Con {@code DELAY} deja de leer del socket y programa la reanudación;
+         * con {@code DROP} avisa al cliente la primera vez; con
+         * {@code DISCONNECT} cierra la conexión.
+         *
+         * @return true si la trama se admite.
+         */
+        private boolean admit() {
+            long now = System.nanoTime();
+            long wait = bucket.tryAcquire(now);
+            metrics.rateLimited(System.nanoTime() - now);
+            if (wait == 0) {
+                throttled = false;
+                return true;
+            }
+            RateLimitPolicy policy = rateLimiter.getPolicy();
+            if (policy == RateLimitPolicy.DELAY) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                timer.schedule(() -> loop.execute(this::resume), wait, TimeUnit.NANOSECONDS);
+            } else if (policy == RateLimitPolicy.DISCONNECT) {
+                AsyncLog.warn("Cliente " + username + " (ID " + id + ") desconectado por superar el límite de mensajes.");
+                disconnect();
+            } else if (!throttled) {
+                throttled = true;
+                sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, ChatServerImpl.THROTTLED_NOTICE));
+            }
+            return false;
+        }
+
+        /**
+         * Vuelve a leer del cliente tras la espera de su límite, empezando por
+         * las tramas que ya estaban en el buffer.
+         */
+        private void resume() {
+            if (!paused || closing != null || key == null || !key.isValid()) {
+                return;
+            }
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            try {
+                processFrames();
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        /**
+         * Procesa un mensaje recibido del cliente.
+         *
+         * @param message Mensaje recibido.
+         * @return false si la conexión se ha cerrado y no deben procesarse más tramas.
+         */
+        private boolean handle(ChatMessage message) {
+            if (username == null) {
+                // El primer mensaje contiene el nickname
+                String name = message.getMessage();
+                if (!clients.reserve(id, name)) {
+                    AsyncLog.warn("Conexión rechazada (ID " + id + "): El apodo ya está en uso: " + name);
+                    closeConnection();
+                    return false;
+                }
+                username = name;
+                // Con el nickname ya reservado, la confirmación se encola antes de hacer visible
+                // la conexión, así que ninguna difusión se le adelanta
+                if (ack) {
+                    enqueue(MessageFrames.frame(Handshake.ack(id)));
+                }
+                // El historial se encola junto con la publicación: lo que se difunda después
+                // llega detrás, sin perderse ni repetirse. Un cliente que vuelve recibe su buzón
+                boolean replay = mailboxes == null || !mailboxAware || !mailboxes.holds(name);
+                history.register(recent -> {
+                    if (replay) {
+                        replay(recent);
+                    }
+                    clients.publish(id, name, this);
+                    return true;
+                });
+                if (mailboxes != null) {
+                    mailboxes.reconnect(this, mailboxAware);
+                }
+                return true;
+            }
+
+            if (message.getType() == ChatMessage.MessageType.LOGOUT) {
+                AsyncLog.info("Cliente " + username + " (ID " + id + ") se ha desconectado.");
+                loggedOut = true;
+                disconnect();
+                return false;
+            }
+            // Comandos, filtros y reparto
+            pipeline.process(this, message);
+            return true;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void banUser(int userId) {
+            blockedUsers.add(userId);
+            blocks.block(id, userId);
+        }
+
+        @Override
+        public void unbanUser(int userId) {
+            blockedUsers.remove(userId);
+            blocks.unblock(id, userId);
+        }
+
+        @Override
+        public void acknowledge(long sequence) {
+            if (mailboxes != null) {
+                mailboxes.acknowledge(this, sequence);
+            }
+        }
+
+        @Override
+        public void joinRoom(String room) {
+            if (room == null || room.isEmpty()) {
+                sendMessage(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, "Error: Formato de comando inválido. Usa 'join <sala>'."));
+            } else {
+                List<EncodedMessage> recent = history.recent(room);
+                if (rooms.join(room, this)) {
+                    joinedRooms.add(room);
+                    replay(recent);
+                    broadcastToRoom(room, new ChatMessage(id, ChatMessage.MessageType.ROOM, room, username + " se ha unido a la sala"));
+                }
+            }
+        }
+
+        @Override
+        public void leaveRoom(String room) {
+            if (room != null && rooms.leave(room, this)) {
+                joinedRooms.remove(room);
+                broadcastToRoom(room, new ChatMessage(id, ChatMessage.MessageType.ROOM, room, username + " ha salido de la sala"));
+            }
+        }
+
+        @Override
+        public boolean isInRoom(String room) {
+            return rooms.isMember(room, this);
+        }
+
+        /**
+         * Envía al cliente los mensajes de un historial, saltándose los de
+         * remitentes que tiene bloqueados. Las tramas se reutilizan tal cual.
+         * Nunca se envían más mensajes de los que caben en su cola de salida.
+         *
+         * @param recent Mensajes recientes, del más antiguo al más reciente.
+         */
+        private void replay(List<EncodedMessage> recent) {
+            for (int i = Math.max(0, recent.size() - queueCapacity); i < recent.size(); i++) {
+                EncodedMessage message = recent.get(i);
+                if (!blockedUsers.contains(message.getMessage().getId())) {
+                    sendMessage(message);
+                }
+            }
+        }
+
+        /**
+         * Envía un mensaje al cliente.
+         * La escritura real se realiza en el bucle de eventos propietario.
+         *
+         * @param message Mensaje a enviar.
+         */
+        @Override
+        public void sendMessage(ChatMessage message) {
+            sendMessage(new EncodedMessage(message, compressionThreshold));
+        }
+
+        /**
+         * Envía un mensaje ya preparado al cliente. Los bloqueos ya se han
+         * comprobado al elegir los destinatarios.
+         *
+         * @param message Mensaje a enviar.
+         */
+        @Override
+        public void sendMessage(EncodedMessage message) {
+            try {
+                if (!enqueue(message.buffer(codecId))) {
+                    AsyncLog.warn("Cliente " + username + " (ID " + id + ") desconectado por no consumir sus mensajes.");
+                    disconnect();
+                }
+            } catch (IOException e) {
+                AsyncLog.error("Error al codificar mensaje para el cliente " + id + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Encola un {@code PING} sin aplicar la política de desbordamiento ni
+         * esperar. Si la cola está llena el cliente ya tiene mensajes
+         * pendientes y el {@code PING} sobra.
+         */
+        private void ping() {
+            try {
+                ByteBuffer frame = new EncodedMessage(new ChatMessage(0, ChatMessage.MessageType.PING, ""), compressionThreshold).buffer(codecId);
+                if (outbound.offerIfRoom(frame) && flushScheduled.compareAndSet(false, true)) {
+                    loop.execute(this::flush);
+                }
+            } catch (IOException e) {
+                AsyncLog.error("Error al codificar mensaje para el cliente " + id + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Encola una trama ya construida y programa su escritura en el bucle.
+         *
+         * @param frame Trama completa.
+         * @return false si la cola está llena y el cliente debe desconectarse.
+         */
+        private boolean enqueue(ByteBuffer frame) {
+            if (!outbound.offer(frame)) {
+                return false;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+            return true;
+        }
+
+        /**
+         * Interés de lectura de la conexión: ninguno mientras está en pausa
+         * por superar su límite.
+         *
+         * @return {@code OP_READ} o 0.
+         */
+        private int readInterest() {
+            return paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Escribe las tramas pendientes mientras el socket las acepte.
+         * Las tramas encoladas se reúnen en lotes que se escriben con una sola
+         * escritura vectorial, sin copiarlas a un buffer intermedio.
+         * Si el socket se llena, se espera al evento de escritura.
+         * Sólo se ejecuta en el hilo del bucle de eventos.
+         */
+        private void flush() {
+            if (key == null || !key.isValid()) {
+                outbound.clear();
+                Arrays.fill(batch, null);
+                batchStart = batchEnd = 0;
+                flushScheduled.set(false);
+                return;
+            }
+            try {
+                while (true) {
+                    while (fillBatch()) {
+                        long bytes = channel.write(batch, batchStart, batchEnd - batchStart);
+                        int written = batchStart;
+                        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                            batch[batchStart++] = null;
+                        }
+                        metrics.sent(batchStart - written, bytes);
+                        if (batchStart < batchEnd) {
+                            key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    if (closing != null) {
+                        // Apagado: ya se ha enviado todo, incluido el aviso
+                        closeConnection();
+                        return;
+                    }
+                    key.interestOps(readInterest());
+                    flushScheduled.set(false);
+                    // Otra hebra pudo encolar justo antes de liberar la marca
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        /**
+         * Prepara el siguiente lote si el actual ya se ha escrito, tomando tramas
+         * de la cola hasta el máximo de tramas o de bytes por lote.
+         *
+         * @return true si hay tramas pendientes de escribir en el lote.
+         */
+        private boolean fillBatch() {
+            if (batchStart < batchEnd) {
+                return true;
+            }
+            batchStart = batchEnd = 0;
+            int bytes = 0;
+            ByteBuffer frame;
+            while (batchEnd < MAX_GATHER && bytes < batchBytes && (frame = outbound.poll()) != null) {
+                batch[batchEnd++] = frame;
+                bytes += frame.remaining();
+            }
+            return batchEnd > 0;
+        }
+
+        /**
+         * Elimina al cliente del servidor y cierra su conexión.
+         */
+        private void disconnect() {
+            if (clients.get(id) == this) {
+                remove(id);
+            } else {
+                closeConnection();
+            }
+        }
+
+        /**
+         * Cierra la conexión si aún no ha enviado su nickname. Sólo se ejecuta
+         * en el hilo del bucle de eventos.
+         */
+        private void checkHandshake() {
+            if (username == null && channel.isOpen()) {
+                AsyncLog.warn("Conexión rechazada (ID " + id + "): No ha enviado su nickname a tiempo");
+                closeConnection();
+            }
+        }
+
+        /**
+         * Prepara el cierre ordenado de la conexión al apagar el servidor: deja
+         * de leer, encola el aviso de apagado detrás de las tramas pendientes
+         * y la cierra cuando se han escrito todas. Si la cola está llena el
+         * aviso no se envía. Sólo se ejecuta en el hilo del bucle de eventos.
+         *
+         * @param goodbye Aviso de apagado.
+         * @param drained Cuenta atrás de las conexiones pendientes de cerrar.
+         */
+        private void finish(EncodedMessage goodbye, CountDownLatch drained) {
+            closing = drained;
+            if (key == null || !key.isValid() || username == null) {
+                closeConnection();
+                return;
+            }
+            paused = true;
+            try {
+                outbound.offerIfRoom(goodbye.buffer(codecId));
+            } catch (IOException e) {
+                AsyncLog.error("Error al codificar el aviso de apagado para el cliente " + id + ": " + e.getMessage());
+            }
+            flush();
+        }
+
+        /**
+         * Cierra la conexión con el cliente, liberando recursos.
+         */
+        private void closeConnection() {
+            CountDownLatch drained = closing;
+            if (drained != null) {
+                closing = null;
+                drained.countDown();
+            }
+            if (idle != null) {
+                idle.cancel();
+            }
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                AsyncLog.error("Error cerrando recursos del cliente " + id + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+
+/**
+ * Conexión de un cliente vista desde la cadena de procesamiento de mensajes.
+ * Cada motor de E/S la implementa sobre su propia representación de la
+ * conexión, de modo que las etapas y los comandos son comunes a todos.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+interface ChatSession {
+
+    /**
+     * Obtiene el ID del cliente.
+     *
+     * @return ID asignado por el servidor.
+     */
+    int getId();
+
+    /**
+     * Obtiene el nickname del cliente.
+     *
+     * @return Nickname.
+     */
+    String getUsername();
+
+    /**
+     * Envía un mensaje sólo a este cliente.
+     *
+     * @param message Mensaje a enviar.
+     */
+    void sendMessage(ChatMessage message);
+
+    /**
+     * Encola para este cliente un mensaje ya codificado.
+     *
+     * @param message Mensaje a enviar.
+     */
+    void sendMessage(EncodedMessage message);
+
+    /**
+     * Bloquea los mensajes de otro cliente.
+     *
+     * @param userId ID del cliente a bloquear.
+     */
+    void banUser(int userId);
+
+    /**
+     * Desbloquea los mensajes de otro cliente.
+     *
+     * @param userId ID del cliente a desbloquear.
+     */
+    void unbanUser(int userId);
+
+    /**
+     * Une al cliente a una sala y lo notifica a sus miembros.
+     *
+     * @param room Nombre de la sala.
+     */
+    void joinRoom(String room);
+
+    /**
+     * Saca al cliente de una sala y lo notifica a los miembros restantes.
+     *
+     * @param room Nombre de la sala.
+     */
+    void leaveRoom(String room);
+
+    /**
+     * Indica si el cliente pertenece a una sala.
+     *
+     * @param room Nombre de la sala.
+     * @return true si es miembro.
+     */
+    boolean isInRoom(String room);
+
+    /**
+     * Confirma los mensajes del buzón recibidos por el cliente y le envía
+     * el siguiente lote, si lo hay.
+     *
+     * @param sequence Número del último mensaje recibido.
+     */
+    void acknowledge(long sequence);
+}
@@ -0,0 +1,848 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageFrames;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Nodo de un cluster de servidores de chat.
+ * Cada nodo escucha a los demás en su puerto de cluster y abre un enlace TCP
+ * hacia cada nodo de su lista de vecinos, que debe incluir a todos los demás
+ * (malla completa). Cada enlace sólo se usa en un sentido: un nodo envía por
+ * los enlaces que abre y recibe por los que acepta.
+ * <p>
+ * Los registros que se envían a un nodo se encolan y un único hilo por enlace
+ * los agrupa en lotes que comprime con Deflate antes de escribirlos:
+ * <pre>
+ * [longitud original: int][longitud guardada: int][registros]
+ * </pre>
+ * Si la compresión no reduce el lote, se guarda sin comprimir (ambas
+ * longitudes son iguales). Los mensajes viajan en formato binario, reutilizando
+ * la trama que ya se codificó para los clientes locales.
+ * <p>
+ * Para que un apodo sea único en todo el cluster, el nodo que lo registra pide
+ * permiso a los demás ({@code CLAIM}); cada nodo lo concede si no tiene a ese
+ * usuario conectado ni se lo ha concedido a otro nodo. Un nodo que no responde
+ * a tiempo se da por conforme, para que la caída de un nodo no impida
+ * conectarse en los demás. Al abrirse un enlace, el nodo envía la lista de sus
+ * usuarios conectados, y al cerrarse el receptor olvida los usuarios del otro
+ * nodo.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class ClusterNode {
+
+    /**
+     * Usuarios y entrega local del servidor al que pertenece el nodo.
+     */
+    interface Members {
+
+        /**
+         * Indica si un apodo está en uso en este servidor.
+         *
+         * @param nickname Apodo.
+         * @return true si lo usa un cliente local.
+         */
+        boolean isLocal(String nickname);
+
+        /**
+         * Obtiene los apodos de los clientes locales.
+         *
+         * @return Apodos en uso en este servidor.
+         */
+        Collection<String> localNames();
+
+        /**
+         * Entrega a los clientes locales un mensaje difundido en otro nodo.
+         *
+         * @param room Sala del mensaje, o null si se difunde a todos.
+         * @param message Mensaje.
+         */
+        void deliver(String room, ChatMessage message);
+
+        /**
+         * Entrega a un cliente local un mensaje privado enviado en otro nodo.
+         *
+         * @param nickname Apodo del destinatario.
+         * @param message Mensaje.
+         */
+        void deliverPrivate(String nickname, ChatMessage message);
+    }
+
+    /** Versión del protocolo entre nodos. */
+    private static final byte PROTOCOL_VERSION = 1;
+    /** Solicitud de un apodo. */
+    private static final byte CLAIM = 1;
+    /** Apodo concedido. */
+    private static final byte GRANT = 2;
+    /** Apodo denegado. */
+    private static final byte DENY = 3;
+    /** Apodo liberado. */
+    private static final byte RELEASE = 4;
+    /** Lista completa de apodos de un nodo. */
+    private static final byte PRESENCE = 5;
+    /** Mensaje difundido a todos o a una sala. */
+    private static final byte PUBLISH = 6;
+    /** Mensaje privado. */
+    private static final byte PRIVATE = 7;
+
+    /** Registros que pueden quedar pendientes en un enlace antes de reiniciarlo. */
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    /** Tamaño máximo admitido de un lote recibido. */
+    private static final int MAX_BATCH_BYTES = 4 * MessageFrames.MAX_FRAME_LENGTH;
+    /** Lotes menores que este tamaño no se comprimen. */
+    private static final int MIN_COMPRESS_BYTES = 256;
+    /** Espera máxima a las respuestas de una solicitud de apodo. */
+    private static final long CLAIM_TIMEOUT_MILLIS = 1000;
+    /** Espera entre intentos de conexión con un nodo. */
+    private static final long RETRY_MILLIS = 1000;
+    /** Espera máxima al conectar con un nodo. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    /** Identificador de este nodo. */
+    private final String nodeId;
+    /** Puerto en el que se escucha a los demás nodos. */
+    private final int port;
+    /** Direcciones de los demás nodos. */
+    private final List<InetSocketAddress> peers;
+    /** Servidor al que pertenece el nodo. */
+    private final Members members;
+    /** Tamaño a partir del cual se cierra un lote. */
+    private final int batchBytes;
+    /** Ventana para agrupar registros en un lote, en nanosegundos. */
+    private final long batchDelayNanos;
+
+    /** Enlaces de salida, por identificador del nodo destino. */
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    /** Conexión de entrada vigente de cada nodo. */
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    /** Apodos conectados en otros nodos (apodo → nodo). */
+    private final Map<String, String> remoteNames = new ConcurrentHashMap<>();
+    /** Solicitudes de apodo pendientes de respuesta. */
+    private final Map<Long, Claim> claims = new ConcurrentHashMap<>();
+    /** Generador de identificadores de solicitud. */
+    private final AtomicLong nextClaim = new AtomicLong();
+    /** Ordena el envío de la lista de apodos respecto a solicitudes y liberaciones. */
+    private final Object presenceLock = new Object();
+    /** Sockets abiertos, para cerrarlos al apagar. */
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    /** Socket de escucha de los demás nodos. */
+    private ServerSocket listener;
+    /** Indica si el nodo está activo. */
+    private volatile boolean open = true;
+
+    /**
+     * Crea el nodo configurado en las opciones de arranque.
+     *
+     * @param config Configuración de arranque.
+     * @param members Servidor al que pertenece el nodo.
+     * @return Nodo sin arrancar, o null si el servidor funciona solo.
+     */
+    static ClusterNode open(ServerConfig config, Members members) {
+        if (config.getClusterPort() <= 0) {
+            return null;
+        }
+        return new ClusterNode(config.getNodeId(), config.getClusterPort(), config.getClusterPeers(), members,
+                config.getBatchBytes(), config.getBatchDelayMicros());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nodeId Identificador de este nodo.
+     * @param port Puerto en el que se escucha a los demás nodos.
+     * @param peers Direcciones de los demás nodos.
+     * @param members Servidor al que pertenece el nodo.
+     * @param batchBytes Tamaño a partir del cual se cierra un lote.
+     * @param batchDelayMicros Ventana para agrupar registros en un lote, en microsegundos.
+     */
+    ClusterNode(String nodeId, int port, List<InetSocketAddress> peers, Members members,
+            int batchBytes, long batchDelayMicros) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peers = peers;
+        this.members = members;
+        this.batchBytes = Math.max(1, Math.min(batchBytes, MessageFrames.MAX_FRAME_LENGTH));
+        this.batchDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, batchDelayMicros));
+    }
+
+    /**
+     * Empieza a escuchar a los demás nodos y a conectar con ellos.
+     */
+    synchronized void start() {
+        try {
+            listener = new ServerSocket();
+            listener.setReuseAddress(true);
+            listener.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            AsyncLog.error("No se puede abrir el puerto del cluster " + port + ": " + e.getMessage());
+            return;
+        }
+        AsyncLog.info("Nodo " + nodeId + " escuchando al cluster en el puerto " + port);
+        daemon(this::acceptPeers, "chat-cluster-acceptor").start();
+        for (InetSocketAddress peer : peers) {
+            daemon(() -> dial(peer), "chat-cluster-link-" + peer.getPort()).start();
+        }
+    }
+
+    /**
+     * Cierra todos los enlaces con los demás nodos.
+     */
+    synchronized void close() {
+        open = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Ya estaba cerrado
+        }
+        links.values().forEach(Link::close);
+        sockets.forEach(ClusterNode::closeQuietly);
+    }
+
+    /**
+     * Pide a los demás nodos un apodo para un cliente local. El apodo ya debe
+     * estar reservado en este servidor, para que otro nodo no lo obtenga a la
+     * vez.
+     *
+     * @param nickname Apodo.
+     * @return true si ningún nodo lo tiene en uso.
+     */
+    boolean claim(String nickname) {
+        if (remoteNames.containsKey(nickname)) {
+            return false;
+        }
+        long id = nextClaim.incrementAndGet();
+        byte[] record = record(out -> {
+            out.writeByte(CLAIM);
+            out.writeLong(id);
+            out.writeUTF(nickname);
+        });
+        Claim claim;
+        synchronized (presenceLock) {
+            Collection<Link> targets = new ArrayList<>(links.values());
+            claim = new Claim(targets.size());
+            claims.put(id, claim);
+            targets.forEach(link -> link.send(record));
+        }
+        boolean granted;
+        try {
+            granted = claim.await(CLAIM_TIMEOUT_MILLIS);
+        } finally {
+            claims.remove(id);
+        }
+        if (!granted) {
+            release(nickname);
+        }
+        return granted;
+    }
+
+    /**
+     * Comunica a los demás nodos que un apodo local ha quedado libre.
+     *
+     * @param nickname Apodo.
+     */
+    void release(String nickname) {
+        byte[] record = record(out -> {
+            out.writeByte(RELEASE);
+            out.writeUTF(nickname);
+        });
+        synchronized (presenceLock) {
+            links.values().forEach(link -> link.send(record));
+        }
+    }
+
+    /**
+     * Reenvía a los demás nodos un mensaje difundido en este servidor.
+     *
+     * @param room Sala del mensaje, o null si se difunde a todos.
+     * @param message Mensaje ya codificado para los clientes locales.
+     */
+    void publish(String room, EncodedMessage message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] record = messageRecord(PUBLISH, room == null ? "" : room, message);
+        if (record != null) {
+            links.values().forEach(link -> link.send(record));
+        }
+    }
+
+    /**
+     * Envía un mensaje privado al nodo en el que está conectado su destinatario.
+     *
+     * @param nickname Apodo del destinatario.
+     * @param message Mensaje.
+     * @return true si el destinatario está conectado en otro nodo.
+     */
+    boolean sendPrivate(String nickname, EncodedMessage message) {
+        String owner = remoteNames.get(nickname);
+        Link link = owner == null ? null : links.get(owner);
+        if (link == null) {
+            return false;
+        }
+        byte[] record = messageRecord(PRIVATE, nickname, message);
+        if (record != null) {
+            link.send(record);
+        }
+        return true;
+    }
+
+    /**
+     * Acepta los enlaces que abren los demás nodos.
+     */
+    private void acceptPeers() {
+        try {
+            while (open) {
+                Socket socket = listener.accept();
+                daemon(() -> receive(socket), "chat-cluster-reader").start();
+            }
+        } catch (IOException e) {
+            if (open) {
+                AsyncLog.error("Error en el puerto del cluster: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Conecta con un nodo y le envía registros hasta que se cierra el enlace,
+     * reintentando mientras el nodo esté activo.
+     *
+     * @param address Dirección del nodo.
+     */
+    private void dial(InetSocketAddress address) {
+        while (open) {
+            Socket socket = new Socket();
+            Link link = null;
+            try {
+                sockets.add(socket);
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true); // Los lotes ya agrupan los registros
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeByte('C');
+                out.writeByte('L');
+                out.writeByte(PROTOCOL_VERSION);
+                out.writeUTF(nodeId);
+                out.flush();
+                link = new Link(in.readUTF(), socket, out);
+                register(link);
+                AsyncLog.info("Conectado al nodo " + link.peer + " en " + address);
+                link.run();
+            } catch (IOException e) {
+                if (open && link != null) {
+                    AsyncLog.warn("Enlace con el nodo " + link.peer + " cerrado: " + e.getMessage());
+                } else {
+                    AsyncLog.debug("No se puede conectar con el nodo " + address + ": " + e.getMessage());
+                }
+            } finally {
+                if (link != null) {
+                    link.close();
+                }
+                closeQuietly(socket);
+                sockets.remove(socket);
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Da de alta un enlace de salida y envía por él los apodos locales.
+     *
+     * @param link Enlace recién abierto.
+     */
+    private void register(Link link) {
+        synchronized (presenceLock) {
+            Link previous = links.put(link.peer, link);
+            if (previous != null) {
+                previous.close();
+            }
+            if (!open) {
+                link.close();
+                return;
+            }
+            List<String> names = new ArrayList<>(members.localNames());
+            link.send(record(out -> {
+                out.writeByte(PRESENCE);
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Lee los lotes que envía otro nodo por un enlace de entrada.
+     *
+     * @param socket Conexión aceptada.
+     */
+    private void receive(Socket socket) {
+        String peer = null;
+        sockets.add(socket);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (in.readByte() != 'C' || in.readByte() != 'L' || in.readByte() != PROTOCOL_VERSION) {
+                throw new IOException("Saludo de cluster inválido desde " + socket.getRemoteSocketAddress());
+            }
+            peer = in.readUTF();
+            out.writeUTF(nodeId);
+            out.flush();
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            Inflater inflater = new Inflater(true);
+            byte[] stored = new byte[0];
+            byte[] raw = new byte[0];
+            while (open) {
+                int rawLength = in.readInt();
+                int storedLength = in.readInt();
+                if (rawLength < 0 || rawLength > MAX_BATCH_BYTES || storedLength < 0 || storedLength > rawLength) {
+                    throw new IOException("Lote inválido del nodo " + peer);
+                }
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                if (storedLength == rawLength) {
+                    in.readFully(raw, 0, rawLength);
+                } else {
+                    if (stored.length < storedLength) {
+                        stored = new byte[storedLength];
+                    }
+                    in.readFully(stored, 0, storedLength);
+                    inflate(inflater, stored, storedLength, raw, rawLength);
+                }
+                dispatch(peer, raw, rawLength);
+            }
+        } catch (IOException | DataFormatException e) {
+            if (open && peer != null) {
+                AsyncLog.warn("Enlace desde el nodo " + peer + " cerrado: " + e.getMessage());
+            }
+        } finally {
+            closeQuietly(socket);
+            sockets.remove(socket);
+            if (peer != null && inbound.remove(peer, socket)) {
+                forget(peer);
+            }
+        }
+    }
+
+    /**
+     * Descomprime un lote.
+     *
+     * @param inflater Descompresor del enlace.
+     * @param stored Lote comprimido.
+     * @param storedLength Longitud del lote comprimido.
+     * @param raw Destino del lote original.
+     * @param rawLength Longitud del lote original.
+     * @throws DataFormatException Si el lote no es válido.
+     */
+    private static void inflate(Inflater inflater, byte[] stored, int storedLength, byte[] raw, int rawLength)
+            throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        int length = 0;
+        while (length < rawLength) {
+            int read = inflater.inflate(raw, length, rawLength - length);
+            if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                break;
+            }
+            length += read;
+        }
+        if (length != rawLength) {
+            throw new DataFormatException("Lote incompleto");
+        }
+    }
+
+    /**
+     * Procesa los registros de un lote.
+     *
+     * @param peer Nodo que lo envía.
+     * @param batch Lote descomprimido.
+     * @param length Longitud del lote.
+     * @throws IOException Si un registro no es válido.
+     */
+    private void dispatch(String peer, byte[] batch, int length) throws IOException {
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(batch, 0, length));
+        while (records.available() > 0) {
+            byte type = records.readByte();
+            switch (type) {
+                case CLAIM: {
+                    long id = records.readLong();
+                    boolean granted = grant(peer, records.readUTF());
+                    Link link = links.get(peer);
+                    if (link != null) {
+                        link.send(record(out -> {
+                            out.writeByte(granted ? GRANT : DENY);
+                            out.writeLong(id);
+                        }));
+                    }
+                    break;
+                }
+                case GRANT:
+                case DENY: {
+                    Claim claim = claims.get(records.readLong());
+                    if (claim != null) {
+                        claim.answer(type == GRANT);
+                    }
+                    break;
+                }
+                case RELEASE:
+                    remoteNames.remove(records.readUTF(), peer);
+                    break;
+                case PRESENCE: {
+                    forget(peer);
+                    int count = records.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String nickname = records.readUTF();
+                        String owner = remoteNames.putIfAbsent(nickname, peer);
+                        if ((owner != null && !owner.equals(peer)) || members.isLocal(nickname)) {
+                            AsyncLog.warn("El apodo " + nickname + " está conectado en varios nodos (" + peer + ")");
+                        }
+                    }
+                    break;
+                }
+                case PUBLISH: {
+                    String room = records.readUTF();
+                    members.deliver(room.isEmpty() ? null : room, readMessage(records));
+                    break;
+                }
+                case PRIVATE: {
+                    String nickname = records.readUTF();
+                    members.deliverPrivate(nickname, readMessage(records));
+                    break;
+                }
+                default:
+                    throw new IOException("Registro desconocido del nodo " + peer + ": " + type);
+            }
+        }
+    }
+
+    /**
+     * Decide si se concede un apodo a otro nodo y, en ese caso, lo anota.
+     *
+     * @param peer Nodo que lo solicita.
+     * @param nickname Apodo.
+     * @return true si se concede.
+     */
+    private boolean grant(String peer, String nickname) {
+        String owner = remoteNames.putIfAbsent(nickname, peer);
+        if (owner != null && !owner.equals(peer)) {
+            return false;
+        }
+        // Se comprueba después de anotarlo: si un cliente local lo reserva a la vez, uno de los dos lo ve
+        if (members.isLocal(nickname)) {
+            if (owner == null) {
+                remoteNames.remove(nickname, peer);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Olvida los apodos de un nodo.
+     *
+     * @param peer Nodo.
+     */
+    private void forget(String peer) {
+        remoteNames.values().removeIf(peer::equals);
+    }
+
+    /**
+     * Lee un mensaje en formato binario con su cabecera de longitud.
+     *
+     * @param in Registros del lote.
+     * @return Mensaje.
+     * @throws IOException Si el mensaje no es válido.
+     */
+    private static ChatMessage readMessage(DataInputStream in) throws IOException {
+        int length = MessageFrames.checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return BinaryCodec.INSTANCE.decode(payload, 0, length);
+    }
+
+    /**
+     * Construye un registro con un mensaje.
+     *
+     * @param type Tipo de registro.
+     * @param target Sala o destinatario.
+     * @param message Mensaje.
+     * @return Registro, o null si el mensaje no puede codificarse.
+     */
+    private static byte[] messageRecord(byte type, String target, EncodedMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(target);
+            message.writeTo(Handshake.CODEC_BINARY, out);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            AsyncLog.error("Error al codificar mensaje para el cluster: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Construye un registro de control.
+     *
+     * @param writer Escritura de los campos del registro.
+     * @return Registro.
+     */
+    private static byte[] record(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // No ocurre al escribir en memoria
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Escritura de los campos de un registro.
+     */
+    private interface RecordWriter {
+
+        /**
+         * Escribe los campos.
+         *
+         * @param out Destino del registro.
+         * @throws IOException Si falla la escritura.
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Crea un hilo demonio.
+     *
+     * @param task Tarea del hilo.
+     * @param name Nombre del hilo.
+     * @return Hilo sin arrancar.
+     */
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Cierra un socket ignorando los errores.
+     *
+     * @param socket Socket.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ya estaba cerrado
+        }
+    }
+
+    /**
+     * Respuestas pendientes de una solicitud de apodo.
+     */
+    private static final class Claim {
+        /** Nodos que aún no han respondido. */
+        private int pending;
+        /** Indica si algún nodo ha denegado el apodo. */
+        private boolean denied;
+
+        /**
+         * Constructor.
+         *
+         * @param pending Nodos a los que se ha enviado la solicitud.
+         */
+        Claim(int pending) {
+            this.pending = pending;
+        }
+
+        /**
+         * Anota la respuesta de un nodo.
+         *
+         * @param granted true si el nodo concede el apodo.
+         */
+        synchronized void answer(boolean granted) {
+            denied |= !granted;
+            pending--;
+            notifyAll();
+        }
+
+        /**
+         * Espera a que respondan todos los nodos, a la primera denegación o a
+         * que venza el plazo.
+         *
+         * @param timeoutMillis Plazo en milisegundos.
+         * @return true si ningún nodo ha denegado el apodo.
+         */
+        synchronized boolean await(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            try {
+                while (pending > 0 && !denied && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !denied;
+        }
+    }
+
+    /**
+     * Enlace de salida hacia otro nodo. Los productores encolan registros y el
+     * hilo del enlace los agrupa, comprime y escribe.
+     */
+    private final class Link {
+        /** Identificador del nodo destino. */
+        private final String peer;
+        /** Conexión con el nodo. */
+        private final Socket socket;
+        /** Flujo de salida hacia el nodo. */
+        private final DataOutputStream out;
+        /** Registros pendientes de enviar. */
+        private final OutboundQueue<byte[]> queue = new OutboundQueue<>(LINK_QUEUE_CAPACITY, OverflowPolicy.DISCONNECT, 0);
+        /** Indica si el enlace está cerrado. */
+        private volatile boolean closed;
+
+        /**
+         * Constructor.
+         *
+         * @param peer Identificador del nodo destino.
+         * @param socket Conexión con el nodo.
+         * @param out Flujo de salida hacia el nodo.
+         */
+        Link(String peer, Socket socket, DataOutputStream out) {
+            this.peer = peer;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        /**
+         * Encola un registro. Si el nodo no consume a tiempo, el enlace se
+         * reinicia y al volver a abrirse se reenvían los apodos locales.
+         *
+         * @param record Registro.
+         */
+        void send(byte[] record) {
+            if (!closed && !queue.offer(record)) {
+                AsyncLog.warn("El nodo " + peer + " no consume sus mensajes; se reinicia el enlace.");
+                close();
+            }
+        }
+
+        /**
+         * Escribe por lotes los registros encolados hasta que se cierra el enlace.
+         *
+         * @throws IOException Si falla la escritura.
+         */
+        void run() throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            byte[] raw = new byte[batchBytes + 1024];
+            byte[] packed = new byte[raw.length];
+            try {
+                while (!closed) {
+                    byte[] record = queue.poll(TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+                    if (record == null) {
+                        continue;
+                    }
+                    long deadline = System.nanoTime() + batchDelayNanos;
+                    int length = 0;
+                    do {
+                        if (raw.length < length + record.length) {
+                            raw = Arrays.copyOf(raw, Math.max(raw.length * 2, length + record.length));
+                        }
+                        System.arraycopy(record, 0, raw, length, record.length);
+                        length += record.length;
+                        if (length >= batchBytes) {
+                            break;
+                        }
+                        record = queue.poll(Math.max(0, deadline - System.nanoTime()));
+                    } while (record != null);
+                    if (packed.length < length) {
+                        packed = new byte[raw.length];
+                    }
+                    int stored = length < MIN_COMPRESS_BYTES ? length : deflate(deflater, raw, length, packed);
+                    out.writeInt(length);
+                    out.writeInt(stored);
+                    out.write(stored < length ? packed : raw, 0, stored);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Comprime un lote.
+         *
+         * @param deflater Compresor del enlace.
+         * @param raw Lote original.
+         * @param length Longitud del lote.
+         * @param packed Destino del lote comprimido (al menos tan grande como el original).
+         * @return Longitud comprimida, o la original si la compresión no la reduce.
+         */
+        private int deflate(Deflater deflater, byte[] raw, int length, byte[] packed) {
+            deflater.reset();
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            int stored = 0;
+            while (!deflater.finished() && stored < length) {
+                stored += deflater.deflate(packed, stored, length - stored);
+            }
+            return deflater.finished() && stored < length ? stored : length;
+        }
+
+        /**
+         * Cierra el enlace.
+         */
+        void close() {
+            closed = true;
+            links.remove(peer, this);
+            queue.clear();
+            closeQuietly(socket);
+        }
+    }
+}
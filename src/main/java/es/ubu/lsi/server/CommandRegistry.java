@@ -0,0 +1,232 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Registro de los comandos que los clientes escriben como texto de un
+ * mensaje, con la forma {@code <comando> <argumentos>}.
+ * Los comandos se guardan en una tabla hash de direccionamiento abierto: para
+ * reconocer un mensaje se calcula el hash de su primera palabra directamente
+ * sobre el texto y se compara con la entrada de esa posición, sin crear
+ * subcadenas ni expresiones regulares. El coste no depende del número de
+ * comandos, y los argumentos se leen también sobre el texto original.
+ * Registrar un comando crea una tabla nueva y la publica de una vez, de modo
+ * que los hilos que procesan mensajes nunca esperan ni ven una tabla a medias.
+ *
+ * @param <S> Tipo de las conexiones que ejecutan los comandos.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class CommandRegistry<S extends ChatSession> {
+
+    /**
+     * Acción de un comando.
+     *
+     * @param <S> Tipo de las conexiones que ejecutan el comando.
+     */
+    interface Command<S extends ChatSession> {
+
+        /**
+         * Ejecuta el comando.
+         *
+         * @param session Cliente que lo ha escrito.
+         * @param text Texto completo del mensaje.
+         * @param arguments Posición del texto en la que empiezan los argumentos.
+         * @throws IllegalArgumentException Si los argumentos no son válidos.
+         */
+        void execute(S session, String text, int arguments);
+    }
+
+    /**
+     * Tabla de comandos, inmutable una vez publicada.
+     *
+     * @param <S> Tipo de las conexiones que ejecutan los comandos.
+     */
+    private static final class Table<S extends ChatSession> {
+        /** Nombres de los comandos por posición (null si está libre). */
+        final String[] names;
+        /** Forma de uso de cada comando, para los mensajes de error. */
+        final String[] usages;
+        /** Acciones de los comandos. */
+        final Command<S>[] commands;
+        /** Número de comandos. */
+        final int size;
+
+        /**
+         * Constructor de una tabla vacía.
+         *
+         * @param capacity Número de posiciones (potencia de dos).
+         * @param size Número de comandos que contendrá.
+         */
+        Table(int capacity, int size) {
+            this.names = new String[capacity];
+            this.usages = new String[capacity];
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Command<S>[] commands = new Command[capacity];
+            this.commands = commands;
+            this.size = size;
+        }
+
+        /**
+         * Busca la posición de un nombre o la primera libre de su secuencia.
+         *
+         * @param text Texto que empieza por el nombre.
+         * @param length Longitud del nombre.
+         * @return Posición en la tabla.
+         */
+        int slot(String text, int length) {
+            int mask = names.length - 1;
+            int slot = hash(text, length) & mask;
+            while (names[slot] != null && !matches(names[slot], text, length)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /** Tabla vigente. */
+    private volatile Table<S> table = new Table<>(8, 0);
+
+    /**
+     * Registra un comando, sustituyendo al que tuviera el mismo nombre.
+     *
+     * @param name Nombre del comando (una sola palabra).
+     * @param usage Forma de uso, por ejemplo {@code ban <id>}.
+     * @param command Acción del comando.
+     * @return Este registro.
+     */
+    synchronized CommandRegistry<S> register(String name, String usage, Command<S> command) {
+        if (name.isEmpty() || name.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Nombre de comando inválido: '" + name + "'");
+        }
+        Table<S> current = table;
+        int size = current.commands[current.slot(name, name.length())] == null ? current.size + 1 : current.size;
+        // Al menos la mitad de las posiciones libres para que las secuencias sean cortas
+        int capacity = current.names.length;
+        while (capacity < 2 * size) {
+            capacity *= 2;
+        }
+        Table<S> next = new Table<>(capacity, size);
+        for (int i = 0; i < current.names.length; i++) {
+            if (current.names[i] != null && !current.names[i].equals(name)) {
+                put(next, current.names[i], current.usages[i], current.commands[i]);
+            }
+        }
+        put(next, name, usage, command);
+        table = next;
+        return this;
+    }
+
+    /**
+     * Ejecuta el comando de un mensaje, si lo es.
+     * Un texto es un comando si su primera palabra es un comando registrado y
+     * le sigue un espacio. Si los argumentos no son válidos se responde al
+     * cliente con la forma de uso.
+     *
+     * @param session Cliente que ha escrito el mensaje.
+     * @param text Texto del mensaje (puede ser null).
+     * @return true si el texto era un comando y ya se ha procesado.
+     */
+    boolean dispatch(S session, String text) {
+        int length = text == null ? -1 : text.indexOf(' ');
+        if (length <= 0) {
+            return false;
+        }
+        Table<S> current = table;
+        int slot = current.slot(text, length);
+        Command<S> command = current.commands[slot];
+        if (command == null) {
+            return false;
+        }
+        try {
+            command.execute(session, text, length + 1);
+        } catch (IllegalArgumentException e) {
+            session.sendMessage(new ChatMessage(session.getId(), ChatMessage.MessageType.MESSAGE,
+                    "Error: Formato de comando inválido. Usa '" + current.usages[slot] + "'."));
+        }
+        return true;
+    }
+
+    /**
+     * Lee un argumento entero sin crear subcadenas. El argumento termina en
+     * el siguiente espacio o al final del texto.
+     *
+     * @param text Texto del mensaje.
+     * @param from Posición en la que empieza el argumento.
+     * @return Valor del argumento.
+     * @throws NumberFormatException Si no es un entero válido.
+     */
+    static int intArgument(String text, int from) {
+        int end = text.indexOf(' ', from);
+        if (end < 0) {
+            end = text.length();
+        }
+        boolean negative = from < end && text.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == end) {
+            throw new NumberFormatException("Argumento vacío");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Argumento no numérico");
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("Argumento fuera de rango");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Argumento fuera de rango");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Añade un comando a una tabla que aún no se ha publicado.
+     *
+     * @param table Tabla.
+     * @param name Nombre del comando.
+     * @param usage Forma de uso.
+     * @param command Acción del comando.
+     */
+    private static <S extends ChatSession> void put(Table<S> table, String name, String usage, Command<S> command) {
+        int slot = table.slot(name, name.length());
+        table.names[slot] = name;
+        table.usages[slot] = usage;
+        table.commands[slot] = command;
+    }
+
+    /**
+     * Calcula el hash de los primeros caracteres de un texto, igual que
+     * {@link String#hashCode()} sobre la subcadena pero sin crearla.
+     *
+     * @param text Texto.
+     * @param length Número de caracteres.
+     * @return Hash, ya mezclado para repartir mejor los bits bajos.
+     */
+    private static int hash(String text, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Indica si un texto empieza por un nombre de comando completo.
+     *
+     * @param name Nombre del comando.
+     * @param text Texto.
+     * @param length Longitud de la primera palabra del texto.
+     * @return true si coinciden.
+     */
+    private static boolean matches(String name, String text, int length) {
+        return name.length() == length && text.regionMatches(0, name, 0, length);
+    }
+}
@@ -0,0 +1,310 @@
+package es.ubu.lsi.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Registro de las conexiones de un servidor, indexadas por ID y por nickname.
+ * Asigna los IDs con un contador atómico y mantiene los dos índices
+ * coherentes sin cerrojos: el nickname se reserva primero de forma atómica y
+ * sólo quien lo consigue entra en el índice por ID; al darse de baja se quita
+ * del índice por nickname sólo si sigue apuntando a la misma conexión.
+ * Para las difusiones ofrece una instantánea en forma de array que se
+ * reutiliza mientras no cambien las conexiones, de modo que recorrerla no
+ * reserva memoria. Cada alta o baja sólo invalida la instantánea; la primera
+ * difusión posterior la reconstruye, así que una avalancha de conexiones no
+ * cuesta una copia por conexión. La instantánea también se divide, una sola
+ * vez, en los grupos por ID del reparto en paralelo, para que cada hilo de
+ * reparto recorra sólo sus clientes.
+ *
+ * @param <T> Tipo de las conexiones.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class ConnectionRegistry<T> {
+
+    /**
+     * Alta de una conexión en el registro.
+     *
+     * @param <T> Tipo de la conexión.
+     */
+    private static final class Entry<T> {
+        /** ID de la conexión. */
+        final int id;
+        /** Nickname de la conexión. */
+        final String name;
+        /** Conexión. */
+        final T connection;
+
+        /**
+         * Constructor.
+         *
+         * @param id ID de la conexión.
+         * @param name Nickname de la conexión.
+         * @param connection Conexión.
+         */
+        Entry(int id, String name, T connection) {
+            this.id = id;
+            this.name = name;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Instantánea de las conexiones, válida para una versión del registro:
+     * una lista de sólo lectura sobre un array.
+     *
+     * @param <T> Tipo de las conexiones.
+     */
+    static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+        /** Versión del registro a partir de la que se construyó. */
+        private final long version;
+        /** Conexiones. */
+        private final T[] connections;
+        /** IDs de las conexiones, en el mismo orden. */
+        private final int[] ids;
+        /** Última división en grupos (null si aún no se ha pedido). */
+        private volatile List<List<T>> groups;
+
+        /**
+         * Constructor.
+         *
+         * @param version Versión del registro.
+         * @param connections Conexiones.
+         * @param ids IDs de las conexiones.
+         */
+        Snapshot(long version, T[] connections, int[] ids) {
+            this.version = version;
+            this.connections = connections;
+            this.ids = ids;
+        }
+
+        @Override
+        public T get(int index) {
+            return connections[index];
+        }
+
+        @Override
+        public int size() {
+            return connections.length;
+        }
+
+        /**
+         * Divide las conexiones en grupos según el resto de su ID entre el
+         * número de grupos. La división se calcula la primera vez y se
+         * reutiliza mientras se pida el mismo número de grupos.
+         *
+         * @param count Número de grupos.
+         * @return Conexiones de cada grupo, en listas de sólo lectura.
+         */
+        List<List<T>> split(int count) {
+            List<List<T>> current = groups;
+            if (current == null || current.size() != count) {
+                List<List<T>> built = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    built.add(new ArrayList<>(connections.length / count + 1));
+                }
+                for (int i = 0; i < connections.length; i++) {
+                    built.get(Math.floorMod(ids[i], count)).add(connections[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    built.set(i, Collections.unmodifiableList(built.get(i)));
+                }
+                current = Collections.unmodifiableList(built);
+                groups = current;
+            }
+            return current;
+        }
+    }
+
+    /** Contador para asignar IDs únicos. */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /** Conexiones por ID. */
+    private final ConcurrentHashMap<Integer, Entry<T>> byId = new ConcurrentHashMap<>();
+
+    /** Conexiones por nickname. */
+    private final ConcurrentHashMap<String, Entry<T>> byName = new ConcurrentHashMap<>();
+
+    /** Versión del registro: aumenta tras cada alta o baja. */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Crea los arrays de las instantáneas. */
+    private final IntFunction<T[]> arrays;
+
+    /** Última instantánea construida. */
+    private volatile Snapshot<T> snapshot;
+
+    /**
+     * Constructor.
+     *
+     * @param arrays Crea un array de conexiones del tamaño indicado.
+     */
+    ConnectionRegistry(IntFunction<T[]> arrays) {
+        this.arrays = arrays;
+        this.snapshot = new Snapshot<>(0, arrays.apply(0), new int[0]);
+    }
+
+    /**
+     * Asigna un ID nuevo.
+     *
+     * @return ID único.
+     */
+    int nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * Da de alta una conexión si su nickname está libre.
+     *
+     * @param id ID de la conexión.
+     * @param name Nickname.
+     * @param connection Conexión.
+     * @return false si el nickname ya está en uso.
+     */
+    boolean register(int id, String name, T connection) {
+        Entry<T> entry = new Entry<>(id, name, connection);
+        if (byName.putIfAbsent(name, entry) != null) {
+            return false;
+        }
+        byId.put(id, entry);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Reserva un nickname sin hacer aún visible la conexión: hasta
+     * {@link #publish} no aparece en las instantáneas ni se encuentra por su
+     * nickname, de modo que ninguna difusión se le adelanta a lo que se
+     * encole entretanto.
+     *
+     * @param id ID de la conexión.
+     * @param name Nickname.
+     * @return false si el nickname ya está en uso.
+     */
+    boolean reserve(int id, String name) {
+        return byName.putIfAbsent(name, new Entry<>(id, name, null)) == null;
+    }
+
+    /**
+     * Da de alta una conexión cuyo nickname ya se ha reservado.
+     *
+     * @param id ID de la conexión.
+     * @param name Nickname reservado.
+     * @param connection Conexión.
+     */
+    void publish(int id, String name, T connection) {
+        Entry<T> reserved = byName.get(name);
+        if (reserved == null || reserved.id != id || reserved.connection != null) {
+            throw new IllegalStateException("El nickname no está reservado por la conexión " + id + ": " + name);
+        }
+        Entry<T> entry = new Entry<>(id, name, connection);
+        byName.replace(name, reserved, entry);
+        byId.put(id, entry);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Da de baja una conexión.
+     *
+     * @param id ID de la conexión.
+     * @return Conexión dada de baja, o null si no estaba registrada.
+     */
+    T unregister(int id) {
+        Entry<T> entry = byId.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        byName.remove(entry.name, entry);
+        version.incrementAndGet();
+        return entry.connection;
+    }
+
+    /**
+     * Obtiene una conexión por su ID.
+     *
+     * @param id ID de la conexión.
+     * @return Conexión, o null si no está registrada.
+     */
+    T get(int id) {
+        Entry<T> entry = byId.get(id);
+        return entry == null ? null : entry.connection;
+    }
+
+    /**
+     * Obtiene una conexión por su nickname.
+     *
+     * @param name Nickname.
+     * @return Conexión, o null si no hay ninguna con ese nickname.
+     */
+    T byName(String name) {
+        Entry<T> entry = name == null ? null : byName.get(name);
+        return entry == null ? null : entry.connection;
+    }
+
+    /**
+     * Nicknames registrados.
+     *
+     * @return Vista de sólo lectura de los nicknames.
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    /**
+     * Conexiones registradas. Mientras no haya altas ni bajas devuelve
+     * siempre la misma lista; si cambian, la reconstruye una sola vez.
+     *
+     * @return Lista de sólo lectura de las conexiones.
+     */
+    Snapshot<T> snapshot() {
+        Snapshot<T> current = snapshot;
+        long now = version.get();
+        if (current.version != now) {
+            // Las altas y bajas anteriores a leer la versión ya están en el mapa
+            List<Entry<T>> entries = new ArrayList<>(byId.values());
+            T[] connections = arrays.apply(entries.size());
+            int[] ids = new int[entries.size()];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = entries.get(i).connection;
+                ids[i] = entries.get(i).id;
+            }
+            current = new Snapshot<>(now, connections, ids);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    /**
+     * Número de conexiones registradas.
+     *
+     * @return Conexiones registradas.
+     */
+    int size() {
+        return byId.size();
+    }
+
+    /**
+     * Vacía el registro.
+     *
+     * @return Conexiones que estaban registradas.
+     */
+    List<T> clear() {
+        List<T> connections = snapshot();
+        byId.clear();
+        byName.clear();
+        version.incrementAndGet();
+        return connections;
+    }
+}
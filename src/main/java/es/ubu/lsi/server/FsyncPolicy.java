@@ -0,0 +1,30 @@
+package es.ubu.lsi.server;
+
+/**
+ * Política de volcado a disco del registro persistente de mensajes.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public enum FsyncPolicy {
+    /** Vuelca tras cada mensaje (máxima durabilidad, menor rendimiento). */
+    ALWAYS,
+    /** Vuelca periódicamente, agrupando todos los mensajes del intervalo. */
+    INTERVAL,
+    /** Deja el volcado en manos del sistema operativo. */
+    OS;
+
+    /**
+     * Obtiene la política a partir de su nombre ({@code always},
+     * {@code interval} u {@code os}).
+     *
+     * @param name Nombre de la política.
+     * @return Política correspondiente.
+     * @throws IllegalArgumentException Si el nombre es desconocido.
+     */
+    public static FsyncPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
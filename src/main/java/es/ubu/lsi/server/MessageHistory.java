@@ -0,0 +1,226 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Historial reciente de mensajes, global y por sala, para enviárselo a los
+ * clientes que se conectan o se unen a una sala.
+ * Cada historial es un buffer circular limitado tanto en número de mensajes
+ * como en bytes. Se guardan los mensajes ya preparados para el envío, de modo
+ * que al reproducirlos se reutilizan las tramas codificadas en la difusión
+ * original sin volver a serializar nada.
+ * Las difusiones globales y las altas de clientes se ordenan con el cerrojo
+ * del historial global: cada difusión queda o bien en el historial que
+ * recibe un cliente nuevo o bien entre sus destinatarios, nunca en ninguno
+ * de los dos ni en ambos.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class MessageHistory {
+    /** Número máximo de mensajes de cada historial (0 lo desactiva). */
+    private final int maxMessages;
+    /** Tamaño máximo de cada historial, en bytes de trama binaria. */
+    private final long maxBytes;
+    /** Historial de los mensajes difundidos a todos los clientes. */
+    private final Ring global;
+    /** Historial de cada sala, indexado por nombre. */
+    private final ConcurrentHashMap<String, Ring> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param maxMessages Número máximo de mensajes de cada historial.
+     * @param maxBytes Tamaño máximo de cada historial, en bytes.
+     */
+    MessageHistory(int maxMessages, long maxBytes) {
+        this.maxMessages = Math.max(0, maxMessages);
+        this.maxBytes = maxBytes;
+        this.global = new Ring();
+    }
+
+    /**
+     * Guarda un mensaje en el historial.
+     *
+     * @param room Sala del mensaje, o null si se ha difundido a todos.
+     * @param message Mensaje ya preparado para el envío.
+     */
+    void record(String room, EncodedMessage message) {
+        if (maxMessages == 0) {
+            return;
+        }
+        Ring ring = room == null ? global : rooms.computeIfAbsent(room, name -> new Ring());
+        ring.add(message);
+    }
+
+    /**
+     * Olvida el historial de una sala, al eliminarse por quedarse vacía.
+     *
+     * @param room Nombre de la sala.
+     */
+    void dropRoom(String room) {
+        rooms.remove(room);
+    }
+
+    /**
+     * Recupera el historial del registro persistente de mensajes, para que
+     * sobreviva a un reinicio del servidor. Sólo se leen los segmentos más
+     * recientes, los necesarios para llenar el historial global, así que el
+     * coste no crece con el tamaño total del registro; a cambio, una sala
+     * cuyos mensajes estén todos en segmentos más antiguos se queda sin
+     * historial. Los mensajes privados no se recuperan.
+     *
+     * @param log Registro de mensajes, o null si no está activado.
+     * @param compressionThreshold Umbral de compresión de los mensajes recuperados.
+     */
+    void restore(MessageLog log, int compressionThreshold) {
+        if (log == null || maxMessages == 0) {
+            return;
+        }
+        try {
+            log.replayRecent(maxMessages, MessageHistory::isGlobal, message -> {
+                if (message.getType() == ChatMessage.MessageType.ROOM) {
+                    record(message.getTarget(), new EncodedMessage(message, compressionThreshold));
+                } else if (message.getType() != ChatMessage.MessageType.PRIVATE) {
+                    record(null, new EncodedMessage(message, compressionThreshold));
+                }
+            });
+        } catch (IOException e) {
+            AsyncLog.error("No se puede recuperar el historial del registro de mensajes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Indica si un mensaje recuperado va al historial global.
+     *
+     * @param message Mensaje.
+     * @return true si no es ni de sala ni privado.
+     */
+    private static boolean isGlobal(ChatMessage message) {
+        return message.getType() != ChatMessage.MessageType.ROOM
+                && message.getType() != ChatMessage.MessageType.PRIVATE;
+    }
+
+    /**
+     * Guarda un mensaje difundido a todos y obtiene sus destinatarios sin
+     * soltar el cerrojo del historial global, de modo que ningún alta se
+     * cuela entre ambas cosas.
+     *
+     * @param message Mensaje ya preparado para el envío.
+     * @param recipients Obtiene los destinatarios actuales.
+     * @param <T> Tipo de los destinatarios.
+     * @return Destinatarios del mensaje.
+     */
+    <T> T record(EncodedMessage message, Supplier<T> recipients) {
+        if (maxMessages == 0) {
+            return recipients.get();
+        }
+        synchronized (global) {
+            global.add(message);
+            return recipients.get();
+        }
+    }
+
+    /**
+     * Da de alta un cliente con el historial global del mismo instante. El
+     * alta se ejecuta con el cerrojo del historial global: las difusiones
+     * anteriores están en los mensajes que recibe y las posteriores ya lo
+     * cuentan entre sus destinatarios, y éstas no se encolan hasta que el
+     * alta termina.
+     *
+     * @param registration Encola el historial que recibe y da de alta al cliente.
+     * @return Resultado del alta.
+     */
+    boolean register(Predicate<List<EncodedMessage>> registration) {
+        if (maxMessages == 0) {
+            return registration.test(Collections.<EncodedMessage>emptyList());
+        }
+        synchronized (global) {
+            return registration.test(global.snapshot());
+        }
+    }
+
+    /**
+     * Obtiene los mensajes recientes, del más antiguo al más reciente.
+     *
+     * @param room Sala, o null para el historial global.
+     * @return Copia de los mensajes del historial.
+     */
+    List<EncodedMessage> recent(String room) {
+        Ring ring = room == null ? global : rooms.get(room);
+        return ring == null ? Collections.<EncodedMessage>emptyList() : ring.snapshot();
+    }
+
+    /**
+     * Buffer circular de mensajes. Cada sala tiene el suyo, así que el
+     * cerrojo de un historial sólo lo comparten los mensajes de esa sala.
+     */
+    private class Ring {
+        /** Mensajes guardados. */
+        private final EncodedMessage[] messages = new EncodedMessage[maxMessages];
+        /** Tamaño de cada mensaje guardado. */
+        private final int[] sizes = new int[maxMessages];
+        /** Posición del mensaje más antiguo. */
+        private int head;
+        /** Número de mensajes guardados. */
+        private int count;
+        /** Suma de los tamaños de los mensajes guardados. */
+        private long bytes;
+
+        /**
+         * Añade un mensaje, descartando los más antiguos si se supera algún límite.
+         *
+         * @param message Mensaje a añadir.
+         */
+        private void add(EncodedMessage message) {
+            int size;
+            try {
+                size = message.buffer(Handshake.CODEC_BINARY).remaining();
+            } catch (IOException e) {
+                return;
+            }
+            if (size > maxBytes) {
+                return;
+            }
+            synchronized (this) {
+                while (count == maxMessages || bytes + size > maxBytes) {
+                    bytes -= sizes[head];
+                    messages[head] = null;
+                    head = (head + 1) % maxMessages;
+                    count--;
+                }
+                int tail = (head + count) % maxMessages;
+                messages[tail] = message;
+                sizes[tail] = size;
+                bytes += size;
+                count++;
+            }
+        }
+
+        /**
+         * Copia los mensajes guardados en orden.
+         *
+         * @return Mensajes del más antiguo al más reciente.
+         */
+        private synchronized List<EncodedMessage> snapshot() {
+            EncodedMessage[] copy = new EncodedMessage[count];
+            for (int i = 0; i < count; i++) {
+                copy[i] = messages[(head + i) % maxMessages];
+            }
+            return Arrays.asList(copy);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageFrames;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Registro persistente de mensajes, de sólo escritura al final.
+ * Los mensajes se guardan en segmentos de tamaño fijo proyectados en memoria
+ * ({@code 00000000.log}, {@code 00000001.log}, ...). Cada registro tiene el
+ * formato:
+ * <pre>
+ * [longitud: int][marca de tiempo: long][mensaje en formato binario]
+ * </pre>
+ * Para añadir un registro basta reservar su hueco con una operación atómica
+ * y copiar los bytes en la proyección, por lo que varios hilos escriben a la
+ * vez sin cerrojo común. La longitud se escribe nada más reservar el hueco y
+ * la marca de tiempo la última: un registro con longitud cero marca el final
+ * de los datos válidos del segmento, y uno con marca de tiempo cero es un
+ * hueco reservado que no llegó a escribirse (por ejemplo, si el servidor
+ * cayó a mitad), que se salta sin perder los registros posteriores.
+ * El volcado a disco se controla con {@link FsyncPolicy}.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class MessageLog {
+    /** Tamaño de la cabecera de cada registro (longitud y marca de tiempo). */
+    private static final int RECORD_HEADER = 12;
+    /** Tamaño mínimo de segmento: debe caber el mayor mensaje posible. */
+    private static final int MIN_SEGMENT_BYTES = MessageFrames.MAX_FRAME_LENGTH + RECORD_HEADER;
+
+    /** Directorio de los segmentos. */
+    private final File directory;
+    /** Tamaño de cada segmento en bytes. */
+    private final int segmentBytes;
+    /** Política de volcado. */
+    private final FsyncPolicy fsync;
+    /** Segmento en el que se escribe actualmente. */
+    private volatile Segment current;
+    /** Segmentos completos pendientes de su último volcado (sólo con la política INTERVAL). */
+    private final Queue<Segment> sealed = new ConcurrentLinkedQueue<>();
+    /** Hilo de volcado periódico (sólo con la política INTERVAL). */
+    private final Thread flusher;
+    /** Indica si el registro está abierto. */
+    private volatile boolean open = true;
+
+    /**
+     * Abre el registro configurado en las opciones de arranque.
+     *
+     * @param config Configuración de arranque.
+     * @return Registro abierto, o null si no se ha indicado directorio o no ha podido abrirse.
+     */
+    static MessageLog open(ServerConfig config) {
+        String dir = config.getLogDir();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        try {
+            MessageLog log = new MessageLog(new File(dir), config.getLogSegmentBytes(), config.getLogFsync(), config.getLogFlushMillis());
+            AsyncLog.info("Registro de mensajes en " + dir);
+            return log;
+        } catch (IOException e) {
+            AsyncLog.error("No se puede abrir el registro de mensajes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Abre (o crea) el registro en un directorio y continúa tras el último
+     * registro válido del último segmento.
+     *
+     * @param directory Directorio de los segmentos.
+     * @param segmentBytes Tamaño de cada segmento en bytes.
+     * @param fsync Política de volcado.
+     * @param flushMillis Intervalo de volcado de la política INTERVAL.
+     * @throws IOException Si no se puede crear o proyectar el segmento.
+     */
+    MessageLog(File directory, int segmentBytes, FsyncPolicy fsync, long flushMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("No se puede crear el directorio " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.fsync = fsync;
+        int[] indexes = segmentIndexes();
+        this.current = indexes.length == 0 ? new Segment(0) : new Segment(indexes[indexes.length - 1]);
+        this.current.recover();
+
+        if (fsync == FsyncPolicy.INTERVAL) {
+            flusher = new Thread(() -> {
+                while (open) {
+                    try {
+                        Thread.sleep(flushMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    flush();
+                }
+            }, "chat-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Añade un mensaje al final del registro.
+     * Reutiliza la trama binaria del mensaje si ya estaba codificada.
+     *
+     * @param message Mensaje a guardar.
+     */
+    void append(EncodedMessage message) {
+        if (!open) {
+            return;
+        }
+        try {
+            ByteBuffer frame = message.buffer(Handshake.CODEC_BINARY);
+            int payloadLength = frame.remaining() - MessageFrames.HEADER_LENGTH;
+            frame.position(MessageFrames.HEADER_LENGTH);
+            int recordLength = RECORD_HEADER + payloadLength;
+            while (true) {
+                Segment segment = current;
+                int position = segment.reserve(recordLength);
+                if (position >= 0) {
+                    segment.write(position, System.currentTimeMillis(), frame);
+                    if (fsync == FsyncPolicy.ALWAYS) {
+                        segment.buffer.force();
+                    }
+                    return;
+                }
+                roll(segment);
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Error al guardar mensaje en el registro: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recorre todos los mensajes guardados, del más antiguo al más reciente,
+     * saltándose los huecos reservados que no llegaron a escribirse.
+     *
+     * @param consumer Receptor de cada mensaje.
+     * @throws IOException Si falla la lectura de algún segmento.
+     */
+    void replay(Consumer<ChatMessage> consumer) throws IOException {
+        for (int index : segmentIndexes()) {
+            replay(index, consumer);
+        }
+    }
+
+    /**
+     * Recorre sólo los mensajes más recientes. Lee los segmentos del más
+     * nuevo al más antiguo hasta reunir el número pedido de mensajes que
+     * cuentan, y después entrega todos los mensajes leídos del más antiguo
+     * al más reciente. El coste depende de cuántos segmentos ocupan esos
+     * mensajes y no del tamaño total del registro; sólo si hay menos de los
+     * pedidos se recorre el registro entero.
+     *
+     * @param limit Número de mensajes que cuentan a partir del cual se deja de leer.
+     * @param counted Indica qué mensajes cuentan para el límite.
+     * @param consumer Receptor de cada mensaje leído.
+     * @throws IOException Si falla la lectura de algún segmento.
+     */
+    void replayRecent(int limit, Predicate<ChatMessage> counted, Consumer<ChatMessage> consumer) throws IOException {
+        int[] indexes = segmentIndexes();
+        Deque<List<ChatMessage>> segments = new ArrayDeque<>();
+        int found = 0;
+        for (int i = indexes.length - 1; i >= 0 && found < limit; i--) {
+            List<ChatMessage> messages = new ArrayList<>();
+            replay(indexes[i], messages::add);
+            for (ChatMessage message : messages) {
+                if (counted.test(message)) {
+                    found++;
+                }
+            }
+            segments.addFirst(messages);
+        }
+        for (List<ChatMessage> messages : segments) {
+            messages.forEach(consumer);
+        }
+    }
+
+    /**
+     * Recorre los mensajes de un segmento en orden, saltándose los huecos
+     * reservados que no llegaron a escribirse.
+     *
+     * @param index Índice del segmento.
+     * @param consumer Receptor de cada mensaje.
+     * @throws IOException Si falla la lectura del segmento.
+     */
+    private void replay(int index, Consumer<ChatMessage> consumer) throws IOException {
+        Segment segment = index == current.index ? current : null;
+        ByteBuffer data = segment != null ? segment.buffer.duplicate() : map(index, false);
+        int position = 0;
+        int length;
+        while ((length = recordLength(data, position)) > 0) {
+            if (data.getLong(position + 4) != 0) {
+                byte[] payload = new byte[length - RECORD_HEADER];
+                data.position(position + RECORD_HEADER);
+                data.get(payload);
+                consumer.accept(BinaryCodec.INSTANCE.decode(payload, 0, payload.length));
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Lee la longitud del registro que empieza en una posición.
+     *
+     * @param data Datos del segmento.
+     * @param position Posición del registro.
+     * @return Longitud del registro, o 0 si ahí terminan los datos válidos.
+     */
+    private static int recordLength(ByteBuffer data, int position) {
+        if (position + RECORD_HEADER > data.limit()) {
+            return 0;
+        }
+        int length = data.getInt(position);
+        return length < RECORD_HEADER || length > data.limit() - position ? 0 : length;
+    }
+
+    /**
+     * Vuelca a disco el segmento actual y los segmentos recién completados.
+     */
+    void flush() {
+        Segment segment;
+        while ((segment = sealed.poll()) != null) {
+            segment.buffer.force();
+        }
+        current.buffer.force();
+    }
+
+    /**
+     * Vuelca los datos pendientes y cierra el registro.
+     */
+    void close() {
+        open = false;
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Sustituye el segmento lleno por uno nuevo. Sólo el primer hilo que lo
+     * detecta crea el segmento; el resto reintenta sobre el nuevo.
+     * Con la política INTERVAL el segmento lleno espera al siguiente volcado
+     * periódico; con las demás se vuelca aquí y no se guarda ninguna
+     * referencia, para que su proyección se libere y la memoria proyectada
+     * no crezca con cada segmento.
+     *
+     * @param full Segmento que se ha llenado.
+     * @throws IOException Si no se puede crear el nuevo segmento.
+     */
+    private void roll(Segment full) throws IOException {
+        synchronized (this) {
+            if (current != full) {
+                return;
+            }
+            current = new Segment(full.index + 1);
+        }
+        if (fsync == FsyncPolicy.INTERVAL) {
+            sealed.add(full);
+        } else {
+            full.buffer.force();
+        }
+    }
+
+    /**
+     * Obtiene los índices de los segmentos existentes, ordenados.
+     *
+     * @return Índices de los segmentos.
+     */
+    private int[] segmentIndexes() {
+        String[] names = directory.list((dir, name) -> name.matches("\\d{8}\\.log"));
+        int[] indexes = new int[names == null ? 0 : names.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = Integer.parseInt(names[i].substring(0, 8));
+        }
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Proyecta en memoria un segmento.
+     *
+     * @param index Índice del segmento.
+     * @param writable true para proyectarlo en lectura y escritura.
+     * @return Proyección del segmento.
+     * @throws IOException Si falla la apertura o la proyección.
+     */
+    private MappedByteBuffer map(int index, boolean writable) throws IOException {
+        File file = new File(directory, String.format("%08d.log", index));
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+             FileChannel channel = raf.getChannel()) {
+            // La proyección sigue siendo válida tras cerrar el canal
+            return writable
+                    ? channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes)
+                    : channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Segmento del registro proyectado en memoria.
+     */
+    private class Segment {
+        /** Índice del segmento. */
+        private final int index;
+        /** Proyección del fichero. */
+        private final MappedByteBuffer buffer;
+        /** Siguiente posición libre. */
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * Abre o crea el segmento.
+         *
+         * @param index Índice del segmento.
+         * @throws IOException Si falla la proyección.
+         */
+        private Segment(int index) throws IOException {
+            this.index = index;
+            this.buffer = map(index, true);
+        }
+
+        /**
+         * Sitúa la siguiente posición libre tras el último registro, contando
+         * también los huecos reservados que no llegaron a escribirse.
+         */
+        private void recover() {
+            int position = 0;
+            int length;
+            while ((length = recordLength(buffer, position)) > 0) {
+                position += length;
+            }
+            next.set(position);
+        }
+
+        /**
+         * Reserva el hueco de un registro y escribe su longitud, de modo que
+         * los registros posteriores sigan siendo alcanzables aunque este no
+         * llegue a escribirse.
+         *
+         * @param length Longitud del registro.
+         * @return Posición reservada, o -1 si el registro no cabe en el segmento.
+         */
+        private int reserve(int length) {
+            while (true) {
+                int position = next.get();
+                if (position + length > buffer.capacity()) {
+                    return -1;
+                }
+                if (next.compareAndSet(position, position + length)) {
+                    buffer.duplicate().putInt(position, length);
+                    return position;
+                }
+            }
+        }
+
+        /**
+         * Escribe un registro en un hueco reservado. La marca de tiempo se
+         * escribe la última para que un lector nunca vea un registro a medias.
+         *
+         * @param position Posición reservada.
+         * @param timestamp Marca de tiempo del mensaje (nunca cero).
+         * @param payload Carga útil binaria (desde su posición hasta su límite).
+         */
+        private void write(int position, long timestamp, ByteBuffer payload) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER);
+            view.put(payload);
+            view.putLong(position + 4, timestamp);
+        }
+    }
+}
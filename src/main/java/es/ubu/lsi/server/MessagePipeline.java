@@ -0,0 +1,284 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.ChatMessage;
+
+import java.util.Arrays;
+
+/**
+ * Cadena de etapas por la que pasa cada mensaje recibido de un cliente, una
+ * vez decodificado y admitido por su límite de mensajes.
+ * La cadena estándar ejecuta los comandos, filtra los mensajes que el cliente
+ * no puede enviar y entrega el resto a sus destinatarios; la persistencia se
+ * hace al repartir, para que también la reciban los mensajes del propio
+ * servidor. Las etapas se recorren en un array sin reservar memoria y se mide
+ * el tiempo de cada una en las métricas.
+ * La decodificación y el límite de mensajes no son etapas de la cadena: los
+ * resuelve cada motor de E/S antes de entregarle el mensaje (el motor NIO,
+ * por ejemplo, deja de leer del socket en vez de esperar), y sus tiempos se
+ * miden aparte en las métricas, igual que los de la persistencia.
+ *
+ * @param <S> Tipo de las conexiones de los clientes.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class MessagePipeline<S extends ChatSession> {
+
+    /**
+     * Etapas del procesamiento de un mensaje, en orden.
+     */
+    enum Stage {
+        /** Ejecución de comandos. */
+        COMMAND,
+        /** Descarte de los mensajes no permitidos. */
+        FILTER,
+        /** Entrega a los destinatarios. */
+        ROUTE
+    }
+
+    /**
+     * Etapa de la cadena.
+     *
+     * @param <S> Tipo de las conexiones de los clientes.
+     */
+    interface Handler<S extends ChatSession> {
+
+        /**
+         * Procesa un mensaje.
+         *
+         * @param session Cliente que ha enviado el mensaje.
+         * @param message Mensaje recibido.
+         * @return false si el mensaje ya se ha procesado y no debe seguir por la cadena.
+         */
+        boolean process(S session, ChatMessage message);
+    }
+
+    /**
+     * Entrega de mensajes del servidor que usa la etapa de reparto.
+     */
+    interface Router {
+
+        /**
+         * Retransmite un mensaje a todos los clientes conectados.
+         *
+         * @param message Mensaje a retransmitir.
+         */
+        void broadcast(ChatMessage message);
+
+        /**
+         * Retransmite un mensaje sólo a los miembros de una sala.
+         *
+         * @param room Nombre de la sala.
+         * @param message Mensaje a retransmitir.
+         */
+        void broadcastToRoom(String room, ChatMessage message);
+
+        /**
+         * Entrega un mensaje privado a su destinatario.
+         *
+         * @param recipient Nickname del destinatario.
+         * @param message Mensaje a entregar.
+         * @return true si el destinatario está conectado.
+         */
+        boolean sendPrivate(String recipient, ChatMessage message);
+    }
+
+    /**
+     * Etapa de la cadena junto con la etapa en que se miden sus tiempos.
+     *
+     * @param <S> Tipo de las conexiones de los clientes.
+     */
+    private static final class Step<S extends ChatSession> {
+        /** Etapa en que se miden los tiempos. */
+        final Stage stage;
+        /** Acción de la etapa. */
+        final Handler<S> handler;
+
+        /**
+         * Constructor.
+         *
+         * @param stage Etapa en que se miden los tiempos.
+         * @param handler Acción de la etapa.
+         */
+        Step(Stage stage, Handler<S> handler) {
+            this.stage = stage;
+            this.handler = handler;
+        }
+    }
+
+    /** Métricas en las que se registran los tiempos de cada etapa. */
+    private final ServerMetrics metrics;
+
+    /** Comandos de los clientes. */
+    private final CommandRegistry<S> commands = new CommandRegistry<>();
+
+    /** Etapas de la cadena, en orden; se sustituye entero al añadir una. */
+    private volatile Step<S>[] steps = newSteps(0);
+
+    /**
+     * Constructor de una cadena vacía.
+     *
+     * @param metrics Métricas del servidor.
+     */
+    MessagePipeline(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Crea la cadena estándar con los comandos {@code ban} y {@code unban}.
+     *
+     * @param router Entrega de mensajes del servidor.
+     * @param metrics Métricas del servidor.
+     * @param <S> Tipo de las conexiones de los clientes.
+     * @return Cadena lista para procesar mensajes.
+     */
+    static <S extends ChatSession> MessagePipeline<S> standard(Router router, ServerMetrics metrics) {
+        MessagePipeline<S> pipeline = new MessagePipeline<>(metrics);
+        pipeline.commands
+                .register("ban", "ban <id>", (session, text, arguments) -> {
+                    int blockedId = CommandRegistry.intArgument(text, arguments);
+                    session.banUser(blockedId);
+                    // Notifica a todos los clientes del bloqueo
+                    router.broadcast(new ChatMessage(session.getId(), ChatMessage.MessageType.MESSAGE,
+                            session.getUsername() + " ha bloqueado al usuario con ID " + blockedId));
+                })
+                .register("unban", "unban <id>", (session, text, arguments) -> {
+                    int unblockedId = CommandRegistry.intArgument(text, arguments);
+                    session.unbanUser(unblockedId);
+                    // Notifica a todos los clientes del desbloqueo
+                    router.broadcast(new ChatMessage(session.getId(), ChatMessage.MessageType.MESSAGE,
+                            session.getUsername() + " ha desbloqueado al usuario con ID " + unblockedId));
+                });
+        return pipeline
+                .add(Stage.COMMAND, (session, message) -> message.getType() != ChatMessage.MessageType.MESSAGE
+                        || !pipeline.commands.dispatch(session, message.getMessage()))
+                .add(Stage.FILTER, MessagePipeline::permitted)
+                .add(Stage.ROUTE, (session, message) -> route(router, session, message));
+    }
+
+    /**
+     * Añade una etapa al final de la cadena.
+     *
+     * @param stage Etapa en la que se miden sus tiempos.
+     * @param handler Acción de la etapa.
+     * @return Esta cadena.
+     */
+    synchronized MessagePipeline<S> add(Stage stage, Handler<S> handler) {
+        Step<S>[] next = Arrays.copyOf(steps, steps.length + 1);
+        next[steps.length] = new Step<>(stage, handler);
+        steps = next;
+        return this;
+    }
+
+    /**
+     * Obtiene los comandos de los clientes, para añadir otros nuevos.
+     *
+     * @return Registro de comandos.
+     */
+    CommandRegistry<S> commands() {
+        return commands;
+    }
+
+    /**
+     * Pasa un mensaje por todas las etapas, hasta que una lo detenga.
+     *
+     * @param session Cliente que ha enviado el mensaje.
+     * @param message Mensaje recibido.
+     */
+    void process(S session, ChatMessage message) {
+        for (Step<S> step : steps) {
+            long start = System.nanoTime();
+            boolean next = step.handler.process(session, message);
+            metrics.stage(step.stage, System.nanoTime() - start);
+            if (!next) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Descarta los mensajes sin texto y los de salas a las que el cliente no
+     * pertenece, avisándole en este caso.
+     *
+     * @param session Cliente que ha enviado el mensaje.
+     * @param message Mensaje recibido.
+     * @return true si el mensaje puede entregarse.
+     */
+    private static boolean permitted(ChatSession session, ChatMessage message) {
+        ChatMessage.MessageType type = message.getType();
+        if (type == ChatMessage.MessageType.MESSAGE || type == ChatMessage.MessageType.PRIVATE) {
+            return message.getMessage() != null;
+        }
+        if (type == ChatMessage.MessageType.ROOM && !session.isInRoom(message.getTarget())) {
+            session.sendMessage(new ChatMessage(session.getId(), ChatMessage.MessageType.MESSAGE,
+                    "Error: No perteneces a la sala " + message.getTarget() + ". Usa 'join <sala>'."));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Entrega un mensaje según su tipo.
+     *
+     * @param router Entrega de mensajes del servidor.
+     * @param session Cliente que ha enviado el mensaje.
+     * @param message Mensaje recibido.
+     * @return true, pues es la última etapa de la cadena estándar.
+     */
+    private static boolean route(Router router, ChatSession session, ChatMessage message) {
+        switch (message.getType()) {
+            case MESSAGE:
+                if (AsyncLog.isEnabled(AsyncLog.Level.INFO)) {
+                    AsyncLog.info("[" + session.getUsername() + "]: " + message.getMessage());
+                }
+                router.broadcast(message);
+                break;
+            case ROOM:
+                if (AsyncLog.isEnabled(AsyncLog.Level.INFO)) {
+                    AsyncLog.info("[" + message.getTarget() + "] [" + session.getUsername() + "]: " + message.getMessage());
+                }
+                router.broadcastToRoom(message.getTarget(), message);
+                break;
+            case PRIVATE:
+                if (!router.sendPrivate(message.getTarget(), message)) {
+                    session.sendMessage(new ChatMessage(session.getId(), ChatMessage.MessageType.MESSAGE,
+                            "Error: El usuario " + message.getTarget() + " no está conectado."));
+                }
+                break;
+            case JOIN:
+                session.joinRoom(message.getTarget());
+                break;
+            case LEAVE:
+                session.leaveRoom(message.getTarget());
+                break;
+            case PING:
+                session.sendMessage(new ChatMessage(session.getId(), ChatMessage.MessageType.PONG, ""));
+                break;
+            case ACK:
+                try {
+                    session.acknowledge(Long.parseLong(message.getMessage()));
+                } catch (NumberFormatException e) {
+                    // Una confirmación mal formada no confirma nada
+                }
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Crea un array de etapas.
+     *
+     * @param length Longitud.
+     * @param <S> Tipo de las conexiones de los clientes.
+     * @return Array vacío.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <S extends ChatSession> Step<S>[] newSteps(int length) {
+        return new Step[length];
+    }
+}
@@ -0,0 +1,698 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageFrames;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buzones de los clientes desconectados, por nickname.
+ * Cuando la conexión de un cliente se pierde sin que haya cerrado sesión, los
+ * mensajes difundidos a todos y los privados dirigidos a él se guardan en su
+ * buzón, numerados por orden. Al volver a conectarse con el mismo nickname se
+ * le envían por lotes; el cliente confirma cada lote con el número del último
+ * mensaje y sólo entonces se borran y se envía el siguiente. Si la conexión
+ * vuelve a perderse, el buzón se conserva y la entrega se reanuda tras el
+ * último mensaje confirmado, de modo que ninguno se pierde, aunque alguno
+ * puede llegar dos veces si se pierde una confirmación.
+ * Cada buzón guarda en memoria los mensajes más antiguos y, si se indica un
+ * directorio, vuelca los siguientes a un fichero propio, en formato binario,
+ * hasta su capacidad máxima; los mensajes que ya no caben se descartan y se
+ * avisa de ello al cliente. Al apagar el servidor los buzones se guardan
+ * enteros en el directorio y se recuperan al arrancar. Los buzones que nadie
+ * reclama se eliminan pasado su tiempo de vida.
+ * <p>
+ * Todo lo que toca los buzones (guardar, entregar, confirmar, aparcar) se
+ * ejecuta en orden en un único hilo propio, de modo que ni las difusiones ni
+ * los hilos de E/S de las conexiones esperan nunca al disco.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class OfflineMailboxes {
+    /** Extensión de los ficheros de los buzones. */
+    private static final String SUFFIX = ".mbox";
+
+    /** Buzones de los clientes desconectados. */
+    private final ConcurrentHashMap<String, Mailbox> offline = new ConcurrentHashMap<>();
+    /** Buzones que se están entregando, por cliente (sólo los usa el hilo de los buzones). */
+    private final Map<ChatSession, Mailbox> delivering = new HashMap<>();
+    /** Hilo que guarda y entrega los mensajes de los buzones. */
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "chat-mailboxes");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Capacidad máxima de cada buzón, en mensajes. */
+    private final int capacity;
+    /** Mensajes de cada buzón que se guardan en memoria antes de volcar al fichero. */
+    private final int memory;
+    /** Mensajes por lote de entrega. */
+    private final int batch;
+    /** Tiempo de vida de un buzón sin reclamar, en milisegundos. */
+    private final long ttlMillis;
+    /** Directorio de los ficheros de los buzones (null si sólo se guardan en memoria). */
+    private final File directory;
+    /** Umbral de compresión de los mensajes recuperados del disco. */
+    private final int compressionThreshold;
+
+    /**
+     * Abre los buzones configurados en las opciones de arranque y recupera
+     * los que se guardaron al apagar.
+     *
+     * @param config Configuración de arranque.
+     * @return Buzones, o null si no se ha fijado su capacidad.
+     */
+    static OfflineMailboxes open(ServerConfig config) {
+        if (config.getMailboxSize() <= 0) {
+            return null;
+        }
+        String dir = config.getMailboxDir();
+        File directory = dir.isEmpty() ? null : new File(dir);
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            AsyncLog.error("No se puede crear el directorio de los buzones " + dir + "; se guardarán sólo en memoria.");
+            directory = null;
+        }
+        OfflineMailboxes mailboxes = new OfflineMailboxes(config.getMailboxSize(), config.getMailboxMemory(),
+                config.getMailboxBatch(), TimeUnit.MINUTES.toMillis(config.getMailboxTtlMinutes()), directory,
+                config.getCompressionThreshold());
+        mailboxes.recover();
+        return mailboxes;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacidad máxima de cada buzón, en mensajes.
+     * @param memory Mensajes que se guardan en memoria antes de volcar al fichero.
+     * @param batch Mensajes por lote de entrega.
+     * @param ttlMillis Tiempo de vida de un buzón sin reclamar.
+     * @param directory Directorio de los ficheros (null para no volcar a disco).
+     * @param compressionThreshold Umbral de compresión de los mensajes recuperados del disco.
+     */
+    private OfflineMailboxes(int capacity, int memory, int batch, long ttlMillis, File directory,
+                             int compressionThreshold) {
+        this.capacity = capacity;
+        this.memory = directory == null ? capacity : Math.min(memory, capacity);
+        this.batch = batch;
+        this.ttlMillis = ttlMillis;
+        this.directory = directory;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Indica si un cliente desconectado tiene buzón.
+     *
+     * @param name Nickname del cliente.
+     * @return true si se le están guardando los mensajes.
+     */
+    boolean holds(String name) {
+        return offline.containsKey(name);
+    }
+
+    /**
+     * Entrega su buzón a un cliente que vuelve a conectarse: deja de guardar
+     * mensajes para él y le envía el primer lote. Si el cliente no sabe
+     * confirmar los mensajes, el buzón se elimina sin enviarlo. Vuelve sin
+     * esperar a la entrega.
+     *
+     * @param session Cliente recién registrado.
+     * @param supported true si el cliente confirma los lotes del buzón.
+     */
+    void reconnect(ChatSession session, boolean supported) {
+        execute(() -> {
+            Mailbox mailbox = offline.remove(session.getUsername());
+            if (mailbox == null) {
+                return;
+            }
+            if (!supported) {
+                mailbox.delete();
+            } else if (mailbox.deliverTo(session)) {
+                delivering.put(session, mailbox);
+            }
+        });
+    }
+
+    /**
+     * Confirma los mensajes del buzón recibidos por un cliente y le envía el
+     * siguiente lote, si lo hay. Vuelve sin esperar a la entrega.
+     *
+     * @param session Cliente.
+     * @param sequence Número del último mensaje recibido.
+     */
+    void acknowledge(ChatSession session, long sequence) {
+        execute(() -> {
+            Mailbox mailbox = delivering.get(session);
+            if (mailbox != null && mailbox.ack(sequence) && !mailbox.deliverTo(session)) {
+                delivering.remove(session);
+            }
+        });
+    }
+
+    /**
+     * Guarda los mensajes para un cliente que se ha desconectado, salvo que
+     * haya cerrado la sesión.
+     *
+     * @param session Cliente desconectado.
+     * @param loggedOut true si el cliente ha cerrado la sesión.
+     */
+    void disconnected(ChatSession session, boolean loggedOut) {
+        execute(() -> park(session.getUsername(), delivering.remove(session), loggedOut));
+    }
+
+    /**
+     * Guarda un mensaje difundido a todos en los buzones de los clientes
+     * desconectados, eliminando de paso los que han caducado. Vuelve sin
+     * esperar a que se guarde.
+     *
+     * @param encoded Mensaje difundido.
+     */
+    void offer(EncodedMessage encoded) {
+        if (offline.isEmpty()) {
+            return;
+        }
+        execute(() -> {
+            long now = System.currentTimeMillis();
+            for (Mailbox mailbox : offline.values()) {
+                if (now - mailbox.parkedMillis > ttlMillis) {
+                    if (offline.remove(mailbox.name, mailbox)) {
+                        mailbox.delete();
+                    }
+                } else {
+                    mailbox.append(encoded);
+                }
+            }
+        });
+    }
+
+    /**
+     * Guarda un mensaje privado en el buzón de su destinatario, si está
+     * desconectado. Vuelve sin esperar a que se guarde; si el buzón está
+     * lleno, se avisa al destinatario al entregárselo.
+     *
+     * @param name Nickname del destinatario.
+     * @param encoded Mensaje privado.
+     * @return true si el destinatario tiene buzón.
+     */
+    boolean offer(String name, EncodedMessage encoded) {
+        Mailbox mailbox = name == null ? null : offline.get(name);
+        if (mailbox == null) {
+            return false;
+        }
+        execute(() -> mailbox.append(encoded));
+        return true;
+    }
+
+    /**
+     * Termina las tareas pendientes, guarda enteros en el directorio los
+     * buzones de los clientes desconectados y de los que aún se estaban
+     * entregando, para recuperarlos al arrancar, y libera la memoria.
+     *
+     * @param timeoutMillis Espera máxima a las tareas pendientes.
+     */
+    void close(long timeoutMillis) {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Los buzones a medio entregar se conservan para cuando vuelvan sus clientes
+        delivering.forEach((session, mailbox) -> park(session.getUsername(), mailbox, false));
+        delivering.clear();
+        for (Mailbox mailbox : offline.values()) {
+            if (directory != null && !mailbox.isEmpty()) {
+                mailbox.persist();
+            } else {
+                mailbox.delete();
+            }
+        }
+        offline.clear();
+    }
+
+    /**
+     * Aparca el buzón de un cliente desconectado, o lo elimina si ha cerrado
+     * la sesión.
+     *
+     * @param name Nickname del cliente.
+     * @param mailbox Buzón que el cliente aún no había vaciado, o null si no tenía.
+     * @param loggedOut true si el cliente ha cerrado la sesión.
+     */
+    private void park(String name, Mailbox mailbox, boolean loggedOut) {
+        if (loggedOut) {
+            if (mailbox != null) {
+                mailbox.delete();
+            }
+            return;
+        }
+        Mailbox parked = mailbox != null ? mailbox : new Mailbox(name);
+        parked.park();
+        Mailbox previous = offline.put(name, parked);
+        if (previous != null && previous != parked) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo de los buzones. Si el hilo ya se ha
+     * detenido, la tarea se descarta: los buzones se están guardando.
+     *
+     * @param task Tarea.
+     */
+    private void execute(Runnable task) {
+        try {
+            worker.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    AsyncLog.error("Error en los buzones: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // El servidor se está apagando
+        }
+    }
+
+    /**
+     * Recupera los buzones guardados en el directorio al apagar.
+     */
+    private void recover() {
+        File[] files = directory == null ? null : directory.listFiles((dir, file) -> file.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = nameOf(file.getName());
+            if (name == null) {
+                continue;
+            }
+            try {
+                Mailbox mailbox = new Mailbox(name);
+                mailbox.recover();
+                if (mailbox.isEmpty()) {
+                    mailbox.delete();
+                } else {
+                    mailbox.park();
+                    offline.put(name, mailbox);
+                }
+            } catch (IOException e) {
+                AsyncLog.error("No se puede recuperar el buzón " + file + ": " + e.getMessage());
+            }
+        }
+        if (!offline.isEmpty()) {
+            AsyncLog.info(offline.size() + " buzones recuperados de " + directory);
+        }
+    }
+
+    /**
+     * Nombre del fichero del buzón de un nickname (en hexadecimal, para que
+     * cualquier nickname sea un nombre de fichero válido).
+     *
+     * @param name Nickname.
+     * @return Nombre del fichero.
+     */
+    private static String fileName(String name) {
+        StringBuilder file = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            file.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return file.append(SUFFIX).toString();
+    }
+
+    /**
+     * Nickname de un fichero de buzón.
+     *
+     * @param file Nombre del fichero.
+     * @return Nickname, o null si el nombre no es válido.
+     */
+    private static String nameOf(String file) {
+        String hex = file.substring(0, file.length() - SUFFIX.length());
+        if (hex.isEmpty() || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buzón de un cliente. Los mensajes pendientes son los de memoria,
+     * seguidos de los del fichero; los nuevos van al fichero en cuanto éste
+     * tiene alguno, para conservar el orden.
+     */
+    private final class Mailbox {
+        /** Nickname del cliente. */
+        private final String name;
+        /** Mensajes pendientes más antiguos. */
+        private final ArrayDeque<EncodedMessage> head = new ArrayDeque<>();
+        /** Fichero con los mensajes pendientes más recientes (null si no se ha abierto). */
+        private FileChannel tail;
+        /** Posición del fichero del primer mensaje pendiente. */
+        private long tailStart;
+        /** Posición del fichero tras el último mensaje. */
+        private long tailEnd;
+        /** Mensajes pendientes en el fichero. */
+        private int tailCount;
+        /** Número del primer mensaje pendiente. */
+        private long firstSequence = 1;
+        /** Número del último mensaje del lote enviado y aún sin confirmar (0 si no hay). */
+        private long batchLast;
+        /** Mensajes del fichero incluidos en el lote sin confirmar. */
+        private int batchTailCount;
+        /** Posición del fichero tras el lote sin confirmar. */
+        private long batchTailEnd;
+        /** Mensajes descartados por tener el buzón lleno, aún no avisados. */
+        private int dropped;
+        /** Indica si el buzón se ha eliminado y ya no admite mensajes. */
+        private boolean deleted;
+        /** Instante en que el cliente perdió la conexión. */
+        private volatile long parkedMillis;
+
+        /**
+         * Constructor.
+         *
+         * @param name Nickname del cliente.
+         */
+        private Mailbox(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Añade un mensaje al final del buzón.
+         *
+         * @param encoded Mensaje.
+         * @return false si el buzón está lleno o eliminado y el mensaje se ha descartado.
+         */
+        private synchronized boolean append(EncodedMessage encoded) {
+            if (deleted) {
+                return false;
+            }
+            if (head.size() + tailCount >= capacity) {
+                dropped++;
+                return false;
+            }
+            if (tailCount == 0 && head.size() < memory) {
+                head.add(encoded);
+                return true;
+            }
+            try {
+                openTail();
+                ByteBuffer frame = encoded.buffer(Handshake.CODEC_BINARY);
+                int length = frame.remaining();
+                while (frame.hasRemaining()) {
+                    tail.write(frame, tailEnd + length - frame.remaining());
+                }
+                tailEnd += length;
+                tailCount++;
+                return true;
+            } catch (IOException e) {
+                AsyncLog.error("No se puede guardar un mensaje en el buzón de " + name + ": " + e.getMessage());
+                dropped++;
+                return false;
+            }
+        }
+
+        /**
+         * Indica si el buzón no tiene mensajes pendientes.
+         *
+         * @return true si está vacío.
+         */
+        private synchronized boolean isEmpty() {
+            return head.isEmpty() && tailCount == 0;
+        }
+
+        /**
+         * Obtiene y olvida el número de mensajes descartados por tener el
+         * buzón lleno.
+         *
+         * @return Mensajes descartados desde la última consulta.
+         */
+        private synchronized int takeDropped() {
+            int lost = dropped;
+            dropped = 0;
+            return lost;
+        }
+
+        /**
+         * Envía al cliente el siguiente lote del buzón, seguido de un mensaje
+         * {@code MAILBOX} con el número del último, y le avisa antes de los
+         * mensajes que se han descartado. Si ya no quedan mensajes, elimina
+         * el buzón.
+         *
+         * @param session Cliente al que pertenece el buzón.
+         * @return false si el buzón está vacío y se ha eliminado.
+         */
+        private boolean deliverTo(ChatSession session) {
+            int lost = takeDropped();
+            if (lost > 0) {
+                session.sendMessage(new ChatMessage(0, ChatMessage.MessageType.MESSAGE,
+                        "Se han perdido " + lost + " mensajes mientras estabas desconectado: tu buzón estaba lleno."));
+            }
+            List<EncodedMessage> messages = nextBatch();
+            if (messages.isEmpty()) {
+                delete();
+                return false;
+            }
+            messages.forEach(session::sendMessage);
+            session.sendMessage(new ChatMessage(0, ChatMessage.MessageType.MAILBOX, Long.toString(batchLast())));
+            return true;
+        }
+
+        /**
+         * Obtiene el siguiente lote de mensajes pendientes, si no hay otro
+         * sin confirmar.
+         *
+         * @return Mensajes del lote (vacío si no hay más o si falta confirmar el anterior).
+         */
+        private synchronized List<EncodedMessage> nextBatch() {
+            if (batchLast != 0) {
+                return Collections.emptyList();
+            }
+            List<EncodedMessage> messages = new ArrayList<>(Math.min(batch, head.size() + tailCount));
+            for (EncodedMessage message : head) {
+                if (messages.size() == batch) {
+                    break;
+                }
+                messages.add(message);
+            }
+            long position = tailStart;
+            int fromTail = 0;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH);
+                while (messages.size() < batch && fromTail < tailCount) {
+                    header.clear();
+                    readFully(header, position);
+                    int length = MessageFrames.checkLength(header.getInt(0));
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(payload, position + MessageFrames.HEADER_LENGTH);
+                    messages.add(new EncodedMessage(BinaryCodec.INSTANCE.decode(payload.array(), 0, length), compressionThreshold));
+                    position += MessageFrames.HEADER_LENGTH + length;
+                    fromTail++;
+                }
+            } catch (IOException e) {
+                // El resto del fichero no es legible: se descarta
+                AsyncLog.error("Buzón de " + name + " dañado: " + e.getMessage());
+                dropped += tailCount - fromTail;
+                tailCount = fromTail;
+                tailEnd = position;
+            }
+            if (!messages.isEmpty()) {
+                batchLast = firstSequence + messages.size() - 1;
+                batchTailCount = fromTail;
+                batchTailEnd = position;
+            }
+            return messages;
+        }
+
+        /**
+         * Número del último mensaje del lote sin confirmar.
+         *
+         * @return Número de mensaje, o 0 si no hay lote pendiente.
+         */
+        private synchronized long batchLast() {
+            return batchLast;
+        }
+
+        /**
+         * Borra los mensajes confirmados por el cliente. Sólo se tiene en
+         * cuenta la confirmación del lote completo.
+         *
+         * @param sequence Número del último mensaje recibido.
+         * @return true si la confirmación cierra el lote pendiente.
+         */
+        private synchronized boolean ack(long sequence) {
+            if (batchLast == 0 || sequence < batchLast) {
+                return false;
+            }
+            for (long i = firstSequence + batchTailCount; i <= batchLast; i++) {
+                head.poll();
+            }
+            tailCount -= batchTailCount;
+            tailStart = batchTailEnd;
+            firstSequence = batchLast + 1;
+            batchLast = 0;
+            batchTailCount = 0;
+            if (tailCount == 0 && tail != null) {
+                closeTail(true);
+            }
+            return true;
+        }
+
+        /**
+         * Prepara el buzón para guardar mensajes: el lote sin confirmar se
+         * volverá a enviar entero.
+         */
+        private synchronized void park() {
+            batchLast = 0;
+            batchTailCount = 0;
+            parkedMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Guarda todos los mensajes pendientes en un fichero nuevo.
+         */
+        private synchronized void persist() {
+            File target = new File(directory, fileName(name));
+            File temp = new File(directory, fileName(name) + ".tmp");
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (EncodedMessage message : head) {
+                    ByteBuffer frame = message.buffer(Handshake.CODEC_BINARY);
+                    while (frame.hasRemaining()) {
+                        out.write(frame);
+                    }
+                }
+                if (tail != null) {
+                    tail.transferTo(tailStart, tailEnd - tailStart, out);
+                }
+                out.force(true);
+            } catch (IOException e) {
+                AsyncLog.error("No se puede guardar el buzón de " + name + ": " + e.getMessage());
+                return;
+            }
+            closeTail(false);
+            if (!temp.renameTo(target)) {
+                target.delete();
+                temp.renameTo(target);
+            }
+        }
+
+        /**
+         * Carga el buzón guardado al apagar. Sus mensajes quedan en el fichero.
+         *
+         * @throws IOException Si no se puede leer el fichero.
+         */
+        private synchronized void recover() throws IOException {
+            openTail();
+            long size = tail.size();
+            ByteBuffer header = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH);
+            while (tailEnd + MessageFrames.HEADER_LENGTH <= size) {
+                header.clear();
+                readFully(header, tailEnd);
+                int length = MessageFrames.checkLength(header.getInt(0));
+                if (tailEnd + MessageFrames.HEADER_LENGTH + length > size) {
+                    break;
+                }
+                tailEnd += MessageFrames.HEADER_LENGTH + length;
+                tailCount++;
+            }
+            // Un mensaje a medio escribir se descarta
+            tail.truncate(tailEnd);
+        }
+
+        /**
+         * Libera el buzón y borra su fichero.
+         */
+        private synchronized void delete() {
+            deleted = true;
+            head.clear();
+            tailCount = 0;
+            if (tail != null) {
+                closeTail(true);
+            } else if (directory != null) {
+                new File(directory, fileName(name)).delete();
+            }
+        }
+
+        /**
+         * Abre el fichero del buzón si aún no lo está.
+         *
+         * @throws IOException Si no se puede abrir.
+         */
+        private void openTail() throws IOException {
+            if (tail == null) {
+                if (directory == null) {
+                    throw new IOException("No hay directorio de buzones");
+                }
+                tail = FileChannel.open(new File(directory, fileName(name)).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                tailStart = 0;
+                tailEnd = 0;
+            }
+        }
+
+        /**
+         * Cierra el fichero del buzón.
+         *
+         * @param delete true para borrarlo.
+         */
+        private void closeTail(boolean delete) {
+            try {
+                tail.close();
+            } catch (IOException e) {
+                // Se descarta igualmente
+            }
+            tail = null;
+            tailStart = 0;
+            tailEnd = 0;
+            if (delete) {
+                new File(directory, fileName(name)).delete();
+            }
+        }
+
+        /**
+         * Lee del fichero hasta llenar un buffer.
+         *
+         * @param buffer Buffer de destino.
+         * @param position Posición del fichero.
+         * @throws IOException Si el fichero termina antes.
+         */
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = tail.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Fin de fichero inesperado");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola de salida acotada de un cliente.
+ * Los productores (difusiones de otros clientes) encolan sin esperar a la
+ * red y un único consumidor vacía la cola hacia el socket. Cuando la cola
+ * se llena se aplica la {@link OverflowPolicy} configurada.
+ *
+ * @param <T> Tipo de los elementos encolados.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class OutboundQueue<T> {
+    /** Elementos pendientes de enviar. */
+    private final ArrayBlockingQueue<T> queue;
+    /** Política ante desbordamiento. */
+    private final OverflowPolicy policy;
+    /** Espera máxima de la política {@link OverflowPolicy#BLOCK}, en milisegundos. */
+    private final long blockTimeoutMillis;
+    /** Elementos descartados por desbordamiento. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacidad máxima de la cola.
+     * @param policy Política ante desbordamiento.
+     * @param blockTimeoutMillis Espera máxima de la política BLOCK, en milisegundos.
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Encola un elemento aplicando la política de desbordamiento.
+     *
+     * @param item Elemento a encolar.
+     * @return false si el cliente debe desconectarse por no consumir a tiempo.
+     */
+    boolean offer(T item) {
+        if (queue.offer(item)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                do {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                } while (!queue.offer(item));
+                return true;
+            case BLOCK:
+                try {
+                    return queue.offer(item, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encola un elemento sólo si hay sitio, sin aplicar la política de
+     * desbordamiento ni esperar.
+     *
+     * @param item Elemento a encolar.
+     * @return false si la cola está llena.
+     */
+    boolean offerIfRoom(T item) {
+        return queue.offer(item);
+    }
+
+    /**
+     * Encola un elemento sin aplicar la política de desbordamiento, esperando
+     * a que haya sitio como mucho hasta un instante dado.
+     *
+     * @param item Elemento a encolar.
+     * @param deadlineNanos Instante límite de la espera, según {@link System#nanoTime()}.
+     * @return false si la cola sigue llena al llegar el límite.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    boolean offerUntil(T item, long deadlineNanos) throws InterruptedException {
+        return queue.offer(item, Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Extrae el siguiente elemento, esperando si la cola está vacía.
+     *
+     * @return Elemento extraído.
+     * @throws InterruptedException Si el consumidor es interrumpido.
+     */
+    T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Extrae el siguiente elemento sin esperar.
+     *
+     * @return Elemento extraído, o null si la cola está vacía.
+     */
+    T poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Extrae el siguiente elemento esperando como mucho el tiempo indicado.
+     *
+     * @param timeoutNanos Espera máxima en nanosegundos.
+     * @return Elemento extraído, o null si no llega ninguno a tiempo.
+     * @throws InterruptedException Si el consumidor es interrumpido.
+     */
+    T poll(long timeoutNanos) throws InterruptedException {
+        return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Indica si la cola está vacía.
+     *
+     * @return true si no hay elementos pendientes.
+     */
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Descarta todos los elementos pendientes.
+     */
+    void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Número de elementos pendientes de enviar.
+     *
+     * @return Profundidad actual de la cola.
+     */
+    int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Número de elementos descartados por desbordamiento.
+     *
+     * @return Total de descartes.
+     */
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,31 @@
+package es.ubu.lsi.server;
+
+/**
+ * Política aplicada cuando la cola de salida de un cliente está llena,
+ * es decir, cuando el cliente no lee tan rápido como se le envían mensajes.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public enum OverflowPolicy {
+    /** Descarta los mensajes más antiguos de la cola para hacer sitio. */
+    DROP_OLDEST,
+    /** Desconecta al cliente lento. */
+    DISCONNECT,
+    /** Espera a que haya sitio durante un tiempo máximo y, si no, desconecta. */
+    BLOCK;
+
+    /**
+     * Obtiene la política a partir de su nombre ({@code drop-oldest},
+     * {@code disconnect} o {@code block}).
+     *
+     * @param name Nombre de la política.
+     * @return Política correspondiente.
+     * @throws IllegalArgumentException Si el nombre es desconocido.
+     */
+    public static OverflowPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
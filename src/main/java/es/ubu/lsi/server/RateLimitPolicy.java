@@ -0,0 +1,31 @@
+package es.ubu.lsi.server;
+
+/**
+ * Política aplicada cuando un cliente envía mensajes más rápido de lo que
+ * permite su límite.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public enum RateLimitPolicy {
+    /** Deja de leer del cliente hasta que vuelve a tener permiso para enviar. */
+    DELAY,
+    /** Descarta los mensajes que superan el límite y avisa al cliente. */
+    DROP,
+    /** Desconecta al cliente. */
+    DISCONNECT;
+
+    /**
+     * Obtiene la política a partir de su nombre ({@code delay}, {@code drop}
+     * o {@code disconnect}).
+     *
+     * @param name Nombre de la política.
+     * @return Política correspondiente.
+     * @throws IllegalArgumentException Si el nombre es desconocido.
+     */
+    public static RateLimitPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
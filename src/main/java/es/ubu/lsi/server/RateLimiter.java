@@ -0,0 +1,167 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Límite de mensajes por segundo de los clientes, con cubetas de fichas.
+ * Cada cliente tiene su propia {@link Bucket}, que admite ráfagas de hasta
+ * {@code burst} mensajes y se rellena a razón de {@code rate} mensajes por
+ * segundo. La cubeta se guarda como el instante teórico en que quedaría
+ * llena (algoritmo GCRA), de modo que consumir una ficha y rellenarla es una
+ * sola operación atómica sobre un {@code long}, sin cerrojos ni hilos de
+ * recarga.
+ * El límite y la política son comunes a todos los clientes y pueden
+ * cambiarse en caliente; las cubetas los leen en cada mensaje.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class RateLimiter {
+
+    /** Límite vigente. */
+    private volatile Settings settings;
+
+    /**
+     * Constructor.
+     *
+     * @param rate Mensajes por segundo (0 o menos para no limitar).
+     * @param burst Mensajes que pueden enviarse seguidos.
+     * @param policy Política al superar el límite.
+     */
+    RateLimiter(double rate, int burst, RateLimitPolicy policy) {
+        set(rate, burst, policy);
+    }
+
+    /**
+     * Cambia el límite de todos los clientes.
+     *
+     * @param rate Mensajes por segundo (0 o menos para no limitar).
+     * @param burst Mensajes que pueden enviarse seguidos.
+     * @param policy Política al superar el límite.
+     */
+    void set(double rate, int burst, RateLimitPolicy policy) {
+        settings = new Settings(rate, burst, policy);
+    }
+
+    /**
+     * Obtiene la política al superar el límite.
+     *
+     * @return Política vigente.
+     */
+    RateLimitPolicy getPolicy() {
+        return settings.policy;
+    }
+
+    /**
+     * Describe el límite vigente.
+     *
+     * @return Texto para la consola.
+     */
+    @Override
+    public String toString() {
+        Settings current = settings;
+        if (current.interval == 0) {
+            return "sin límite de mensajes";
+        }
+        return current.rate + " mensajes/s, ráfaga de " + current.burst + ", política "
+                + current.policy.name().toLowerCase();
+    }
+
+    /**
+     * Crea la cubeta de un cliente, inicialmente llena.
+     *
+     * @return Cubeta nueva.
+     */
+    Bucket newBucket() {
+        return new Bucket();
+    }
+
+    /**
+     * Espera, si la política es {@code DELAY}, hasta que el cliente pueda
+     * enviar otro mensaje. Sólo para motores que dedican un hilo a cada
+     * cliente.
+     *
+     * @param bucket Cubeta del cliente.
+     * @return null si el mensaje se admite, o la política aplicada
+     *         ({@code DROP} o {@code DISCONNECT}).
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    RateLimitPolicy admit(Bucket bucket) throws InterruptedException {
+        long wait;
+        while ((wait = bucket.tryAcquire(System.nanoTime())) > 0) {
+            RateLimitPolicy policy = settings.policy;
+            if (policy != RateLimitPolicy.DELAY) {
+                return policy;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return null;
+    }
+
+    /**
+     * Valores del límite, inmutables para leerlos de una vez.
+     */
+    private static final class Settings {
+        /** Mensajes por segundo. */
+        private final double rate;
+        /** Mensajes que pueden enviarse seguidos. */
+        private final int burst;
+        /** Política al superar el límite. */
+        private final RateLimitPolicy policy;
+        /** Tiempo que tarda en rellenarse una ficha (0 sin límite). */
+        private final long interval;
+        /** Tiempo que tarda en rellenarse la cubeta entera. */
+        private final long capacity;
+
+        /**
+         * Constructor.
+         *
+         * @param rate Mensajes por segundo (0 o menos para no limitar).
+         * @param burst Mensajes que pueden enviarse seguidos.
+         * @param policy Política al superar el límite.
+         */
+        Settings(double rate, int burst, RateLimitPolicy policy) {
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.policy = policy;
+            this.interval = rate > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate)) : 0;
+            this.capacity = interval * this.burst;
+        }
+    }
+
+    /**
+     * Cubeta de fichas de un cliente.
+     */
+    final class Bucket {
+        /** Instante en que la cubeta estaría llena si no se envía nada más. */
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+        /**
+         * Intenta consumir una ficha.
+         *
+         * @param now Instante actual ({@link System#nanoTime()}).
+         * @return 0 si se ha consumido, o el tiempo en nanosegundos hasta que
+         *         habrá una ficha disponible (sin consumir nada).
+         */
+        long tryAcquire(long now) {
+            Settings current = settings;
+            if (current.interval == 0) {
+                return 0;
+            }
+            while (true) {
+                long previous = full.get();
+                long next = Math.max(previous, now) + current.interval;
+                long excess = next - now - current.capacity;
+                if (excess > 0) {
+                    return excess;
+                }
+                if (full.compareAndSet(previous, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
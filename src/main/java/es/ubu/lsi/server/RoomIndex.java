@@ -0,0 +1,127 @@
+package es.ubu.lsi.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Índice de pertenencia a salas de chat.
+ * Para cada sala guarda el conjunto de sus miembros, de modo que un mensaje
+ * a la sala sólo recorre a esos miembros y no a todos los clientes.
+ * Las consultas no usan cerrojos; las altas y bajas sólo bloquean el cubo
+ * del mapa correspondiente a la sala afectada, por lo que la concurrencia
+ * en salas distintas no se estorba.
+ * Al eliminar una sala vacía se avisa a quien guarde datos de la sala (como
+ * su historial), para que los nombres elegidos por los clientes no dejen
+ * memoria ocupada.
+ *
+ * @param <C> Tipo de las conexiones de cliente.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class RoomIndex<C> {
+    /** Miembros de cada sala, indexados por nombre. Las salas vacías se eliminan. */
+    private final ConcurrentHashMap<String, Set<C>> rooms = new ConcurrentHashMap<>();
+    /** Acción que se ejecuta al eliminar una sala vacía. */
+    private final Consumer<String> onDrop;
+
+    /**
+     * Constructor.
+     *
+     * @param onDrop Acción que recibe el nombre de cada sala vacía eliminada.
+     */
+    RoomIndex(Consumer<String> onDrop) {
+        this.onDrop = onDrop;
+    }
+
+    /**
+     * Añade un cliente a una sala, creándola si no existe.
+     *
+     * @param room Nombre de la sala.
+     * @param client Cliente que se une.
+     * @return true si el cliente no era ya miembro.
+     */
+    boolean join(String room, C client) {
+        boolean[] added = new boolean[1];
+        // compute es atómico por clave: no compite con la eliminación de la sala vacía
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = members.add(client);
+            return members;
+        });
+        return added[0];
+    }
+
+    /**
+     * Saca a un cliente de una sala, eliminándola si se queda vacía.
+     *
+     * @param room Nombre de la sala.
+     * @param client Cliente que sale.
+     * @return true si el cliente era miembro.
+     */
+    boolean leave(String room, C client) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(client);
+            if (members.isEmpty()) {
+                onDrop.accept(name);
+                return null;
+            }
+            return members;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Ejecuta una acción sólo si la sala existe, sin que pueda eliminarse
+     * mientras tanto. Así lo que se guarde para la sala no sobrevive a su
+     * eliminación.
+     *
+     * @param room Nombre de la sala.
+     * @param action Acción a ejecutar.
+     */
+    void ifPresent(String room, Runnable action) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            action.run();
+            return members;
+        });
+    }
+
+    /**
+     * Obtiene los miembros actuales de una sala.
+     * La vista refleja las altas y bajas concurrentes sin necesidad de copiarla.
+     *
+     * @param room Nombre de la sala.
+     * @return Miembros de la sala (vacío si no existe).
+     */
+    Set<C> members(String room) {
+        Set<C> members = room == null ? null : rooms.get(room);
+        return members == null ? Collections.<C>emptySet() : members;
+    }
+
+    /**
+     * Indica si un cliente es miembro de una sala.
+     *
+     * @param room Nombre de la sala.
+     * @param client Cliente.
+     * @return true si es miembro.
+     */
+    boolean isMember(String room, C client) {
+        return members(room).contains(client);
+    }
+
+    /**
+     * Obtiene los nombres de las salas existentes.
+     *
+     * @return Nombres de las salas con algún miembro.
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+}
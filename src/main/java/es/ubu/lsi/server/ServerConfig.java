@@ -0,0 +1,528 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.Handshake;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opciones de arranque del servidor de chat.
+ * Las opciones se leen de los argumentos de la línea de comandos con la forma
+ * {@code --clave=valor} y, si no aparecen, de las propiedades del sistema
+ * {@code -Dchat.clave=valor}. Si tampoco existen se usa el valor por defecto.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public class ServerConfig {
+
+    /** Prefijo de las propiedades del sistema. */
+    private static final String PROPERTY_PREFIX = "chat.";
+
+    /** Opciones indicadas explícitamente en la línea de comandos. */
+    private final Map<String, String> options = new HashMap<>();
+
+    /**
+     * Construye la configuración a partir de los argumentos de arranque.
+     *
+     * @param args Argumentos con la forma {@code --clave=valor}.
+     * @return Configuración resultante.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                config.options.put(arg.substring(2), "true");
+            } else {
+                config.options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Establece una opción (útil para pruebas y arranques programáticos).
+     *
+     * @param key Clave de la opción.
+     * @param value Valor de la opción.
+     * @return Esta misma configuración.
+     */
+    public ServerConfig set(String key, String value) {
+        options.put(key, value);
+        return this;
+    }
+
+    /**
+     * Obtiene una opción de texto.
+     *
+     * @param key Clave de la opción.
+     * @param defaultValue Valor por defecto.
+     * @return Valor de la opción.
+     */
+    public String getString(String key, String defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_PREFIX + key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * Obtiene una opción entera.
+     *
+     * @param key Clave de la opción.
+     * @param defaultValue Valor por defecto (también si el valor no es numérico).
+     * @return Valor de la opción.
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para la opción " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Puerto de escucha del servidor.
+     *
+     * @return Puerto configurado (1500 por defecto).
+     */
+    public int getPort() {
+        return getInt("port", 1500);
+    }
+
+    /**
+     * Longitud de la cola de conexiones pendientes de aceptar del sistema
+     * operativo. Un valor alto absorbe las avalanchas de reconexiones.
+     *
+     * @return Longitud configurada (1024 por defecto).
+     */
+    public int getAcceptBacklog() {
+        return Math.max(1, getInt("acceptBacklog", 1024));
+    }
+
+    /**
+     * Número de hilos que aceptan conexiones en el socket de escucha.
+     *
+     * @return Hilos configurados (1 por defecto).
+     */
+    public int getAcceptors() {
+        return Math.max(1, getInt("acceptors", 1));
+    }
+
+    /**
+     * Hilos que negocian el codificador y leen el nickname de las conexiones
+     * nuevas en el motor de hilos, para que un cliente que no envía nada no
+     * detenga la aceptación. Con hilos virtuales no hay límite.
+     *
+     * @return Hilos configurados (4 por procesador, 16 como mínimo, por defecto).
+     */
+    public int getHandshakeThreads() {
+        return Math.max(1, getInt("handshakeThreads", Math.max(16, 4 * Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Espera máxima para que una conexión nueva complete la negociación y
+     * envíe su nickname.
+     *
+     * @return Espera en milisegundos (5000 por defecto).
+     */
+    public int getHandshakeTimeoutMillis() {
+        return Math.max(1, getInt("handshakeTimeoutMillis", 5000));
+    }
+
+    /**
+     * Motor de E/S del servidor: {@code threads} (un hilo de plataforma por
+     * cliente), {@code virtual} (un hilo virtual por cliente, Java 21+)
+     * o {@code nio} (selectores con un grupo fijo de hilos).
+     *
+     * @return Nombre del motor configurado.
+     */
+    public String getEngine() {
+        return getString("engine", "threads");
+    }
+
+    /**
+     * Codificadores que el servidor acepta negociar con los clientes, por orden
+     * de preferencia ({@code binary}, {@code serialization}, y sus variantes
+     * comprimidas {@code binary+deflate} y {@code serialization+deflate}). La
+     * serialización de Java se admite siempre como alternativa para clientes
+     * antiguos. La compresión sólo se usa con los clientes que la piden.
+     *
+     * @return Identificadores de los codificadores (ver {@link Handshake}).
+     */
+    public byte[] getCodecs() {
+        String[] names = getString("codecs", "binary+deflate,binary,serialization+deflate,serialization").split(",");
+        byte[] codecs = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            codecs[i] = Handshake.codecId(names[i].trim());
+        }
+        return codecs;
+    }
+
+    /**
+     * Tamaño mínimo de la carga útil de un mensaje a partir del cual se
+     * comprime para los clientes que han negociado una variante comprimida.
+     *
+     * @return Umbral en bytes (256 por defecto; 0 comprime todos los mensajes).
+     */
+    public int getCompressionThreshold() {
+        int threshold = getInt("compressionThreshold", Handshake.DEFAULT_COMPRESSION_THRESHOLD);
+        if (threshold < 0) {
+            System.err.println("Valor inválido para la opción compressionThreshold: " + threshold);
+            return Handshake.DEFAULT_COMPRESSION_THRESHOLD;
+        }
+        return threshold;
+    }
+
+    /**
+     * Capacidad de la cola de salida de cada cliente, en mensajes.
+     *
+     * @return Capacidad configurada (1024 por defecto).
+     */
+    public int getQueueCapacity() {
+        return Math.max(1, getInt("queueCapacity", 1024));
+    }
+
+    /**
+     * Política cuando la cola de salida de un cliente se llena
+     * ({@code drop-oldest}, {@code disconnect} o {@code block}).
+     *
+     * @return Política configurada ({@code drop-oldest} por defecto).
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        String name = getString("overflowPolicy", "drop-oldest");
+        try {
+            return OverflowPolicy.fromName(name);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Valor inválido para la opción overflowPolicy: " + name);
+            return OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
+    /**
+     * Mensajes por segundo que puede enviar cada cliente.
+     *
+     * @return Límite configurado (0 por defecto, sin límite).
+     */
+    public double getRateLimit() {
+        String value = getString("rateLimit", "0");
+        try {
+            return Math.max(0, Double.parseDouble(value));
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para la opción rateLimit: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Mensajes que puede enviar seguidos un cliente antes de que se aplique
+     * su límite por segundo.
+     *
+     * @return Ráfaga configurada (por defecto, los mensajes de un segundo).
+     */
+    public int getRateBurst() {
+        return Math.max(1, getInt("rateBurst", (int) Math.ceil(getRateLimit())));
+    }
+
+    /**
+     * Tiempo sin recibir nada de un cliente tras el que se le desconecta.
+     * A mitad de ese tiempo el servidor le envía un {@code PING} para
+     * comprobar si sigue ahí.
+     *
+     * @return Tiempo en milisegundos (0 por defecto: no se desconecta nunca).
+     */
+    public int getIdleTimeoutMillis() {
+        return Math.max(0, getInt("idleTimeoutMillis", 0));
+    }
+
+    /**
+     * Espera máxima del apagado para que los clientes reciban los mensajes
+     * pendientes y el aviso de apagado antes de cerrar sus conexiones.
+     *
+     * @return Espera en milisegundos (1000 por defecto).
+     */
+    public int getShutdownTimeoutMillis() {
+        return Math.max(0, getInt("shutdownTimeoutMillis", 1000));
+    }
+
+    /**
+     * Política cuando un cliente supera su límite de mensajes
+     * ({@code delay}, {@code drop} o {@code disconnect}).
+     *
+     * @return Política configurada ({@code delay} por defecto).
+     */
+    public RateLimitPolicy getRateLimitPolicy() {
+        String name = getString("rateLimitPolicy", "delay");
+        try {
+            return RateLimitPolicy.fromName(name);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Valor inválido para la opción rateLimitPolicy: " + name);
+            return RateLimitPolicy.DELAY;
+        }
+    }
+
+    /**
+     * Espera máxima de la política {@code block} antes de desconectar al cliente.
+     *
+     * @return Espera en milisegundos (1000 por defecto).
+     */
+    public int getBlockTimeoutMillis() {
+        return Math.max(0, getInt("blockTimeoutMillis", 1000));
+    }
+
+    /**
+     * Tamaño máximo de un lote de escritura hacia un cliente.
+     *
+     * @return Tamaño en bytes (64 KiB por defecto).
+     */
+    public int getBatchBytes() {
+        return Math.max(1, getInt("batchBytes", 64 * 1024));
+    }
+
+    /**
+     * Ventana de espera para agrupar mensajes en un mismo lote de escritura.
+     * Con 0 sólo se agrupan los mensajes que ya estaban encolados, lo que
+     * minimiza la latencia; valores mayores aumentan el rendimiento en ráfagas.
+     *
+     * @return Ventana en microsegundos (0 por defecto).
+     */
+    public int getBatchDelayMicros() {
+        return Math.max(0, getInt("batchDelayMicros", 0));
+    }
+
+    /**
+     * Número de hilos que reparten en paralelo las difusiones grandes. Cada
+     * hilo atiende siempre a los mismos clientes.
+     *
+     * @return Número de hilos (0 por defecto: cada difusión se reparte en el
+     *         hilo que la envía).
+     */
+    public int getFanOutThreads() {
+        return Math.max(0, getInt("fanOutThreads", 0));
+    }
+
+    /**
+     * Número mínimo de destinatarios para repartir una difusión en paralelo.
+     *
+     * @return Destinatarios (1024 por defecto).
+     */
+    public int getFanOutThreshold() {
+        return Math.max(1, getInt("fanOutThreshold", 1024));
+    }
+
+    /**
+     * Número de mensajes recientes que se guardan (globalmente y por sala)
+     * para enviarlos a los clientes que se conectan o se unen a una sala.
+     *
+     * @return Número de mensajes (50 por defecto; 0 desactiva el historial).
+     */
+    public int getHistorySize() {
+        return Math.max(0, getInt("historySize", 50));
+    }
+
+    /**
+     * Tamaño máximo de cada historial de mensajes recientes.
+     *
+     * @return Tamaño en bytes (64 KiB por defecto).
+     */
+    public int getHistoryBytes() {
+        return Math.max(0, getInt("historyBytes", 64 * 1024));
+    }
+
+    /**
+     * Número máximo de mensajes que se guardan para cada cliente que pierde
+     * la conexión sin cerrar sesión, hasta que vuelve a conectarse.
+     *
+     * @return Número de mensajes (0 por defecto, que desactiva los buzones).
+     */
+    public int getMailboxSize() {
+        return Math.max(0, getInt("mailboxSize", 0));
+    }
+
+    /**
+     * Mensajes de cada buzón que se guardan en memoria; el resto se vuelca a
+     * disco si se indica el directorio de los buzones.
+     *
+     * @return Número de mensajes (256 por defecto).
+     */
+    public int getMailboxMemory() {
+        return Math.max(1, getInt("mailboxMemory", 256));
+    }
+
+    /**
+     * Directorio en el que se vuelcan los buzones que no caben en memoria y
+     * en el que se guardan al apagar el servidor. Si no se indica, los
+     * buzones sólo se guardan en memoria.
+     *
+     * @return Ruta del directorio (vacía por defecto).
+     */
+    public String getMailboxDir() {
+        return getString("mailboxDir", "");
+    }
+
+    /**
+     * Número de mensajes del buzón que se envían antes de esperar la
+     * confirmación del cliente.
+     *
+     * @return Número de mensajes (64 por defecto).
+     */
+    public int getMailboxBatch() {
+        return Math.max(1, getInt("mailboxBatch", 64));
+    }
+
+    /**
+     * Tiempo que se conserva el buzón de un cliente que no vuelve a conectarse.
+     *
+     * @return Tiempo en minutos (1440 por defecto, un día).
+     */
+    public int getMailboxTtlMinutes() {
+        return Math.max(1, getInt("mailboxTtlMinutes", 1440));
+    }
+
+    /**
+     * Directorio del registro persistente de mensajes. Si no se indica, los
+     * mensajes no se guardan en disco.
+     * Al arrancar, el historial reciente se recupera de este registro.
+     *
+     * @return Ruta del directorio (vacía por defecto).
+     */
+    public String getLogDir() {
+        return getString("logDir", "");
+    }
+
+    /**
+     * Tamaño de cada segmento del registro persistente.
+     *
+     * @return Tamaño en bytes (64 MiB por defecto).
+     */
+    public int getLogSegmentBytes() {
+        return getInt("logSegmentBytes", 64 * 1024 * 1024);
+    }
+
+    /**
+     * Política de volcado a disco del registro persistente
+     * ({@code always}, {@code interval} u {@code os}).
+     *
+     * @return Política configurada ({@code interval} por defecto).
+     */
+    public FsyncPolicy getLogFsync() {
+        String name = getString("logFsync", "interval");
+        try {
+            return FsyncPolicy.fromName(name);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Valor inválido para la opción logFsync: " + name);
+            return FsyncPolicy.INTERVAL;
+        }
+    }
+
+    /**
+     * Intervalo de volcado de la política {@code interval}.
+     *
+     * @return Intervalo en milisegundos (1000 por defecto).
+     */
+    public int getLogFlushMillis() {
+        return Math.max(1, getInt("logFlushMillis", 1000));
+    }
+
+    /**
+     * Nivel de los mensajes de consola del servidor ({@code off}, {@code error},
+     * {@code warn}, {@code info} o {@code debug}). Con {@code warn} o menos no
+     * se muestran los mensajes del chat.
+     *
+     * @return Nivel configurado ({@code info} por defecto).
+     */
+    public AsyncLog.Level getLogLevel() {
+        String name = getString("logLevel", "info");
+        AsyncLog.Level level = AsyncLog.Level.fromName(name, null);
+        if (level == null) {
+            System.err.println("Valor inválido para la opción logLevel: " + name);
+            return AsyncLog.Level.INFO;
+        }
+        return level;
+    }
+
+    /**
+     * Puerto local del punto de consulta de métricas en texto
+     * ({@code http://127.0.0.1:<puerto>/metrics}). Las métricas se publican
+     * siempre por JMX.
+     *
+     * @return Puerto configurado (0 por defecto, sin punto de consulta).
+     */
+    public int getMetricsPort() {
+        return Math.max(0, getInt("metricsPort", 0));
+    }
+
+    /**
+     * Puerto en el que el servidor escucha a los demás nodos del cluster.
+     *
+     * @return Puerto configurado (0 por defecto, servidor independiente).
+     */
+    public int getClusterPort() {
+        return Math.max(0, getInt("clusterPort", 0));
+    }
+
+    /**
+     * Direcciones de cluster de los demás nodos, con la forma
+     * {@code host:puerto,host:puerto}. Cada nodo debe incluir a todos los demás.
+     *
+     * @return Direcciones configuradas (ninguna por defecto).
+     */
+    public List<InetSocketAddress> getClusterPeers() {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : getString("clusterPeers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            try {
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                System.err.println("Valor inválido para la opción clusterPeers: " + peer);
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Identificador de este servidor en el cluster, único entre todos los nodos.
+     *
+     * @return Identificador configurado (por defecto, {@code <equipo>:<clusterPort>}).
+     */
+    public String getNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return getString("nodeId", host + ":" + getClusterPort());
+    }
+
+    /**
+     * Número de hilos de bucle de eventos del motor NIO.
+     *
+     * @return Número de hilos (por defecto, el número de procesadores).
+     */
+    public int getEventLoops() {
+        return Math.max(1, getInt("eventLoops", Runtime.getRuntime().availableProcessors()));
+    }
+}
@@ -0,0 +1,421 @@
+package es.ubu.lsi.server;
+
+import com.sun.net.httpserver.HttpServer;
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Métricas del servidor de chat.
+ * Los contadores son {@link LongAdder}, de modo que los hilos de los clientes
+ * los incrementan sin reservar memoria ni competir por una misma variable; los
+ * tiempos se acumulan en histogramas de tamaño fijo. Un hilo calcula cada
+ * segundo los ritmos por segundo a partir de los contadores.
+ * Las métricas se publican por JMX y, si se indica un puerto, en formato de
+ * texto de Prometheus en {@code http://127.0.0.1:<puerto>/metrics}.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    /** Nombre JMX de las métricas. */
+    private static final String OBJECT_NAME = "es.ubu.lsi.chat:type=ServerMetrics";
+
+    /** Servidor medido (para los clientes conectados y sus colas). */
+    private final ChatServer server;
+    /** Puerto del punto de consulta en texto (0 para no abrirlo). */
+    private final int port;
+
+    /** Conexiones aceptadas. */
+    private final LongAdder accepts = new LongAdder();
+    /** Mensajes recibidos. */
+    private final LongAdder messagesIn = new LongAdder();
+    /** Mensajes escritos en los sockets. */
+    private final LongAdder messagesOut = new LongAdder();
+    /** Bytes recibidos. */
+    private final LongAdder bytesIn = new LongAdder();
+    /** Bytes escritos. */
+    private final LongAdder bytesOut = new LongAdder();
+    /** Tiempos de reparto de cada mensaje, en nanosegundos. */
+    private final LatencyHistogram fanOutTimes = new LatencyHistogram();
+    /** Tiempos de codificación de cada trama, en nanosegundos. */
+    private final LatencyHistogram encodeTimes = new LatencyHistogram();
+    /** Tiempos de cada etapa del procesamiento de los mensajes, en nanosegundos. */
+    private final LatencyHistogram[] stageTimes = new LatencyHistogram[MessagePipeline.Stage.values().length];
+    /** Tiempos de decodificación de cada trama, en nanosegundos. */
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+    /** Tiempos de la comprobación del límite de mensajes, en nanosegundos. */
+    private final LatencyHistogram rateLimitTimes = new LatencyHistogram();
+    /** Tiempos de escritura en el registro persistente, en nanosegundos. */
+    private final LatencyHistogram persistTimes = new LatencyHistogram();
+
+    /** Conexiones aceptadas en el último segundo. */
+    private volatile double acceptsRate;
+    /** Mensajes recibidos en el último segundo. */
+    private volatile double messagesInRate;
+    /** Mensajes escritos en el último segundo. */
+    private volatile double messagesOutRate;
+    /** Conexiones aceptadas hasta el último muestreo. */
+    private long lastAccepts;
+    /** Mensajes recibidos hasta el último muestreo. */
+    private long lastMessagesIn;
+    /** Mensajes escritos hasta el último muestreo. */
+    private long lastMessagesOut;
+
+    /** Hilo que calcula los ritmos. */
+    private ScheduledExecutorService sampler;
+    /** Servidor HTTP del punto de consulta. */
+    private HttpServer http;
+
+    /**
+     * Constructor.
+     *
+     * @param server Servidor medido.
+     * @param port Puerto del punto de consulta en texto (0 para no abrirlo).
+     */
+    ServerMetrics(ChatServer server, int port) {
+        this.server = server;
+        this.port = port;
+        for (int i = 0; i < stageTimes.length; i++) {
+            stageTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Publica las métricas por JMX y, si hay puerto, por HTTP, y arranca el
+     * cálculo de ritmos.
+     */
+    synchronized void start() {
+        EncodedMessage.recordEncodeTimes(encodeTimes);
+        sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeans.isRegistered(name)) {
+                mbeans.unregisterMBean(name);
+            }
+            mbeans.registerMBean(this, name);
+        } catch (JMException e) {
+            AsyncLog.error("No se pueden publicar las métricas por JMX: " + e.getMessage());
+        }
+        if (port > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.start();
+                AsyncLog.info("Métricas disponibles en http://127.0.0.1:" + port + "/metrics");
+            } catch (IOException e) {
+                AsyncLog.error("No se puede abrir el puerto de métricas " + port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retira las métricas de JMX y cierra el punto de consulta.
+     */
+    synchronized void close() {
+        EncodedMessage.recordEncodeTimes(null);
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        if (http != null) {
+            http.stop(0);
+        }
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeans.isRegistered(name)) {
+                mbeans.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // Ya no estaba publicado
+        }
+    }
+
+    /**
+     * Registra una conexión aceptada.
+     */
+    void accepted() {
+        accepts.increment();
+    }
+
+    /**
+     * Registra un mensaje recibido.
+     *
+     * @param frameBytes Bytes de la trama, con cabecera.
+     * @param decodeNanos Tiempo de decodificación.
+     */
+    void received(int frameBytes, long decodeNanos) {
+        messagesIn.increment();
+        bytesIn.add(frameBytes);
+        decodeTimes.record(decodeNanos);
+    }
+
+    /**
+     * Registra mensajes escritos en el socket de un cliente.
+     *
+     * @param messages Número de mensajes.
+     * @param bytes Número de bytes.
+     */
+    void sent(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Registra el reparto de un mensaje a sus destinatarios.
+     *
+     * @param nanos Tiempo de reparto.
+     */
+    void fannedOut(long nanos) {
+        fanOutTimes.record(nanos);
+    }
+
+    /**
+     * Registra la comprobación del límite de mensajes de un cliente.
+     *
+     * @param nanos Tiempo de la comprobación.
+     */
+    void rateLimited(long nanos) {
+        rateLimitTimes.record(nanos);
+    }
+
+    /**
+     * Registra la escritura de un mensaje en el registro persistente.
+     *
+     * @param nanos Tiempo de la escritura.
+     */
+    void persisted(long nanos) {
+        persistTimes.record(nanos);
+    }
+
+    /**
+     * Registra el tiempo de una etapa del procesamiento de un mensaje.
+     *
+     * @param stage Etapa.
+     * @param nanos Tiempo de la etapa.
+     */
+    void stage(MessagePipeline.Stage stage, long nanos) {
+        stageTimes[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Calcula los ritmos del último segundo.
+     */
+    private void sample() {
+        long currentAccepts = accepts.sum();
+        long currentIn = messagesIn.sum();
+        long currentOut = messagesOut.sum();
+        acceptsRate = currentAccepts - lastAccepts;
+        messagesInRate = currentIn - lastMessagesIn;
+        messagesOutRate = currentOut - lastMessagesOut;
+        lastAccepts = currentAccepts;
+        lastMessagesIn = currentIn;
+        lastMessagesOut = currentOut;
+    }
+
+    /**
+     * Genera las métricas en el formato de texto de Prometheus.
+     *
+     * @return Texto de la consulta.
+     */
+    String scrape() {
+        StringBuilder out = new StringBuilder(1024);
+        Map<String, Integer> depths = server.getQueueDepths();
+        metric(out, "chat_connections", "gauge", depths.size());
+        metric(out, "chat_accepts_total", "counter", accepts.sum());
+        metric(out, "chat_accepts_per_second", "gauge", acceptsRate);
+        metric(out, "chat_messages_in_total", "counter", messagesIn.sum());
+        metric(out, "chat_messages_in_per_second", "gauge", messagesInRate);
+        metric(out, "chat_messages_out_total", "counter", messagesOut.sum());
+        metric(out, "chat_messages_out_per_second", "gauge", messagesOutRate);
+        metric(out, "chat_bytes_in_total", "counter", bytesIn.sum());
+        metric(out, "chat_bytes_out_total", "counter", bytesOut.sum());
+        summary(out, "chat_fanout_seconds", fanOutTimes);
+        summary(out, "chat_encode_seconds", encodeTimes);
+        summary(out, "chat_decode_seconds", decodeTimes);
+        summary(out, "chat_rate_limit_seconds", rateLimitTimes);
+        summary(out, "chat_persist_seconds", persistTimes);
+        out.append("# TYPE chat_stage_seconds summary\n");
+        for (MessagePipeline.Stage stage : MessagePipeline.Stage.values()) {
+            String label = "chat_stage_seconds{stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"";
+            LatencyHistogram histogram = stageTimes[stage.ordinal()];
+            out.append(label).append(",quantile=\"0.5\"} ")
+                    .append(format(histogram.getValueAtPercentile(50) / 1e9)).append('\n');
+            out.append(label).append(",quantile=\"0.99\"} ")
+                    .append(format(histogram.getValueAtPercentile(99) / 1e9)).append('\n');
+        }
+        out.append("# TYPE chat_queue_depth gauge\n");
+        depths.forEach((client, depth) -> out.append("chat_queue_depth{client=\"")
+                .append(client.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"} ").append(depth).append('\n'));
+        return out.toString();
+    }
+
+    /**
+     * Añade una métrica simple.
+     *
+     * @param out Texto de la consulta.
+     * @param name Nombre de la métrica.
+     * @param type Tipo ({@code counter} o {@code gauge}).
+     * @param value Valor.
+     */
+    private static void metric(StringBuilder out, String name, String type, double value) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    /**
+     * Añade los percentiles de un histograma de tiempos, en segundos.
+     *
+     * @param out Texto de la consulta.
+     * @param name Nombre de la métrica.
+     * @param histogram Histograma en nanosegundos.
+     */
+    private static void summary(StringBuilder out, String name, LatencyHistogram histogram) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(histogram.getValueAtPercentile(quantile * 100) / 1e9)).append('\n');
+        }
+        long count = histogram.getCount();
+        out.append(name).append("_sum ").append(format(histogram.getMean() * count / 1e9)).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    /**
+     * Da formato a un valor numérico sin depender de la configuración regional
+     * (los enteros, sin decimales).
+     *
+     * @param value Valor.
+     * @return Texto del valor.
+     */
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    @Override
+    public int getConnections() {
+        return server.getQueueDepths().size();
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptsRate;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getFanOutP50Micros() {
+        return fanOutTimes.getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return fanOutTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getFanOutMaxMicros() {
+        return fanOutTimes.getMax() / 1e3;
+    }
+
+    @Override
+    public double getEncodeP99Micros() {
+        return encodeTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getDecodeP99Micros() {
+        return decodeTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getRateLimitP99Micros() {
+        return rateLimitTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getPersistP99Micros() {
+        return persistTimes.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Micros() {
+        Map<String, Double> times = new LinkedHashMap<>();
+        for (MessagePipeline.Stage stage : MessagePipeline.Stage.values()) {
+            times.put(stage.name().toLowerCase(Locale.ROOT), stageTimes[stage.ordinal()].getValueAtPercentile(99) / 1e3);
+        }
+        return times;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return server.getQueueDepths();
+    }
+}
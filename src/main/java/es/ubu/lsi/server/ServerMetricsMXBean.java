@@ -0,0 +1,143 @@
+package es.ubu.lsi.server;
+
+import java.util.Map;
+
+/**
+ * Métricas del servidor de chat publicadas por JMX
+ * ({@code es.ubu.lsi.chat:type=ServerMetrics}).
+ * Los tiempos se expresan en microsegundos y los ritmos, por segundo
+ * (calculados sobre el último segundo).
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * Clientes conectados.
+     *
+     * @return Valor actual.
+     */
+    int getConnections();
+
+    /**
+     * Conexiones aceptadas desde el arranque.
+     *
+     * @return Valor actual.
+     */
+    long getAccepts();
+
+    /**
+     * Conexiones aceptadas por segundo.
+     *
+     * @return Valor actual.
+     */
+    double getAcceptsPerSecond();
+
+    /**
+     * Mensajes recibidos de los clientes desde el arranque.
+     *
+     * @return Valor actual.
+     */
+    long getMessagesIn();
+
+    /**
+     * Mensajes recibidos por segundo.
+     *
+     * @return Valor actual.
+     */
+    double getMessagesInPerSecond();
+
+    /**
+     * Mensajes escritos en los sockets de los clientes desde el arranque.
+     *
+     * @return Valor actual.
+     */
+    long getMessagesOut();
+
+    /**
+     * Mensajes escritos por segundo.
+     *
+     * @return Valor actual.
+     */
+    double getMessagesOutPerSecond();
+
+    /**
+     * Bytes recibidos desde el arranque.
+     *
+     * @return Valor actual.
+     */
+    long getBytesIn();
+
+    /**
+     * Bytes escritos desde el arranque.
+     *
+     * @return Valor actual.
+     */
+    long getBytesOut();
+
+    /**
+     * Mediana del tiempo de reparto de un mensaje a sus destinatarios.
+     *
+     * @return Valor actual.
+     */
+    double getFanOutP50Micros();
+
+    /**
+     * Percentil 99 del tiempo de reparto de un mensaje a sus destinatarios.
+     *
+     * @return Valor actual.
+     */
+    double getFanOutP99Micros();
+
+    /**
+     * Máximo del tiempo de reparto de un mensaje a sus destinatarios.
+     *
+     * @return Valor actual.
+     */
+    double getFanOutMaxMicros();
+
+    /**
+     * Percentil 99 del tiempo de codificación de una trama.
+     *
+     * @return Valor actual.
+     */
+    double getEncodeP99Micros();
+
+    /**
+     * Percentil 99 del tiempo de decodificación de una trama.
+     *
+     * @return Valor actual.
+     */
+    double getDecodeP99Micros();
+
+    /**
+     * Percentil 99 del tiempo de comprobación del límite de mensajes.
+     *
+     * @return Valor actual.
+     */
+    double getRateLimitP99Micros();
+
+    /**
+     * Percentil 99 del tiempo de escritura en el registro persistente.
+     *
+     * @return Valor actual.
+     */
+    double getPersistP99Micros();
+
+    /**
+     * Percentil 99 del tiempo de cada etapa del procesamiento de un mensaje.
+     *
+     * @return Valor actual, por etapa.
+     */
+    Map<String, Double> getStageP99Micros();
+
+    /**
+     * Mensajes pendientes en la cola de salida de cada cliente.
+     *
+     * @return Valor actual.
+     */
+    Map<String, Integer> getQueueDepths();
+}
@@ -0,0 +1,238 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+import es.ubu.lsi.common.EncodedMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Reparto en paralelo de las difusiones con muchos destinatarios.
+ * Los clientes se dividen en grupos fijos según su ID y cada grupo lo atiende
+ * siempre el mismo hilo, que reparte las difusiones en el orden en que las
+ * recibe. Una difusión grande se entrega a todos los hilos a la vez, y cada uno
+ * encola el mensaje sólo a los clientes de su grupo; así el trabajo se reparte
+ * entre los núcleos y cada cliente recibe los mensajes de un mismo hilo en
+ * orden. Los destinatarios se dividen en grupos una sola vez, antes de
+ * entregar la difusión a los hilos, y cada hilo recorre sólo su lista; la
+ * instantánea de todos los clientes guarda su división, así que las
+ * difusiones globales no la repiten mientras no haya altas ni bajas.
+ * Las difusiones pequeñas se siguen repartiendo en el hilo que las envía,
+ * salvo que el remitente tenga aún difusiones en paralelo sin terminar: en ese
+ * caso también pasan por los hilos, para no adelantar a las anteriores. Los
+ * remitentes se agrupan en franjas con un contador de difusiones pendientes
+ * cada una; si dos remitentes comparten franja, como mucho se reparte en
+ * paralelo alguna difusión que no hacía falta.
+ *
+ * @param <C> Tipo de las conexiones de los clientes.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class ShardedFanOut<C extends ChatSession> {
+
+    /** Número de franjas de remitentes (potencia de dos). */
+    private static final int SENDER_STRIPES = 1024;
+
+    /** Hilos de reparto, uno por grupo de clientes. */
+    private final ExecutorService[] shards;
+
+    /** Número mínimo de destinatarios para repartir en paralelo. */
+    private final int threshold;
+
+    /** Métricas en las que se registran los tiempos de reparto. */
+    private final ServerMetrics metrics;
+
+    /** Difusiones en paralelo sin terminar de cada franja de remitentes. */
+    private final AtomicIntegerArray pending = new AtomicIntegerArray(SENDER_STRIPES);
+
+    /**
+     * Crea el reparto en paralelo si la configuración fija algún hilo.
+     *
+     * @param config Configuración de arranque.
+     * @param metrics Métricas del servidor.
+     * @param <C> Tipo de las conexiones de los clientes.
+     * @return Reparto en paralelo, o null si las difusiones se reparten en el hilo que las envía.
+     */
+    static <C extends ChatSession> ShardedFanOut<C> open(ServerConfig config, ServerMetrics metrics) {
+        int threads = config.getFanOutThreads();
+        return threads <= 0 ? null : new ShardedFanOut<>(threads, config.getFanOutThreshold(), metrics);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threads Número de hilos de reparto.
+     * @param threshold Número mínimo de destinatarios para repartir en paralelo.
+     * @param metrics Métricas del servidor.
+     */
+    private ShardedFanOut(int threads, int threshold, ServerMetrics metrics) {
+        this.threshold = threshold;
+        this.metrics = metrics;
+        this.shards = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "chat-fanout-" + (i + 1);
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Reparte un mensaje en paralelo si tiene suficientes destinatarios o si
+     * el remitente tiene difusiones en paralelo sin terminar.
+     *
+     * @param recipients Destinatarios.
+     * @param encoded Mensaje a entregar.
+     * @param blockers Clientes que bloquean al remitente (null si ninguno).
+     * @param startNanos Instante en que empezó el reparto, para las métricas.
+     * @return false si el mensaje debe repartirse en el hilo que llama.
+     */
+    boolean broadcast(Collection<C> recipients, EncodedMessage encoded, int[] blockers, long startNanos) {
+        int stripe = stripe(encoded);
+        if (recipients.size() < threshold && pending.get(stripe) == 0) {
+            return false;
+        }
+        List<List<C>> groups = split(recipients);
+        pending.addAndGet(stripe, shards.length);
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            List<C> group = groups.get(i);
+            execute(i, () -> {
+                try {
+                    for (int j = 0, n = group.size(); j < n; j++) {
+                        C client = group.get(j);
+                        if (!BlockIndex.isBlocked(blockers, client.getId())) {
+                            client.sendMessage(encoded);
+                        }
+                    }
+                } finally {
+                    pending.decrementAndGet(stripe);
+                    if (remaining.decrementAndGet() == 0) {
+                        metrics.fannedOut(System.nanoTime() - startNanos);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Entrega un mensaje privado por el hilo de su destinatario si el
+     * remitente tiene difusiones en paralelo sin terminar.
+     *
+     * @param recipient Destinatario.
+     * @param encoded Mensaje a entregar.
+     * @return false si el mensaje debe entregarse en el hilo que llama.
+     */
+    boolean sendPrivate(C recipient, EncodedMessage encoded) {
+        int stripe = stripe(encoded);
+        if (pending.get(stripe) == 0) {
+            return false;
+        }
+        pending.incrementAndGet(stripe);
+        execute(shardOf(recipient), () -> {
+            try {
+                recipient.sendMessage(encoded);
+            } finally {
+                pending.decrementAndGet(stripe);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Termina los repartos pendientes y detiene los hilos.
+     *
+     * @param timeoutMillis Espera máxima.
+     */
+    void close(long timeoutMillis) {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (ExecutorService shard : shards) {
+                shard.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo de un grupo. Si los hilos ya se han
+     * detenido, la ejecuta el hilo que llama.
+     *
+     * @param shard Grupo.
+     * @param task Tarea.
+     */
+    private void execute(int shard, Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                AsyncLog.error("Error al repartir un mensaje: " + e.getMessage());
+            }
+        };
+        try {
+            shards[shard].execute(guarded);
+        } catch (RejectedExecutionException e) {
+            guarded.run();
+        }
+    }
+
+    /**
+     * Divide los destinatarios en los grupos de los hilos. La instantánea del
+     * registro de conexiones reutiliza su división; el resto de colecciones,
+     * como los miembros de una sala, se recorren una vez.
+     *
+     * @param recipients Destinatarios.
+     * @return Destinatarios de cada grupo.
+     */
+    private List<List<C>> split(Collection<C> recipients) {
+        if (recipients instanceof ConnectionRegistry.Snapshot) {
+            // Las conexiones se agrupan por el resto de su ID, igual que en shardOf
+            return ((ConnectionRegistry.Snapshot<C>) recipients).split(shards.length);
+        }
+        List<List<C>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            groups.add(new ArrayList<>(recipients.size() / shards.length + 1));
+        }
+        for (C client : recipients) {
+            groups.get(shardOf(client)).add(client);
+        }
+        return groups;
+    }
+
+    /**
+     * Obtiene el grupo al que pertenece un cliente.
+     *
+     * @param client Cliente.
+     * @return Índice del grupo.
+     */
+    private int shardOf(C client) {
+        return Math.floorMod(client.getId(), shards.length);
+    }
+
+    /**
+     * Obtiene la franja del remitente de un mensaje.
+     *
+     * @param encoded Mensaje.
+     * @return Índice de la franja.
+     */
+    private static int stripe(EncodedMessage encoded) {
+        return encoded.getMessage().getId() & (SENDER_STRIPES - 1);
+    }
+}
@@ -0,0 +1,289 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.AsyncLog;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rueda de temporización que vigila la actividad de las conexiones.
+ * Cada conexión tiene una entrada con el instante de su última lectura;
+ * actualizarlo sólo escribe ese instante, sin mover la entrada de sitio.
+ * Las entradas se guardan en listas enlazadas, una por posición de la rueda,
+ * según el instante en que hay que revisarlas. En cada paso el hilo de la rueda
+ * sólo recorre la posición actual: si la conexión ha tenido actividad, su
+ * entrada se mueve a la posición de su nuevo plazo; si lleva inactiva la mitad
+ * del tiempo máximo se le envía un {@code PING}, y si lo lleva entero se
+ * expulsa. Así el coste por conexión es constante aunque haya cientos de
+ * miles.
+ * Las entradas canceladas no se quitan de su lista hasta que la rueda pasa por
+ * ellas, para que cancelar tampoco necesite sincronización.
+ *
+ * @param <T> Tipo de las conexiones vigiladas.
+ *
+ * @author Alejandro Navas García
+ * @author Nicolás Muñoz Miguel
+ *
+ * @version 1.0
+ */
+final class TimerWheel<T> {
+
+    /**
+     * Acciones sobre las conexiones inactivas.
+     *
+     * @param <T> Tipo de las conexiones vigiladas.
+     */
+    interface Listener<T> {
+
+        /**
+         * La conexión lleva inactiva la mitad del tiempo máximo.
+         *
+         * @param connection Conexión inactiva.
+         */
+        void ping(T connection);
+
+        /**
+         * La conexión ha superado el tiempo máximo de inactividad.
+         *
+         * @param connection Conexión que hay que expulsar.
+         */
+        void expire(T connection);
+    }
+
+    /**
+     * Entrada de una conexión en la rueda.
+     *
+     * @param <T> Tipo de la conexión.
+     */
+    static final class Timeout<T> {
+        /** Conexión vigilada. */
+        private final T connection;
+        /** Instante de la última actividad, en nanosegundos. */
+        private volatile long lastActivity = System.nanoTime();
+        /** Indica si se le ha enviado un PING sin actividad posterior. */
+        private volatile boolean pinged;
+        /** Indica si la conexión ya no se vigila. */
+        private volatile boolean cancelled;
+        /** Paso de la rueda en el que hay que revisar la entrada (sólo hilo de la rueda). */
+        private long deadlineTick;
+        /** Entrada anterior de la misma posición (sólo hilo de la rueda). */
+        private Timeout<T> prev;
+        /** Entrada siguiente de la misma posición (sólo hilo de la rueda). */
+        private Timeout<T> next;
+
+        /**
+         * Constructor.
+         *
+         * @param connection Conexión vigilada.
+         */
+        private Timeout(T connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Registra actividad de la conexión.
+         */
+        void touch() {
+            lastActivity = System.nanoTime();
+            if (pinged) {
+                pinged = false;
+            }
+        }
+
+        /**
+         * Deja de vigilar la conexión.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /** Número de posiciones de la rueda (potencia de dos). */
+    private static final int SLOTS = 128;
+
+    /** Máscara para obtener la posición de un paso. */
+    private static final int MASK = SLOTS - 1;
+
+    /** Duración mínima de un paso. */
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /** Tiempo máximo de inactividad. */
+    private final long timeoutNanos;
+
+    /** Inactividad tras la que se envía un PING. */
+    private final long pingNanos;
+
+    /** Duración de un paso. */
+    private final long tickNanos;
+
+    /** Acciones sobre las conexiones inactivas. */
+    private final Listener<T> listener;
+
+    /** Cabeceras (centinelas) de las listas de cada posición. */
+    private final Timeout<T>[] slots;
+
+    /** Entradas nuevas pendientes de colocar en la rueda. */
+    private final ConcurrentLinkedQueue<Timeout<T>> added = new ConcurrentLinkedQueue<>();
+
+    /** Instante de arranque de la rueda. */
+    private final long startNanos = System.nanoTime();
+
+    /** Hilo que hace avanzar la rueda. */
+    private final Thread worker;
+
+    /** Paso actual (sólo hilo de la rueda). */
+    private long tick;
+
+    /** Indica si la rueda está en marcha. */
+    private volatile boolean running = true;
+
+    /**
+     * Crea y arranca la rueda si la configuración fija un tiempo de inactividad.
+     *
+     * @param timeoutMillis Tiempo máximo de inactividad (0 para no vigilar).
+     * @param listener Acciones sobre las conexiones inactivas.
+     * @param <T> Tipo de las conexiones vigiladas.
+     * @return Rueda arrancada, o null si no hay tiempo máximo.
+     */
+    static <T> TimerWheel<T> open(int timeoutMillis, Listener<T> listener) {
+        return timeoutMillis <= 0 ? null : new TimerWheel<>(TimeUnit.MILLISECONDS.toNanos(timeoutMillis), listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeoutNanos Tiempo máximo de inactividad.
+     * @param listener Acciones sobre las conexiones inactivas.
+     */
+    private TimerWheel(long timeoutNanos, Listener<T> listener) {
+        this.timeoutNanos = timeoutNanos;
+        this.pingNanos = timeoutNanos / 2;
+        // La rueda abarca dos veces el tiempo máximo: casi ninguna entrada da más de una vuelta
+        this.tickNanos = Math.max(MIN_TICK_NANOS, 2 * timeoutNanos / SLOTS);
+        this.listener = listener;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Timeout<T>[] heads = new Timeout[SLOTS];
+        this.slots = heads;
+        for (int i = 0; i < SLOTS; i++) {
+            Timeout<T> head = new Timeout<>(null);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+        this.worker = new Thread(this::run, "chat-idle-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Empieza a vigilar una conexión.
+     *
+     * @param connection Conexión vigilada.
+     * @return Entrada de la conexión, para registrar su actividad.
+     */
+    Timeout<T> add(T connection) {
+        Timeout<T> timeout = new Timeout<>(connection);
+        added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Detiene la rueda.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * Bucle del hilo de la rueda: avanza un paso cada {@code tickNanos}.
+     */
+    private void run() {
+        long nextTick = startNanos + tickNanos;
+        while (running) {
+            long delay = nextTick - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(this, delay);
+                continue;
+            }
+            Timeout<T> timeout;
+            while ((timeout = added.poll()) != null) {
+                schedule(timeout, timeout.lastActivity + pingNanos);
+            }
+            expire(slots[(int) tick & MASK]);
+            tick++;
+            nextTick += tickNanos;
+        }
+    }
+
+    /**
+     * Revisa las entradas de una posición cuyo plazo es el paso actual.
+     *
+     * @param head Cabecera de la posición.
+     */
+    private void expire(Timeout<T> head) {
+        Timeout<T> timeout = head.next;
+        while (timeout != head) {
+            Timeout<T> next = timeout.next;
+            if (timeout.cancelled) {
+                unlink(timeout);
+            } else if (timeout.deadlineTick <= tick) {
+                unlink(timeout);
+                check(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Decide qué hacer con una entrada cuyo plazo ha vencido.
+     *
+     * @param timeout Entrada ya fuera de la rueda.
+     */
+    private void check(Timeout<T> timeout) {
+        long last = timeout.lastActivity;
+        long idle = System.nanoTime() - last;
+        try {
+            if (idle >= timeoutNanos) {
+                listener.expire(timeout.connection);
+                return;
+            }
+            if (idle >= pingNanos && !timeout.pinged) {
+                timeout.pinged = true;
+                listener.ping(timeout.connection);
+            }
+        } catch (RuntimeException e) {
+            AsyncLog.error("Error al revisar una conexión inactiva: " + e.getMessage());
+        }
+        schedule(timeout, last + (timeout.pinged ? timeoutNanos : pingNanos));
+    }
+
+    /**
+     * Coloca una entrada en la posición del paso en que vence un plazo.
+     *
+     * @param timeout Entrada.
+     * @param dueNanos Instante del plazo.
+     */
+    private void schedule(Timeout<T> timeout, long dueNanos) {
+        long dueTick = Math.max(tick + 1, (dueNanos - startNanos + tickNanos - 1) / tickNanos);
+        timeout.deadlineTick = dueTick;
+        Timeout<T> head = slots[(int) dueTick & MASK];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    /**
+     * Quita una entrada de su posición.
+     *
+     * @param timeout Entrada.
+     */
+    private static <T> void unlink(Timeout<T> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
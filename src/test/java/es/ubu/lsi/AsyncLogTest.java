@@ -0,0 +1,85 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.AsyncLog;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del registro asíncrono de consola.
+ */
+public class AsyncLogTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AsyncLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( AsyncLogTest.class );
+    }
+
+    /**
+     * Los mensajes se escriben con la hora delante, en la salida que
+     * corresponde a su nivel, y los de niveles desactivados se descartan.
+     */
+    public void testLevelsAndStreams()
+    {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        AsyncLog.Level level = AsyncLog.getLevel();
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        ByteArrayOutputStream capturedErr = new ByteArrayOutputStream();
+        AsyncLog.flush();
+        System.setOut( new PrintStream( captured, true ) );
+        System.setErr( new PrintStream( capturedErr, true ) );
+        try
+        {
+            AsyncLog.setLevel( AsyncLog.Level.INFO );
+            AsyncLog.info( "conectado" );
+            AsyncLog.debug( "detalle" );
+            AsyncLog.error( "fallo" );
+            AsyncLog.flush();
+        }
+        finally
+        {
+            System.setOut( out );
+            System.setErr( err );
+            AsyncLog.setLevel( level );
+        }
+        String text = captured.toString();
+        assertTrue( text, text.matches( "\\d\\d:\\d\\d:\\d\\d conectado\\R" ) );
+        assertTrue( capturedErr.toString().contains( "fallo" ) );
+    }
+
+    /**
+     * Con el nivel {@code off} no se registra nada.
+     */
+    public void testOffDisablesEverything()
+    {
+        AsyncLog.Level level = AsyncLog.getLevel();
+        AsyncLog.setLevel( AsyncLog.Level.OFF );
+        try
+        {
+            assertFalse( AsyncLog.isEnabled( AsyncLog.Level.ERROR ) );
+            assertFalse( AsyncLog.isEnabled( AsyncLog.Level.OFF ) );
+        }
+        finally
+        {
+            AsyncLog.setLevel( level );
+        }
+        assertEquals( AsyncLog.Level.DEBUG, AsyncLog.Level.fromName( "Debug", null ) );
+        assertNull( AsyncLog.Level.fromName( "verbose", null ) );
+    }
+}
@@ -0,0 +1,230 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.BatchingWriter;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de la escritura por lotes.
+ */
+public class BatchingWriterTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /** Marca de fin de los mensajes. */
+    private static final EncodedMessage END = new EncodedMessage( null );
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BatchingWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BatchingWriterTest.class );
+    }
+
+    /**
+     * Los mensajes ya encolados se escriben juntos en una sola escritura
+     * sobre el socket.
+     */
+    public void testCoalescesQueuedFrames() throws Exception
+    {
+        Queue source = new Queue();
+        for ( int i = 0; i < 10; i++ )
+        {
+            source.add( "m" + i );
+        }
+        source.end();
+        CountingStream out = new CountingStream();
+        new BatchingWriter( out, 64 * 1024, 0 ).drain( source, Handshake.CODEC_BINARY );
+
+        assertEquals( 1, out.writes.size() );
+        assertEquals( 10 * frameLength( "m0" ), (int) out.writes.get( 0 ) );
+    }
+
+    /**
+     * Un lote se cierra al alcanzar su tamaño máximo.
+     */
+    public void testSplitsAtMaxBytes() throws Exception
+    {
+        Queue source = new Queue();
+        for ( int i = 0; i < 10; i++ )
+        {
+            source.add( "m" + i );
+        }
+        source.end();
+        CountingStream out = new CountingStream();
+        int frame = frameLength( "m0" );
+        new BatchingWriter( out, 3 * frame, 0 ).drain( source, Handshake.CODEC_BINARY );
+
+        assertEquals( 4, out.writes.size() );
+        assertEquals( 3 * frame, (int) out.writes.get( 0 ) );
+        assertEquals( frame, (int) out.writes.get( 3 ) );
+    }
+
+    /**
+     * Con ventana de espera, los mensajes que llegan dentro de ella van en el
+     * mismo lote, que se vacía al agotarse la ventana aunque no lleguen más.
+     */
+    public void testFlushesAfterDelay() throws Exception
+    {
+        Queue source = new Queue();
+        CountingStream out = new CountingStream();
+        BatchingWriter writer = new BatchingWriter( out, 64 * 1024, TimeUnit.MILLISECONDS.toMicros( 200 ) );
+        Thread drainer = new Thread( () -> {
+            try
+            {
+                writer.drain( source, Handshake.CODEC_BINARY );
+            }
+            catch ( Exception e )
+            {
+                throw new RuntimeException( e );
+            }
+        } );
+        drainer.start();
+
+        long start = System.nanoTime();
+        source.add( "primero" );
+        Thread.sleep( 50 );
+        source.add( "segundo" );
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( out.writes.isEmpty() )
+        {
+            assertTrue( "No se ha vaciado el lote", System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "Se ha vaciado antes de la ventana: " + elapsed + " ms", elapsed >= 150 );
+        int frame = frameLength( "primero" );
+        assertEquals( 2 * frame, (int) out.writes.get( 0 ) );
+
+        source.add( "tercero" );
+        source.end();
+        drainer.join( TIMEOUT_MILLIS );
+        assertEquals( 2, out.writes.size() );
+        assertEquals( frame, (int) out.writes.get( 1 ) );
+    }
+
+    /**
+     * Mensaje difundido con un texto.
+     *
+     * @param text Texto.
+     * @return Mensaje.
+     */
+    private static ChatMessage message( String text )
+    {
+        return new ChatMessage( 1, ChatMessage.MessageType.MESSAGE, text );
+    }
+
+    /**
+     * Longitud de la trama binaria de un mensaje.
+     *
+     * @param text Texto del mensaje.
+     * @return Bytes de la trama.
+     */
+    private static int frameLength( String text ) throws Exception
+    {
+        return new EncodedMessage( message( text ) ).buffer( Handshake.CODEC_BINARY ).remaining();
+    }
+
+    /**
+     * Origen de mensajes sobre una cola.
+     */
+    private static class Queue implements BatchingWriter.Source
+    {
+        /** Mensajes pendientes. */
+        private final BlockingQueue<EncodedMessage> pending = new LinkedBlockingQueue<>();
+        /** Indica si ya se ha extraído la marca de fin. */
+        private boolean ended;
+
+        /**
+         * Encola un mensaje.
+         *
+         * @param text Texto del mensaje.
+         */
+        void add( String text )
+        {
+            pending.add( new EncodedMessage( message( text ) ) );
+        }
+
+        /**
+         * Encola la marca de fin.
+         */
+        void end()
+        {
+            pending.add( END );
+        }
+
+        @Override
+        public EncodedMessage take() throws InterruptedException
+        {
+            return ended ? null : next( pending.take() );
+        }
+
+        @Override
+        public EncodedMessage poll( long timeoutNanos ) throws InterruptedException
+        {
+            EncodedMessage message = pending.poll( timeoutNanos, TimeUnit.NANOSECONDS );
+            return message == null ? null : next( message );
+        }
+
+        /**
+         * Traduce la marca de fin.
+         *
+         * @param message Mensaje extraído.
+         * @return Mensaje, o null si es la marca de fin.
+         */
+        private EncodedMessage next( EncodedMessage message )
+        {
+            if ( message == END )
+            {
+                ended = true;
+                return null;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Flujo en memoria que anota el tamaño de cada escritura que le llega.
+     */
+    private static class CountingStream extends ByteArrayOutputStream
+    {
+        /** Bytes de cada escritura recibida. */
+        final List<Integer> writes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len )
+        {
+            writes.add( len );
+            super.write( b, off, len );
+        }
+
+        @Override
+        public synchronized void write( int b )
+        {
+            writes.add( 1 );
+            super.write( b );
+        }
+    }
+}
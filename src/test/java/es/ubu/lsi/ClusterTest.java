@@ -0,0 +1,168 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de un cluster de dos servidores en la misma máquina.
+ */
+public class ClusterTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ClusterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ClusterTest.class );
+    }
+
+    /**
+     * Un mensaje difundido en un nodo llega a los clientes del otro, y un
+     * apodo conectado en un nodo no puede usarse en el otro.
+     */
+    public void testBroadcastAndNicknamesAcrossNodes() throws Exception
+    {
+        int portA = freePort();
+        int portB = freePort();
+        int clusterA = freePort();
+        int clusterB = freePort();
+        ChatServerImpl nodeA = startNode( portA, clusterA, clusterB );
+        ChatServerImpl nodeB = startNode( portB, clusterB, clusterA );
+        ChatClientImpl ana = null;
+        ChatClientImpl bob = null;
+        try
+        {
+            Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+            ana = connect( portA, "ana", new ConcurrentLinkedQueue<>() );
+            bob = connect( portB, "bob", received );
+
+            // Los enlaces entre nodos se abren en segundo plano: se insiste hasta que llega
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !contains( received, "hola desde A" ) && System.currentTimeMillis() < deadline )
+            {
+                ana.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola desde A" ) );
+                Thread.sleep( 100 );
+            }
+            assertTrue( contains( received, "hola desde A" ) );
+
+            ChatClientImpl rejected = new ChatClientImpl( "localhost", portB, "ana" );
+            rejected.setVerbose( false );
+            rejected.setMessageHandler( message -> { } );
+            assertFalse( rejected.start() ); // El nodo B no confirma el apodo
+            assertEquals( 1, nodeB.getQueueDepths().size() );
+            assertTrue( nodeB.getQueueDepths().containsKey( "bob" ) );
+        }
+        finally
+        {
+            for ( ChatClientImpl client : new ChatClientImpl[] { ana, bob } )
+            {
+                if ( client != null )
+                {
+                    client.disconnect();
+                }
+            }
+            nodeA.shutdown();
+            nodeB.shutdown();
+        }
+    }
+
+    /**
+     * Arranca un nodo del cluster.
+     *
+     * @param port Puerto de los clientes.
+     * @param clusterPort Puerto del cluster.
+     * @param peerPort Puerto del cluster del otro nodo.
+     * @return Servidor arrancado.
+     */
+    private static ChatServerImpl startNode( int port, int clusterPort, int peerPort )
+    {
+        ServerConfig config = new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "clusterPort", String.valueOf( clusterPort ) )
+                .set( "clusterPeers", "127.0.0.1:" + peerPort )
+                .set( "nodeId", "nodo-" + clusterPort )
+                .set( "logLevel", "warn" );
+        ChatServerImpl server = new ChatServerImpl( config );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+        client.setVerbose( false );
+        client.setMessageHandler( received::add );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( !client.start() )
+        {
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+            client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+        }
+        return client;
+    }
+
+    /**
+     * Indica si se ha recibido un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto buscado.
+     * @return true si algún mensaje lo contiene.
+     */
+    private static boolean contains( Queue<ChatMessage> received, String text )
+    {
+        for ( ChatMessage message : received )
+        {
+            if ( text.equals( message.getMessage() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.Handshake;
+import es.ubu.lsi.common.MessageCodec;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de los codificadores de mensajes y de la negociación.
+ */
+public class CodecTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CodecTest.class );
+    }
+
+    /**
+     * Codifica y decodifica un mensaje comprobando que no cambia.
+     *
+     * @param codec codificador
+     * @param message mensaje original
+     * @throws Exception si falla la codificación
+     */
+    private void assertRoundTrip( MessageCodec codec, ChatMessage message ) throws Exception
+    {
+        byte[] data = codec.encode( message );
+        byte[] padded = new byte[data.length + 3];
+        System.arraycopy( data, 0, padded, 2, data.length );
+        ChatMessage decoded = codec.decode( padded, 2, data.length );
+        assertEquals( message.getId(), decoded.getId() );
+        assertEquals( message.getType(), decoded.getType() );
+        assertEquals( message.getMessage(), decoded.getMessage() );
+        assertEquals( message.getTarget(), decoded.getTarget() );
+    }
+
+    /**
+     * Ida y vuelta con ambos codificadores, incluidos ids grandes, negativos,
+     * texto nulo y caracteres fuera de ASCII.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testRoundTrip() throws Exception
+    {
+        MessageCodec[] codecs = { BinaryCodec.INSTANCE, SerializationCodec.INSTANCE };
+        for ( MessageCodec codec : codecs )
+        {
+            assertRoundTrip( codec, new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola" ) );
+            assertRoundTrip( codec, new ChatMessage( 300, ChatMessage.MessageType.LOGOUT, "" ) );
+            assertRoundTrip( codec, new ChatMessage( Integer.MAX_VALUE, ChatMessage.MessageType.SHUTDOWN, null ) );
+            assertRoundTrip( codec, new ChatMessage( -1, ChatMessage.MessageType.MESSAGE, "ñandú €" ) );
+            assertRoundTrip( codec, new ChatMessage( 7, ChatMessage.MessageType.ROOM, "sala-ñ", "hola sala" ) );
+            assertRoundTrip( codec, new ChatMessage( 7, ChatMessage.MessageType.JOIN, "sala", null ) );
+            assertRoundTrip( codec, new ChatMessage( 9, ChatMessage.MessageType.PRIVATE, "bob", "sólo para ti" ) );
+        }
+    }
+
+    /**
+     * El formato binario es más compacto que la serialización de Java.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testBinaryIsCompact() throws Exception
+    {
+        ChatMessage message = new ChatMessage( 5, ChatMessage.MessageType.MESSAGE, "hola" );
+        assertEquals( 6, BinaryCodec.INSTANCE.encode( message ).length );
+        assertTrue( SerializationCodec.INSTANCE.encode( message ).length > 6 );
+    }
+
+    /**
+     * Negociación: se elige el primer codificador común y una trama
+     * serializada nunca se toma por un saludo.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testHandshake() throws Exception
+    {
+        byte[] hello = Handshake.hello( Handshake.CODEC_BINARY, Handshake.CODEC_SERIALIZATION );
+        assertTrue( Handshake.isHello( hello ) );
+        assertEquals( Handshake.CODEC_BINARY,
+                Handshake.choose( hello, new byte[] { Handshake.CODEC_SERIALIZATION, Handshake.CODEC_BINARY } ) );
+        assertEquals( Handshake.CODEC_SERIALIZATION,
+                Handshake.choose( hello, new byte[] { Handshake.CODEC_SERIALIZATION } ) );
+        assertEquals( Handshake.CODEC_BINARY, Handshake.acceptedCodec( Handshake.accept( Handshake.CODEC_BINARY ) ) );
+
+        byte[] legacy = SerializationCodec.INSTANCE.encode( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "nick" ) );
+        assertFalse( Handshake.isHello( legacy ) );
+    }
+
+    /**
+     * Un mensaje difundido se codifica una sola vez por codificador: todos
+     * los destinatarios con el mismo codificador reciben el mismo array, y
+     * cada codificador produce su propia trama.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testEncodedOncePerCodec() throws Exception
+    {
+        EncodedMessage message = new EncodedMessage( new ChatMessage( 7, ChatMessage.MessageType.MESSAGE, "a todos" ) );
+        final List<byte[]> written = new ArrayList<>();
+        OutputStream recipient = new OutputStream()
+        {
+            @Override
+            public void write( int b )
+            {
+                fail( "La trama se escribe de una vez" );
+            }
+
+            @Override
+            public void write( byte[] b )
+            {
+                written.add( b );
+            }
+        };
+        message.writeTo( Handshake.CODEC_BINARY, recipient );
+        message.writeTo( Handshake.CODEC_BINARY, recipient );
+        message.writeTo( Handshake.CODEC_SERIALIZATION, recipient );
+        message.writeTo( Handshake.CODEC_SERIALIZATION, recipient );
+        assertSame( written.get( 0 ), written.get( 1 ) );
+        assertSame( written.get( 2 ), written.get( 3 ) );
+        assertNotSame( written.get( 0 ), written.get( 2 ) );
+
+        // Las vistas para el motor NIO son independientes y de sólo lectura
+        ByteBuffer first = message.buffer( Handshake.CODEC_BINARY );
+        ByteBuffer second = message.buffer( Handshake.CODEC_BINARY );
+        assertTrue( first.isReadOnly() );
+        first.get( new byte[first.remaining()] );
+        assertEquals( written.get( 0 ).length, second.remaining() );
+        byte[] frame = new byte[second.remaining()];
+        second.get( frame );
+        assertEquals( 7, BinaryCodec.INSTANCE.decode( frame, 4, frame.length - 4 ).getId() );
+    }
+
+    /**
+     * Las variantes comprimidas se negocian como un codificador más, sólo
+     * comprimen las cargas grandes y conservan el mensaje.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testCompression() throws Exception
+    {
+        byte compressed = Handshake.codecId( "binary+deflate" );
+        assertEquals( Handshake.CODEC_BINARY | Handshake.COMPRESSED, compressed );
+        assertTrue( Handshake.isCompressed( compressed ) );
+        assertEquals( Handshake.CODEC_BINARY, Handshake.choose( Handshake.hello( compressed, Handshake.CODEC_BINARY ),
+                new byte[] { Handshake.CODEC_BINARY, Handshake.CODEC_SERIALIZATION } ) );
+
+        MessageCodec codec = Handshake.codec( compressed );
+        ChatMessage small = new ChatMessage( 5, ChatMessage.MessageType.MESSAGE, "hola" );
+        assertEquals( BinaryCodec.INSTANCE.encode( small ).length + 1, codec.encode( small ).length );
+        assertRoundTrip( codec, small );
+
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < 200; i++ )
+        {
+            text.append( "línea de texto pegado " ).append( i % 10 ).append( '\n' );
+        }
+        ChatMessage large = new ChatMessage( 7, ChatMessage.MessageType.ROOM, "sala", text.toString() );
+        assertTrue( codec.encode( large ).length < BinaryCodec.INSTANCE.encode( large ).length / 4 );
+        assertRoundTrip( codec, large );
+        assertRoundTrip( Handshake.codec( Handshake.codecId( "serialization+deflate" ) ), large );
+    }
+
+    /**
+     * El umbral de compresión se fija por servidor: por debajo de él no se
+     * comprime, y las tramas de un umbral se decodifican con cualquier otro.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testCompressionThreshold() throws Exception
+    {
+        byte compressed = Handshake.codecId( "binary+deflate" );
+        ChatMessage message = new ChatMessage( 5, ChatMessage.MessageType.MESSAGE,
+                "repetido repetido repetido repetido repetido repetido" );
+        int plain = BinaryCodec.INSTANCE.encode( message ).length;
+        assertTrue( plain < Handshake.DEFAULT_COMPRESSION_THRESHOLD );
+
+        MessageCodec eager = Handshake.codec( compressed, 0 );
+        byte[] packed = eager.encode( message );
+        assertTrue( packed.length < plain );
+        assertEquals( message.getMessage(), Handshake.codec( compressed ).decode( packed, 0, packed.length ).getMessage() );
+        assertEquals( plain + 1, Handshake.codec( compressed ).encode( message ).length );
+
+        ByteBuffer frame = new EncodedMessage( message, 0 ).buffer( compressed );
+        assertEquals( MessageFrames.HEADER_LENGTH + packed.length, frame.remaining() );
+
+        assertEquals( 0, new ServerConfig().set( "compressionThreshold", "0" ).getCompressionThreshold() );
+        assertEquals( Handshake.DEFAULT_COMPRESSION_THRESHOLD, new ServerConfig().getCompressionThreshold() );
+        assertEquals( Handshake.DEFAULT_COMPRESSION_THRESHOLD,
+                new ServerConfig().set( "compressionThreshold", "-1" ).getCompressionThreshold() );
+    }
+
+    /**
+     * Muchos hilos comprimen y descomprimen a la vez compartiendo los
+     * compresores reutilizables, y cada uno recupera sus propios mensajes.
+     *
+     * @throws Exception si falla la codificación
+     */
+    public void testConcurrentCompression() throws Exception
+    {
+        MessageCodec codec = Handshake.codec( Handshake.codecId( "binary+deflate" ), 0 );
+        int threads = 16;
+        String[] failures = new String[threads];
+        List<Thread> workers = new ArrayList<>();
+        for ( int i = 0; i < threads; i++ )
+        {
+            int index = i;
+            Thread worker = new Thread( () -> {
+                try
+                {
+                    for ( int j = 0; j < 200; j++ )
+                    {
+                        StringBuilder text = new StringBuilder();
+                        for ( int k = 0; k < 50; k++ )
+                        {
+                            text.append( "hilo " ).append( index ).append( " mensaje " ).append( j ).append( '\n' );
+                        }
+                        byte[] packed = codec.encode( new ChatMessage( index, ChatMessage.MessageType.MESSAGE, text.toString() ) );
+                        ChatMessage decoded = codec.decode( packed, 0, packed.length );
+                        if ( !text.toString().equals( decoded.getMessage() ) )
+                        {
+                            failures[index] = "Mensaje alterado en el hilo " + index;
+                            return;
+                        }
+                    }
+                }
+                catch ( Exception e )
+                {
+                    failures[index] = e.toString();
+                }
+            } );
+            worker.start();
+            workers.add( worker );
+        }
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        for ( String failure : failures )
+        {
+            assertNull( failure, failure );
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de los comandos que los clientes escriben en sus mensajes.
+ */
+public class CommandTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CommandTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CommandTest.class );
+    }
+
+    /**
+     * Con hilos, un cliente bloquea y desbloquea a otro por su ID.
+     */
+    public void testThreads() throws Exception
+    {
+        int port = freePort();
+        checkCommands( new ChatServerImpl( config( port ) ), port );
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        int port = freePort();
+        checkCommands( new ChatServerNioImpl( config( port ) ), port );
+    }
+
+    /**
+     * Bloquea a un cliente, comprueba que sus mensajes no llegan a quien lo
+     * bloquea pero sí al resto, lo desbloquea y prueba un comando con un
+     * argumento inválido.
+     *
+     * @param server Servidor sin arrancar.
+     * @param port Puerto del servidor.
+     */
+    private static void checkCommands( ChatServer server, int port ) throws Exception
+    {
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        ChatClientImpl ana = null;
+        ChatClientImpl bob = null;
+        ChatClientImpl eva = null;
+        try
+        {
+            Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+            Queue<ChatMessage> echoed = new ConcurrentLinkedQueue<>();
+            Queue<ChatMessage> others = new ConcurrentLinkedQueue<>();
+            ana = connect( port, "ana", echoed );
+            bob = connect( port, "bob", received );
+            eva = connect( port, "eva", others );
+
+            bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "ban " + ana.getId() ) );
+            awaitText( received, "bob ha bloqueado al usuario con ID " + ana.getId() );
+            ana.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "bloqueado" ) );
+            awaitText( echoed, "bloqueado" ); // Ya repartido cuando bob lo desbloquea
+            awaitText( others, "bloqueado" );
+            bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "unban " + ana.getId() ) );
+            awaitText( received, "bob ha desbloqueado al usuario con ID " + ana.getId() );
+            ana.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "libre" ) );
+            awaitText( received, "libre" );
+            assertFalse( contains( received, "bloqueado" ) );
+
+            bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "ban ana" ) );
+            awaitText( received, "Error: Formato de comando inválido. Usa 'ban <id>'." );
+            assertFalse( contains( received, "ban ana" ) );
+        }
+        finally
+        {
+            for ( ChatClientImpl client : new ChatClientImpl[] { ana, bob, eva } )
+            {
+                if ( client != null )
+                {
+                    client.disconnect();
+                }
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Espera a recibir un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto esperado.
+     */
+    private static void awaitText( Queue<ChatMessage> received, String text ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( !contains( received, text ) )
+        {
+            assertTrue( "No se ha recibido '" + text + "'", System.currentTimeMillis() < deadline );
+            Thread.sleep( 20 );
+        }
+    }
+
+    /**
+     * Indica si se ha recibido un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto buscado.
+     * @return true si se ha recibido.
+     */
+    private static boolean contains( Queue<ChatMessage> received, String text )
+    {
+        for ( ChatMessage message : received )
+        {
+            if ( text.equals( message.getMessage() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Configuración de un servidor de prueba.
+     *
+     * @param port Puerto del servidor.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del reparto en paralelo de las difusiones.
+ */
+public class FanOutTest extends TestCase
+{
+    /** Clientes que reciben las difusiones. */
+    private static final int RECIPIENTS = 4;
+
+    /** Mensajes que envía el remitente. */
+    private static final int MESSAGES = 300;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FanOutTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FanOutTest.class );
+    }
+
+    /**
+     * Con hilos, cada cliente recibe en orden los mensajes de un remitente
+     * aunque se repartan en paralelo.
+     */
+    public void testThreads() throws Exception
+    {
+        int port = freePort();
+        checkOrder( new ChatServerImpl( config( port ) ), port );
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        int port = freePort();
+        checkOrder( new ChatServerNioImpl( config( port ) ), port );
+    }
+
+    /**
+     * Un cliente envía una serie de difusiones intercaladas con mensajes
+     * privados y se comprueba el orden en que las reciben los demás.
+     *
+     * @param server Servidor sin arrancar.
+     * @param port Puerto del servidor.
+     */
+    private static void checkOrder( ChatServer server, int port ) throws Exception
+    {
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        List<ChatClientImpl> clients = new ArrayList<>();
+        List<Queue<ChatMessage>> inboxes = new ArrayList<>();
+        try
+        {
+            for ( int i = 0; i < RECIPIENTS; i++ )
+            {
+                Queue<ChatMessage> inbox = new ConcurrentLinkedQueue<>();
+                inboxes.add( inbox );
+                clients.add( connect( port, "cliente" + i, inbox ) );
+            }
+            ChatClientImpl sender = connect( port, "emisor", new ConcurrentLinkedQueue<>() );
+            clients.add( sender );
+            for ( int i = 0; i < MESSAGES; i++ )
+            {
+                if ( i % 10 == 5 )
+                {
+                    sender.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.PRIVATE, "cliente0", String.valueOf( i ) ) );
+                }
+                else
+                {
+                    sender.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, String.valueOf( i ) ) );
+                }
+            }
+
+            for ( int i = 0; i < RECIPIENTS; i++ )
+            {
+                int expected = i == 0 ? MESSAGES : MESSAGES - MESSAGES / 10;
+                List<Integer> received = awaitNumbers( inboxes.get( i ), expected, sender.getId() );
+                int previous = -1;
+                for ( int number : received )
+                {
+                    assertTrue( "Desordenado: " + number + " tras " + previous, number > previous );
+                    previous = number;
+                }
+            }
+        }
+        finally
+        {
+            clients.forEach( ChatClientImpl::disconnect );
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Espera a recibir un número de mensajes de un remitente.
+     *
+     * @param inbox Mensajes recibidos.
+     * @param expected Número de mensajes esperados.
+     * @param senderId ID del remitente.
+     * @return Números recibidos, en orden de llegada.
+     */
+    private static List<Integer> awaitNumbers( Queue<ChatMessage> inbox, int expected, int senderId )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( true )
+        {
+            List<Integer> numbers = new ArrayList<>();
+            for ( ChatMessage message : inbox )
+            {
+                if ( message.getId() == senderId )
+                {
+                    numbers.add( Integer.parseInt( message.getMessage() ) );
+                }
+            }
+            if ( numbers.size() >= expected )
+            {
+                return numbers;
+            }
+            assertTrue( "Recibidos " + numbers.size() + " de " + expected, System.currentTimeMillis() < deadline );
+            Thread.sleep( 20 );
+        }
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Configuración con el reparto en paralelo activado para casi todas las
+     * difusiones.
+     *
+     * @param port Puerto del servidor.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "fanOutThreads", "3" )
+                .set( "fanOutThreshold", "2" )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de la confirmación (ACK) de la negociación: el servidor asigna un
+ * ID distinto a cada cliente, lo usa como remitente de sus mensajes y
+ * rechaza los nicknames que ya están en uso.
+ */
+public class HandshakeAckTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public HandshakeAckTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( HandshakeAckTest.class );
+    }
+
+    /**
+     * Con hilos.
+     */
+    public void testThreads() throws Exception
+    {
+        int port = freePort();
+        checkAck( new ChatServerImpl( config( port ) ), port );
+    }
+
+    /**
+     * Con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        int port = freePort();
+        checkAck( new ChatServerNioImpl( config( port ) ), port );
+    }
+
+    /**
+     * Conecta tres clientes, comprueba sus IDs y el remitente de un mensaje,
+     * e intenta conectar otro con un nickname repetido.
+     *
+     * @param server Servidor sin arrancar.
+     * @param port Puerto del servidor.
+     */
+    private static void checkAck( ChatServer server, int port ) throws Exception
+    {
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        ChatClientImpl ana = null;
+        ChatClientImpl bob = null;
+        ChatClientImpl eva = null;
+        try
+        {
+            Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+            ana = connect( port, "ana", new ConcurrentLinkedQueue<>() );
+            bob = connect( port, "bob", received );
+            eva = connect( port, "eva", new ConcurrentLinkedQueue<>() );
+            Set<Integer> ids = new HashSet<>();
+            for ( ChatClientImpl client : new ChatClientImpl[] { ana, bob, eva } )
+            {
+                assertTrue( client.getId() > 0 );
+                ids.add( client.getId() );
+            }
+            assertEquals( 3, ids.size() );
+
+            // El servidor pone el ID del remitente aunque el cliente envíe otro
+            ana.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "soy ana" ) );
+            assertEquals( ana.getId(), awaitText( received, "soy ana" ).getId() );
+
+            ChatClientImpl impostor = new ChatClientImpl( "localhost", port, "ana" );
+            impostor.setVerbose( false );
+            assertFalse( impostor.start() );
+        }
+        finally
+        {
+            for ( ChatClientImpl client : new ChatClientImpl[] { ana, bob, eva } )
+            {
+                if ( client != null )
+                {
+                    client.disconnect();
+                }
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Espera a recibir un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto esperado.
+     * @return Mensaje recibido.
+     */
+    private static ChatMessage awaitText( Queue<ChatMessage> received, String text ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( true )
+        {
+            for ( ChatMessage message : received )
+            {
+                if ( text.equals( message.getMessage() ) )
+                {
+                    return message;
+                }
+            }
+            assertTrue( "No ha llegado: " + text, System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Configuración de un servidor de prueba.
+     *
+     * @param port Puerto del servidor.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
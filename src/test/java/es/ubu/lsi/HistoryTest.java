@@ -0,0 +1,453 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del historial que reciben los clientes al conectarse o al unirse
+ * a una sala.
+ */
+public class HistoryTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /** Servidor de la prueba. */
+    private ChatServer server;
+
+    /** Puerto del servidor. */
+    private int port;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public HistoryTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( HistoryTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        if ( server != null )
+        {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Con hilos, un cliente nuevo recibe los últimos mensajes globales y, al
+     * unirse a una sala, los últimos de la sala.
+     */
+    public void testThreads() throws Exception
+    {
+        start( new ChatServerImpl( config( "3" ) ) );
+        checkReplay();
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        start( new ChatServerNioImpl( config( "3" ) ) );
+        checkReplay();
+    }
+
+    /**
+     * Con hilos, los clientes que se conectan mientras otro difunde sin parar
+     * reciben cada mensaje una sola vez y sin huecos entre el historial y
+     * los mensajes en vivo.
+     */
+    public void testConnectDuringBroadcastThreads() throws Exception
+    {
+        start( new ChatServerImpl( config( "3" ).set( "queueCapacity", "8192" ) ) );
+        checkNoGap();
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testConnectDuringBroadcastNio() throws Exception
+    {
+        start( new ChatServerNioImpl( config( "3" ).set( "queueCapacity", "8192" ) ) );
+        checkNoGap();
+    }
+
+    /**
+     * Con tamaño cero no se envía historial.
+     */
+    public void testDisabled() throws Exception
+    {
+        start( new ChatServerImpl( config( "0" ) ) );
+        try ( Client bob = connect( "bob" ) )
+        {
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "antiguo" ) );
+            bob.readUntil( "antiguo" );
+
+            try ( Client ana = connect( "ana" ) )
+            {
+                ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy ana" ) );
+                assertEquals( Arrays.asList( "hola, soy ana" ), ana.readUntil( "hola, soy ana" ) );
+            }
+        }
+    }
+
+    /**
+     * Conecta varios clientes mientras Bob envía mensajes numerados y
+     * comprueba que cada uno recibe una secuencia seguida hasta el último.
+     */
+    private void checkNoGap() throws Exception
+    {
+        int messages = 2000;
+        try ( Client bob = connect( "bob" ) )
+        {
+            Exception[] failure = new Exception[1];
+            Thread flood = new Thread( () -> {
+                try
+                {
+                    for ( int i = 0; i < messages; i++ )
+                    {
+                        bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "n" + i ) );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    failure[0] = e;
+                }
+            } );
+            flood.start();
+            List<Client> clients = new ArrayList<>();
+            try
+            {
+                for ( int i = 0; i < 5; i++ )
+                {
+                    clients.add( connect( "cliente" + i ) );
+                    Thread.sleep( 5 );
+                }
+                flood.join();
+                assertNull( failure[0] );
+                bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "fin" ) );
+                for ( Client client : clients )
+                {
+                    List<String> texts = client.readUntil( "fin" );
+                    texts.remove( texts.size() - 1 );
+                    assertFalse( texts.isEmpty() );
+                    int first = Integer.parseInt( texts.get( 0 ).substring( 1 ) );
+                    assertEquals( messages - first, texts.size() );
+                    for ( int i = 0; i < texts.size(); i++ )
+                    {
+                        assertEquals( "n" + ( first + i ), texts.get( i ) );
+                    }
+                }
+            }
+            finally
+            {
+                for ( Client client : clients )
+                {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuando el último miembro sale de una sala, la sala se elimina junto
+     * con su historial.
+     */
+    public void testRoomDropped() throws Exception
+    {
+        start( new ChatServerNioImpl( config( "3" ) ) );
+        try ( Client bob = connect( "bob" ); Client ana = connect( "ana" ) )
+        {
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "olvidado" ) );
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.LEAVE, "sala", null ) );
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "fuera" ) );
+            bob.readUntil( "fuera" );
+
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            List<String> texts = ana.readUntil( "ana se ha unido a la sala" );
+            assertFalse( texts.contains( "olvidado" ) );
+            assertFalse( texts.contains( "bob se ha unido a la sala" ) );
+        }
+    }
+
+    /**
+     * Con hilos, el historial se recupera del registro de mensajes al
+     * reiniciar el servidor.
+     */
+    public void testRestoreThreads() throws Exception
+    {
+        File dir = Files.createTempDirectory( "history" ).toFile();
+        try
+        {
+            fillLog( new ChatServerImpl( config( "3" ).set( "logDir", dir.getPath() ) ) );
+            start( new ChatServerImpl( config( "3" ).set( "logDir", dir.getPath() ) ) );
+            checkRestored();
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testRestoreNio() throws Exception
+    {
+        File dir = Files.createTempDirectory( "history" ).toFile();
+        try
+        {
+            fillLog( new ChatServerNioImpl( config( "3" ).set( "logDir", dir.getPath() ) ) );
+            start( new ChatServerNioImpl( config( "3" ).set( "logDir", dir.getPath() ) ) );
+            checkRestored();
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+    /**
+     * Envía mensajes globales y de sala, conecta un cliente nuevo y
+     * comprueba que recibe sólo los tres últimos de cada historial, en orden
+     * y antes que los mensajes posteriores a su conexión.
+     */
+    private void checkReplay() throws Exception
+    {
+        try ( Client bob = connect( "bob" ) )
+        {
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            for ( int i = 0; i < 5; i++ )
+            {
+                bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "m" + i ) );
+                bob.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "r" + i ) );
+            }
+            bob.readUntil( "r4" );
+
+            try ( Client ana = connect( "ana" ) )
+            {
+                ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy ana" ) );
+                assertEquals( Arrays.asList( "m2", "m3", "m4", "hola, soy ana" ), ana.readUntil( "hola, soy ana" ) );
+
+                ana.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+                assertEquals( Arrays.asList( "r2", "r3", "r4", "ana se ha unido a la sala" ),
+                        ana.readUntil( "ana se ha unido a la sala" ) );
+            }
+        }
+    }
+
+    /**
+     * Arranca un servidor, le envía mensajes globales, de sala y privados, y
+     * lo apaga para que queden en su registro.
+     *
+     * @param first Servidor sin arrancar.
+     */
+    private void fillLog( ChatServer first ) throws Exception
+    {
+        start( first );
+        try ( Client bob = connect( "bob" ) )
+        {
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "en la sala" ) );
+            for ( int i = 0; i < 4; i++ )
+            {
+                bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "m" + i ) );
+            }
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.PRIVATE, "bob", "secreto" ) );
+            bob.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "fin" ) );
+            bob.readUntil( "fin" );
+        }
+        first.shutdown();
+        server = null;
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Comprueba que un cliente del servidor reiniciado recibe los últimos
+     * mensajes globales y de sala, pero no los privados.
+     */
+    private void checkRestored() throws Exception
+    {
+        try ( Client ana = connect( "ana" ) )
+        {
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy ana" ) );
+            assertEquals( Arrays.asList( "m2", "m3", "fin", "hola, soy ana" ), ana.readUntil( "hola, soy ana" ) );
+
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            assertEquals( Arrays.asList( "bob se ha unido a la sala", "en la sala", "ana se ha unido a la sala" ),
+                    ana.readUntil( "ana se ha unido a la sala" ) );
+        }
+    }
+
+    /**
+     * Borra el directorio de un registro.
+     *
+     * @param dir Directorio.
+     */
+    private static void delete( File dir )
+    {
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Configuración del servidor de la prueba.
+     *
+     * @param historySize Tamaño de los historiales.
+     * @return Configuración.
+     */
+    private ServerConfig config( String historySize )
+    {
+        return new ServerConfig().set( "port", String.valueOf( port ) ).set( "historySize", historySize );
+    }
+
+    /**
+     * Arranca el servidor en un hilo propio.
+     *
+     * @param server Servidor.
+     */
+    private void start( ChatServer server )
+    {
+        this.server = server;
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname. No envía
+     * nada más, para no añadir mensajes al historial.
+     *
+     * @param nickname Apodo.
+     * @return Cliente conectado.
+     */
+    private Client connect( String nickname ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Socket socket;
+        while ( true )
+        {
+            try
+            {
+                socket = new Socket( "localhost", port );
+                break;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+        socket.setSoTimeout( TIMEOUT_MILLIS );
+        Client client = new Client( socket );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) );
+        return client;
+    }
+
+    /**
+     * Cliente mínimo sobre un socket, sin negociación: envía y recibe
+     * mensajes serializados.
+     */
+    private static class Client implements AutoCloseable
+    {
+        /** Socket del cliente. */
+        private final Socket socket;
+        /** Flujo de entrada del socket. */
+        private final DataInputStream in;
+
+        /**
+         * Constructor.
+         *
+         * @param socket Socket conectado.
+         */
+        Client( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+
+        /**
+         * Envía un mensaje.
+         *
+         * @param message Mensaje.
+         */
+        void send( ChatMessage message ) throws IOException
+        {
+            ByteBuffer frame = MessageFrames.frame( SerializationCodec.INSTANCE.encode( message ) );
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get( bytes );
+            socket.getOutputStream().write( bytes );
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto.
+         *
+         * @param text Texto esperado.
+         * @return Textos recibidos en orden, incluido el esperado.
+         */
+        List<String> readUntil( String text ) throws IOException
+        {
+            List<String> texts = new ArrayList<>();
+            while ( texts.isEmpty() || !text.equals( texts.get( texts.size() - 1 ) ) )
+            {
+                byte[] payload = MessageFrames.readFrame( in );
+                texts.add( SerializationCodec.INSTANCE.decode( payload, 0, payload.length ).getMessage() );
+            }
+            return texts;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de la expulsión de clientes inactivos o que no completan la
+ * negociación.
+ */
+public class IdleTimeoutTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public IdleTimeoutTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( IdleTimeoutTest.class );
+    }
+
+    /**
+     * Con hilos, un cliente que responde a los PING sigue conectado y uno
+     * que no responde se expulsa.
+     */
+    public void testThreads() throws Exception
+    {
+        int port = freePort();
+        checkEviction( new ChatServerImpl( config( port ) ), port );
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        int port = freePort();
+        checkEviction( new ChatServerNioImpl( config( port ) ), port );
+    }
+
+    /**
+     * Un cliente que se conecta y no envía su nickname no impide que se
+     * acepten los demás, y se cierra al agotarse la espera de la negociación.
+     */
+    public void testSilentHandshake() throws Exception
+    {
+        int port = freePort();
+        ChatServer server = new ChatServerImpl( config( port ).set( "handshakeTimeoutMillis", "300" ) );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        ChatClientImpl ana = null;
+        try ( Socket silent = connectSilent( port ) )
+        {
+            silent.setSoTimeout( 5000 );
+            ana = new ChatClientImpl( "localhost", port, "ana" );
+            ana.setVerbose( false );
+            ana.setMessageHandler( message -> { } );
+            assertTrue( ana.start() );
+            assertEquals( -1, silent.getInputStream().read() );
+        }
+        finally
+        {
+            if ( ana != null )
+            {
+                ana.disconnect();
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Conecta un cliente normal y otro que no lee ni responde, y espera más
+     * que el tiempo máximo de inactividad.
+     *
+     * @param server Servidor sin arrancar.
+     * @param port Puerto del servidor.
+     */
+    private static void checkEviction( ChatServer server, int port ) throws Exception
+    {
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        ChatClientImpl ana = null;
+        try ( Socket mute = connectMute( port ) )
+        {
+            ana = new ChatClientImpl( "localhost", port, "ana" );
+            ana.setVerbose( false );
+            ana.setMessageHandler( message -> { } );
+            assertTrue( ana.start() );
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( server.getQueueDepths().size() < 2 && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 20 );
+            }
+            assertEquals( 2, server.getQueueDepths().size() );
+
+            Thread.sleep( 1500 );
+            assertEquals( 1, server.getQueueDepths().size() );
+            assertTrue( server.getQueueDepths().containsKey( "ana" ) );
+        }
+        finally
+        {
+            if ( ana != null )
+            {
+                ana.disconnect();
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Conecta un cliente que envía su nickname y después no hace nada.
+     *
+     * @param port Puerto del servidor.
+     * @return Socket del cliente.
+     */
+    private static Socket connectMute( int port ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            try
+            {
+                Socket socket = new Socket( "localhost", port );
+                DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+                MessageFrames.writeFrame( out, SerializationCodec.INSTANCE.encode(
+                        new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "mudo" ) ) );
+                out.flush();
+                return socket;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+    }
+
+    /**
+     * Conecta un cliente que no envía nada.
+     *
+     * @param port Puerto del servidor.
+     * @return Socket del cliente.
+     */
+    private static Socket connectSilent( int port ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            try
+            {
+                return new Socket( "localhost", port );
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+    }
+
+    /**
+     * Configuración con un tiempo máximo de inactividad corto.
+     *
+     * @param port Puerto del servidor.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "idleTimeoutMillis", "500" )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.LatencyHistogram;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del histograma de latencias.
+ */
+public class LatencyHistogramTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    /**
+     * Los valores pequeños se cuentan de forma exacta.
+     */
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 1; i <= 100; i++ )
+        {
+            histogram.record( i );
+        }
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 50, histogram.getValueAtPercentile( 50 ) );
+        assertEquals( 99, histogram.getValueAtPercentile( 99 ) );
+        assertEquals( 100, histogram.getMax() );
+        assertEquals( 50.5, histogram.getMean(), 1e-9 );
+    }
+
+    /**
+     * Los percentiles de valores grandes tienen un error relativo menor del 2 %.
+     */
+    public void testLargeValuesKeepRelativePrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( long i = 1; i <= 100000; i++ )
+        {
+            histogram.record( i * 1000 );
+        }
+        assertEquals( 50000000, histogram.getValueAtPercentile( 50 ), 50000000 * 0.02 );
+        assertEquals( 99000000, histogram.getValueAtPercentile( 99 ), 99000000 * 0.02 );
+        assertEquals( 100000000, histogram.getValueAtPercentile( 100 ) );
+        histogram.record( Long.MAX_VALUE );
+        assertEquals( Long.MAX_VALUE, histogram.getValueAtPercentile( 100 ) );
+    }
+
+    /**
+     * Sumar histogramas equivale a registrar todos los valores en uno.
+     */
+    public void testAddAndReset()
+    {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record( 10 );
+        b.record( 30 );
+        a.add( b );
+        assertEquals( 2, a.getCount() );
+        assertEquals( 30, a.getMax() );
+        a.reset();
+        assertEquals( 0, a.getCount() );
+        assertEquals( 0, a.getValueAtPercentile( 99 ) );
+    }
+}
@@ -0,0 +1,300 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de los buzones de los clientes que pierden la conexión.
+ */
+public class MailboxTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MailboxTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( MailboxTest.class );
+    }
+
+    /**
+     * Con hilos, un cliente que pierde la conexión recibe al volver los
+     * mensajes enviados mientras tanto, aunque el servidor se reinicie.
+     */
+    public void testThreads() throws Exception
+    {
+        checkMailbox( ChatServerImpl::new );
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        checkMailbox( ChatServerNioImpl::new );
+    }
+
+    /**
+     * Desconecta a ana sin cerrar sesión, le envía mensajes difundidos y un
+     * privado, reinicia el servidor y comprueba que al volver los recibe
+     * todos, en orden y una sola vez, y que su buzón se borra al confirmarlos.
+     *
+     * @param engine Motor del servidor.
+     */
+    private static void checkMailbox( Function<ServerConfig, ChatServer> engine ) throws Exception
+    {
+        File dir = Files.createTempDirectory( "mailbox" ).toFile();
+        int port = freePort();
+        ChatServer server = start( engine, config( port, dir ) );
+        ChatClientImpl bob = null;
+        ChatClientImpl ana = null;
+        try
+        {
+            try ( Socket dropped = connectRaw( port, "ana" ) )
+            {
+                awaitConnected( server, "ana", true );
+            }
+            awaitConnected( server, "ana", false );
+
+            Queue<ChatMessage> echoed = new ConcurrentLinkedQueue<>();
+            bob = connect( port, "bob", echoed );
+            List<String> expected = new ArrayList<>();
+            for ( int i = 0; i < 10; i++ )
+            {
+                bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "m" + i ) );
+                expected.add( "m" + i );
+            }
+            bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.PRIVATE, "ana", "secreto" ) );
+            bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "fin" ) );
+            expected.addAll( Arrays.asList( "secreto", "fin" ) );
+            awaitText( echoed, "fin" );
+            assertFalse( contains( echoed, "Error: El usuario ana no está conectado." ) );
+            bob.disconnect();
+            bob = null;
+            server.shutdown();
+
+            // El buzón se ha guardado en disco y lo recupera el nuevo servidor
+            port = freePort();
+            server = start( engine, config( port, dir ) );
+            Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+            ana = connect( port, "ana", received );
+            awaitText( received, "fin" );
+            List<String> texts = new ArrayList<>();
+            for ( ChatMessage message : received )
+            {
+                texts.add( message.getMessage() );
+            }
+            assertEquals( expected, texts );
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( dir.list().length > 0 )
+            {
+                assertTrue( "No se ha borrado el buzón confirmado", System.currentTimeMillis() < deadline );
+                Thread.sleep( 20 );
+            }
+        }
+        finally
+        {
+            for ( ChatClientImpl client : new ChatClientImpl[] { ana, bob } )
+            {
+                if ( client != null )
+                {
+                    client.disconnect();
+                }
+            }
+            server.shutdown();
+            for ( File file : dir.listFiles() )
+            {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Arranca un servidor en segundo plano.
+     *
+     * @param engine Motor del servidor.
+     * @param config Configuración.
+     * @return Servidor arrancado.
+     */
+    private static ChatServer start( Function<ServerConfig, ChatServer> engine, ServerConfig config )
+    {
+        ChatServer server = engine.apply( config );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Espera a que un cliente se conecte o se desconecte.
+     *
+     * @param server Servidor.
+     * @param nickname Apodo del cliente.
+     * @param connected true para esperar a que se conecte.
+     */
+    private static void awaitConnected( ChatServer server, String nickname, boolean connected )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( server.getQueueDepths().containsKey( nickname ) != connected )
+        {
+            assertTrue( "El cliente " + nickname + " no cambia de estado", System.currentTimeMillis() < deadline );
+            Thread.sleep( 20 );
+        }
+    }
+
+    /**
+     * Espera a recibir un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto esperado.
+     */
+    private static void awaitText( Queue<ChatMessage> received, String text ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( !contains( received, text ) )
+        {
+            assertTrue( "No se ha recibido '" + text + "'", System.currentTimeMillis() < deadline );
+            Thread.sleep( 20 );
+        }
+    }
+
+    /**
+     * Indica si se ha recibido un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto buscado.
+     * @return true si se ha recibido.
+     */
+    private static boolean contains( Queue<ChatMessage> received, String text )
+    {
+        for ( ChatMessage message : received )
+        {
+            if ( text.equals( message.getMessage() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname y nada más,
+     * para poder cortar la conexión sin cerrar sesión.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @return Socket del cliente.
+     */
+    private static Socket connectRaw( int port, String nickname ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            try
+            {
+                Socket socket = new Socket( "localhost", port );
+                DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+                MessageFrames.writeFrame( out, SerializationCodec.INSTANCE.encode(
+                        new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) ) );
+                out.flush();
+                return socket;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Configuración con buzones pequeños que se vuelcan a disco.
+     *
+     * @param port Puerto del servidor.
+     * @param dir Directorio de los buzones.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port, File dir )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "historySize", "0" )
+                .set( "mailboxSize", "100" )
+                .set( "mailboxMemory", "2" )
+                .set( "mailboxBatch", "3" )
+                .set( "mailboxDir", dir.getPath() )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
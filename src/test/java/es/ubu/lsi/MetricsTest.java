@@ -0,0 +1,216 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de las métricas del servidor y de su consulta en texto.
+ */
+public class MetricsTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MetricsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( MetricsTest.class );
+    }
+
+    /**
+     * Dos clientes se conectan y uno difunde tres mensajes: la consulta en
+     * texto refleja las conexiones, los mensajes y las colas de cada cliente.
+     */
+    public void testCountersAndEndpoint() throws Exception
+    {
+        int port = freePort();
+        int metricsPort = freePort();
+        ChatServer server = new ChatServerImpl( new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "metricsPort", String.valueOf( metricsPort ) ) );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        ChatClientImpl ana = null;
+        ChatClientImpl bob = null;
+        try
+        {
+            Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+            ana = connect( port, "ana", received );
+            bob = connect( port, "bob", new ConcurrentLinkedQueue<>() );
+            double before = scrape( metricsPort ).get( "chat_messages_out_total" );
+            for ( int i = 0; i < 3; i++ )
+            {
+                bob.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "m" + i ) );
+            }
+            awaitText( received, "m2" );
+
+            // Cada mensaje se difunde a los dos clientes
+            Map<String, Double> metrics = scrape( metricsPort );
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while ( metrics.get( "chat_messages_out_total" ) < before + 6 )
+            {
+                assertTrue( "No se han contado los envíos", System.currentTimeMillis() < deadline );
+                Thread.sleep( 20 );
+                metrics = scrape( metricsPort );
+            }
+            assertEquals( 2.0, metrics.get( "chat_connections" ) );
+            assertEquals( 2.0, metrics.get( "chat_accepts_total" ) );
+            assertTrue( metrics.get( "chat_messages_in_total" ) >= 5 );
+            assertTrue( metrics.get( "chat_bytes_in_total" ) > 0 );
+            assertTrue( metrics.get( "chat_bytes_out_total" ) > 0 );
+            assertTrue( metrics.get( "chat_fanout_seconds_count" ) >= 3 );
+            assertTrue( metrics.get( "chat_rate_limit_seconds_count" ) >= 3 );
+            assertTrue( metrics.containsKey( "chat_stage_seconds{stage=\"route\",quantile=\"0.99\"}" ) );
+            assertFalse( metrics.containsKey( "chat_stage_seconds{stage=\"decode\",quantile=\"0.99\"}" ) );
+            assertTrue( metrics.containsKey( "chat_queue_depth{client=\"ana\"}" ) );
+            assertTrue( metrics.containsKey( "chat_queue_depth{client=\"bob\"}" ) );
+        }
+        finally
+        {
+            if ( ana != null )
+            {
+                ana.disconnect();
+            }
+            if ( bob != null )
+            {
+                bob.disconnect();
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos y espera a que
+     * le llegue su propio saludo, señal de que ya está dado de alta.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                client.sendMessage( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy " + nickname ) );
+                awaitText( received, "hola, soy " + nickname );
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Espera a recibir un mensaje con un texto.
+     *
+     * @param received Mensajes recibidos.
+     * @param text Texto esperado.
+     */
+    private static void awaitText( Queue<ChatMessage> received, String text ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( true )
+        {
+            for ( ChatMessage message : received )
+            {
+                if ( text.equals( message.getMessage() ) )
+                {
+                    return;
+                }
+            }
+            assertTrue( "No ha llegado: " + text, System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Consulta las métricas en texto.
+     *
+     * @param port Puerto de las métricas.
+     * @return Valor de cada métrica, por nombre con sus etiquetas.
+     */
+    private static Map<String, Double> scrape( int port ) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( "http://127.0.0.1:" + port + "/metrics" ).openConnection();
+        try
+        {
+            assertEquals( 200, connection.getResponseCode() );
+            assertTrue( connection.getContentType().startsWith( "text/plain" ) );
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try ( InputStream in = connection.getInputStream() )
+            {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ( ( read = in.read( buffer ) ) > 0 )
+                {
+                    body.write( buffer, 0, read );
+                }
+            }
+            Map<String, Double> metrics = new HashMap<>();
+            for ( String line : new String( body.toByteArray(), StandardCharsets.UTF_8 ).split( "\n" ) )
+            {
+                if ( !line.startsWith( "#" ) && !line.isEmpty() )
+                {
+                    int space = line.lastIndexOf( ' ' );
+                    metrics.put( line.substring( 0, space ), Double.valueOf( line.substring( space + 1 ) ) );
+                }
+            }
+            return metrics;
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+}
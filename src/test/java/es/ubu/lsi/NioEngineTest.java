@@ -0,0 +1,387 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del motor NIO: conversación completa, tramas que llegan por
+ * partes, tramas mayores que el buffer de lectura, clientes que tardan en
+ * leer y orden de la confirmación del nickname.
+ */
+public class NioEngineTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /** Servidor de la prueba. */
+    private ChatServerNioImpl server;
+
+    /** Puerto del servidor. */
+    private int port;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public NioEngineTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( NioEngineTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+        // La cola de salida admite todas las tramas de testSlowReader
+        server = new ChatServerNioImpl( new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "eventLoops", "2" )
+                .set( "queueCapacity", "8192" ) );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        server.shutdown();
+    }
+
+    /**
+     * Dos clientes se conectan y se difunden mensajes; al cerrar sesión uno
+     * de ellos, el servidor le cierra la conexión y sigue atendiendo al otro.
+     */
+    public void testConversation() throws Exception
+    {
+        try ( Client ana = connect( "ana" ); Client bea = connect( "bea" ) )
+        {
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola a todos" ) );
+            bea.awaitText( "hola a todos" );
+            ana.awaitText( "hola a todos" );
+
+            bea.send( new ChatMessage( 0, ChatMessage.MessageType.LOGOUT, "logout" ) );
+            try
+            {
+                while ( true )
+                {
+                    bea.read();
+                }
+            }
+            catch ( EOFException e )
+            {
+                // El servidor ha cerrado la conexión
+            }
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "fin" ) );
+            ana.awaitText( "fin" );
+        }
+    }
+
+    /**
+     * Las tramas que llegan byte a byte, o partidas entre dos escrituras, se
+     * reconstruyen antes de procesarse.
+     */
+    public void testPartialFrames() throws Exception
+    {
+        try ( Client listener = connect( "oyente" ); Socket socket = open() )
+        {
+            socket.setTcpNoDelay( true );
+            OutputStream out = socket.getOutputStream();
+            byte[] nickname = frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "troceado" ) );
+            for ( byte b : nickname )
+            {
+                out.write( b );
+                out.flush();
+                Thread.sleep( 1 );
+            }
+            byte[] message = frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "en dos partes" ) );
+            // La primera parte no llega a completar la cabecera de longitud
+            out.write( message, 0, 2 );
+            out.flush();
+            Thread.sleep( 50 );
+            out.write( message, 2, message.length - 2 );
+            // Dos tramas en una sola escritura
+            byte[] both = concat( frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "uno" ) ),
+                    frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "dos" ) ) );
+            out.write( both );
+            out.flush();
+
+            listener.awaitText( "en dos partes" );
+            listener.awaitText( "uno" );
+            listener.awaitText( "dos" );
+        }
+    }
+
+    /**
+     * Una trama mayor que el buffer de lectura lo amplía y llega entera.
+     */
+    public void testLargeFrame() throws Exception
+    {
+        try ( Client listener = connect( "oyente" ); Socket socket = open() )
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write( frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "grande" ) ) );
+            char[] text = new char[100 * 1024];
+            Arrays.fill( text, 'x' );
+            String large = new String( text );
+            out.write( frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, large ) ) );
+            // Tras ampliarse, el buffer sigue procesando tramas pequeñas
+            out.write( frame( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "después" ) ) );
+            out.flush();
+
+            listener.awaitText( large );
+            listener.awaitText( "después" );
+        }
+    }
+
+    /**
+     * Un cliente que no lee llena su socket: sus tramas esperan en la cola
+     * hasta que el socket admite más escrituras, y después le llegan todas y
+     * en orden.
+     */
+    public void testSlowReader() throws Exception
+    {
+        // Más datos de los que caben en los buffers de ambos sockets
+        int messages = 4000;
+        char[] padding = new char[4096];
+        Arrays.fill( padding, '.' );
+        try ( Client slow = connect( "lento" ) )
+        {
+            for ( int i = 0; i < messages; i++ )
+            {
+                server.broadcast( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, i + new String( padding ) ) );
+            }
+            // El socket está lleno: el resto de tramas espera en la cola
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while ( server.getQueueDepths().getOrDefault( "lento", 0 ) == 0 )
+            {
+                assertTrue( "No se ha llenado el socket del cliente", System.currentTimeMillis() < deadline );
+                Thread.sleep( 10 );
+            }
+
+            for ( int i = 0; i < messages; i++ )
+            {
+                String text = slow.read().getMessage();
+                assertEquals( String.valueOf( i ), text.substring( 0, text.indexOf( '.' ) ) );
+            }
+            assertEquals( 0, (int) server.getQueueDepths().get( "lento" ) );
+        }
+    }
+
+    /**
+     * La confirmación del nickname llega antes que cualquier difusión,
+     * aunque se difunda sin pausa mientras los clientes se conectan.
+     */
+    public void testAckBeforeBroadcasts() throws Exception
+    {
+        // Espera a que el servidor escuche, para que un rechazo sólo pueda deberse a la confirmación
+        open().close();
+        AtomicBoolean running = new AtomicBoolean( true );
+        Thread flood = new Thread( () -> {
+            try
+            {
+                while ( running.get() )
+                {
+                    for ( int i = 0; i < 20; i++ )
+                    {
+                        server.broadcast( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "ruido" ) );
+                    }
+                    // Deja tiempo al saludo de los clientes que se conectan
+                    Thread.sleep( 1 );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        flood.start();
+        ChatClientImpl[] clients = new ChatClientImpl[20];
+        try
+        {
+            for ( int i = 0; i < clients.length; i++ )
+            {
+                ChatClientImpl client = new ChatClientImpl( "localhost", port, "cliente" + i );
+                client.setVerbose( false );
+                client.setMessageHandler( message -> { } );
+                assertTrue( "El cliente " + i + " no ha recibido su confirmación", client.start() );
+                clients[i] = client;
+            }
+        }
+        finally
+        {
+            running.set( false );
+            flood.join();
+            for ( ChatClientImpl client : clients )
+            {
+                if ( client != null )
+                {
+                    client.disconnect();
+                }
+            }
+        }
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname y espera a
+     * recibir su propio saludo, señal de que ya está dado de alta.
+     *
+     * @param nickname Apodo.
+     * @return Cliente conectado.
+     */
+    private Client connect( String nickname ) throws Exception
+    {
+        Client client = new Client( open() );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy " + nickname ) );
+        client.awaitText( "hola, soy " + nickname );
+        return client;
+    }
+
+    /**
+     * Abre una conexión, reintentando mientras el servidor termina de
+     * arrancar.
+     *
+     * @return Socket conectado.
+     */
+    private Socket open() throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ( true )
+        {
+            try
+            {
+                Socket socket = new Socket( "localhost", port );
+                socket.setSoTimeout( TIMEOUT_MILLIS );
+                return socket;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+    }
+
+    /**
+     * Construye la trama de un mensaje serializado, como la envía un cliente
+     * que no negocia el codificador.
+     *
+     * @param message Mensaje.
+     * @return Trama completa.
+     */
+    private static byte[] frame( ChatMessage message ) throws IOException
+    {
+        ByteBuffer frame = MessageFrames.frame( SerializationCodec.INSTANCE.encode( message ) );
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get( bytes );
+        return bytes;
+    }
+
+    /**
+     * Concatena dos tramas.
+     *
+     * @param first Primera trama.
+     * @param second Segunda trama.
+     * @return Ambas tramas seguidas.
+     */
+    private static byte[] concat( byte[] first, byte[] second )
+    {
+        byte[] both = Arrays.copyOf( first, first.length + second.length );
+        System.arraycopy( second, 0, both, first.length, second.length );
+        return both;
+    }
+
+    /**
+     * Cliente mínimo sobre un socket, sin negociación: envía y recibe
+     * mensajes serializados.
+     */
+    private static class Client implements AutoCloseable
+    {
+        /** Socket del cliente. */
+        private final Socket socket;
+        /** Flujo de entrada del socket. */
+        private final DataInputStream in;
+
+        /**
+         * Constructor.
+         *
+         * @param socket Socket conectado.
+         */
+        Client( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+
+        /**
+         * Envía un mensaje.
+         *
+         * @param message Mensaje.
+         */
+        void send( ChatMessage message ) throws IOException
+        {
+            socket.getOutputStream().write( frame( message ) );
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Lee el siguiente mensaje.
+         *
+         * @return Mensaje recibido.
+         */
+        ChatMessage read() throws IOException
+        {
+            byte[] payload = MessageFrames.readFrame( in );
+            return SerializationCodec.INSTANCE.decode( payload, 0, payload.length );
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto.
+         *
+         * @param text Texto esperado.
+         */
+        void awaitText( String text ) throws IOException
+        {
+            while ( !text.equals( read().getMessage() ) )
+            {
+                // Se descartan los mensajes anteriores
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
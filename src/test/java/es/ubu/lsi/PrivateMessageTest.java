@@ -0,0 +1,233 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de los mensajes privados en ambos motores: llegan sólo al
+ * destinatario indicado por su nickname.
+ */
+public class PrivateMessageTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /** Servidor de la prueba. */
+    private ChatServer server;
+
+    /** Puerto del servidor. */
+    private int port;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PrivateMessageTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PrivateMessageTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        if ( server != null )
+        {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Mensajes privados con el motor de un hilo por cliente.
+     */
+    public void testPrivateWithThreads() throws Exception
+    {
+        start( new ChatServerImpl( new ServerConfig().set( "port", String.valueOf( port ) ) ) );
+        assertPrivateDelivery();
+    }
+
+    /**
+     * Mensajes privados con el motor NIO.
+     */
+    public void testPrivateWithNio() throws Exception
+    {
+        start( new ChatServerNioImpl( new ServerConfig().set( "port", String.valueOf( port ) ) ) );
+        assertPrivateDelivery();
+    }
+
+    /**
+     * Ana escribe en privado a Bea: el mensaje llega a Bea, y ni Carla ni la
+     * propia Ana lo reciben antes de una difusión posterior de Ana, que se
+     * entrega en orden detrás de él. Un nickname desconectado devuelve un
+     * error al remitente.
+     */
+    private void assertPrivateDelivery() throws Exception
+    {
+        try ( Client ana = connect( "ana" ); Client bea = connect( "bea" ); Client carla = connect( "carla" ) )
+        {
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.PRIVATE, "bea", "sólo para bea" ) );
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "marca" ) );
+            ChatMessage received = bea.awaitText( "sólo para bea" );
+            assertEquals( ChatMessage.MessageType.PRIVATE, received.getType() );
+            bea.awaitText( "marca" );
+            carla.awaitTextSkipping( "marca", "sólo para bea" );
+            ana.awaitTextSkipping( "marca", "sólo para bea" );
+
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.PRIVATE, "nadie", "¿hay alguien?" ) );
+            ana.awaitText( "Error: El usuario nadie no está conectado." );
+        }
+    }
+
+    /**
+     * Arranca el servidor en un hilo propio.
+     *
+     * @param server Servidor.
+     */
+    private void start( ChatServer server )
+    {
+        this.server = server;
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname y espera a
+     * recibir su propio saludo, señal de que ya está dado de alta.
+     *
+     * @param nickname Apodo.
+     * @return Cliente conectado.
+     */
+    private Client connect( String nickname ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Socket socket;
+        while ( true )
+        {
+            try
+            {
+                socket = new Socket( "localhost", port );
+                break;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+        socket.setSoTimeout( TIMEOUT_MILLIS );
+        Client client = new Client( socket );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy " + nickname ) );
+        client.awaitText( "hola, soy " + nickname );
+        return client;
+    }
+
+    /**
+     * Cliente mínimo sobre un socket, sin negociación: envía y recibe
+     * mensajes serializados.
+     */
+    private static class Client implements AutoCloseable
+    {
+        /** Socket del cliente. */
+        private final Socket socket;
+        /** Flujo de entrada del socket. */
+        private final DataInputStream in;
+
+        /**
+         * Constructor.
+         *
+         * @param socket Socket conectado.
+         */
+        Client( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+
+        /**
+         * Envía un mensaje.
+         *
+         * @param message Mensaje.
+         */
+        void send( ChatMessage message ) throws IOException
+        {
+            ByteBuffer frame = MessageFrames.frame( SerializationCodec.INSTANCE.encode( message ) );
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get( bytes );
+            socket.getOutputStream().write( bytes );
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto.
+         *
+         * @param text Texto esperado.
+         * @return Mensaje recibido.
+         */
+        ChatMessage awaitText( String text ) throws IOException
+        {
+            return awaitTextSkipping( text, null );
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto, comprobando que antes
+         * no llega otro.
+         *
+         * @param text Texto esperado.
+         * @param unexpected Texto que no debe llegar antes (null para no comprobarlo).
+         * @return Mensaje recibido.
+         */
+        ChatMessage awaitTextSkipping( String text, String unexpected ) throws IOException
+        {
+            while ( true )
+            {
+                byte[] payload = MessageFrames.readFrame( in );
+                ChatMessage message = SerializationCodec.INSTANCE.decode( payload, 0, payload.length );
+                assertFalse( "Ha llegado: " + unexpected, message.getMessage() != null
+                        && message.getMessage().equals( unexpected ) );
+                if ( text.equals( message.getMessage() ) )
+                {
+                    return message;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de las salas de chat en ambos motores: los mensajes a una sala
+ * sólo llegan a sus miembros, y las altas y bajas se notifican a la sala.
+ */
+public class RoomTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /** Servidor de la prueba. */
+    private ChatServer server;
+
+    /** Puerto del servidor. */
+    private int port;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RoomTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RoomTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        if ( server != null )
+        {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Salas con el motor de un hilo por cliente.
+     */
+    public void testRoomsWithThreads() throws Exception
+    {
+        start( new ChatServerImpl( new ServerConfig().set( "port", String.valueOf( port ) ) ) );
+        assertRoomDelivery();
+    }
+
+    /**
+     * Salas con el motor NIO.
+     */
+    public void testRoomsWithNio() throws Exception
+    {
+        start( new ChatServerNioImpl( new ServerConfig().set( "port", String.valueOf( port ) ) ) );
+        assertRoomDelivery();
+    }
+
+    /**
+     * Ana y Bea se unen a una sala y Carla no: los mensajes de la sala
+     * llegan a Bea pero no a Carla, y tras salir de la sala tampoco a Bea.
+     * Cada comprobación de que un mensaje no llega termina con una difusión
+     * posterior del mismo remitente, que se entrega en orden detrás de él.
+     */
+    private void assertRoomDelivery() throws Exception
+    {
+        try ( Client ana = connect( "ana" ); Client bea = connect( "bea" ); Client carla = connect( "carla" ) )
+        {
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            ana.awaitText( "ana se ha unido a la sala" );
+            bea.send( new ChatMessage( 0, ChatMessage.MessageType.JOIN, "sala", null ) );
+            bea.awaitText( "bea se ha unido a la sala" );
+            ana.awaitText( "bea se ha unido a la sala" );
+
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "sólo para la sala" ) );
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "primera marca" ) );
+            ChatMessage received = bea.awaitText( "sólo para la sala" );
+            assertEquals( ChatMessage.MessageType.ROOM, received.getType() );
+            assertEquals( "sala", received.getTarget() );
+            carla.awaitTextSkipping( "primera marca", "sólo para la sala" );
+
+            // Quien no es miembro no puede escribir en la sala
+            carla.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "intrusa" ) );
+            carla.awaitText( "Error: No perteneces a la sala sala. Usa 'join <sala>'." );
+
+            bea.send( new ChatMessage( 0, ChatMessage.MessageType.LEAVE, "sala", null ) );
+            ana.awaitText( "bea ha salido de la sala" );
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.ROOM, "sala", "ya sin bea" ) );
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "segunda marca" ) );
+            ana.awaitText( "ya sin bea" );
+            bea.awaitTextSkipping( "segunda marca", "ya sin bea" );
+        }
+    }
+
+    /**
+     * Arranca el servidor en un hilo propio.
+     *
+     * @param server Servidor.
+     */
+    private void start( ChatServer server )
+    {
+        this.server = server;
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname y espera a
+     * recibir su propio saludo, señal de que ya está dado de alta.
+     *
+     * @param nickname Apodo.
+     * @return Cliente conectado.
+     */
+    private Client connect( String nickname ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Socket socket;
+        while ( true )
+        {
+            try
+            {
+                socket = new Socket( "localhost", port );
+                break;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+        socket.setSoTimeout( TIMEOUT_MILLIS );
+        Client client = new Client( socket );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy " + nickname ) );
+        client.awaitText( "hola, soy " + nickname );
+        return client;
+    }
+
+    /**
+     * Cliente mínimo sobre un socket, sin negociación: envía y recibe
+     * mensajes serializados.
+     */
+    private static class Client implements AutoCloseable
+    {
+        /** Socket del cliente. */
+        private final Socket socket;
+        /** Flujo de entrada del socket. */
+        private final DataInputStream in;
+
+        /**
+         * Constructor.
+         *
+         * @param socket Socket conectado.
+         */
+        Client( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+
+        /**
+         * Envía un mensaje.
+         *
+         * @param message Mensaje.
+         */
+        void send( ChatMessage message ) throws IOException
+        {
+            ByteBuffer frame = MessageFrames.frame( SerializationCodec.INSTANCE.encode( message ) );
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get( bytes );
+            socket.getOutputStream().write( bytes );
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto.
+         *
+         * @param text Texto esperado.
+         * @return Mensaje recibido.
+         */
+        ChatMessage awaitText( String text ) throws IOException
+        {
+            return awaitTextSkipping( text, null );
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto, comprobando que antes
+         * no llega otro.
+         *
+         * @param text Texto esperado.
+         * @param unexpected Texto que no debe llegar antes (null para no comprobarlo).
+         * @return Mensaje recibido.
+         */
+        ChatMessage awaitTextSkipping( String text, String unexpected ) throws IOException
+        {
+            while ( true )
+            {
+                byte[] payload = MessageFrames.readFrame( in );
+                ChatMessage message = SerializationCodec.INSTANCE.decode( payload, 0, payload.length );
+                assertFalse( "Ha llegado: " + unexpected, message.getMessage() != null
+                        && message.getMessage().equals( unexpected ) );
+                if ( text.equals( message.getMessage() ) )
+                {
+                    return message;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
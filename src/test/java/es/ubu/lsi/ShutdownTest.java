@@ -0,0 +1,150 @@
+package es.ubu.lsi;
+
+import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+import es.ubu.lsi.server.ServerConfig;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del apagado ordenado del servidor.
+ */
+public class ShutdownTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ShutdownTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ShutdownTest.class );
+    }
+
+    /**
+     * Con hilos, los clientes reciben sus mensajes pendientes y después el
+     * aviso de apagado, y el servidor deja de aceptar conexiones.
+     */
+    public void testThreads() throws Exception
+    {
+        int port = freePort();
+        checkShutdown( new ChatServerImpl( config( port ) ), port );
+    }
+
+    /**
+     * Lo mismo con el motor NIO.
+     */
+    public void testNio() throws Exception
+    {
+        int port = freePort();
+        checkShutdown( new ChatServerNioImpl( config( port ) ), port );
+    }
+
+    /**
+     * Conecta dos clientes, difunde un mensaje y apaga el servidor justo
+     * después.
+     *
+     * @param server Servidor sin arrancar.
+     * @param port Puerto del servidor.
+     */
+    private static void checkShutdown( ChatServer server, int port ) throws Exception
+    {
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        Queue<ChatMessage> received = new ConcurrentLinkedQueue<>();
+        ChatClientImpl ana = connect( port, "ana", new ConcurrentLinkedQueue<>() );
+        ChatClientImpl bob = connect( port, "bob", received );
+        assertTrue( ana.getId() > 0 );
+        assertTrue( ana.getId() != bob.getId() );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( server.getQueueDepths().size() < 2 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 20 );
+        }
+
+        server.broadcast( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "último" ) );
+        server.shutdown();
+        acceptor.join( 2000 );
+        assertFalse( acceptor.isAlive() );
+
+        while ( received.size() < 2 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 20 );
+        }
+        ChatMessage[] messages = received.toArray( new ChatMessage[0] );
+        assertEquals( 2, messages.length );
+        assertEquals( "último", messages[0].getMessage() );
+        assertEquals( ChatMessage.MessageType.SHUTDOWN, messages[1].getType() );
+        ana.disconnect();
+        bob.disconnect();
+    }
+
+    /**
+     * Conecta un cliente que guarda los mensajes recibidos.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @param received Mensajes recibidos.
+     * @return Cliente conectado.
+     */
+    private static ChatClientImpl connect( int port, String nickname, Queue<ChatMessage> received )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( true )
+        {
+            ChatClientImpl client = new ChatClientImpl( "localhost", port, nickname );
+            client.setVerbose( false );
+            client.setMessageHandler( received::add );
+            if ( client.start() )
+            {
+                return client;
+            }
+            assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+    }
+
+    /**
+     * Configuración de un servidor de prueba.
+     *
+     * @param port Puerto del servidor.
+     * @return Configuración.
+     */
+    private static ServerConfig config( int port )
+    {
+        return new ServerConfig()
+                .set( "port", String.valueOf( port ) )
+                .set( "logLevel", "error" );
+    }
+
+    /**
+     * Obtiene un puerto libre.
+     *
+     * @return Puerto.
+     */
+    private static int freePort() throws IOException
+    {
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
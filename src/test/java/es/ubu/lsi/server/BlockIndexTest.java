@@ -0,0 +1,125 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del índice de bloqueos.
+ */
+public class BlockIndexTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BlockIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BlockIndexTest.class );
+    }
+
+    /**
+     * Los bloqueadores de un remitente se mantienen ordenados y sin repetir,
+     * y desaparecen al desbloquearlo.
+     */
+    public void testBlockAndUnblock()
+    {
+        BlockIndex blocks = new BlockIndex();
+        assertNull( blocks.blockersOf( 1 ) );
+        blocks.block( 5, 1 );
+        blocks.block( 2, 1 );
+        blocks.block( 5, 1 );
+        blocks.block( 9, 1 );
+        blocks.block( 3, 7 );
+        assertTrue( Arrays.equals( new int[] { 2, 5, 9 }, blocks.blockersOf( 1 ) ) );
+        assertTrue( Arrays.equals( new int[] { 3 }, blocks.blockersOf( 7 ) ) );
+
+        blocks.unblock( 5, 1 );
+        blocks.unblock( 4, 1 );
+        assertTrue( Arrays.equals( new int[] { 2, 9 }, blocks.blockersOf( 1 ) ) );
+        blocks.unblock( 2, 1 );
+        blocks.unblock( 9, 1 );
+        assertNull( blocks.blockersOf( 1 ) );
+    }
+
+    /**
+     * Al desconectarse un remitente se olvidan los bloqueos sobre él y se
+     * conservan los del resto.
+     */
+    public void testRemoveSender()
+    {
+        BlockIndex blocks = new BlockIndex();
+        blocks.block( 2, 1 );
+        blocks.block( 3, 1 );
+        blocks.block( 2, 4 );
+        blocks.removeSender( 1 );
+        assertNull( blocks.blockersOf( 1 ) );
+        assertTrue( Arrays.equals( new int[] { 2 }, blocks.blockersOf( 4 ) ) );
+    }
+
+    /**
+     * Al difundir, sólo se descartan los destinatarios que bloquean al
+     * remitente.
+     */
+    public void testBroadcastFilter()
+    {
+        BlockIndex blocks = new BlockIndex();
+        blocks.block( 3, 1 );
+        blocks.block( 6, 1 );
+        blocks.block( 4, 2 );
+        int[] blockers = blocks.blockersOf( 1 );
+        List<Integer> delivered = new ArrayList<>();
+        for ( int recipient = 2; recipient <= 7; recipient++ )
+        {
+            if ( !BlockIndex.isBlocked( blockers, recipient ) )
+            {
+                delivered.add( recipient );
+            }
+        }
+        assertEquals( Arrays.asList( 2, 4, 5, 7 ), delivered );
+        assertFalse( BlockIndex.isBlocked( blocks.blockersOf( 5 ), 3 ) );
+    }
+
+    /**
+     * La tabla crece con muchos remitentes bloqueados, y los que se
+     * desbloquean y se vuelven a bloquear se siguen encontrando.
+     */
+    public void testManySenders()
+    {
+        BlockIndex blocks = new BlockIndex();
+        for ( int sender = 1; sender <= 1000; sender++ )
+        {
+            blocks.block( sender + 1, sender );
+        }
+        for ( int sender = 1; sender <= 1000; sender += 2 )
+        {
+            blocks.removeSender( sender );
+        }
+        for ( int sender = 1; sender <= 1000; sender++ )
+        {
+            if ( sender % 2 == 1 )
+            {
+                assertNull( blocks.blockersOf( sender ) );
+            }
+            else
+            {
+                assertTrue( Arrays.equals( new int[] { sender + 1 }, blocks.blockersOf( sender ) ) );
+            }
+        }
+        blocks.block( 7, 1 );
+        assertTrue( Arrays.equals( new int[] { 7 }, blocks.blockersOf( 1 ) ) );
+        assertNull( blocks.blockersOf( 0 ) );
+    }
+}
@@ -0,0 +1,201 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del registro de conexiones.
+ */
+public class ConnectionRegistryTest extends TestCase
+{
+    /** Hilos que compiten en las pruebas concurrentes. */
+    private static final int THREADS = 8;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ConnectionRegistryTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ConnectionRegistryTest.class );
+    }
+
+    /**
+     * Varios hilos reservan a la vez el mismo nickname: sólo uno lo
+     * consigue, y las bajas de los demás no se lo quitan.
+     */
+    public void testNicknameRace() throws Exception
+    {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>( String[]::new );
+        CountDownLatch go = new CountDownLatch( 1 );
+        AtomicInteger winners = new AtomicInteger();
+        int[] ids = new int[THREADS];
+        boolean[] won = new boolean[THREADS];
+        List<Thread> threads = new ArrayList<>();
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            int index = i;
+            Thread thread = new Thread( () -> {
+                try
+                {
+                    go.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+                ids[index] = registry.nextId();
+                won[index] = registry.register( ids[index], "ana", "conexión " + index );
+                if ( won[index] )
+                {
+                    winners.incrementAndGet();
+                }
+            } );
+            thread.start();
+            threads.add( thread );
+        }
+        go.countDown();
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 1, winners.get() );
+        assertEquals( 1, registry.size() );
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            if ( won[i] )
+            {
+                assertEquals( "conexión " + i, registry.byName( "ana" ) );
+                assertEquals( "conexión " + i, registry.get( ids[i] ) );
+            }
+            else
+            {
+                assertNull( registry.get( ids[i] ) );
+                assertNull( registry.unregister( ids[i] ) );
+            }
+        }
+        assertNotNull( registry.byName( "ana" ) );
+    }
+
+    /**
+     * Los IDs asignados desde varios hilos no se repiten.
+     */
+    public void testUniqueIds() throws Exception
+    {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>( String[]::new );
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            Thread thread = new Thread( () -> {
+                for ( int j = 0; j < 1000; j++ )
+                {
+                    ids.add( registry.nextId() );
+                }
+            } );
+            thread.start();
+            threads.add( thread );
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertEquals( THREADS * 1000, ids.size() );
+        assertFalse( ids.contains( 0 ) );
+    }
+
+    /**
+     * La instantánea se reutiliza mientras no haya altas ni bajas, y la
+     * baja libera el nickname para otra conexión.
+     */
+    public void testSnapshot()
+    {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>( String[]::new );
+        int ana = registry.nextId();
+        int bob = registry.nextId();
+        assertTrue( registry.register( ana, "ana", "ana" ) );
+        assertTrue( registry.register( bob, "bob", "bob" ) );
+        List<String> snapshot = registry.snapshot();
+        assertEquals( 2, snapshot.size() );
+        assertSame( snapshot, registry.snapshot() );
+
+        assertEquals( "ana", registry.unregister( ana ) );
+        List<String> after = registry.snapshot();
+        assertNotSame( snapshot, after );
+        assertEquals( 1, after.size() );
+        assertEquals( "bob", after.get( 0 ) );
+        assertTrue( registry.register( registry.nextId(), "ana", "otra ana" ) );
+        assertEquals( "otra ana", registry.byName( "ana" ) );
+    }
+
+    /**
+     * La instantánea se divide en grupos por el resto del ID una sola vez,
+     * y un alta produce una instantánea con su propia división.
+     */
+    public void testSplit()
+    {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>( String[]::new );
+        for ( int i = 0; i < 10; i++ )
+        {
+            int id = registry.nextId();
+            assertTrue( registry.register( id, "c" + id, "c" + id ) );
+        }
+        List<List<String>> groups = registry.snapshot().split( 3 );
+        assertEquals( 3, groups.size() );
+        assertSame( groups, registry.snapshot().split( 3 ) );
+        int total = 0;
+        for ( int group = 0; group < groups.size(); group++ )
+        {
+            for ( String name : groups.get( group ) )
+            {
+                assertEquals( group, Integer.parseInt( name.substring( 1 ) ) % 3 );
+            }
+            total += groups.get( group ).size();
+        }
+        assertEquals( 10, total );
+
+        int id = registry.nextId();
+        assertTrue( registry.register( id, "c" + id, "c" + id ) );
+        List<List<String>> after = registry.snapshot().split( 3 );
+        assertNotSame( groups, after );
+        assertTrue( after.get( id % 3 ).contains( "c" + id ) );
+    }
+
+    /**
+     * Un nickname reservado ya no está libre, pero la conexión no es
+     * visible hasta que se publica.
+     */
+    public void testReserveThenPublish()
+    {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>( String[]::new );
+        int ana = registry.nextId();
+        assertTrue( registry.reserve( ana, "ana" ) );
+        assertFalse( registry.reserve( registry.nextId(), "ana" ) );
+        assertFalse( registry.register( registry.nextId(), "ana", "otra ana" ) );
+        assertNull( registry.byName( "ana" ) );
+        assertNull( registry.get( ana ) );
+        assertTrue( registry.snapshot().isEmpty() );
+
+        registry.publish( ana, "ana", "ana" );
+        assertEquals( "ana", registry.byName( "ana" ) );
+        assertEquals( "ana", registry.get( ana ) );
+        assertEquals( 1, registry.snapshot().size() );
+    }
+}
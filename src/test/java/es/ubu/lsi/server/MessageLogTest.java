@@ -0,0 +1,221 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.BinaryCodec;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del registro persistente de mensajes: los mensajes se recuperan
+ * al reabrirlo, también repartidos en varios segmentos o con registros a
+ * medio escribir por una caída.
+ */
+public class MessageLogTest extends TestCase
+{
+    /** Directorio del registro de la prueba. */
+    private File dir;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MessageLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( MessageLogTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory( "log" ).toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Los mensajes que no caben en un segmento pasan al siguiente y se
+     * recuperan todos, en orden.
+     */
+    public void testSegmentRollover() throws Exception
+    {
+        char[] padding = new char[100 * 1024];
+        Arrays.fill( padding, '.' );
+        int messages = 25;
+        MessageLog log = open();
+        for ( int i = 0; i < messages; i++ )
+        {
+            log.append( message( i + new String( padding ) ) );
+        }
+        log.close();
+        assertTrue( "No se ha pasado a un segundo segmento", segments().length > 1 );
+
+        List<String> replayed = replay( open() );
+        assertEquals( messages, replayed.size() );
+        for ( int i = 0; i < messages; i++ )
+        {
+            assertEquals( i + new String( padding ), replayed.get( i ) );
+        }
+    }
+
+    /**
+     * Una caída deja un hueco reservado sin escribir seguido de un registro
+     * completo: el hueco se salta, el registro posterior se recupera y los
+     * mensajes nuevos se añaden detrás sin sobrescribirlo.
+     */
+    public void testUnwrittenSlot() throws Exception
+    {
+        MessageLog log = open();
+        log.append( message( "antes" ) );
+        log.close();
+
+        File[] segments = segments();
+        try ( RandomAccessFile file = new RandomAccessFile( segments[segments.length - 1], "rw" );
+              FileChannel channel = file.getChannel() )
+        {
+            MappedByteBuffer data = channel.map( FileChannel.MapMode.READ_WRITE, 0, channel.size() );
+            int position = 0;
+            while ( data.getInt( position ) > 0 )
+            {
+                position += data.getInt( position );
+            }
+            // Hueco reservado: longitud escrita, sin marca de tiempo y con la carga a medias
+            data.putInt( position, 12 + 40 );
+            data.put( position + 12, (byte) 0x7f );
+            position += 12 + 40;
+            byte[] payload = BinaryCodec.INSTANCE.encode( new ChatMessage( 7, ChatMessage.MessageType.MESSAGE, "después" ) );
+            data.putInt( position, 12 + payload.length );
+            data.putLong( position + 4, System.currentTimeMillis() );
+            data.position( position + 12 );
+            data.put( payload );
+            data.force();
+        }
+
+        log = open();
+        log.append( message( "nuevo" ) );
+        log.close();
+
+        assertEquals( Arrays.asList( "antes", "después", "nuevo" ), replay( open() ) );
+    }
+
+    /**
+     * Al recuperar los mensajes recientes sólo se leen los segmentos más
+     * nuevos: el más antiguo se sustituye por un directorio, que no se puede
+     * leer, y aun así se obtienen los últimos mensajes en orden.
+     */
+    public void testReplayRecent() throws Exception
+    {
+        char[] padding = new char[100 * 1024];
+        Arrays.fill( padding, '.' );
+        int messages = 25;
+        MessageLog log = open();
+        for ( int i = 0; i < messages; i++ )
+        {
+            log.append( message( i + new String( padding ) ) );
+        }
+        log.close();
+        File[] segments = segments();
+        assertTrue( "No se ha pasado a un tercer segmento", segments.length > 2 );
+        assertTrue( segments[0].delete() );
+        assertTrue( segments[0].mkdir() );
+
+        List<String> replayed = new ArrayList<>();
+        log = open();
+        try
+        {
+            log.replayRecent( 3, message -> true, message -> replayed.add( message.getMessage() ) );
+        }
+        finally
+        {
+            log.close();
+            segments[0].delete();
+        }
+        assertTrue( replayed.size() >= 3 );
+        assertTrue( replayed.size() < messages );
+        int first = messages - replayed.size();
+        for ( int i = 0; i < replayed.size(); i++ )
+        {
+            assertEquals( ( first + i ) + new String( padding ), replayed.get( i ) );
+        }
+    }
+
+    /**
+     * Abre el registro del directorio de la prueba, con segmentos del menor
+     * tamaño admitido.
+     *
+     * @return Registro abierto.
+     */
+    private MessageLog open() throws Exception
+    {
+        return new MessageLog( dir, 1, FsyncPolicy.OS, 0 );
+    }
+
+    /**
+     * Recorre un registro y lo cierra.
+     *
+     * @param log Registro.
+     * @return Textos de los mensajes guardados, en orden.
+     */
+    private static List<String> replay( MessageLog log ) throws Exception
+    {
+        List<String> texts = new ArrayList<>();
+        try
+        {
+            log.replay( message -> texts.add( message.getMessage() ) );
+        }
+        finally
+        {
+            log.close();
+        }
+        return texts;
+    }
+
+    /**
+     * Mensaje difundido con un texto.
+     *
+     * @param text Texto.
+     * @return Mensaje preparado para guardarse.
+     */
+    private static EncodedMessage message( String text )
+    {
+        return new EncodedMessage( new ChatMessage( 1, ChatMessage.MessageType.MESSAGE, text ) );
+    }
+
+    /**
+     * Segmentos del registro, ordenados.
+     *
+     * @return Ficheros de los segmentos.
+     */
+    private File[] segments()
+    {
+        File[] segments = dir.listFiles( ( parent, name ) -> name.endsWith( ".log" ) );
+        Arrays.sort( segments );
+        return segments;
+    }
+}
@@ -0,0 +1,95 @@
+package es.ubu.lsi.server;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas de las políticas de desbordamiento de la cola de salida.
+ */
+public class OutboundQueueTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OutboundQueueTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( OutboundQueueTest.class );
+    }
+
+    /**
+     * Con DROP_OLDEST la cola llena descarta los más antiguos y conserva el
+     * cliente.
+     */
+    public void testDropOldest()
+    {
+        OutboundQueue<Integer> queue = new OutboundQueue<>( 3, OverflowPolicy.DROP_OLDEST, 0 );
+        for ( int i = 1; i <= 5; i++ )
+        {
+            assertTrue( queue.offer( i ) );
+        }
+        assertEquals( 3, queue.depth() );
+        assertEquals( 2, queue.dropped() );
+        assertEquals( Integer.valueOf( 3 ), queue.poll() );
+        assertEquals( Integer.valueOf( 4 ), queue.poll() );
+        assertEquals( Integer.valueOf( 5 ), queue.poll() );
+    }
+
+    /**
+     * Con DISCONNECT la cola llena rechaza el elemento sin tocar los que ya
+     * tenía.
+     */
+    public void testDisconnect()
+    {
+        OutboundQueue<Integer> queue = new OutboundQueue<>( 2, OverflowPolicy.DISCONNECT, 0 );
+        assertTrue( queue.offer( 1 ) );
+        assertTrue( queue.offer( 2 ) );
+        assertFalse( queue.offer( 3 ) );
+        assertEquals( 2, queue.depth() );
+        assertEquals( 0, queue.dropped() );
+        assertEquals( Integer.valueOf( 1 ), queue.poll() );
+    }
+
+    /**
+     * Con BLOCK el productor espera a que el consumidor haga sitio y, si no
+     * lo hace a tiempo, se rechaza el elemento.
+     */
+    public void testBlock() throws Exception
+    {
+        OutboundQueue<Integer> queue = new OutboundQueue<>( 1, OverflowPolicy.BLOCK, 2000 );
+        assertTrue( queue.offer( 1 ) );
+        Thread consumer = new Thread( () -> {
+            try
+            {
+                Thread.sleep( 100 );
+                queue.take();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+        consumer.start();
+        long start = System.nanoTime();
+        assertTrue( queue.offer( 2 ) );
+        assertTrue( "No ha esperado al consumidor", System.nanoTime() - start >= 50_000_000L );
+        consumer.join();
+        assertEquals( Integer.valueOf( 2 ), queue.poll() );
+
+        OutboundQueue<Integer> full = new OutboundQueue<>( 1, OverflowPolicy.BLOCK, 50 );
+        assertTrue( full.offer( 1 ) );
+        start = System.nanoTime();
+        assertFalse( full.offer( 2 ) );
+        assertTrue( "No ha esperado el tiempo máximo", System.nanoTime() - start >= 40_000_000L );
+    }
+}
@@ -0,0 +1,110 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del límite de mensajes por cliente.
+ */
+public class RateLimiterTest extends TestCase
+{
+    /** Tiempo de relleno de una ficha a 10 mensajes por segundo. */
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RateLimiterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RateLimiterTest.class );
+    }
+
+    /**
+     * Una cubeta llena admite la ráfaga entera y después indica cuánto falta
+     * para la siguiente ficha.
+     */
+    public void testBurst()
+    {
+        RateLimiter.Bucket bucket = new RateLimiter( 10, 3, RateLimitPolicy.DROP ).newBucket();
+        long now = System.nanoTime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( 0, bucket.tryAcquire( now ) );
+        }
+        assertEquals( INTERVAL, bucket.tryAcquire( now ) );
+        // Un intento rechazado no consume nada
+        assertEquals( INTERVAL, bucket.tryAcquire( now ) );
+    }
+
+    /**
+     * Las fichas se rellenan al ritmo configurado, sin pasar de la ráfaga por
+     * mucho que se espere.
+     */
+    public void testRefill()
+    {
+        RateLimiter.Bucket bucket = new RateLimiter( 10, 3, RateLimitPolicy.DROP ).newBucket();
+        long now = System.nanoTime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( 0, bucket.tryAcquire( now ) );
+        }
+        now += INTERVAL;
+        assertEquals( 0, bucket.tryAcquire( now ) );
+        assertTrue( bucket.tryAcquire( now ) > 0 );
+
+        now += TimeUnit.SECONDS.toNanos( 10 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( 0, bucket.tryAcquire( now ) );
+        }
+        assertTrue( bucket.tryAcquire( now ) > 0 );
+    }
+
+    /**
+     * Sin límite se admite todo, y un cambio del límite en caliente se aplica
+     * a las cubetas ya creadas.
+     */
+    public void testUnlimitedAndLiveChange()
+    {
+        RateLimiter limiter = new RateLimiter( 0, 1, RateLimitPolicy.DROP );
+        RateLimiter.Bucket bucket = limiter.newBucket();
+        long now = System.nanoTime();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( 0, bucket.tryAcquire( now ) );
+        }
+        limiter.set( 10, 1, RateLimitPolicy.DISCONNECT );
+        now += TimeUnit.SECONDS.toNanos( 1 );
+        assertEquals( 0, bucket.tryAcquire( now ) );
+        assertTrue( bucket.tryAcquire( now ) > 0 );
+    }
+
+    /**
+     * En los motores con un hilo por cliente, DELAY espera a la siguiente
+     * ficha y el resto de políticas se devuelven sin esperar.
+     */
+    public void testAdmit() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter( 20, 1, RateLimitPolicy.DELAY );
+        RateLimiter.Bucket bucket = limiter.newBucket();
+        assertNull( limiter.admit( bucket ) );
+        long start = System.nanoTime();
+        assertNull( limiter.admit( bucket ) );
+        assertTrue( "No ha esperado a la ficha", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 40 ) );
+
+        limiter.set( 20, 1, RateLimitPolicy.DROP );
+        assertEquals( RateLimitPolicy.DROP, limiter.admit( bucket ) );
+    }
+}
@@ -0,0 +1,164 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageFrames;
+import es.ubu.lsi.common.SerializationCodec;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Pruebas del modo con un hilo virtual por cliente.
+ */
+public class VirtualThreadModeTest extends TestCase
+{
+    /** Espera máxima de las comprobaciones, en milisegundos. */
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public VirtualThreadModeTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( VirtualThreadModeTest.class );
+    }
+
+    /**
+     * El motor {@code virtual} arranca el servidor de hilos (con hilos de
+     * plataforma si la JVM no tiene hilos virtuales) y atiende a sus
+     * clientes como el motor {@code threads}.
+     */
+    public void testServesClients() throws Exception
+    {
+        int port;
+        try ( ServerSocket socket = new ServerSocket( 0 ) )
+        {
+            port = socket.getLocalPort();
+        }
+        ChatServer server = ChatServerImpl.createServer( new ServerConfig()
+                .set( "engine", "virtual" )
+                .set( "port", String.valueOf( port ) ) );
+        assertTrue( server instanceof ChatServerImpl );
+        Thread acceptor = new Thread( server::startup, "chat-acceptor-" + port );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        try ( Client ana = connect( port, "ana" ); Client bea = connect( port, "bea" ) )
+        {
+            ana.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola desde un hilo virtual" ) );
+            bea.awaitText( "hola desde un hilo virtual" );
+        }
+        finally
+        {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Conecta un cliente sin negociación que envía su nickname y espera a
+     * recibir su propio saludo, señal de que ya está dado de alta.
+     *
+     * @param port Puerto del servidor.
+     * @param nickname Apodo.
+     * @return Cliente conectado.
+     */
+    private static Client connect( int port, String nickname ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Socket socket;
+        while ( true )
+        {
+            try
+            {
+                socket = new Socket( "localhost", port );
+                break;
+            }
+            catch ( IOException e )
+            {
+                assertTrue( "No se puede conectar al puerto " + port, System.currentTimeMillis() < deadline );
+                Thread.sleep( 50 );
+            }
+        }
+        socket.setSoTimeout( TIMEOUT_MILLIS );
+        Client client = new Client( socket );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, nickname ) );
+        client.send( new ChatMessage( 0, ChatMessage.MessageType.MESSAGE, "hola, soy " + nickname ) );
+        client.awaitText( "hola, soy " + nickname );
+        return client;
+    }
+
+    /**
+     * Cliente mínimo sobre un socket, sin negociación: envía y recibe
+     * mensajes serializados.
+     */
+    private static class Client implements AutoCloseable
+    {
+        /** Socket del cliente. */
+        private final Socket socket;
+        /** Flujo de entrada del socket. */
+        private final DataInputStream in;
+
+        /**
+         * Constructor.
+         *
+         * @param socket Socket conectado.
+         */
+        Client( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+
+        /**
+         * Envía un mensaje.
+         *
+         * @param message Mensaje.
+         */
+        void send( ChatMessage message ) throws IOException
+        {
+            ByteBuffer frame = MessageFrames.frame( SerializationCodec.INSTANCE.encode( message ) );
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get( bytes );
+            socket.getOutputStream().write( bytes );
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Lee mensajes hasta recibir uno con un texto.
+         *
+         * @param text Texto esperado.
+         */
+        void awaitText( String text ) throws IOException
+        {
+            while ( true )
+            {
+                byte[] payload = MessageFrames.readFrame( in );
+                if ( text.equals( SerializationCodec.INSTANCE.decode( payload, 0, payload.length ).getMessage() ) )
+                {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}